@@ -9,17 +9,18 @@ import android.content.Context;
 
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.google.common.base.Joiner;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.orangebikelabs.orangesqueeze.R;
 import com.orangebikelabs.orangesqueeze.cache.CacheEntry;
 import com.orangebikelabs.orangesqueeze.cache.CacheFuture;
 import com.orangebikelabs.orangesqueeze.cache.CacheFutureFactory;
+import com.orangebikelabs.orangesqueeze.cache.CachePolicyTable;
+import com.orangebikelabs.orangesqueeze.cache.CachePolicyTable.Rule;
 import com.orangebikelabs.orangesqueeze.cache.CacheRequestCallback;
 import com.orangebikelabs.orangesqueeze.cache.CacheService;
 import com.orangebikelabs.orangesqueeze.cache.CacheServiceProvider;
+import com.orangebikelabs.orangesqueeze.cache.ListFingerprint;
 import com.orangebikelabs.orangesqueeze.cache.SBCacheException;
 import com.orangebikelabs.orangesqueeze.common.JsonHelper;
 import com.orangebikelabs.orangesqueeze.common.OSLog;
@@ -99,7 +100,8 @@ public class CometRequest extends AbsRequest {
                 throw new InvalidDataException("No data element", retrievedJson);
             }
 
-            SimpleResult retval = new SimpleResult(data);
+            // loaders showing a stale result reload it when the refresh lands
+            SimpleResult retval = new SimpleResult(data, cacheFuture.isStale() ? cacheEntry : null);
 
             PlayerId playerId = getPlayerId();
             if (getCommitType() == CommitType.PLAYERUPDATE && playerId != null) {
@@ -121,12 +123,9 @@ public class CometRequest extends AbsRequest {
         if (retval == null) {
             CacheEntry newVal = null;
             if (isCacheable()) {
-                CacheEntry.Type cacheType = checkServerCacheWhitelist(mCommands).orNull();
-                if (cacheType != null) {
-                    String cacheKey = getCacheKey(cacheType);
-                    if (cacheKey != null) {
-                        newVal = new CacheEntry(cacheType, mSbContext.getServerId(), cacheKey);
-                    }
+                CachePolicyTable.Rule rule = lookupCachePolicy(mCommands);
+                if (rule != null && rule.getCacheType() != null && canCache(rule.getCacheType())) {
+                    newVal = rule.newCacheEntry(mSbContext.getServerId(), getPlayerId(), mCommands);
                 }
             }
             retval = Option.fromNullable(newVal);
@@ -135,32 +134,9 @@ public class CometRequest extends AbsRequest {
         return retval.orNull();
     }
 
-    @Nullable
-    private String getCacheKey(CacheEntry.Type type) {
-        if (type == CacheEntry.Type.SERVERSCAN && mSbContext.getServerStatus().getLastScanTime() == null) {
-            // don't cache serverscan entries if we're scanning
-            return null;
-        }
-
-        StringBuilder builder = new StringBuilder(128);
-        builder.append("Request{");
-
-        PlayerId id = getPlayerId();
-        if (type == CacheEntry.Type.TIMEOUT && id != null) {
-            builder.append(id);
-            builder.append(",");
-        }
-        builder.append("[");
-        boolean first = true;
-        for (Object o : getCommands()) {
-            if (!first) {
-                builder.append(",");
-            }
-            builder.append(o);
-            first = false;
-        }
-        builder.append("]}");
-        return builder.toString();
+    private boolean canCache(CacheEntry.Type type) {
+        // don't cache serverscan entries if we're scanning
+        return type != CacheEntry.Type.SERVERSCAN || mSbContext.getServerStatus().getLastScanTime() != null;
     }
 
     @Nonnull
@@ -224,11 +200,37 @@ public class CometRequest extends AbsRequest {
             return retval;
         }
 
+        @Override
+        public boolean shouldCompressForDatabaseCache() {
+            return true;
+        }
+
+        @Override
+        public boolean shouldServeStale() {
+            // radios, apps and the like change rarely, a result up to a day old is better than waiting for the server
+            return true;
+        }
+
+        @Override
+        @Nullable
+        public ListFingerprint onFingerprintForRevalidation(CacheService service, JsonNode node) {
+            JsonNode data = node.get("data");
+            if (data == null) {
+                return null;
+            }
+            return ListFingerprint.fromCometPage(getCommands(), data);
+        }
+
         @Override
         public int onEstimateMemorySize(CacheService service, byte[] data) {
             return data.length;
         }
 
+        @Override
+        public int onEstimateDecodedMemorySize(CacheService service, JsonNode node) {
+            return JsonHelper.estimateMemorySize(node);
+        }
+
         @Nullable
         @Override
         public byte[] onAdaptForMemoryCache(CacheService service, JsonNode node) throws IOException {
@@ -256,59 +258,30 @@ public class CometRequest extends AbsRequest {
         }
     };
 
-    // list of items that can be cached until the server rescans
-    static final private ImmutableSet<String> sServerCacheList = ImmutableSet.of("browselibrary;items;", "artists;", "titles;", "albums;", "songinfo;");
-
-    // list of items that can be cached with a timeout (a day or so)
-    static final private ImmutableSet<String> sTimeoutCacheList = ImmutableSet.of("radios;", "myapps;items;", "picks;items;", "music;items;", "local;items;");
+    static final private CachePolicyTable sCachePolicies = CachePolicyTable.newBuilder()
+            // items that can be cached until the server rescans
+            .add(Rule.serverScan("browselibrary", "items"), Rule.serverScan("artists"), Rule.serverScan("titles"), Rule.serverScan("albums"),
+                    Rule.serverScan("songinfo"))
+            // special case for custombrowse and no custom ratings
+            .add(Rule.serverScan("custombrowse", "browsejive").unlessParameterContains("ml_rated"))
+            // items that can be cached with a timeout (a day or so)
+            .add(Rule.timeout("radios").keyedByPlayer(), Rule.timeout("myapps", "items").keyedByPlayer(), Rule.timeout("picks", "items").keyedByPlayer(),
+                    Rule.timeout("music", "items").keyedByPlayer(), Rule.timeout("local", "items").keyedByPlayer())
+            // items that are known to be non-cacheable. This is just used to suppress warnings when unexpected commands are encountered
+            .add(Rule.uncached("status"), Rule.uncached("contextmenu"), Rule.uncached("custombrowse", "browsejive"), Rule.uncached("menu"),
+                    Rule.uncached("alarmsettings"), Rule.uncached("jiveupdatealarm"), Rule.uncached("favorites", "items"))
+            .build();
 
-    // list of items that are known to be non-cacheable. This is just used to suppress warnings when unexpected commands are encountered
-    static final private ImmutableSet<String> sNoCacheList = ImmutableSet.of("status;", "contextmenu;", "custombrowse;browsejive;", "menu;", "alarmsettings;",
-            "jiveupdatealarm;", "favorites;items;");
-
-    @Nonnull
-    static private Option<CacheEntry.Type> checkServerCacheWhitelist(List<Object> commands) {
-        CacheEntry.Type retval = null;
+    @Nullable
+    static private CachePolicyTable.Rule lookupCachePolicy(List<Object> commands) {
         if (OSLog.isLoggable(Tag.CACHE, OSLog.VERBOSE)) {
-            OSLog.v(Tag.CACHE, "cache whitelist check " + commands);
-        }
-        String commandString = Joiner.on(";").join(commands);
-        for (String s : sServerCacheList) {
-            if (commandString.startsWith(s)) {
-                retval = CacheEntry.Type.SERVERSCAN;
-                break;
-            }
-        }
-        if (retval == null) {
-            if (commandString.startsWith("custombrowse;browsejive;") && !commandString.contains("ml_rated")) {
-                // special case for custombrowse and no custom ratings
-                retval = CacheEntry.Type.SERVERSCAN;
-            }
-        }
-
-        if (retval == null) {
-            for (String s : sTimeoutCacheList) {
-                if (commandString.startsWith(s)) {
-                    retval = CacheEntry.Type.TIMEOUT;
-                    break;
-                }
-            }
+            OSLog.v(Tag.CACHE, "cache policy lookup " + commands);
         }
-
+        CachePolicyTable.Rule retval = sCachePolicies.lookup(commands);
         if (retval == null && OSLog.isLoggable(Tag.CACHE, OSLog.DEBUG)) {
-            // check for this command on the no cache list
-            boolean found = false;
-            for (String s : sNoCacheList) {
-                if (commandString.startsWith(s)) {
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) {
-                OSLog.d(Tag.CACHE, "Unhandled uncached/nocachelist command string: " + commands);
-            }
+            OSLog.d(Tag.CACHE, "Unhandled uncached/nocachelist command string: " + commands);
         }
-        return Option.fromNullable(retval);
+        return retval;
     }
 
     static class InvalidDataException extends SBRequestException {
@@ -328,7 +328,8 @@ public class ContextImpl extends AbsContext {
     @Override
     @Nonnull
     public FutureResult sendPlayerCommand(@Nullable PlayerId playerId, List<?> commands) {
-        AbsRequest request = (AbsRequest) newRequest(SBRequest.Type.JSONRPC, commands);
+        // carried over the streaming connection when it's available
+        AbsRequest request = new PlayerCommandRequest(mApplicationContext, this, commands);
         // null playerId means use current player
         if (playerId == null) {
             playerId = getPlayerId();
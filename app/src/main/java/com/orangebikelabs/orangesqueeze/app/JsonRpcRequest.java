@@ -7,11 +7,10 @@ package com.orangebikelabs.orangesqueeze.app;
 
 import android.content.Context;
 
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.orangebikelabs.orangesqueeze.R;
 import com.orangebikelabs.orangesqueeze.common.JsonHelper;
 import com.orangebikelabs.orangesqueeze.common.OSAssert;
@@ -22,15 +21,18 @@ import com.orangebikelabs.orangesqueeze.common.SBContext;
 import com.orangebikelabs.orangesqueeze.common.SBRequestException;
 import com.orangebikelabs.orangesqueeze.common.SBResult;
 import com.orangebikelabs.orangesqueeze.net.HttpUtils;
-import com.orangebikelabs.orangesqueeze.net.JsonRpc;
+import com.orangebikelabs.orangesqueeze.net.JsonRpcBatcher;
 import com.orangebikelabs.orangesqueeze.net.PlayerStatusSubscription;
 
 import java.io.IOException;
 import java.net.URL;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
@@ -38,9 +40,17 @@ import javax.annotation.concurrent.ThreadSafe;
  */
 @ThreadSafe
 public class JsonRpcRequest extends AbsRequest {
+    /**
+     * extra time allowed for the batching window and for other calls in the same batch
+     */
+    final static private long BATCH_TIMEOUT_SLACK_MILLIS = 1000;
+
     final private Context mContext;
     final private SBContext mSbContext;
 
+    @GuardedBy("this")
+    private boolean mCoalescing;
+
     public JsonRpcRequest(Context context, SBContext sbContext, List<?> commands) {
         super(commands);
         mContext = context;
@@ -58,7 +68,6 @@ public class JsonRpcRequest extends AbsRequest {
             throw new SBRequestException(mContext.getString(R.string.exception_connection_timeout));
         }
         ObjectNode request = JsonHelper.getJsonObjectMapper().createObjectNode();
-        request.put("id", Integer.valueOf(1));
         request.put("method", "slim.request");
 
         ArrayNode params = JsonHelper.getJsonObjectMapper().createArrayNode();
@@ -71,46 +80,52 @@ public class JsonRpcRequest extends AbsRequest {
 
         try {
             URL url = HttpUtils.getJSONUrl(mSbContext.getConnectionInfo());
-            JsonRpc rpc = new JsonRpc();
-            rpc.setUseGlobalCookies(true);
-            // use credentials from the supplied context
-            rpc.setCredentials(mSbContext.getConnectionCredentials());
-            rpc.setTimeout(getTimeoutMillis(), TimeUnit.MILLISECONDS);
-            JsonRpc.Result rpcResult = rpc.execute(url, request);
-            try {
-                JsonParser parser = rpcResult.getParser();
-                JsonToken token = parser.nextToken();
-                if (token == JsonToken.START_OBJECT) {
-                    JsonNode completeResult = parser.readValueAsTree();
-                    JsonNode result = completeResult.get("result");
-                    if (result != null && result.isObject()) {
-                        SimpleResult retval = new SimpleResult(result);
-                        if (getCommitType() == CommitType.PLAYERUPDATE && playerId != null) {
-                            // when playerid gets update, commit this result
-                            PlayerStatusSubscription.registerCommittableResult(playerId, retval);
-                        } else if (getCommitType() == CommitType.IMMEDIATE) {
-                            retval.commit();
-                        }
-                        return retval;
-                    } else {
-                        String errorMessage = "No result from server";
-                        OSLog.e(Tag.DEFAULT, errorMessage, completeResult);
-                        throw new SBRequestException(errorMessage);
-                    }
-                } else {
-                    String error = "Unexpected JSON: token=" + parser.getCurrentToken() + ", name=" + parser.getCurrentName();
-                    OSLog.w(error);
-                    throw new SBRequestException(error);
+            long timeout = getTimeoutMillis();
+
+            // use credentials from the supplied context, the batcher assigns the request id
+            ListenableFuture<JsonNode> future = JsonRpcBatcher.getInstance().submit(url, mSbContext.getConnectionCredentials(), request,
+                    timeout, TimeUnit.MILLISECONDS, isCoalescing());
+            JsonNode completeResult = future.get(timeout + BATCH_TIMEOUT_SLACK_MILLIS, TimeUnit.MILLISECONDS);
+            JsonNode result = completeResult.get("result");
+            if (result != null && result.isObject()) {
+                SimpleResult retval = new SimpleResult(result);
+                if (getCommitType() == CommitType.PLAYERUPDATE && playerId != null) {
+                    // when playerid gets update, commit this result
+                    PlayerStatusSubscription.registerCommittableResult(playerId, retval);
+                } else if (getCommitType() == CommitType.IMMEDIATE) {
+                    retval.commit();
                 }
-            } finally {
-                rpcResult.close();
+                return retval;
+            } else {
+                String errorMessage = "No result from server";
+                OSLog.e(Tag.DEFAULT, errorMessage, completeResult);
+                throw new SBRequestException(errorMessage);
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                OSLog.i("Exception connecting to server", cause);
             }
-        } catch (IOException e) {
+            throw SBRequestException.wrap(cause);
+        } catch (TimeoutException | IOException e) {
             OSLog.i("Exception connecting to server", e);
             throw SBRequestException.wrap(e);
         }
     }
 
+    /**
+     * read-only requests can share the response of an identical request that is already outstanding
+     */
+    @Nonnull
+    public synchronized JsonRpcRequest setCoalescing(boolean coalescing) {
+        mCoalescing = coalescing;
+        return this;
+    }
+
+    public synchronized boolean isCoalescing() {
+        return mCoalescing;
+    }
+
     protected ArrayNode prepareCommands() {
         ArrayNode retval = JsonHelper.getJsonObjectMapper().createArrayNode();
         for (Object s : mCommands) {
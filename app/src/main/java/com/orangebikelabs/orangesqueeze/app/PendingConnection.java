@@ -580,7 +580,8 @@ public class PendingConnection {
             mSbContext.setConnectionCredentials(sn);
 
             try {
-                SBRequest request = mSbContext.newRequest(SBRequest.Type.JSONRPC, "serverstatus", "0", "1");
+                JsonRpcRequest request = (JsonRpcRequest) mSbContext.newRequest(SBRequest.Type.JSONRPC, "serverstatus", "0", "1");
+                request.setCoalescing(true);
                 FutureResult futureResult = request.submit(MoreExecutors.newDirectExecutorService());
                 SBResult result = futureResult.checkedGet();
                 if (result.getJsonResult().get("player count") == null) {
@@ -617,6 +618,7 @@ public class PendingConnection {
                     JsonRpcRequest request = (JsonRpcRequest) mSbContext.newRequest(SBRequest.Type.JSONRPC, "version", "?");
                     // use reduced timeouts
                     request.setTimeout((maxRetryCount - currentRetryCount) * 2L + 4, TimeUnit.SECONDS);
+                    request.setCoalescing(true);
 
                     FutureResult futureResult = request.submit(MoreExecutors.newDirectExecutorService());
                     SBResult result = futureResult.checkedGet();
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.app;
+
+import android.content.Context;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.orangebikelabs.orangesqueeze.common.OSAssert;
+import com.orangebikelabs.orangesqueeze.common.OSLog;
+import com.orangebikelabs.orangesqueeze.common.OSLog.Tag;
+import com.orangebikelabs.orangesqueeze.common.PlayerId;
+import com.orangebikelabs.orangesqueeze.common.SBRequestException;
+import com.orangebikelabs.orangesqueeze.common.SBResult;
+import com.orangebikelabs.orangesqueeze.net.PlayerStatusSubscription;
+import com.orangebikelabs.orangesqueeze.net.StreamingConnection;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Player command request that is carried over the existing Comet session when it is established, which avoids a separate HTTP POST per
+ * command. If the streaming connection isn't up the command is sent as a regular JSON-RPC request instead. Commands that were handed to
+ * the streaming connection are never resent over JSON-RPC, so a command can't be applied twice.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+public class PlayerCommandRequest extends AbsRequest {
+    @Nonnull
+    final private Context mContext;
+
+    @Nonnull
+    final private ContextImpl mSbContext;
+
+    PlayerCommandRequest(Context context, ContextImpl sbContext, List<?> commands) {
+        super(commands);
+
+        mContext = context;
+        mSbContext = sbContext;
+    }
+
+    @Override
+    @Nonnull
+    public SBResult call() throws SBRequestException, InterruptedException {
+        OSAssert.assertNotMainThread();
+
+        long start = System.nanoTime();
+        String transport;
+        SBResult retval;
+
+        StreamingConnection connection = getEstablishedConnection();
+        if (connection != null) {
+            transport = "comet";
+            retval = callComet(connection);
+        } else {
+            transport = "jsonrpc";
+            retval = callJsonRpc();
+        }
+
+        if (OSLog.isLoggable(Tag.TIMING, OSLog.DEBUG)) {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            OSLog.d(Tag.TIMING, "Player command " + getCommands() + " acknowledged via " + transport + " in " + elapsed + "ms");
+        }
+        return retval;
+    }
+
+    /**
+     * @return the streaming connection if it is established right now, without waiting
+     */
+    @Nullable
+    private StreamingConnection getEstablishedConnection() throws InterruptedException {
+        try {
+            return mSbContext.internalAwaitConnection("PlayerCommandRequest " + getCommands(), 0, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        }
+    }
+
+    @Nonnull
+    private SBResult callComet(StreamingConnection connection) throws SBRequestException, InterruptedException {
+        long timeout = getTimeoutMillis();
+        PlayerId playerId = getPlayerId();
+        try {
+            Future<JsonNode> future = connection.submitRequest(timeout, TimeUnit.MILLISECONDS, playerId, mCommands);
+            JsonNode response = future.get(timeout, TimeUnit.MILLISECONDS);
+            JsonNode data = response.get("data");
+            if (data == null) {
+                throw new SBRequestException("No data element");
+            }
+
+            SimpleResult retval = new SimpleResult(data);
+            if (getCommitType() == CommitType.PLAYERUPDATE && playerId != null) {
+                // when playerid gets update, commit this result
+                PlayerStatusSubscription.registerCommittableResult(playerId, retval);
+            } else if (getCommitType() == CommitType.IMMEDIATE) {
+                retval.commit();
+            }
+            return retval;
+        } catch (ExecutionException e) {
+            throw SBRequestException.wrap(e.getCause());
+        } catch (TimeoutException e) {
+            throw SBRequestException.wrap(e);
+        }
+    }
+
+    @Nonnull
+    private SBResult callJsonRpc() throws SBRequestException, InterruptedException {
+        JsonRpcRequest request = new JsonRpcRequest(mContext, mSbContext, mCommands);
+        request.setPlayerId(getPlayerId());
+        request.setCommitType(getCommitType());
+        request.setTimeout(getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        return request.call();
+    }
+}
@@ -14,6 +14,7 @@ import android.os.Looper
 import android.os.StrictMode
 import androidx.multidex.MultiDex
 import com.orangebikelabs.orangesqueeze.BuildConfig
+import com.orangebikelabs.orangesqueeze.cache.CacheServiceProvider
 import com.orangebikelabs.orangesqueeze.common.OSLog
 import com.orangebikelabs.orangesqueeze.common.SBPreferences
 import com.orangebikelabs.orangesqueeze.net.DeviceConnectivity
@@ -107,6 +108,15 @@ class SBApplication : Application() {
         return base
     }
 
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // the process may be killed from here on, keep the hot part of the memory cache for the next start
+            CacheServiceProvider.get().triggerSnapshot()
+        }
+    }
+
     override fun onConfigurationChanged(newConfig: Configuration) {
         super.onConfigurationChanged(newConfig)
 
@@ -9,9 +9,11 @@ import androidx.annotation.Keep;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.MoreObjects;
+import com.orangebikelabs.orangesqueeze.cache.CacheEntry;
 import com.orangebikelabs.orangesqueeze.common.SBResult;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
@@ -21,11 +23,19 @@ import javax.annotation.concurrent.GuardedBy;
 public class SimpleResult implements SBResult {
     final private JsonNode mResult;
 
+    @Nullable
+    final private CacheEntry mStaleCacheEntry;
+
     @GuardedBy("this")
     private boolean mCommitted = false;
 
     public SimpleResult(JsonNode result) {
+        this(result, null);
+    }
+
+    public SimpleResult(JsonNode result, @Nullable CacheEntry staleCacheEntry) {
         mResult = result;
+        mStaleCacheEntry = staleCacheEntry;
     }
 
     @Override
@@ -34,6 +44,12 @@ public class SimpleResult implements SBResult {
         return mResult;
     }
 
+    @Override
+    @Nullable
+    public CacheEntry getStaleCacheEntry() {
+        return mStaleCacheEntry;
+    }
+
     @Override
     synchronized public boolean isCommitted() {
         return mCommitted;
@@ -48,6 +64,7 @@ public class SimpleResult implements SBResult {
     public String toString() {
         return MoreObjects.toStringHelper(this)
                 .add("committed", isCommitted())
+                .add("staleCacheEntry", mStaleCacheEntry)
                 .add("result", mResult)
                 .toString();
     }
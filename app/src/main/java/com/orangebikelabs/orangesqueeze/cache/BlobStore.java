@@ -0,0 +1,529 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteSource;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Append-only store for large cache values. Values are appended to the active segment file, and the cache row keeps a reference to the
+ * segment, offset and length. When the active segment is full it is synced and sealed, and a new one is started. Sealed segments are
+ * memory-mapped for reading.
+ * <p/>
+ * Each record has a small header with a magic number, the length and a CRC32 of the data. On open, the tail of the active segment is
+ * checked and any torn record left behind by a crash is truncated. Reads verify the checksum as the data is streamed, so a reference to
+ * data that never made it to disk fails with an IOException instead of returning garbage.
+ * <p/>
+ * Space isn't reclaimed when values are deleted; segments that are mostly dead are compacted by copying the live records forward. A value
+ * is appended before the row that references it is queued, so until then nothing shows it is live. Appends pin their segment, and
+ * compaction skips pinned segments until the caller unpins the value once its row is queued.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+public class BlobStore implements Closeable {
+    final static private int MAGIC = 0x4f53424c;
+
+    final static int HEADER_SIZE = 12;
+
+    final static private String SEGMENT_PREFIX = "segment-";
+    final static private String SEGMENT_SUFFIX = ".blob";
+
+    /**
+     * reference to a stored value
+     */
+    @Immutable
+    static public class Ref {
+        final int mSegment;
+        final long mOffset;
+        final int mLength;
+
+        public Ref(int segment, long offset, int length) {
+            mSegment = segment;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        public int getSegment() {
+            return mSegment;
+        }
+
+        public long getOffset() {
+            return mOffset;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+
+        @Override
+        @Nonnull
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("segment", mSegment)
+                    .add("offset", mOffset)
+                    .add("length", mLength)
+                    .toString();
+        }
+    }
+
+    @Nonnull
+    final private File mDirectory;
+
+    final private long mMaxSegmentSize;
+
+    @GuardedBy("this")
+    private boolean mOpen;
+
+    @GuardedBy("this")
+    private int mActiveSegment;
+
+    @GuardedBy("this")
+    @Nullable
+    private FileChannel mActiveChannel;
+
+    @GuardedBy("this")
+    private long mActiveSize;
+
+    @GuardedBy("this")
+    final private Map<Integer, MappedByteBuffer> mMappedSegments = new HashMap<>();
+
+    /**
+     * number of appended values not yet unpinned, by segment
+     */
+    @GuardedBy("this")
+    final private Map<Integer, Integer> mPinCounts = new HashMap<>();
+
+    /**
+     * no I/O is done until the store is first used
+     */
+    public BlobStore(File directory, long maxSegmentSize) {
+        mDirectory = directory;
+        mMaxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * append a value to the active segment. It isn't durable until sync() is called. Its segment is pinned against compaction until
+     * {@link #unpin(Ref)} is called.
+     */
+    @Nonnull
+    public Ref append(ByteSource source) throws IOException {
+        return append(source.read());
+    }
+
+    @Nonnull
+    synchronized public Ref append(byte[] data) throws IOException {
+        Ref retval = appendRecord(data);
+        Integer count = mPinCounts.get(retval.mSegment);
+        mPinCounts.put(retval.mSegment, count == null ? 1 : count + 1);
+        return retval;
+    }
+
+    /**
+     * the value is referenced where compaction can see it, or was abandoned
+     */
+    synchronized public void unpin(Ref ref) {
+        Integer count = mPinCounts.get(ref.mSegment);
+        if (count == null) {
+            // the store was cleared meanwhile
+            return;
+        }
+        if (count == 1) {
+            mPinCounts.remove(ref.mSegment);
+        } else {
+            mPinCounts.put(ref.mSegment, count - 1);
+        }
+    }
+
+    @GuardedBy("this")
+    @Nonnull
+    private Ref appendRecord(byte[] data) throws IOException {
+        ensureOpen();
+
+        int recordSize = HEADER_SIZE + data.length;
+        if (mActiveSize > 0 && mActiveSize + recordSize > mMaxSegmentSize) {
+            roll();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(MAGIC);
+        record.putInt(data.length);
+        record.putInt((int) crc.getValue());
+        record.put(data);
+        record.flip();
+
+        long offset = mActiveSize;
+        writeFully(activeChannel(), record, offset);
+        mActiveSize += recordSize;
+        return new Ref(mActiveSegment, offset, data.length);
+    }
+
+    /**
+     * make everything appended so far durable
+     */
+    synchronized public void sync() throws IOException {
+        if (mActiveChannel != null) {
+            mActiveChannel.force(false);
+        }
+    }
+
+    /**
+     * @return a byte source that reads and verifies the value
+     */
+    @Nonnull
+    public ByteSource open(final Ref ref) {
+        return new ByteSource() {
+            @Override
+            @Nonnull
+            public InputStream openStream() throws IOException {
+                return new RecordInputStream(readRecord(ref), ref.mLength);
+            }
+
+            @Override
+            @Nonnull
+            public Optional<Long> sizeIfKnown() {
+                return Optional.of((long) ref.mLength);
+            }
+        };
+    }
+
+    /**
+     * copy a value into the active segment, used to compact old segments. The copy isn't pinned.
+     */
+    @Nonnull
+    public Ref copy(Ref ref) throws IOException {
+        byte[] data = open(ref).read();
+        synchronized (this) {
+            return appendRecord(data);
+        }
+    }
+
+    synchronized public int getActiveSegment() throws IOException {
+        ensureOpen();
+        return mActiveSegment;
+    }
+
+    /**
+     * @return the size of each segment file on disk, by segment number
+     */
+    @Nonnull
+    synchronized public Map<Integer, Long> getSegmentSizes() throws IOException {
+        ensureOpen();
+
+        Map<Integer, Long> retval = new TreeMap<>();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                int segment = parseSegment(f.getName());
+                if (segment > 0) {
+                    retval.put(segment, f.length());
+                }
+            }
+        }
+        retval.put(mActiveSegment, mActiveSize);
+        return retval;
+    }
+
+    /**
+     * Find sealed segments where less than the specified fraction of the space is still referenced. Pinned segments are skipped, their
+     * values aren't referenced anywhere yet. Values unpinned before this is called may be referenced by rows that weren't counted in
+     * liveSizes, callers have to skip the segments of those too.
+     *
+     * @param liveSizes     bytes of value data still referenced, by segment
+     * @param belowSegment  only segments numbered below this are considered, pass the active segment read before liveSizes was computed
+     * @param liveThreshold fraction of live data below which a segment is compacted
+     */
+    @Nonnull
+    synchronized public List<Integer> findCompactionCandidates(Map<Integer, Long> liveSizes, int belowSegment, float liveThreshold)
+            throws IOException {
+        List<Integer> retval = new ArrayList<>();
+        for (Map.Entry<Integer, Long> segment : getSegmentSizes().entrySet()) {
+            int number = segment.getKey();
+            if (number >= belowSegment || mPinCounts.containsKey(number)) {
+                continue;
+            }
+            Long live = liveSizes.get(number);
+            if (live == null || live < segment.getValue() * liveThreshold) {
+                retval.add(number);
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * delete a sealed segment, after its live values have been copied elsewhere
+     */
+    synchronized public void deleteSegment(int segment) throws IOException {
+        ensureOpen();
+        if (segment == mActiveSegment) {
+            throw new IllegalArgumentException("can't delete active segment");
+        }
+        mMappedSegments.remove(segment);
+        File file = getSegmentFile(segment);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("unable to delete " + file);
+        }
+    }
+
+    /**
+     * delete all segments
+     */
+    synchronized public void clear() throws IOException {
+        close();
+        mPinCounts.clear();
+
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (parseSegment(f.getName()) > 0 && !f.delete()) {
+                    throw new IOException("unable to delete " + f);
+                }
+            }
+        }
+    }
+
+    @Override
+    synchronized public void close() throws IOException {
+        mMappedSegments.clear();
+        mOpen = false;
+        if (mActiveChannel != null) {
+            FileChannel channel = mActiveChannel;
+            mActiveChannel = null;
+            channel.close();
+        }
+    }
+
+    @GuardedBy("this")
+    private void ensureOpen() throws IOException {
+        if (mOpen) {
+            return;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("unable to create " + mDirectory);
+        }
+
+        int last = 0;
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                last = Math.max(last, parseSegment(f.getName()));
+            }
+        }
+        mActiveSegment = Math.max(1, last);
+        mActiveSize = recover(activeChannel());
+        mOpen = true;
+    }
+
+    @GuardedBy("this")
+    @Nonnull
+    private FileChannel activeChannel() throws IOException {
+        if (mActiveChannel == null) {
+            mActiveChannel = new RandomAccessFile(getSegmentFile(mActiveSegment), "rw").getChannel();
+        }
+        return mActiveChannel;
+    }
+
+    /**
+     * seal the active segment and start a new one
+     */
+    @GuardedBy("this")
+    private void roll() throws IOException {
+        FileChannel channel = activeChannel();
+        channel.force(false);
+        channel.close();
+        mActiveChannel = null;
+
+        mActiveSegment++;
+        mActiveSize = 0;
+        activeChannel().truncate(0);
+    }
+
+    /**
+     * walk the records in the segment, truncating at the first one that is incomplete or corrupt
+     *
+     * @return the size of the valid part of the segment
+     */
+    static long recover(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int magic = header.getInt();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (magic != MAGIC || length < 0 || position + HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer data = ByteBuffer.allocate(length);
+            readFully(channel, data, position + HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(data.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            position += HEADER_SIZE + length;
+        }
+        if (position < size) {
+            channel.truncate(position);
+        }
+        return position;
+    }
+
+    /**
+     * @return a buffer positioned at the start of the record header
+     */
+    @Nonnull
+    private ByteBuffer readRecord(Ref ref) throws IOException {
+        int recordSize = HEADER_SIZE + ref.mLength;
+        synchronized (this) {
+            ensureOpen();
+            if (ref.mSegment == mActiveSegment) {
+                if (ref.mOffset + recordSize > mActiveSize) {
+                    throw new IOException("record past end of segment: " + ref);
+                }
+                ByteBuffer retval = ByteBuffer.allocate(recordSize);
+                readFully(activeChannel(), retval, ref.mOffset);
+                retval.flip();
+                return retval;
+            }
+
+            MappedByteBuffer mapped = mMappedSegments.get(ref.mSegment);
+            if (mapped == null) {
+                mapped = mapSegment(ref.mSegment);
+                mMappedSegments.put(ref.mSegment, mapped);
+            }
+            if (ref.mOffset + recordSize > mapped.limit()) {
+                throw new IOException("record past end of segment: " + ref);
+            }
+            ByteBuffer retval = mapped.duplicate();
+            retval.position((int) ref.mOffset);
+            retval.limit((int) ref.mOffset + recordSize);
+            return retval.slice();
+        }
+    }
+
+    @Nonnull
+    private MappedByteBuffer mapSegment(int segment) throws IOException {
+        File file = getSegmentFile(segment);
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Nonnull
+    private File getSegmentFile(int segment) {
+        return new File(mDirectory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    static private int parseSegment(String name) {
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+            try {
+                return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                // not one of ours
+            }
+        }
+        return 0;
+    }
+
+    static private void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    static private void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of segment");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * streams the data of a record, checking the header up front and the checksum when the end is reached
+     */
+    static private class RecordInputStream extends InputStream {
+        final private ByteBuffer mBuffer;
+        final private int mExpectedChecksum;
+        final private CRC32 mCrc = new CRC32();
+        final private byte[] mSingle = new byte[1];
+
+        RecordInputStream(ByteBuffer record, int expectedLength) throws IOException {
+            int magic = record.getInt();
+            int length = record.getInt();
+            mExpectedChecksum = record.getInt();
+            if (magic != MAGIC || length != expectedLength) {
+                throw new IOException("blob record header mismatch");
+            }
+            mBuffer = record;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int count = read(mSingle, 0, 1);
+            return count < 0 ? -1 : (mSingle[0] & 0xff);
+        }
+
+        @Override
+        public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, count);
+            mCrc.update(b, off, count);
+            if (!mBuffer.hasRemaining() && (int) mCrc.getValue() != mExpectedChecksum) {
+                throw new IOException("blob checksum mismatch");
+            }
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
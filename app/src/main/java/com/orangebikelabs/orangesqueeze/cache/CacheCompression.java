@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Deflate compression of persisted cache values using a preset dictionary. Comet results repeat the same keys, action structures and
+ * icon paths in every item and in every response, so priming the compressor with them pays off even for small values.
+ * <p/>
+ * Compressed values start with a short header (magic, dictionary version, uncompressed length); anything else is passed through as is,
+ * so values stored without compression remain readable. Changing the dictionary requires bumping DICTIONARY_VERSION and the cache
+ * version in CacheService.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+public class CacheCompression {
+    final static int DICTIONARY_VERSION = 1;
+
+    final static private byte[] MAGIC = {'O', 'S', 'Z', DICTIONARY_VERSION};
+
+    final static private int HEADER_SIZE = MAGIC.length + 4;
+
+    /**
+     * smaller values aren't worth the trouble
+     */
+    final static private int MIN_COMPRESS_SIZE = 128;
+
+    /**
+     * Strings that show up in nearly every Comet result: field names, menu actions, command names and artwork paths, taken from the
+     * responses of browse, search, player status and track info requests. Deflate favors matches close to the data, so the most common
+     * strings come last.
+     */
+    final static private byte[] DICTIONARY = Joiner.on('\0').join(
+            "localizedStrings", "remoteMeta", "signalstrength", "player_connected", "player_name", "playlist_tracks", "playlist_cur_index",
+            "mixer volume", "can_seek", "playlist_loop", "playlist index", "playerid", "players_loop", "folder_loop", "playlists_loop",
+            "years_loop", "genres_loop", "titles_loop", "artists_loop", "albums_loop", "loop_loop", "allowedChars", "textarea", "slider",
+            "checkbox", "radio", "input", "presetParams", "favorites_title", "favorites_url", "favorites", "showBigArtwork",
+            "useContextMenu", "isContextMenu", "playControl", "playlistcontrol", "homeMenuText", "isANode", "weight", "node",
+            "selectedIndex", "samplerate", "bitrate", "remote", "genre_id", "year", "duration", "tracknum", "genre", "album", "artist",
+            "title", "coverid", "artwork_url", "artwork_track_id", "/music/", "/cover.jpg", "/html/images/", "_x.png", "hasitems",
+            "isaudio", "image", "name", "url", "menuStyle", "titleStyle", "windowStyle", "iconStyle", "jiveIconStyle", "nextWindow",
+            "window", "itemsParams", "add-hold", "play-hold", "addAction", "more", "add", "play", "go", "cmd", "cmd:load", "cmd:add",
+            "cmd:insert", "menu:1", "menu", "params", "actions", "base", "type", "style", "textkey", "icon-id", "icon", "item_id",
+            "track_id", "album_id", "artist_id", "id", "text", "count", "offset", "item_loop")
+            .getBytes(StandardCharsets.UTF_8);
+
+    final static private ThreadLocal<Deflater> sDeflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private CacheCompression() {
+    }
+
+    /**
+     * @return the compressed value, or the original if compression doesn't make it smaller
+     */
+    @Nonnull
+    public static byte[] compress(byte[] value) {
+        if (value.length < MIN_COMPRESS_SIZE) {
+            return value;
+        }
+
+        Deflater deflater = sDeflater.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(value);
+        deflater.finish();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(value.length / 2);
+        baos.write(MAGIC, 0, MAGIC.length);
+        baos.write(value.length >>> 24);
+        baos.write(value.length >>> 16);
+        baos.write(value.length >>> 8);
+        baos.write(value.length);
+
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            baos.write(buffer, 0, count);
+            if (baos.size() >= value.length) {
+                // not compressible, images and the like
+                return value;
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return a byte source that reads the original value, whether or not it was compressed
+     */
+    @Nonnull
+    public static ByteSource decoding(final ByteSource source) {
+        return new ByteSource() {
+            @Override
+            @Nonnull
+            public InputStream openStream() throws IOException {
+                PushbackInputStream pis = new PushbackInputStream(source.openStream(), HEADER_SIZE);
+                byte[] header = new byte[HEADER_SIZE];
+                int read = ByteStreams.read(pis, header, 0, header.length);
+                if (!isCompressed(header, read)) {
+                    pis.unread(header, 0, read);
+                    return pis;
+                }
+                return new DictionaryInflaterInputStream(pis);
+            }
+
+            @Override
+            public long size() throws IOException {
+                try (InputStream is = source.openStream()) {
+                    byte[] header = new byte[HEADER_SIZE];
+                    int read = ByteStreams.read(is, header, 0, header.length);
+                    if (!isCompressed(header, read)) {
+                        return source.size();
+                    }
+                    return readLength(header);
+                }
+            }
+
+            @Override
+            @Nonnull
+            public Optional<Long> sizeIfKnown() {
+                return Optional.absent();
+            }
+        };
+    }
+
+    static private boolean isCompressed(byte[] header, int length) throws IOException {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length - 1; i++) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        if (header[MAGIC.length - 1] != DICTIONARY_VERSION) {
+            throw new IOException("cache value compressed with unknown dictionary version " + header[MAGIC.length - 1]);
+        }
+        if (length < HEADER_SIZE) {
+            throw new EOFException("truncated compressed cache value");
+        }
+        return true;
+    }
+
+    static private int readLength(byte[] header) {
+        int offset = MAGIC.length;
+        return ((header[offset] & 0xff) << 24) | ((header[offset + 1] & 0xff) << 16) | ((header[offset + 2] & 0xff) << 8) | (header[offset + 3] & 0xff);
+    }
+
+    /**
+     * raw deflate stream with the dictionary set up front, releasing the native inflater on close
+     */
+    static private class DictionaryInflaterInputStream extends InflaterInputStream {
+        DictionaryInflaterInputStream(InputStream in) {
+            super(in, newInflater());
+        }
+
+        static private Inflater newInflater() {
+            Inflater retval = new Inflater(true);
+            retval.setDictionary(DICTIONARY);
+            return retval;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
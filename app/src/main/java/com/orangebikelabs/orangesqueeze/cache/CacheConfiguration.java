@@ -46,6 +46,11 @@ final public class CacheConfiguration {
     final public static int SQLITE_CACHE_SIZE = 40 * Constants.MB;
     final public static float MEMORY_CACHE_FACTOR = 0.10f;
 
+    /**
+     * share of the memory class that managed temporaries can hold before they spill to disk
+     */
+    final public static float TEMPORARY_MEMORY_FACTOR = 0.05f;
+
     final private Context mContext;
 
     final private AtomicReference<File> mExpandedCacheDir = new AtomicReference<>();
@@ -54,6 +59,8 @@ final public class CacheConfiguration {
 
     final private AtomicInteger mMaxExternalSize = new AtomicInteger();
 
+    final private AtomicInteger mMaxTemporaryMemorySize = new AtomicInteger();
+
     // accessed from main thread only
     private boolean mReceiverRegistered = false;
 
@@ -82,6 +89,11 @@ final public class CacheConfiguration {
         return mMaxMemorySize.get();
     }
 
+    public int getMaxTemporaryMemorySize() {
+        Uninterruptibles.awaitUninterruptibly(mInitLatch);
+        return mMaxTemporaryMemorySize.get();
+    }
+
     public int getMaxSqliteSize() {
         return SQLITE_CACHE_SIZE;
     }
@@ -114,6 +126,7 @@ final public class CacheConfiguration {
 
         // to keep the app running, set a realistic max to memory cache
         mMaxMemorySize.set((int) (am.getMemoryClass() * Constants.MB * MEMORY_CACHE_FACTOR));
+        mMaxTemporaryMemorySize.set((int) (am.getMemoryClass() * Constants.MB * TEMPORARY_MEMORY_FACTOR));
 
         int minStorageCacheSize = mContext.getResources().getInteger(R.integer.min_coverart_storage_cache_size) * Constants.MB;
         int desiredStorageCacheSize = prefs.getCacheStorageSize() * Constants.MB;
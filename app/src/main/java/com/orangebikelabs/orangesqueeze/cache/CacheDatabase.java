@@ -5,76 +5,95 @@
 
 package com.orangebikelabs.orangesqueeze.cache;
 
-import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 
 import com.google.common.io.ByteSource;
 import com.google.common.io.Closer;
-import com.google.common.io.Files;
 import com.orangebikelabs.orangesqueeze.database.OSDatabase;
 import com.orangebikelabs.orangesqueeze.common.OSAssert;
 import com.orangebikelabs.orangesqueeze.common.BusProvider;
 import com.orangebikelabs.orangesqueeze.common.CacheContent;
 import com.orangebikelabs.orangesqueeze.common.FileUtils;
 import com.orangebikelabs.orangesqueeze.common.OSLog;
-import com.orangebikelabs.orangesqueeze.common.Reporting;
 import com.orangebikelabs.orangesqueeze.common.SBContextProvider;
 import com.orangebikelabs.orangesqueeze.common.ServerContent;
 import com.orangebikelabs.orangesqueeze.common.ThreadLocalStringBuilder;
 import com.orangebikelabs.orangesqueeze.common.event.TriggerMenuLoad;
 import com.orangebikelabs.orangesqueeze.database.DatabaseAccess;
 import com.orangebikelabs.orangesqueeze.database.DatabaseAccessKt;
+import com.orangebikelabs.orangesqueeze.database.LookupBlobLiveSizes;
+import com.orangebikelabs.orangesqueeze.database.LookupBlobsInSegment;
+import com.squareup.sqldelight.Query;
 import com.squareup.sqldelight.db.SqlCursor;
 
-import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
-import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.Nullable;
 
 import androidx.sqlite.db.SupportSQLiteDatabase;
-import androidx.sqlite.db.SupportSQLiteQuery;
-import androidx.sqlite.db.SupportSQLiteQueryBuilder;
 import androidx.sqlite.db.SupportSQLiteStatement;
 import arrow.core.Option;
 import arrow.core.OptionKt;
 
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_BLOB_OFFSET;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_BLOB_SEGMENT;
 import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_EXPIRES_TIMESTAMP;
 import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_ID;
-import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_ITEMSTATUS;
 import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_KEY;
 import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_KEYHASH;
 import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_LASTUSED_TIMESTAMP;
 import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_SERVERSCAN_TIMESTAMP;
 import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_VALUE;
-import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_VALUE_SIZE;
 import static com.orangebikelabs.orangesqueeze.common.CacheContent.TABLE_CACHE;
 
 /**
- * Accessor for cache database operations, including expansion files.
+ * Accessor for cache database operations, including the blob store that holds large values, and the list fingerprints used to keep
+ * SERVERSCAN entries across rescans.
  */
-public class CacheDatabase {
+public class CacheDatabase implements ServerScanRevalidator.Store {
 
     /**
      * this is the threshold which defines how far under the upper-limit size we shrink to when a shrink operation runs
      */
     private static final float CACHE_SHRINK_THRESHOLD_FACTOR = 0.85f;
 
-    // after 4K, use a separate file
+    // after 4K, store the value in the blob store
     final private static long CACHE_EXPANSION_THRESHOLD = 4096;
 
+    final private static long BLOB_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * blob segments with less than this fraction of live data are compacted
+     */
+    final private static float BLOB_COMPACTION_THRESHOLD = 0.5f;
+
+    /**
+     * rows deleted per statement when shrinking the cache
+     */
+    final private static int SHRINK_BATCH_SIZE = 512;
+
+    final private static String DELETE_EXTERNAL_UNUSED_SQL = "DELETE FROM " + TABLE_CACHE + " WHERE " + COLUMN_CACHE_ID + " IN (SELECT " + COLUMN_CACHE_ID
+            + " FROM " + TABLE_CACHE + " WHERE " + COLUMN_CACHE_VALUE + " IS NULL ORDER BY " + COLUMN_CACHE_LASTUSED_TIMESTAMP + " LIMIT ?)";
+
+    final private static String DELETE_INTERNAL_UNUSED_SQL = "DELETE FROM " + TABLE_CACHE + " WHERE " + COLUMN_CACHE_ID + " IN (SELECT " + COLUMN_CACHE_ID
+            + " FROM " + TABLE_CACHE + " WHERE " + COLUMN_CACHE_VALUE + " IS NOT NULL ORDER BY " + COLUMN_CACHE_LASTUSED_TIMESTAMP + " LIMIT ?)";
+
+    final private static String UPDATE_BLOB_LOCATION_SQL = "UPDATE " + TABLE_CACHE + " SET " + COLUMN_CACHE_BLOB_SEGMENT + " = ?, " + COLUMN_CACHE_BLOB_OFFSET + " = ? WHERE "
+            + COLUMN_CACHE_ID + " = ?";
+
     /**
      * because cache requests are so common, avoid creating a new stringbuilder on every request
      */
@@ -89,13 +108,89 @@ public class CacheDatabase {
 
     final protected CacheConfiguration mConfiguration;
 
-    CacheDatabase(Context context, CacheConfiguration configuration) {
+    final protected CacheMetrics mMetrics;
+
+    /**
+     * append-only segments holding values too large to keep in the row
+     */
+    final protected BlobStore mBlobStore;
+
+    /**
+     * persists and renewals waiting for the next group commit
+     */
+    final protected WriteBehindQueue mWriteBehindQueue;
+
+    /**
+     * keys that might be in the table, so misses for keys that were never stored don't need a query
+     */
+    final protected CacheKeyFilter mKeyFilter = new CacheKeyFilter();
+
+    /**
+     * reads the key hashes through the serverid, cachekeyhash index without touching the rows
+     */
+    final private CacheKeyFilter.KeySource mKeySource = new CacheKeyFilter.KeySource() {
+        @Override
+        public void flush() {
+            mWriteBehindQueue.flush();
+        }
+
+        @Override
+        @Nonnull
+        public Map<Long, Long> countKeys() {
+            Map<Long, Long> retval = new HashMap<>();
+            mNewDatabase.getCacheQueries()
+                    .countKeysByServer((serverId, keyCount) -> {
+                        if (serverId != null) {
+                            retval.put(serverId, keyCount);
+                        }
+                        return keyCount;
+                    })
+                    .executeAsList();
+            return retval;
+        }
+
+        @Override
+        public void forEachKey(CacheKeyFilter.KeyConsumer consumer) {
+            try {
+                Closer closer = Closer.create();
+                try {
+                    SqlCursor cursor = mNewDatabase.getCacheQueries().lookupKeyHashes().execute();
+                    closer.register(cursor);
+                    while (cursor.next()) {
+                        Long serverId = cursor.getLong(0);
+                        Long keyHash = cursor.getLong(1);
+                        if (serverId != null && keyHash != null) {
+                            consumer.accept(serverId, keyHash.intValue());
+                        }
+                    }
+                } catch (Throwable t) {
+                    throw closer.rethrow(t);
+                } finally {
+                    closer.close();
+                }
+            } catch (IOException e) {
+                // shouldn't happen
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    CacheDatabase(Context context, CacheConfiguration configuration, CacheMetrics metrics) {
         mNewDatabase = DatabaseAccess.getInstance(context);
         mDatabase = DatabaseAccessKt.getLegacyDatabase(mNewDatabase);
         mConfiguration = configuration;
+        mMetrics = metrics;
+        mBlobStore = new BlobStore(configuration.getExpandedCacheDir(), BLOB_SEGMENT_SIZE);
+        mWriteBehindQueue = new WriteBehindQueue(mDatabase, mBlobStore, metrics);
     }
 
     public void wipe() {
+        // before the writes are dropped, so a key stored meanwhile isn't cleared from the filter after its write is queued
+        mKeyFilter.clear();
+
+        // drop any writes that haven't been committed yet
+        mWriteBehindQueue.clear();
+
         // wipe any cached menus
         mNewDatabase.getGlobalQueries().wipeStoredMenus();
 
@@ -104,6 +199,7 @@ public class CacheDatabase {
         // purge with no filter
         OSLog.i(OSLog.Tag.CACHE, "Purging all entries in SQLite cache");
         int cnt = purgeEntries("", Collections.emptyList());
+        mNewDatabase.getCacheQueries().wipeFingerprints();
 
         if (!mDatabase.inTransaction()) {
             OSLog.i(OSLog.Tag.CACHE, "Vacuuming SQLite database");
@@ -117,13 +213,21 @@ public class CacheDatabase {
 
         OSLog.i(OSLog.Tag.CACHE, cnt + " entries purged from SQLite cache due to cache wipe request");
 
-        // current cache format has no directories at all, remove any we come across
+        try {
+            mBlobStore.clear();
+        } catch (IOException e) {
+            OSLog.w(OSLog.Tag.CACHE, "Error clearing blob store", e);
+        }
+
+        // current cache format has no directories or per-entry files at all, remove any we come across
         File[] files = mConfiguration.getExpandedCacheDir().listFiles();
         if (files != null) {
             for (File f : files) {
                 if (f.isDirectory()) {
                     OSLog.i(OSLog.Tag.CACHE, "Cache cleanup: Discovered directory from old cache format, deleting. " + f);
                     FileUtils.deleteDirectory(f);
+                } else if (f.getName().endsWith(".cached")) {
+                    FileUtils.deleteChecked(f);
                 }
             }
         }
@@ -134,6 +238,11 @@ public class CacheDatabase {
      * remove the specified cache entry from the database
      */
     public boolean removeFromDatabase(CacheEntry entry) {
+        mWriteBehindQueue.cancel(entry);
+        if (!mKeyFilter.mightContain(entry.getServerId(), entry.getKeyHash())) {
+            return false;
+        }
+
         String selection = getCacheSelectionClause();
         String[] args = getCacheSelectionArguments(entry);
 
@@ -192,62 +301,12 @@ public class CacheDatabase {
     }
 
     public int purgeEntries(String where, List<String> args) {
-        // first, purge any entries stored completely in the cache
-        String nonExternalWhere = where;
-        if (nonExternalWhere.length() != 0) {
-            nonExternalWhere += " AND ";
-        }
-        nonExternalWhere += COLUMN_CACHE_VALUE + " IS NOT NULL";
-
-        int updateCount = mDatabase.delete(TABLE_CACHE, nonExternalWhere, args.toArray(new String[0]));
-
-        // now, purge any entries with values stored outside the cache
-
-        String externalWhere = where;
-        if (externalWhere.length() != 0) {
-            externalWhere += " AND ";
-        }
-        externalWhere += COLUMN_CACHE_VALUE + " IS NULL";
-
-        try {
-            Closer closer = Closer.create();
-            try {
-                EntryDeleter deleter = new EntryDeleter();
-                SupportSQLiteQuery query = SupportSQLiteQueryBuilder.builder(TABLE_CACHE)
-                        .columns(new String[]{COLUMN_CACHE_ID})
-                        .selection(externalWhere, args.toArray(new String[0]))
-                        .create();
-                Cursor cursor = mDatabase.query(query);
-                if (cursor != null) {
-                    closer.register(cursor);
-                    if (cursor.moveToFirst()) {
-                        do {
-                            long id = cursor.getLong(0);
-                            deleter.delete(id);
-                        } while (cursor.moveToNext());
-                    }
-                }
-                return deleter.getCount() + updateCount;
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
-        } catch (IOException e) {
-            // should never be thrown
-            throw new RuntimeException(e);
-        }
+        // values in the blob store don't need to be deleted one at a time, their space is reclaimed by compaction
+        int count = mDatabase.delete(TABLE_CACHE, where, args.toArray(new String[0]));
+        mKeyFilter.recordEvictions(count);
+        return count;
     }
 
-    /**
-     * get the expansion filename for the supplied cache rowid
-     */
-    @Nonnull
-    public File getExpansionFile(long cacheId) {
-        return new File(mConfiguration.getExpandedCacheDir(), cacheId + ".cached");
-    }
-
-
     /**
      * purges cache entries that are no longer up-to-date because of the server scan timestamp
      */
@@ -261,6 +320,7 @@ public class CacheDatabase {
                     lastScan.toString());
 
             int updateCount = purgeEntries(where, args);
+            mNewDatabase.getCacheQueries().deleteStaleFingerprints(SBContextProvider.get().getServerId(), lastScan);
             OSLog.d(OSLog.Tag.CACHE, updateCount + " server scan scoped item(s) purged from cache");
         }
     }
@@ -269,123 +329,119 @@ public class CacheDatabase {
      * purges cache entries that have expired
      */
     public void cleanupPurgeTimeout() {
-        // remove any timeout items that have expired
+        // remove any timeout items that have expired, and can no longer be served stale either
         String where = COLUMN_CACHE_SERVERSCAN_TIMESTAMP + " IS NULL AND " + COLUMN_CACHE_EXPIRES_TIMESTAMP + " < ?";
-        List<String> args = Collections.singletonList(Long.toString(System.currentTimeMillis()));
+        List<String> args = Collections.singletonList(Long.toString(System.currentTimeMillis() - StaleRevalidator.STALE_WINDOW_MILLIS));
 
         int updateCount = purgeEntries(where, args);
         OSLog.d(OSLog.Tag.CACHE, updateCount + " timeout scoped item(s) purged from cache");
     }
 
+    /**
+     * load the entry if it is still valid
+     *
+     * @param validAt               for SERVERSCAN entries the current server scan timestamp, for TIMEOUT entries the current time or earlier
+     *                              to include stale entries
+     * @param outExpiresTimestamp   if not null, set to the expiration of TIMEOUT entries loaded from the table
+     */
     @Nonnull
-    public Option<ByteSource> loadEntry(CacheEntry entry, String extraSelection, String extraArg) throws CachedItemNotFoundException {
-        String selection = getCacheSelectionClause(extraSelection);
-        String[] args = getCacheSelectionArguments(entry, extraArg);
-        SupportSQLiteQuery query = SupportSQLiteQueryBuilder.builder(TABLE_CACHE)
-                .columns(new String[]{COLUMN_CACHE_ID, COLUMN_CACHE_ITEMSTATUS, COLUMN_CACHE_VALUE})
-                .selection(selection, args)
-                .create();
-        Cursor cursor = mDatabase.query(query);
-        if (cursor == null) {
-            Reporting.report("expected non-null cursor");
-            // problem with query
+    public Option<ByteSource> loadEntry(CacheEntry entry, long validAt, @Nullable AtomicLong outExpiresTimestamp) throws CachedItemNotFoundException {
+        // writes that are still queued are newer than anything in the table
+        Option<ByteSource> pending = mWriteBehindQueue.peek(entry);
+        if (pending.isDefined()) {
+            return pending;
+        }
+
+        // keys that were never stored are common, those don't need a query
+        if (!mKeyFilter.mightContain(entry.getServerId(), entry.getKeyHash())) {
             return OptionKt.none();
         }
 
+        // these run as precompiled statements from the driver's statement cache
+        StoredEntry stored;
+        switch (entry.getCacheType()) {
+            case SERVERSCAN:
+                stored = mNewDatabase.getCacheQueries()
+                        .lookupServerScanEntry(entry.getServerId(), entry.getKeyHash(), entry.getKey(), validAt, StoredEntry::new)
+                        .executeAsOneOrNull();
+                break;
+            case TIMEOUT:
+                stored = mNewDatabase.getCacheQueries()
+                        .lookupTimeoutEntry(entry.getServerId(), entry.getKeyHash(), entry.getKey(), validAt, StoredEntry::new)
+                        .executeAsOneOrNull();
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+
         ByteSource retval = null;
-        try {
-            if (cursor.moveToFirst()) {
-                long id = cursor.getLong(0);
-
-                CacheContent.ItemStatus currentStatus = CacheContent.ItemStatus.fromString(cursor.getString(1), CacheContent.ItemStatus.INVALID);
-                switch (currentStatus) {
-                    case EXTERNAL:
-                        File cacheFile = getExpansionFile(id);
-                        if (cacheFile.exists()) {
-                            retval = Files.asByteSource(cacheFile);
-                        } else {
-                            throw new CachedItemNotFoundException("expansion file removed");
-                        }
-                        break;
-                    case INTERNAL:
-                        byte[] byteData = cursor.getBlob(2);
-                        retval = ByteSource.wrap(byteData);
-                        break;
-                    case INVALID:
-                    case NOTFOUND:
-                        // always ignore invalid/notfound status in database
-                        break;
-                }
+        if (stored != null) {
+            if (outExpiresTimestamp != null && stored.mExpiresTimestamp != null) {
+                outExpiresTimestamp.set(stored.mExpiresTimestamp);
+            }
+            CacheContent.ItemStatus currentStatus = CacheContent.ItemStatus.fromString(stored.mItemStatus, CacheContent.ItemStatus.INVALID);
+            switch (currentStatus) {
+                case EXTERNAL:
+                    if (stored.mBlobSegment != null && stored.mBlobOffset != null) {
+                        retval = mBlobStore.open(new BlobStore.Ref(stored.mBlobSegment.intValue(), stored.mBlobOffset, (int) stored.mValueSize));
+                    } else {
+                        throw new CachedItemNotFoundException("blob reference missing");
+                    }
+                    break;
+                case INTERNAL:
+                    if (stored.mValue != null) {
+                        retval = ByteSource.wrap(stored.mValue);
+                    }
+                    break;
+                case INVALID:
+                case NOTFOUND:
+                    // always ignore invalid/notfound status in database
+                    break;
             }
-        } finally {
-            cursor.close();
         }
-
         return Option.fromNullable(retval);
     }
 
     public void cleanupShrinkExternalCache() {
         long externalSize = mNewDatabase.getCacheQueries().lookupExternalCacheSize().executeAsOne().longValue();
-
-        // we don't need to shrink the cache
-        if (externalSize <= mConfiguration.getMaxExternalSize()) {
-            OSLog.d(OSLog.Tag.CACHE, "0 item(s) were shrunk from external storage");
-            return;
-        }
-
-        final long desiredSize = (long) (CACHE_SHRINK_THRESHOLD_FACTOR * mConfiguration.getMaxExternalSize());
-
-        try {
-            Closer closer = Closer.create();
-            try {
-                SqlCursor cursor = mNewDatabase.getCacheQueries().lookupExternalEntriesSortedByDisuse().execute();
-                EntryDeleter deleter = new EntryDeleter();
-                closer.register(cursor);
-                while (externalSize > desiredSize && cursor.next()) {
-                    long id = cursor.getLong(0);
-                    long rowSize = cursor.getLong(1);
-                    deleter.delete(id);
-
-                    // remove the size of the file, as it stands in our records. It's possible it was already gone, but we don't care about that.
-                    externalSize -= rowSize;
-                }
-                OSLog.d(OSLog.Tag.CACHE, deleter.getCount() + " item(s) were shrunk from external storage");
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
-        } catch (IOException e) {
-            // this shouldn't really happen
-            OSLog.w(e.getMessage(), e);
-        }
+        int count = shrink(mNewDatabase.getCacheQueries().lookupExternalEntriesSortedByDisuse(), DELETE_EXTERNAL_UNUSED_SQL, externalSize,
+                mConfiguration.getMaxExternalSize());
+        OSLog.d(OSLog.Tag.CACHE, count + " item(s) were shrunk from external storage");
     }
 
     public void cleanupShrinkSqliteCache() {
         long internalSize = mNewDatabase.getCacheQueries().lookupInternalCacheSize().executeAsOne().longValue();
+        int count = shrink(mNewDatabase.getCacheQueries().lookupInternalEntriesSortedByDisuse(), DELETE_INTERNAL_UNUSED_SQL, internalSize,
+                mConfiguration.getMaxSqliteSize());
+        OSLog.d(OSLog.Tag.CACHE, count + " item(s) were shrunk from sqlite storage");
+    }
 
+    /**
+     * Walk the disuse index to count the entries that have to go, then delete them in batches of the least recently used, each with a single
+     * statement. Batches are bounded by a row count rather than a last-used cutoff, because every entry renewed by one group commit shares
+     * its timestamp. Each batch commits on its own, so group commits get a turn in between; an entry renewed meanwhile moves to the back.
+     *
+     * @return the number of entries deleted
+     */
+    private int shrink(Query<?> disuseQuery, String deleteSql, long currentSize, long maxSize) {
         // we don't need to shrink the cache
-        if (internalSize <= mConfiguration.getMaxSqliteSize()) {
-            OSLog.d(OSLog.Tag.CACHE, "0 item(s) were shrunk from sqlite storage");
-            return;
+        if (currentSize <= maxSize) {
+            return 0;
         }
 
-        final long desiredSize = (long) (CACHE_SHRINK_THRESHOLD_FACTOR * mConfiguration.getMaxSqliteSize());
+        final long desiredSize = (long) (CACHE_SHRINK_THRESHOLD_FACTOR * maxSize);
+
+        int rows = 0;
         try {
             Closer closer = Closer.create();
             try {
-                SqlCursor cursor = mNewDatabase.getCacheQueries().lookupInternalEntriesSortedByDisuse().execute();
-                EntryDeleter deleter = new EntryDeleter();
+                SqlCursor cursor = disuseQuery.execute();
                 closer.register(cursor);
-                while (internalSize > desiredSize && cursor.next()) {
-                    long id = cursor.getLong(0);
-                    long rowSize = cursor.getLong(1);
-                    deleter.delete(id);
-
-                    // remove the size of the file, as it stands in our records. It's possible it was already gone, but we don't care about that.
-                    internalSize -= rowSize;
+                while (currentSize > desiredSize && cursor.next()) {
+                    // remove the size of the value, as it stands in our records
+                    currentSize -= cursor.getLong(1);
+                    rows++;
                 }
-                OSLog.d(OSLog.Tag.CACHE, deleter.getCount() + " item(s) were shrunk from sqlite storage");
             } catch (Throwable t) {
                 throw closer.rethrow(t);
             } finally {
@@ -394,304 +450,268 @@ public class CacheDatabase {
         } catch (IOException e) {
             // shouldn't happen
             OSLog.w(e.getMessage(), e);
+            return 0;
         }
-    }
-
-    public void markEntry(CacheEntry entry, CacheContent.ItemStatus newStatus) {
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_CACHE_ITEMSTATUS, newStatus.name());
-
-        String clause = getCacheSelectionClause();
-        String[] args = getCacheSelectionArguments(entry);
 
-        int updateCount = mDatabase.update(TABLE_CACHE, SQLiteDatabase.CONFLICT_IGNORE, values, clause, args);
-        if (updateCount > 0) {
-            try {
-                SupportSQLiteQuery query = SupportSQLiteQueryBuilder
-                        .builder(TABLE_CACHE)
-                        .selection(clause, args)
-                        .columns(new String[]{COLUMN_CACHE_ID})
-                        .create();
-                Cursor cursor = mDatabase.query(query);
-                try {
-                    if (cursor != null && cursor.moveToFirst()) {
-                        long rowId = cursor.getLong(0);
-                        File expansionFile = getExpansionFile(rowId);
-                        if (expansionFile.isFile()) {
-                            FileUtils.deleteChecked(expansionFile);
-                        }
-                    }
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
+        int count = 0;
+        SupportSQLiteStatement delete = mDatabase.compileStatement(deleteSql);
+        try {
+            while (count < rows) {
+                delete.clearBindings();
+                delete.bindLong(1, Math.min(SHRINK_BATCH_SIZE, rows - count));
+                int deleted = delete.executeUpdateDelete();
+                if (deleted == 0) {
+                    break;
                 }
-            } catch (SQLiteDoneException e) {
-                // row was deleted
+                count += deleted;
             }
+        } finally {
+            closeStatement(delete);
         }
+        mMetrics.recordEvictions(CacheMetrics.Tier.DATABASE, count);
+        mKeyFilter.recordEvictions(count);
+        return count;
     }
 
-    public void storeEntry(ExecutorService executor, CacheEntry entry, ByteSource byteSource, long estimatedSize, long newExpiresTimestamp) throws IOException {
-        Callable<?> callable;
-        if (estimatedSize > CACHE_EXPANSION_THRESHOLD) {
-            // this uses a file as backing store, just renames it
-            callable = new PersistExpandedEntry(entry, byteSource, newExpiresTimestamp);
-        } else {
-            // saves data in memory before writing to database
-            callable = new PersistNormalEntry(entry, byteSource.read(), newExpiresTimestamp);
+    public void markEntry(CacheEntry entry, CacheContent.ItemStatus newStatus) {
+        mWriteBehindQueue.cancel(entry);
+        if (!mKeyFilter.mightContain(entry.getServerId(), entry.getKeyHash())) {
+            return;
+        }
+
+        Long rowId = mNewDatabase.getCacheQueries()
+                .lookupEntryId(entry.getServerId(), entry.getKeyHash(), entry.getKey())
+                .executeAsOneOrNull();
+        if (rowId != null) {
+            mNewDatabase.getCacheQueries().updateItemStatus(newStatus.name(), rowId);
         }
-        executor.submit(callable);
     }
 
     /**
-     * helper class to speed deleting entries properly
+     * queue the entry to be written with the next group commit
+     *
+     * @param fingerprint what the value tells us about the list it is a page of, if anything
      */
-    @NotThreadSafe
-    public class EntryDeleter {
-        private int mDeleteCount;
-
-        public void delete(long id) {
-            mNewDatabase.getCacheQueries().deleteWithId(id);
-            mDeleteCount++;
-
-            File expansionFile = getExpansionFile(id);
-            if (expansionFile.isFile()) {
-                FileUtils.deleteChecked(expansionFile);
+    public void storeEntry(Executor executor, CacheEntry entry, ByteSource byteSource, long estimatedSize, long newExpiresTimestamp,
+                           @Nullable ListFingerprint fingerprint) throws IOException {
+        // the key is in the filter before the write is queued, so it never tests absent while its row exists
+        mKeyFilter.addAndStore(entry.getServerId(), entry.getKeyHash(), () -> {
+            if (estimatedSize > CACHE_EXPANSION_THRESHOLD) {
+                // appended now, the row that references it is written with the next group commit. The segment stays pinned until the row
+                // is queued, so compaction can't delete it in between.
+                BlobStore.Ref ref = mBlobStore.append(byteSource);
+                try {
+                    mWriteBehindQueue.enqueueWrite(executor, entry, null, ref, ref.getLength(), newExpiresTimestamp, fingerprint);
+                } finally {
+                    mBlobStore.unpin(ref);
+                }
+            } else {
+                // saves data in memory before writing to database
+                byte[] bytes = byteSource.read();
+                mWriteBehindQueue.enqueueWrite(executor, entry, bytes, null, bytes.length, newExpiresTimestamp, fingerprint);
             }
-        }
-
-        public int getCount() {
-            return mDeleteCount;
-        }
+        });
     }
 
+    @Override
     @Nonnull
-    public EntryRenewer newEntryRenewer() {
-        return new EntryRenewer();
+    public List<ListFingerprint> loadPendingFingerprints(long serverId, long serverScanTimestamp, int limit) {
+        // fingerprints of pages that are still queued should be included
+        mWriteBehindQueue.flush();
+
+        return mNewDatabase.getCacheQueries()
+                .lookupPendingFingerprints(serverId, serverScanTimestamp, (long) limit,
+                        (listKey, itemCount, firstPageSize, firstHash, lastPageSize, lastHash, fingerprintScanTimestamp) ->
+                                new ListFingerprint(listKey, itemCount.intValue(), firstPageSize != null ? firstPageSize.intValue() : 0, firstHash,
+                                        lastPageSize != null ? lastPageSize.intValue() : 0, lastHash, fingerprintScanTimestamp))
+                .executeAsList();
     }
 
-    public class EntryRenewer implements Closeable {
-        private SupportSQLiteStatement mStatement;
-
-        final private Set<CacheEntry> mProcessedItems = new HashSet<>();
-        final private long mCurrentTime;
-
-        private int mUpdateCount;
-        private int mRenewCount;
-
-
-        public EntryRenewer() {
-            mUpdateCount = 0;
-            mCurrentTime = System.currentTimeMillis();
-            mDatabase.beginTransaction();
-        }
-
-        public int getRenewCount() {
-            return mRenewCount;
-        }
-
-        public int getUpdateCount() {
-            return mUpdateCount;
-        }
-
-        public void renewEntry(CacheEntry entry) {
-            if (mStatement == null) {
-                mStatement = mDatabase.compileStatement(
-                        "UPDATE " + TABLE_CACHE + " " +
-                                "SET " + COLUMN_CACHE_LASTUSED_TIMESTAMP + " = ? " +
-                                "WHERE " + getCacheSelectionClause());
-            }
-            if (mStatement == null) {
-                throw new IllegalStateException("error compiling sql statement");
-            }
-            mUpdateCount++;
-
-            if (!mProcessedItems.add(entry)) {
-                // already processed this item in this renewal transaction, don't do it again
-                return;
-            }
+    @Override
+    public int restampList(long serverId, ListFingerprint fingerprint, long serverScanTimestamp) {
+        Long previousScanTimestamp = fingerprint.getServerScanTimestamp();
+        OSAssert.assertNotNull(previousScanTimestamp, "only stored fingerprints can be restamped");
 
-            mStatement.clearBindings();
-
-            mStatement.bindLong(1, mCurrentTime);
-            mStatement.bindLong(2, entry.getServerId());
-            mStatement.bindLong(3, entry.getKeyHash());
-            mStatement.bindString(4, entry.getKey());
-            if (mStatement.executeInsert() != -1) {
-                mRenewCount++;
-            }
-        }
-
-        public void commit() {
+        int count;
+        mDatabase.beginTransaction();
+        try {
+            mNewDatabase.getCacheQueries().restampListEntries(serverScanTimestamp, serverId, fingerprint.getListKeyHash(), previousScanTimestamp);
+            Long changes = mNewDatabase.getGlobalQueries().changes().executeAsOneOrNull();
+            count = changes != null ? changes.intValue() : 0;
+            mNewDatabase.getCacheQueries().restampFingerprint(serverScanTimestamp, serverId, fingerprint.getListKeyHash(), previousScanTimestamp);
             mDatabase.setTransactionSuccessful();
-        }
-
-        @Override
-        public void close() throws IOException {
-            if (mStatement != null) {
-                mStatement.close();
-                mStatement = null;
-            }
-
+        } finally {
             mDatabase.endTransaction();
         }
+        return count;
     }
 
-    private class PersistNormalEntry implements Callable<Void> {
-        @Nonnull
-        final private CacheEntry mEntry;
-
-        @Nonnull
-        final private byte[] mBytes;
-
-        final private long mNewExpiresTimestamp;
-
-        PersistNormalEntry(CacheEntry entry, byte[] byteData, long newExpiresTimestamp) {
-            mEntry = entry;
-            mNewExpiresTimestamp = newExpiresTimestamp;
-            mBytes = byteData;
-        }
+    @Override
+    public void discardFingerprint(long serverId, ListFingerprint fingerprint) {
+        mNewDatabase.getCacheQueries().deleteFingerprint(serverId, fingerprint.getListKeyHash());
+    }
 
-        @Override
-        public Void call() {
-            ContentValues values = new ContentValues();
-
-            values.put(COLUMN_CACHE_KEY, mEntry.getKey());
-            values.put(COLUMN_CACHE_KEYHASH, mEntry.getKeyHash());
-            values.put(ServerContent.COLUMN_FK_SERVER_ID, mEntry.getServerId());
-
-            values.put(COLUMN_CACHE_VALUE, mBytes);
-            values.put(CacheContent.COLUMN_CACHE_ITEMSTATUS, CacheContent.ItemStatus.INTERNAL.name());
-            values.put(COLUMN_CACHE_VALUE_SIZE, mBytes.length);
-
-            switch (mEntry.getCacheType()) {
-                case SERVERSCAN: {
-                    Long lastScan = SBContextProvider.get().getServerStatus().getLastScanTime();
-                    if (lastScan == null) {
-                        // we're scanning,
-                        return null;
+    /**
+     * copy the live values out of blob segments that are mostly dead and delete those segments
+     */
+    public void cleanupCompactBlobStore() {
+        // Values are appended before their rows are queued, and rows queued after the flush aren't in the table. Only sealed segments are
+        // candidates; segments with values whose rows aren't queued yet are pinned, and then segments with rows still queued are skipped.
+        // Checked in that order, a store that unpins in between is in the queue. Nothing is flushed meanwhile.
+        mWriteBehindQueue.flushAndRun(() -> {
+            int movedCount = 0;
+            int segmentCount = 0;
+            SupportSQLiteStatement update = null;
+            try {
+                Map<Integer, Long> liveSizes = new HashMap<>();
+                for (LookupBlobLiveSizes row : mNewDatabase.getCacheQueries().lookupBlobLiveSizes().executeAsList()) {
+                    if (row.getCacheblobsegment() != null) {
+                        liveSizes.put(row.getCacheblobsegment().intValue(), (long) row.getLivesize());
                     }
-                    values.putNull(COLUMN_CACHE_EXPIRES_TIMESTAMP);
-                    values.put(COLUMN_CACHE_SERVERSCAN_TIMESTAMP, lastScan);
-                    break;
                 }
-                case TIMEOUT:
-                    values.put(COLUMN_CACHE_EXPIRES_TIMESTAMP, mNewExpiresTimestamp);
-                    values.putNull(COLUMN_CACHE_SERVERSCAN_TIMESTAMP);
-                    break;
-                default:
-                    throw new IllegalStateException();
-            }
-
-            values.put(COLUMN_CACHE_LASTUSED_TIMESTAMP, System.currentTimeMillis());
-
-            // delete any existing rows that match the key and insert a new one
-            mDatabase.beginTransaction();
-            try {
-                String selection = getCacheSelectionClause();
-                String[] args = getCacheSelectionArguments(mEntry);
-
-                int purgedCount = purgeEntries(selection, Arrays.asList(args));
-                if (purgedCount > 0) {
-                    OSLog.i(OSLog.Tag.CACHE, purgedCount + " existing entries purged during cache insert");
+                List<Integer> candidates = mBlobStore.findCompactionCandidates(liveSizes, mBlobStore.getActiveSegment(), BLOB_COMPACTION_THRESHOLD);
+                candidates.removeAll(mWriteBehindQueue.getPendingBlobSegments());
+                if (candidates.isEmpty()) {
+                    return;
                 }
 
-                mDatabase.insert(TABLE_CACHE, SQLiteDatabase.CONFLICT_IGNORE, values);
-                mDatabase.setTransactionSuccessful();
-
-                if (OSLog.isLoggable(OSLog.DEBUG)) {
-                    OSLog.d(OSLog.Tag.CACHE, "Successfully wrote " + mEntry + " to the database cache");
+                update = mDatabase.compileStatement(UPDATE_BLOB_LOCATION_SQL);
+                for (int segment : candidates) {
+                    List<Long> missing = new ArrayList<>();
+                    Map<Long, BlobStore.Ref> moves = new LinkedHashMap<>();
+                    for (LookupBlobsInSegment row : mNewDatabase.getCacheQueries().lookupBlobsInSegment((long) segment).executeAsList()) {
+                        if (row.getCachebloboffset() == null) {
+                            continue;
+                        }
+                        try {
+                            BlobStore.Ref ref = new BlobStore.Ref(segment, row.getCachebloboffset(), (int) row.getCachevaluesize());
+                            moves.put(row.get_id(), mBlobStore.copy(ref));
+                        } catch (IOException e) {
+                            OSLog.w(OSLog.Tag.CACHE, "Dropping unreadable blob for cache row " + row.get_id(), e);
+                            missing.add(row.get_id());
+                        }
+                    }
+                    mBlobStore.sync();
+
+                    mDatabase.beginTransaction();
+                    try {
+                        for (Map.Entry<Long, BlobStore.Ref> move : moves.entrySet()) {
+                            BlobStore.Ref ref = move.getValue();
+                            update.clearBindings();
+                            update.bindLong(1, ref.getSegment());
+                            update.bindLong(2, ref.getOffset());
+                            update.bindLong(3, move.getKey());
+                            update.executeUpdateDelete();
+                        }
+                        for (long id : missing) {
+                            mNewDatabase.getCacheQueries().deleteWithId(id);
+                        }
+                        mKeyFilter.recordEvictions(missing.size());
+                        mDatabase.setTransactionSuccessful();
+                    } finally {
+                        mDatabase.endTransaction();
+                    }
+                    mBlobStore.deleteSegment(segment);
+                    movedCount += moves.size();
+                    segmentCount++;
                 }
-
+            } catch (IOException e) {
+                OSLog.w(OSLog.Tag.CACHE, "Error compacting blob store", e);
             } finally {
-                mDatabase.endTransaction();
+                closeStatement(update);
             }
+            OSLog.d(OSLog.Tag.CACHE, movedCount + " blob(s) moved compacting " + segmentCount + " blob segment(s)");
+        });
+    }
 
-            return null;
+    /**
+     * rebuild the key filter from the table if it hasn't been built yet, or has drifted too far from the table since
+     */
+    public void cleanupRebuildKeyFilter() {
+        if (!mKeyFilter.isRebuildNeeded()) {
+            return;
+        }
+        long start = System.nanoTime();
+        mKeyFilter.rebuild(mKeySource);
+        if (OSLog.isLoggable(OSLog.Tag.CACHE, OSLog.DEBUG)) {
+            OSLog.d(OSLog.Tag.CACHE, "Rebuilt " + mKeyFilter + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
         }
     }
 
-    private class PersistExpandedEntry implements Callable<Void> {
-        @Nonnull
-        final private File mTemporaryCacheFile;
-        @Nonnull
-        final private CacheEntry mEntry;
+    @Nonnull
+    public String getKeyFilterMetrics() {
+        return mKeyFilter.toString();
+    }
+
+    /**
+     * queue a renewal of the entry's last-used timestamp
+     */
+    public void renewEntry(Executor executor, CacheEntry entry) {
+        mWriteBehindQueue.enqueueRenewal(executor, entry);
+    }
+
+    /**
+     * commit any queued writes and renewals now
+     */
+    public void flushPendingWrites() {
+        mWriteBehindQueue.flush();
+    }
 
-        final private long mNewExpiresTimestamp;
+    public int getPendingWriteCount() {
+        return mWriteBehindQueue.getPendingWriteCount();
+    }
 
-        final private long mLength;
+    public int getPendingRenewalCount() {
+        return mWriteBehindQueue.getPendingRenewalCount();
+    }
 
-        PersistExpandedEntry(CacheEntry entry, ByteSource byteSource, long newExpiresTimestamp) throws IOException {
-            mEntry = entry;
-            mNewExpiresTimestamp = newExpiresTimestamp;
-            mTemporaryCacheFile = File.createTempFile("temp", "persist", mConfiguration.getExpandedCacheDir());
-            Files.createParentDirs(mTemporaryCacheFile);
-            mLength = byteSource.copyTo(Files.asByteSink(mTemporaryCacheFile));
+    static private void closeStatement(@Nullable SupportSQLiteStatement statement) {
+        if (statement == null) {
+            return;
         }
+        try {
+            statement.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
 
-        @Override
-        public Void call() {
-            ContentValues values = new ContentValues();
-
-            values.put(COLUMN_CACHE_KEY, mEntry.getKey());
-            values.put(COLUMN_CACHE_KEYHASH, mEntry.getKeyHash());
-            values.put(ServerContent.COLUMN_FK_SERVER_ID, mEntry.getServerId());
-
-            values.put(CacheContent.COLUMN_CACHE_ITEMSTATUS, CacheContent.ItemStatus.EXTERNAL.name());
-            values.putNull(COLUMN_CACHE_VALUE);
-            values.put(COLUMN_CACHE_VALUE_SIZE, mLength);
-
-            switch (mEntry.getCacheType()) {
-                case SERVERSCAN: {
-                    Long lastScan = SBContextProvider.get().getServerStatus().getLastScanTime();
-                    if (lastScan == null) {
-                        // skip write, we're scanning
-                        return null;
-                    }
-                    values.putNull(COLUMN_CACHE_EXPIRES_TIMESTAMP);
-                    values.put(COLUMN_CACHE_SERVERSCAN_TIMESTAMP, lastScan);
-                    break;
-                }
-                case TIMEOUT:
-                    values.put(COLUMN_CACHE_EXPIRES_TIMESTAMP, mNewExpiresTimestamp);
-                    values.putNull(COLUMN_CACHE_SERVERSCAN_TIMESTAMP);
-                    break;
-                default:
-                    throw new IllegalStateException();
-            }
+    /**
+     * the columns of a cache row needed to load it
+     */
+    static private class StoredEntry {
+        final long mId;
 
-            values.put(COLUMN_CACHE_LASTUSED_TIMESTAMP, System.currentTimeMillis());
+        @Nonnull
+        final String mItemStatus;
 
-            // delete any existing rows that match the key and insert a new one
-            mDatabase.beginTransaction();
-            try {
-                String selection = getCacheSelectionClause();
-                String[] args = getCacheSelectionArguments(mEntry);
+        @Nullable
+        final byte[] mValue;
 
-                int purgedCount = purgeEntries(selection, Arrays.asList(args));
-                if (purgedCount > 0) {
-                    OSLog.i(OSLog.Tag.CACHE, purgedCount + " existing entries purged during cache insert");
-                }
-                long rowId = mDatabase.insert(TABLE_CACHE, SQLiteDatabase.CONFLICT_IGNORE, values);
-                Files.move(mTemporaryCacheFile, getExpansionFile(rowId));
-                mDatabase.setTransactionSuccessful();
+        @Nullable
+        final Long mBlobSegment;
 
-                if (OSLog.isLoggable(OSLog.DEBUG)) {
-                    OSLog.d(OSLog.Tag.CACHE, "Successfully wrote " + mEntry + " to the database cache");
-                }
-            } catch (IOException e) {
-                OSLog.w(OSLog.Tag.CACHE, "Error writing " + mEntry + " to database or filesystem", e);
-            } finally {
-                mDatabase.endTransaction();
-            }
+        @Nullable
+        final Long mBlobOffset;
 
-            if (mTemporaryCacheFile.exists()) {
-                FileUtils.deleteChecked(mTemporaryCacheFile);
-            }
+        final long mValueSize;
+
+        @Nullable
+        final Long mExpiresTimestamp;
 
-            return null;
+        StoredEntry(Long id, String itemStatus, @Nullable byte[] value, @Nullable Long blobSegment, @Nullable Long blobOffset, Long valueSize) {
+            this(id, itemStatus, value, blobSegment, blobOffset, valueSize, null);
         }
-    }
 
+        StoredEntry(Long id, String itemStatus, @Nullable byte[] value, @Nullable Long blobSegment, @Nullable Long blobOffset, Long valueSize,
+                    @Nullable Long expiresTimestamp) {
+            mId = id;
+            mItemStatus = itemStatus;
+            mValue = value;
+            mBlobSegment = blobSegment;
+            mBlobOffset = blobOffset;
+            mValueSize = valueSize;
+            mExpiresTimestamp = expiresTimestamp;
+        }
+    }
 }
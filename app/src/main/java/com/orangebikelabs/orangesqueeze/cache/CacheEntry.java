@@ -10,23 +10,13 @@ import androidx.annotation.Keep;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 import com.google.common.hash.Hashing;
-import com.orangebikelabs.orangesqueeze.common.OSAssert;
-import com.orangebikelabs.orangesqueeze.common.RefCount;
-
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.Immutable;
 
 /**
- * Immutable cache entry object that also provides simple locking to prevent multiple requests on the same data.
+ * Immutable cache entry object. Concurrent loads of the same entry are coalesced by CacheService, based on object equality.
  *
  * @author tsandee
  */
@@ -34,14 +24,6 @@ import javax.annotation.concurrent.Immutable;
 @Immutable
 public class CacheEntry {
 
-    final static private Object sLockGuard = new Object();
-
-    @GuardedBy("sLockGuard")
-    final static private Map<CacheEntry, LockHolder> sLockMap = new HashMap<>();
-
-    @GuardedBy("sLockGuard")
-    final static private Queue<LockHolder> sLockPool = new ArrayBlockingQueue<>(10);
-
     public enum Type {
         SERVERSCAN, TIMEOUT
     }
@@ -56,8 +38,6 @@ public class CacheEntry {
 
     final private long mServerId;
 
-    volatile private LockHolder mHeldLock;
-
     public CacheEntry(Type cacheType, long serverId, String key) {
         mType = cacheType;
         mServerId = serverId;
@@ -103,64 +83,6 @@ public class CacheEntry {
         return mKeyHash;
     }
 
-    /**
-     * Attempt to acquire a lock on the specified cache entry. This is unique to the entry based on object equality, not identity.
-     */
-    public boolean tryLockNonBlocking() {
-        if (Thread.currentThread().isInterrupted()) {
-            return false;
-        }
-
-        boolean acquired = false;
-        LockHolder lock = LockHolder.acquire(this);
-        try {
-            acquired = lock.mLock.tryLock(0, TimeUnit.SECONDS);
-            if (acquired) {
-                mHeldLock = lock;
-            }
-        } catch (InterruptedException e) {
-            // in general, this should be very rare, if not impossible
-        } finally {
-            if (!acquired) {
-                lock.release(this);
-            }
-        }
-        return acquired;
-    }
-
-    /**
-     * Acquire a lock on the specified cache entry. This is unique to the entry based on object equality, not identity.
-     */
-    public boolean tryLock(long timeout, TimeUnit units) throws InterruptedException {
-        LockHolder lock = LockHolder.acquire(this);
-
-        boolean acquired = lock.mLock.tryLock(timeout, units);
-        if (acquired) {
-            mHeldLock = lock;
-        } else {
-            // release back to the pool
-            lock.release(this);
-        }
-
-        return acquired;
-    }
-
-    /**
-     * Release a held lock on the cache entry.
-     */
-    public void releaseLock() {
-        LockHolder lock = mHeldLock;
-        mHeldLock = null;
-
-        OSAssert.assertNotNull(lock, "releasing unheld lock on entry");
-
-        // release the actual lock
-        lock.mLock.unlock();
-
-        // release it back to the pool or decrement the refcount
-        lock.release(this);
-    }
-
     @Override
     public boolean equals(@Nullable Object obj) {
         if (this == obj) {
@@ -184,41 +106,4 @@ public class CacheEntry {
         }
         return true;
     }
-
-    static private class LockHolder extends RefCount {
-        final public ReentrantLock mLock = new ReentrantLock();
-
-        @Nonnull
-        static LockHolder acquire(CacheEntry entry) {
-            synchronized (sLockGuard) {
-                LockHolder retval = sLockMap.get(entry);
-                if (retval == null) {
-                    retval = sLockPool.poll();
-
-                    if (retval == null) {
-                        retval = new LockHolder();
-                    }
-                    sLockMap.put(entry, retval);
-                }
-                retval.increment();
-                return retval;
-            }
-        }
-
-        LockHolder() {
-            super("lock", 0);
-        }
-
-        public void release(CacheEntry entry) {
-            synchronized (sLockGuard) {
-                if (decrement()) {
-                    // remove from map
-                    sLockMap.remove(entry);
-
-                    // add to pool of available locks to reuse
-                    sLockPool.offer(this);
-                }
-            }
-        }
-    }
 }
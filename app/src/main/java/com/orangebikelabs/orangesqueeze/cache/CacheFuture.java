@@ -18,4 +18,10 @@ import javax.annotation.Nonnull;
 public interface CacheFuture<T> extends ListenableFuture<T> {
     @Nonnull
     T checkedGet(long time, TimeUnit units) throws SBCacheException, InterruptedException, TimeoutException;
+
+    /**
+     * @return true if the value expired but was served anyway while a fresh copy is retrieved in the background. Only meaningful once the
+     * future is done.
+     */
+    boolean isStale();
 }
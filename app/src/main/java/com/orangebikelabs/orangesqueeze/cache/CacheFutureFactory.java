@@ -14,6 +14,7 @@ import com.orangebikelabs.orangesqueeze.common.OSLog;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nonnull;
 
@@ -29,19 +30,44 @@ public class CacheFutureFactory {
         return new SimpleCacheFuture<>(future);
     }
 
+    /**
+     * @param stale set by the task before it completes if the value it produces is stale
+     */
+    @Nonnull
+    static public <T> CacheFuture<T> create(ListenableFuture<T> future, AtomicBoolean stale) {
+        return new SimpleCacheFuture<>(future, stale);
+    }
+
     @Nonnull
     static public <T> CacheFuture<T> immediateFuture(T value) {
         return new SimpleCacheFuture<>(Futures.immediateFuture(value));
     }
 
+    @Nonnull
+    static public <T> CacheFuture<T> immediateStaleFuture(T value) {
+        return new SimpleCacheFuture<>(Futures.immediateFuture(value), new AtomicBoolean(true));
+    }
+
     @Nonnull
     static public <T> CacheFuture<T> immediateFailedFuture(Throwable t) {
         return new SimpleCacheFuture<>(Futures.immediateFailedFuture(t));
     }
 
     static class SimpleCacheFuture<T> extends ForwardingListenableFuture.SimpleForwardingListenableFuture<T> implements CacheFuture<T> {
+        final private AtomicBoolean mStale;
+
         protected SimpleCacheFuture(ListenableFuture<T> delegate) {
+            this(delegate, new AtomicBoolean());
+        }
+
+        protected SimpleCacheFuture(ListenableFuture<T> delegate, AtomicBoolean stale) {
             super(delegate);
+            mStale = stale;
+        }
+
+        @Override
+        public boolean isStale() {
+            return mStale.get();
         }
 
         @Override
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Per-server Bloom filters over the key hashes of the rows in the cache table, so lookups for keys that were never stored can skip the
+ * database. A filter can say a key is definitely absent, or that it might be present.
+ * <p/>
+ * Keys are added as their write is queued, before the row exists. A Bloom filter can't forget keys, so evictions are only counted; the
+ * keys of evicted rows keep testing positive, which costs a query but is never wrong. Once enough rows have gone, or more keys were added
+ * than the filters were sized for, {@link #isRebuildNeeded()} says so and the filters are rebuilt from the table. Until the first build
+ * everything might be present.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+class CacheKeyFilter {
+    final static double FALSE_POSITIVE_RATE = 0.01;
+
+    /**
+     * filters are sized for this many times the keys present when they are built, so they don't fill up before the next cleanup pass
+     */
+    final static int GROWTH_FACTOR = 2;
+
+    final static int MIN_EXPECTED_KEYS = 1024;
+
+    /**
+     * rebuild once more than this fraction of the keys a filter was built with have been evicted
+     */
+    final static float REBUILD_EVICTION_FRACTION = 0.25f;
+
+    /**
+     * where a rebuild reads the keys present in the table
+     */
+    interface KeySource {
+        /**
+         * make every key added before the rebuild started readable, such as by committing queued writes
+         */
+        void flush();
+
+        /**
+         * @return the number of keys present for each server
+         */
+        @Nonnull
+        Map<Long, Long> countKeys();
+
+        void forEachKey(KeyConsumer consumer);
+    }
+
+    interface KeyConsumer {
+        void accept(long serverId, int keyHash);
+    }
+
+    /**
+     * queues the write of a row
+     */
+    interface Store {
+        void run() throws IOException;
+    }
+
+    /**
+     * filters by server id, null until the first build. Replaced as a whole so lookups don't lock.
+     */
+    @Nullable
+    private volatile ImmutableMap<Long, ServerFilter> mFilters;
+
+    /**
+     * keys added while a rebuild reads the table, applied to the rebuilt filters before they are published
+     */
+    @GuardedBy("this")
+    @Nullable
+    private List<long[]> mRebuildAdds;
+
+    @GuardedBy("this")
+    private long mBuiltKeyCount;
+
+    final private Object mRebuildLock = new Object();
+
+    /**
+     * held shared from adding a key until its write is queued, and exclusively when a rebuild starts keeping keys aside
+     */
+    final private ReadWriteLock mStoreLock = new ReentrantReadWriteLock();
+
+    final private AtomicInteger mEvictedCount = new AtomicInteger();
+
+    final private AtomicLong mCheckCount = new AtomicLong();
+
+    final private AtomicLong mNegativeCount = new AtomicLong();
+
+    final private AtomicLong mRebuildCount = new AtomicLong();
+
+    /**
+     * @return false only if the key is definitely not in the table
+     */
+    boolean mightContain(long serverId, int keyHash) {
+        ImmutableMap<Long, ServerFilter> filters = mFilters;
+        if (filters == null) {
+            return true;
+        }
+        mCheckCount.incrementAndGet();
+
+        ServerFilter filter = filters.get(serverId);
+        boolean retval = filter != null && filter.mFilter.mightContain(keyHash);
+        if (!retval) {
+            mNegativeCount.incrementAndGet();
+        }
+        return retval;
+    }
+
+    /**
+     * Add the key, then run the store that queues its row. A rebuild that starts meanwhile waits until the write is queued, so its flush
+     * makes the row readable.
+     */
+    void addAndStore(long serverId, int keyHash, Store store) throws IOException {
+        mStoreLock.readLock().lock();
+        try {
+            add(serverId, keyHash);
+            store.run();
+        } finally {
+            mStoreLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * called before a row for the key is written
+     */
+    synchronized void add(long serverId, int keyHash) {
+        if (mRebuildAdds != null) {
+            mRebuildAdds.add(new long[]{serverId, keyHash});
+        }
+        ImmutableMap<Long, ServerFilter> filters = mFilters;
+        if (filters == null) {
+            return;
+        }
+        ServerFilter filter = filters.get(serverId);
+        if (filter == null) {
+            filter = new ServerFilter(MIN_EXPECTED_KEYS);
+            mFilters = ImmutableMap.<Long, ServerFilter>builder()
+                    .putAll(filters)
+                    .put(serverId, filter)
+                    .build();
+        }
+        filter.add(keyHash);
+    }
+
+    /**
+     * called after rows were deleted from the table
+     */
+    void recordEvictions(int count) {
+        if (count > 0) {
+            mEvictedCount.addAndGet(count);
+        }
+    }
+
+    /**
+     * the table was emptied
+     */
+    synchronized void clear() {
+        mFilters = ImmutableMap.of();
+        mBuiltKeyCount = 0;
+        mEvictedCount.set(0);
+    }
+
+    boolean isRebuildNeeded() {
+        ImmutableMap<Long, ServerFilter> filters = mFilters;
+        if (filters == null) {
+            return true;
+        }
+        synchronized (this) {
+            if (mEvictedCount.get() > Math.max(MIN_EXPECTED_KEYS, mBuiltKeyCount) * REBUILD_EVICTION_FRACTION) {
+                return true;
+            }
+        }
+        for (ServerFilter filter : filters.values()) {
+            if (filter.isFull()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rebuild the filters from the keys in the table. Keys added once the rebuild has started are kept aside, and stores still queueing
+     * writes for earlier keys are waited for, then the source is flushed and read. No key stored through {@link #addAndStore} is missed,
+     * whether its row is committed before or after the read. If the source fails the current filters stay.
+     */
+    void rebuild(KeySource source) {
+        synchronized (mRebuildLock) {
+            mStoreLock.writeLock().lock();
+            try {
+                synchronized (this) {
+                    mRebuildAdds = new ArrayList<>();
+                }
+            } finally {
+                mStoreLock.writeLock().unlock();
+            }
+            int evictedCount = mEvictedCount.get();
+            Map<Long, ServerFilter> rebuilt = new HashMap<>();
+            long keyCount = 0;
+            try {
+                source.flush();
+                for (Map.Entry<Long, Long> e : source.countKeys().entrySet()) {
+                    rebuilt.put(e.getKey(), new ServerFilter(Math.max(MIN_EXPECTED_KEYS, e.getValue() * GROWTH_FACTOR)));
+                    keyCount += e.getValue();
+                }
+                // the table can change between the count and the scan
+                source.forEachKey((serverId, keyHash) -> addTo(rebuilt, serverId, keyHash));
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    mRebuildAdds = null;
+                }
+                throw e;
+            }
+
+            synchronized (this) {
+                for (long[] add : mRebuildAdds) {
+                    addTo(rebuilt, add[0], (int) add[1]);
+                }
+                mRebuildAdds = null;
+                mFilters = ImmutableMap.copyOf(rebuilt);
+                mBuiltKeyCount = keyCount;
+                mEvictedCount.addAndGet(-evictedCount);
+            }
+            mRebuildCount.incrementAndGet();
+        }
+    }
+
+    static private void addTo(Map<Long, ServerFilter> filters, long serverId, int keyHash) {
+        ServerFilter filter = filters.get(serverId);
+        if (filter == null) {
+            filter = new ServerFilter(MIN_EXPECTED_KEYS);
+            filters.put(serverId, filter);
+        }
+        filter.add(keyHash);
+    }
+
+    @Override
+    @Nonnull
+    public String toString() {
+        ImmutableMap<Long, ServerFilter> filters = mFilters;
+        return MoreObjects.toStringHelper(this)
+                .add("built", filters != null)
+                .add("servers", filters != null ? filters.size() : 0)
+                .add("checks", mCheckCount.get())
+                .add("negatives", mNegativeCount.get())
+                .add("evictions", mEvictedCount.get())
+                .add("rebuilds", mRebuildCount.get())
+                .toString();
+    }
+
+    @ThreadSafe
+    static private class ServerFilter {
+        @Nonnull
+        final BloomFilter<Integer> mFilter;
+
+        final long mExpectedKeys;
+
+        ServerFilter(long expectedKeys) {
+            mExpectedKeys = expectedKeys;
+            mFilter = BloomFilter.create(Funnels.integerFunnel(), expectedKeys, FALSE_POSITIVE_RATE);
+        }
+
+        void add(int keyHash) {
+            // puts are thread-safe
+            mFilter.put(keyHash);
+        }
+
+        /**
+         * past this the false positive rate climbs above what the filter was sized for
+         */
+        boolean isFull() {
+            return mFilter.approximateElementCount() > mExpectedKeys;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Counters and latency histograms for each tier of the cache service: where requests are served from, what is evicted, how many bytes
+ * move through each tier and how long loads and persists take. Hits and misses are also broken down by command prefix, so it's possible
+ * to tell which kinds of requests the cache actually helps.
+ * <p/>
+ * Recording never blocks: everything is a plain atomic increment. The snapshot reads each counter separately, so counters recorded while
+ * a snapshot is taken may be only partly reflected in it.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+public class CacheMetrics {
+    public enum Tier {
+        MEMORY, DATABASE,
+        /**
+         * hits are successful fetches from the server, misses are failed ones
+         */
+        NETWORK
+    }
+
+    public enum Operation {
+        /**
+         * end-to-end load of an entry that wasn't in memory
+         */
+        LOAD,
+        /**
+         * lookup and decode from the database
+         */
+        DATABASE_READ,
+        /**
+         * fetch from the server
+         */
+        NETWORK_FETCH,
+        /**
+         * serialize and queue a value for the database
+         */
+        PERSIST,
+        /**
+         * group commit of queued writes and renewals
+         */
+        COMMIT
+    }
+
+    /**
+     * prefixes beyond this many are counted together, keys are mostly drawn from a small set of commands but we don't want surprises
+     */
+    final static int MAX_PREFIXES = 64;
+
+    final static String OTHER_PREFIX = "other";
+
+    final static private int TIER_COUNT = Tier.values().length;
+
+    final static private int HITS = 0;
+    final static private int MISSES = 1;
+    final static private int EVICTIONS = 2;
+    final static private int BYTES_READ = 3;
+    final static private int BYTES_WRITTEN = 4;
+    final static private int COUNTER_TYPES = 5;
+
+    /**
+     * indexed by tier and counter type
+     */
+    final private AtomicLongArray mCounters = new AtomicLongArray(TIER_COUNT * COUNTER_TYPES);
+
+    final private Histogram[] mLatencies;
+
+    final private ConcurrentMap<String, AtomicLongArray> mPrefixCounters = new ConcurrentHashMap<>();
+
+    public CacheMetrics() {
+        mLatencies = new Histogram[Operation.values().length];
+        for (int i = 0; i < mLatencies.length; i++) {
+            mLatencies[i] = new Histogram();
+        }
+    }
+
+    public void recordHit(Tier tier, CacheEntry entry, long bytes) {
+        mCounters.incrementAndGet(index(tier, HITS));
+        if (bytes > 0) {
+            mCounters.addAndGet(index(tier, BYTES_READ), bytes);
+        }
+        prefixCounters(entry).incrementAndGet(tier.ordinal() * 2);
+    }
+
+    public void recordMiss(Tier tier, CacheEntry entry) {
+        mCounters.incrementAndGet(index(tier, MISSES));
+        prefixCounters(entry).incrementAndGet(tier.ordinal() * 2 + 1);
+    }
+
+    public void recordEvictions(Tier tier, int count) {
+        if (count > 0) {
+            mCounters.addAndGet(index(tier, EVICTIONS), count);
+        }
+    }
+
+    public void recordBytesWritten(Tier tier, long bytes) {
+        if (bytes > 0) {
+            mCounters.addAndGet(index(tier, BYTES_WRITTEN), bytes);
+        }
+    }
+
+    /**
+     * @param startNanos value of System.nanoTime() when the operation started
+     */
+    public void recordLatency(Operation operation, long startNanos) {
+        mLatencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    @Nonnull
+    public Snapshot snapshot() {
+        long[] counters = new long[mCounters.length()];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = mCounters.get(i);
+        }
+        LatencySnapshot[] latencies = new LatencySnapshot[mLatencies.length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = mLatencies[i].snapshot();
+        }
+        ImmutableMap.Builder<String, PrefixSnapshot> prefixes = ImmutableMap.builder();
+        for (Map.Entry<String, AtomicLongArray> e : new TreeMap<>(mPrefixCounters).entrySet()) {
+            prefixes.put(e.getKey(), new PrefixSnapshot(e.getValue()));
+        }
+        return new Snapshot(counters, latencies, prefixes.build());
+    }
+
+    @Nonnull
+    private AtomicLongArray prefixCounters(CacheEntry entry) {
+        String prefix = getCommandPrefix(entry.getKey());
+        AtomicLongArray retval = mPrefixCounters.get(prefix);
+        if (retval == null) {
+            if (mPrefixCounters.size() >= MAX_PREFIXES) {
+                prefix = OTHER_PREFIX;
+            }
+            AtomicLongArray newCounters = new AtomicLongArray(TIER_COUNT * 2);
+            retval = mPrefixCounters.putIfAbsent(prefix, newCounters);
+            if (retval == null) {
+                retval = newCounters;
+            }
+        }
+        return retval;
+    }
+
+    static private int index(Tier tier, int counterType) {
+        return tier.ordinal() * COUNTER_TYPES + counterType;
+    }
+
+    /**
+     * derive a grouping from a cache key. For Comet requests this is the command and subcommand (e.g. "browselibrary items"), for other keys
+     * it's the leading word (e.g. "Artwork").
+     */
+    @Nonnull
+    static String getCommandPrefix(String key) {
+        int start = key.indexOf('[');
+        if (start < 0) {
+            int end = 0;
+            while (end < key.length() && Character.isLetter(key.charAt(end))) {
+                end++;
+            }
+            return end == 0 ? OTHER_PREFIX : key.substring(0, end);
+        }
+
+        start++;
+        int end = commandEnd(key, start);
+        if (end == start) {
+            return OTHER_PREFIX;
+        }
+        String command = key.substring(start, end);
+        if (end < key.length() && key.charAt(end) == ',') {
+            int subEnd = commandEnd(key, end + 1);
+            if (subEnd > end + 1 && (subEnd == key.length() || key.charAt(subEnd) == ',' || key.charAt(subEnd) == ']')) {
+                return command + " " + key.substring(end + 1, subEnd);
+            }
+        }
+        return command;
+    }
+
+    static private int commandEnd(String key, int start) {
+        int end = start;
+        while (end < key.length() && Character.isLetter(key.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * log2 buckets of microseconds, from under 1us up to about 8s and more
+     */
+    @ThreadSafe
+    static class Histogram {
+        final static int BUCKETS = 24;
+
+        final private AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        final private AtomicLong mTotalMicros = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            mBuckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+            mTotalMicros.addAndGet(micros);
+        }
+
+        @Nonnull
+        LatencySnapshot snapshot() {
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = mBuckets.get(i);
+            }
+            return new LatencySnapshot(buckets, mTotalMicros.get());
+        }
+    }
+
+    @Immutable
+    static public class LatencySnapshot {
+        final private long[] mBuckets;
+        final private long mCount;
+        final private long mTotalMicros;
+
+        LatencySnapshot(long[] buckets, long totalMicros) {
+            long count = 0;
+            for (long b : buckets) {
+                count += b;
+            }
+            mBuckets = buckets;
+            mCount = count;
+            mTotalMicros = totalMicros;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMeanMicros() {
+            return mCount == 0 ? 0 : mTotalMicros / mCount;
+        }
+
+        /**
+         * @return upper bound of the bucket holding the given percentile, in microseconds
+         */
+        public long getPercentileMicros(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(mCount * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (mBuckets.length - 1);
+        }
+
+        @Override
+        @Nonnull
+        public String toString() {
+            return "n=" + mCount + " mean=" + getMeanMicros() + "us p50<=" + getPercentileMicros(50) + "us p99<=" + getPercentileMicros(99) + "us";
+        }
+    }
+
+    @Immutable
+    static public class PrefixSnapshot {
+        final private long[] mCounters;
+
+        PrefixSnapshot(AtomicLongArray counters) {
+            mCounters = new long[counters.length()];
+            for (int i = 0; i < mCounters.length; i++) {
+                mCounters[i] = counters.get(i);
+            }
+        }
+
+        public long getHits(Tier tier) {
+            return mCounters[tier.ordinal() * 2];
+        }
+
+        public long getMisses(Tier tier) {
+            return mCounters[tier.ordinal() * 2 + 1];
+        }
+
+        @Override
+        @Nonnull
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Tier tier : Tier.values()) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(tier.name().toLowerCase()).append('=').append(getHits(tier)).append('/').append(getMisses(tier));
+            }
+            return sb.toString();
+        }
+    }
+
+    @Immutable
+    static public class Snapshot {
+        final private long[] mCounters;
+        final private LatencySnapshot[] mLatencies;
+        final private ImmutableMap<String, PrefixSnapshot> mPrefixes;
+
+        Snapshot(long[] counters, LatencySnapshot[] latencies, ImmutableMap<String, PrefixSnapshot> prefixes) {
+            mCounters = counters;
+            mLatencies = latencies;
+            mPrefixes = prefixes;
+        }
+
+        public long getHits(Tier tier) {
+            return mCounters[index(tier, HITS)];
+        }
+
+        public long getMisses(Tier tier) {
+            return mCounters[index(tier, MISSES)];
+        }
+
+        public long getEvictions(Tier tier) {
+            return mCounters[index(tier, EVICTIONS)];
+        }
+
+        public long getBytesRead(Tier tier) {
+            return mCounters[index(tier, BYTES_READ)];
+        }
+
+        public long getBytesWritten(Tier tier) {
+            return mCounters[index(tier, BYTES_WRITTEN)];
+        }
+
+        @Nonnull
+        public LatencySnapshot getLatency(Operation operation) {
+            return mLatencies[operation.ordinal()];
+        }
+
+        /**
+         * @return hits and misses by command prefix, in prefix order
+         */
+        @Nonnull
+        public ImmutableMap<String, PrefixSnapshot> getPrefixes() {
+            return mPrefixes;
+        }
+
+        @Override
+        @Nonnull
+        public String toString() {
+            MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper("CacheMetrics");
+            for (Tier tier : Tier.values()) {
+                helper.add(tier.name().toLowerCase(), "hits=" + getHits(tier) + " misses=" + getMisses(tier) + " evictions=" + getEvictions(tier)
+                        + " read=" + getBytesRead(tier) + "B written=" + getBytesWritten(tier) + "B");
+            }
+            for (Operation operation : Operation.values()) {
+                helper.add(operation.name().toLowerCase(), getLatency(operation));
+            }
+            helper.add("prefixes", mPrefixes);
+            return helper.toString();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Cache rules for request commands. Each rule is declared for a command path, such as "browselibrary items", and says whether requests
+ * under that path are cached and how they are keyed. The rules are compiled into a trie over command tokens, so a lookup walks the commands
+ * once instead of joining them into a string and comparing it against every declared prefix.
+ * <p/>
+ * A rule applies to commands that start with its path and have at least one parameter after it. Where rules are declared at several depths
+ * the deepest one that applies wins; rules for the same path are tried in the order they were declared.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@Immutable
+public class CachePolicyTable {
+
+    @Nonnull
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    @Nonnull
+    final private Node mRoot;
+
+    private CachePolicyTable(Node root) {
+        mRoot = root;
+    }
+
+    /**
+     * @return the rule for the commands, or null if no rule was declared for them
+     */
+    @Nullable
+    public Rule lookup(List<?> commands) {
+        Rule retval = null;
+        Node node = mRoot;
+        int size = commands.size();
+        for (int depth = 0; depth < size - 1; depth++) {
+            node = node.mChildren.get(String.valueOf(commands.get(depth)));
+            if (node == null) {
+                break;
+            }
+            for (Rule rule : node.mRules) {
+                if (rule.appliesTo(commands)) {
+                    retval = rule;
+                    break;
+                }
+            }
+        }
+        return retval;
+    }
+
+    @Override
+    @Nonnull
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("root", mRoot).toString();
+    }
+
+    @Immutable
+    public static class Rule {
+        /**
+         * a rule for commands that can be cached until the server rescans
+         */
+        @Nonnull
+        public static Rule serverScan(String... path) {
+            return new Rule(CacheEntry.Type.SERVERSCAN, ImmutableList.copyOf(path), false, null);
+        }
+
+        /**
+         * a rule for commands that can be cached for the cache timeout
+         */
+        @Nonnull
+        public static Rule timeout(String... path) {
+            return new Rule(CacheEntry.Type.TIMEOUT, ImmutableList.copyOf(path), false, null);
+        }
+
+        /**
+         * a rule for commands that are known not to be cacheable
+         */
+        @Nonnull
+        public static Rule uncached(String... path) {
+            return new Rule(null, ImmutableList.copyOf(path), false, null);
+        }
+
+        @Nullable
+        final private CacheEntry.Type mCacheType;
+
+        @Nonnull
+        final private ImmutableList<String> mPath;
+
+        final private boolean mKeyedByPlayer;
+
+        @Nullable
+        final private String mExcludedParameter;
+
+        private Rule(@Nullable CacheEntry.Type cacheType, ImmutableList<String> path, boolean keyedByPlayer, @Nullable String excludedParameter) {
+            if (path.isEmpty()) {
+                throw new IllegalArgumentException("rule path is empty");
+            }
+            mCacheType = cacheType;
+            mPath = path;
+            mKeyedByPlayer = keyedByPlayer;
+            mExcludedParameter = excludedParameter;
+        }
+
+        /**
+         * @return a copy of this rule that keeps a separate entry for each player
+         */
+        @Nonnull
+        public Rule keyedByPlayer() {
+            return new Rule(mCacheType, mPath, true, mExcludedParameter);
+        }
+
+        /**
+         * @return a copy of this rule that doesn't apply when any parameter contains the text
+         */
+        @Nonnull
+        public Rule unlessParameterContains(String text) {
+            return new Rule(mCacheType, mPath, mKeyedByPlayer, text);
+        }
+
+        /**
+         * @return the cache type, or null if requests under this path aren't cached
+         */
+        @Nullable
+        public CacheEntry.Type getCacheType() {
+            return mCacheType;
+        }
+
+        @Nonnull
+        public List<String> getPath() {
+            return mPath;
+        }
+
+        public boolean isKeyedByPlayer() {
+            return mKeyedByPlayer;
+        }
+
+        /**
+         * Build the cache entry for the commands, which must be ones this rule was looked up for. The key is built in a single pass, sized
+         * up front.
+         *
+         * @param playerId only used if the rule is keyed by player
+         */
+        @Nonnull
+        public CacheEntry newCacheEntry(long serverId, @Nullable Object playerId, List<?> commands) {
+            if (mCacheType == null) {
+                throw new IllegalStateException("rule is not cacheable: " + this);
+            }
+
+            int size = commands.size();
+            String[] tokens = new String[size];
+            int length = 11 + size;
+            String player = null;
+            if (mKeyedByPlayer && playerId != null) {
+                player = playerId.toString();
+                length += player.length() + 1;
+            }
+            for (int i = 0; i < size; i++) {
+                tokens[i] = String.valueOf(commands.get(i));
+                length += tokens[i].length();
+            }
+
+            StringBuilder builder = new StringBuilder(length);
+            builder.append("Request{");
+            if (player != null) {
+                builder.append(player).append(',');
+            }
+            builder.append('[');
+            for (int i = 0; i < size; i++) {
+                if (i != 0) {
+                    builder.append(',');
+                }
+                builder.append(tokens[i]);
+            }
+            builder.append("]}");
+            return new CacheEntry(mCacheType, serverId, builder.toString());
+        }
+
+        private boolean appliesTo(List<?> commands) {
+            if (mExcludedParameter == null) {
+                return true;
+            }
+            for (int i = mPath.size(); i < commands.size(); i++) {
+                if (String.valueOf(commands.get(i)).contains(mExcludedParameter)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        @Nonnull
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("path", mPath)
+                    .add("cacheType", mCacheType)
+                    .add("keyedByPlayer", mKeyedByPlayer)
+                    .add("excludedParameter", mExcludedParameter)
+                    .toString();
+        }
+    }
+
+    public static class Builder {
+        final private List<Rule> mRules = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        @Nonnull
+        public Builder add(Rule... rules) {
+            mRules.addAll(Arrays.asList(rules));
+            return this;
+        }
+
+        @Nonnull
+        public CachePolicyTable build() {
+            MutableNode root = new MutableNode();
+            for (Rule rule : mRules) {
+                MutableNode node = root;
+                for (String token : rule.mPath) {
+                    MutableNode child = node.mChildren.get(token);
+                    if (child == null) {
+                        child = new MutableNode();
+                        node.mChildren.put(token, child);
+                    }
+                    node = child;
+                }
+                node.mRules.add(rule);
+            }
+            return new CachePolicyTable(root.compile());
+        }
+    }
+
+    static private class MutableNode {
+        final Map<String, MutableNode> mChildren = new LinkedHashMap<>();
+        final List<Rule> mRules = new ArrayList<>();
+
+        @Nonnull
+        Node compile() {
+            ImmutableMap.Builder<String, Node> children = ImmutableMap.builder();
+            for (Map.Entry<String, MutableNode> e : mChildren.entrySet()) {
+                children.put(e.getKey(), e.getValue().compile());
+            }
+            return new Node(children.build(), ImmutableList.copyOf(mRules));
+        }
+    }
+
+    @Immutable
+    static private class Node {
+        @Nonnull
+        final ImmutableMap<String, Node> mChildren;
+
+        @Nonnull
+        final ImmutableList<Rule> mRules;
+
+        Node(ImmutableMap<String, Node> children, ImmutableList<Rule> rules) {
+            mChildren = children;
+            mRules = rules;
+        }
+
+        @Override
+        @Nonnull
+        public String toString() {
+            return MoreObjects.toStringHelper(this).add("rules", mRules).add("children", mChildren).toString();
+        }
+    }
+}
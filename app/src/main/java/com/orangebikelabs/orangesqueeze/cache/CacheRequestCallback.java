@@ -38,11 +38,27 @@ public interface CacheRequestCallback<T, C> {
     @Nullable
     ByteSource onSerializeForDatabaseCache(CacheService service, T data, AtomicLong outEstimatedSize) throws IOException;
 
+    /**
+     * Should the serialized data be compressed before it is stored? Worthwhile for Comet results, not for data that is already compressed
+     * like artwork.
+     */
+    default boolean shouldCompressForDatabaseCache() {
+        return false;
+    }
+
     /**
      * Estimate the size (in memory) of the supplied object
      */
     int onEstimateMemorySize(CacheService service, C dataToEstimate);
 
+    /**
+     * Estimate the size (in memory) of a decoded object, so it can be kept in the decoded tier of the memory cache. Decoded objects are shared
+     * between callers and must not be modified. Return -1, the default, to keep only the memory cache representation.
+     */
+    default int onEstimateDecodedMemorySize(CacheService service, T dataToEstimate) {
+        return -1;
+    }
+
     /**
      * Adapt for memory cache. May return the same object, or null, or a new value suitable for the memory cache.
      */
@@ -61,6 +77,23 @@ public interface CacheRequestCallback<T, C> {
     @Nonnull
     CacheEntry getEntry();
 
+    /**
+     * May an expired TIMEOUT entry be returned, flagged as stale, while a fresh copy is retrieved in the background? The callback is kept
+     * and used for the refresh after the request completes.
+     */
+    default boolean shouldServeStale() {
+        return false;
+    }
+
+    /**
+     * Describe the list a SERVERSCAN value is a page of, so the cached pages can be kept when the server rescans and the list hasn't changed.
+     * Return null, the default, for values that aren't pages of a list.
+     */
+    @Nullable
+    default ListFingerprint onFingerprintForRevalidation(CacheService service, T data) {
+        return null;
+    }
+
     /**
      * Do we mark failed requests and remember them as such? Typically only artwork.
      */
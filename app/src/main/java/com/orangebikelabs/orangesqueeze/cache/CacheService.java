@@ -13,9 +13,9 @@ import androidx.core.app.NotificationManagerCompat;
 import arrow.core.Option;
 import arrow.core.OptionKt;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Throwables;
-import com.google.common.collect.Queues;
 import com.google.common.io.ByteSource;
 import com.google.common.io.Files;
 import com.google.common.util.concurrent.AbstractScheduledService;
@@ -27,6 +27,7 @@ import com.google.common.util.concurrent.Uninterruptibles;
 import com.orangebikelabs.orangesqueeze.R;
 import com.orangebikelabs.orangesqueeze.app.NotificationCommon;
 import com.orangebikelabs.orangesqueeze.artwork.BitmapRecycler;
+import com.orangebikelabs.orangesqueeze.common.BusProvider;
 import com.orangebikelabs.orangesqueeze.common.Closeables;
 import com.orangebikelabs.orangesqueeze.common.Constants;
 import com.orangebikelabs.orangesqueeze.common.FileUtils;
@@ -35,8 +36,12 @@ import com.orangebikelabs.orangesqueeze.common.OSAssert;
 import com.orangebikelabs.orangesqueeze.common.OSExecutors;
 import com.orangebikelabs.orangesqueeze.common.OSLog;
 import com.orangebikelabs.orangesqueeze.common.OSLog.Tag;
+import com.orangebikelabs.orangesqueeze.common.SBContext;
 import com.orangebikelabs.orangesqueeze.common.SBContextProvider;
+import com.orangebikelabs.orangesqueeze.common.SBRequest;
+import com.orangebikelabs.orangesqueeze.common.SBRequestException;
 import com.orangebikelabs.orangesqueeze.common.ThreadTools;
+import com.orangebikelabs.orangesqueeze.common.event.CacheEntryRefreshedEvent;
 import com.orangebikelabs.orangesqueeze.compat.Compat;
 import com.orangebikelabs.orangesqueeze.database.DatabaseWriterThreadPoolExecutor;
 import com.orangebikelabs.orangesqueeze.ui.MainActivity;
@@ -47,9 +52,11 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -60,9 +67,7 @@ import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-
-import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_EXPIRES_TIMESTAMP;
-import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_SERVERSCAN_TIMESTAMP;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * @author tsandee
@@ -71,18 +76,51 @@ public class CacheService {
     /**
      * the cache version identifier. If the backing cache format changes in an incompatible way this will be bumped and old cache items will
      */
-    private static final int CACHE_VERSION = 7;
+    private static final int CACHE_VERSION = 8;
 
     /**
-     * number of items in the renew queue before they are committed to the database
+     * number of renewals before a cleanup pass is triggered
      */
     final private static int MAX_ITEM_RENEW_THRESHOLD = 200;
 
-    // don't rely on mRenewItems.size() because it's an O(n) operation
+    /**
+     * most memory cache data kept in the snapshot for the next start. Browse list pages are a few KB compacted, so this is hundreds of them.
+     */
+    final private static int SNAPSHOT_MAX_SIZE = 1024 * 1024;
+
+    // renewals since the last cleanup pass
     final private AtomicInteger mRenewItemCount = new AtomicInteger();
 
-    // fast, concurrent list of items to renew
-    final private ConcurrentLinkedQueue<CacheEntry> mRenewItems = Queues.newConcurrentLinkedQueue();
+    /**
+     * loads in progress, so concurrent misses for the same entry share a single load
+     */
+    final private SingleFlight<CacheEntry> mLoadFlights = new SingleFlight<>();
+
+    /**
+     * hit, miss and latency counters for each tier
+     */
+    final private CacheMetrics mMetrics = new CacheMetrics();
+
+    /**
+     * refreshes expired TIMEOUT entries in the background while they are served stale
+     */
+    final private StaleRevalidator mRevalidator = new StaleRevalidator(mLoadFlights, OSExecutors.getUnboundedPool(), StaleRevalidator.SYSTEM_CLOCK,
+            entry -> BusProvider.getInstance().post(new CacheEntryRefreshedEvent(entry)));
+
+    /**
+     * whether a pass to keep unchanged SERVERSCAN lists across a rescan is running
+     */
+    final private AtomicBoolean mScanRevalidationRunning = new AtomicBoolean();
+
+    /**
+     * server and scan of the last revalidation pass
+     */
+    @GuardedBy("this")
+    private long mRevalidatedServerId = -1;
+
+    @GuardedBy("this")
+    @Nullable
+    private Long mRevalidatedServerScan;
 
     /**
      * the current configuration. This is observable to receive notifications on changes.
@@ -119,6 +157,11 @@ public class CacheService {
      */
     private MemoryCache mBlockedMemoryCache;
 
+    /**
+     * pooled memory for managed temporaries
+     */
+    private TemporaryStorage mBlockedTemporaryStorage;
+
     /**
      * executor to use for database access
      */
@@ -138,10 +181,27 @@ public class CacheService {
         mConfiguration = new CacheConfiguration(context);
 
         OSExecutors.getUnboundedPool().execute(() -> {
-            mBlockedCacheDatabase = new CacheDatabase(context, mConfiguration);
+            mBlockedCacheDatabase = new CacheDatabase(context, mConfiguration, mMetrics);
             mBlockedDatabaseExecutor = DatabaseWriterThreadPoolExecutor.newInstance(20, "Cache Service Database Writer");
-            mBlockedMemoryCache = new MemoryCache(this, mConfiguration);
+            mBlockedMemoryCache = new MemoryCache(this, mConfiguration, mMetrics);
+            mBlockedTemporaryStorage = new TemporaryStorage(new TemporaryStorage.Config() {
+                @Override
+                public long getMemoryBudget() {
+                    return mConfiguration.getMaxTemporaryMemorySize();
+                }
+
+                @Override
+                @Nonnull
+                public File getSpillDirectory() {
+                    return mConfiguration.getExpandedCacheDir();
+                }
+            });
             mInitLatch.countDown();
+
+            restoreSnapshot();
+
+            // until this is done every key might be in the database
+            getDatabase().cleanupRebuildKeyFilter();
         });
     }
 
@@ -171,18 +231,30 @@ public class CacheService {
         BitmapRecycler recycler = BitmapRecycler.getInstance(mApplicationContext);
 
         return MoreObjects.toStringHelper("CacheService::MemoryMetrics")
-                .add("renewItemCount", mRenewItems.size())
+                .add("pendingWriteCount", getDatabase().getPendingWriteCount())
+                .add("pendingRenewalCount", getDatabase().getPendingRenewalCount())
+                .add("keyFilter", getDatabase().getKeyFilterMetrics())
                 .add("memoryCacheSize", getMemoryCache().memorySize())
+                .add("decodedMemoryCacheSize", getMemoryCache().decodedMemorySize())
+                .add("memoryCacheStats", getMemoryCache().stats())
                 .add("bitmapRecyclerCacheMetrics", recycler.memoryMetrics())
+                .add("temporaryStorage", getTemporaryStorage())
+                .add("tierMetrics", mMetrics.snapshot())
                 .toString();
     }
 
+    @Nonnull
+    public CacheMetrics getMetrics() {
+        return mMetrics;
+    }
+
     /**
-     * Callers MUST retain a reference to this instance, or the backing file will be deleted.
+     * Callers must close the temporary when they're done with it. Storage of temporaries that become unreachable without being closed is
+     * reclaimed eventually, but holds up memory until then.
      */
     @Nonnull
     public ManagedTemporary createManagedTemporary() throws IOException {
-        return ManagedTemporaryImpl.newInstance(mConfiguration);
+        return getTemporaryStorage().newTemporary();
     }
 
     @Nonnull
@@ -230,6 +302,8 @@ public class CacheService {
     }
 
     public void stop() {
+        triggerSnapshot();
+
         ServiceManager manager = mServiceManager.getAndSet(null);
         if (manager != null) {
             manager.stopAsync();
@@ -237,10 +311,40 @@ public class CacheService {
     }
 
     public void triggerReleaseMemory() {
+        // keep what we're about to drop for the next start
+        triggerSnapshot();
+
         getMemoryCache().clear();
+        getTemporaryStorage().trim();
         BitmapRecycler.getInstance(mApplicationContext).clear();
     }
 
+    /**
+     * Write the hot part of the memory cache to a file in the background, to be loaded on the next start. Called when the process may be
+     * killed soon.
+     */
+    public void triggerSnapshot() {
+        if (mInitLatch.getCount() != 0) {
+            // nothing cached yet
+            return;
+        }
+        final MemoryCacheSnapshot snapshot = getMemoryCache().createSnapshot(SBContextProvider.get().getServerId(), SNAPSHOT_MAX_SIZE);
+        if (snapshot.getItems().isEmpty()) {
+            // don't replace a snapshot that wasn't used yet with nothing
+            return;
+        }
+        OSExecutors.getUnboundedPool().execute(() -> {
+            try {
+                snapshot.write(getSnapshotFile());
+                if (OSLog.isLoggable(Tag.CACHE, OSLog.DEBUG)) {
+                    OSLog.d(Tag.CACHE, "Wrote memory cache snapshot " + snapshot);
+                }
+            } catch (IOException e) {
+                OSLog.w(Tag.CACHE, "Error writing memory cache snapshot", e);
+            }
+        });
+    }
+
     public void triggerWipe() {
         OSExecutors.getUnboundedPool().execute(this::wipe);
     }
@@ -268,7 +372,12 @@ public class CacheService {
             notificationManager.notify(Constants.NOTIFICATIONID_CACHEWIPE, builder.build());
 
             // not required that the service be running for this method to execute
+            getMemoryCache().setRestoredSnapshot(null);
             getMemoryCache().clear();
+            File snapshotFile = getSnapshotFile();
+            if (snapshotFile.exists()) {
+                FileUtils.deleteChecked(snapshotFile);
+            }
 
             // clear any bitmaps too
             BitmapRecycler.getInstance(mApplicationContext).clear();
@@ -295,14 +404,22 @@ public class CacheService {
         }
 
         final CacheEntry entry = request.getEntry();
+        final AtomicBoolean stale = new AtomicBoolean();
         // we're only trying the memory
         try {
-            T retval = null;
-            C memCacheValue = getMemoryCache().get(entry);
-            if (memCacheValue != null) {
-                retval = request.onAdaptFromMemoryCache(this, memCacheValue);
+            // a stale value is served like load() would, rather than thrown away before load() gets to it
+            T retval = getMemoryCache().get(entry, request, stale);
+            if (retval != null) {
+                mMetrics.recordHit(CacheMetrics.Tier.MEMORY, entry, 0);
+
                 // trigger row renewal
-                renew(request, entry, false);
+                renew(request, entry);
+
+                if (stale.get()) {
+                    revalidate(request, entry);
+                }
+            } else {
+                mMetrics.recordMiss(CacheMetrics.Tier.MEMORY, entry);
             }
             return Option.fromNullable(retval);
         } catch (Exception e) {
@@ -328,33 +445,36 @@ public class CacheService {
         }
 
         final CacheEntry entry = request.getEntry();
-        if (entry.tryLockNonBlocking()) {
-            try {
-                // first try from memory
-                C memCacheValue = getMemoryCache().get(entry);
-                if (memCacheValue != null) {
-                    T retval = request.onAdaptFromMemoryCache(this, memCacheValue);
+        final AtomicBoolean stale = new AtomicBoolean();
+        installRestoredSnapshot();
+        try {
+            // first try from memory
+            T retval = getMemoryCache().get(entry, request, stale);
+            if (retval != null) {
+                mMetrics.recordHit(CacheMetrics.Tier.MEMORY, entry, 0);
 
-                    // trigger row renewal
-                    renew(request, entry, false);
+                // trigger row renewal
+                renew(request, entry);
 
-                    // and return value immediately
-                    return CacheFutureFactory.immediateFuture(retval);
+                // and return value immediately
+                if (stale.get()) {
+                    revalidate(request, entry);
+                    return CacheFutureFactory.immediateStaleFuture(retval);
                 }
-            } catch (CachedItemNotFoundException | CachedItemInvalidException e) {
-                return CacheFutureFactory.immediateFailedFuture(e);
-            } catch (IOException e) {
-                // IOException adapting from memory cache, try loading directly
-                OSLog.w(Tag.CACHE, "CacheService.load(): " + e.getMessage(), e);
-            } finally {
-                entry.releaseLock();
+                return CacheFutureFactory.immediateFuture(retval);
             }
+            mMetrics.recordMiss(CacheMetrics.Tier.MEMORY, entry);
+        } catch (CachedItemNotFoundException | CachedItemInvalidException e) {
+            return CacheFutureFactory.immediateFailedFuture(e);
+        } catch (IOException e) {
+            // IOException adapting from memory cache, try loading directly
+            OSLog.w(Tag.CACHE, "CacheService.load(): " + e.getMessage(), e);
         }
 
         // create and return future for the cache item
         return CacheFutureFactory.create(executorService.submit(() -> {
             try {
-                return loadBlocking(request);
+                return loadBlocking(request, stale);
             } catch (CachedItemStatusException e) {
                 // if the request wants us to do it, mark the item as invalid in case of failure
                 if (request.shouldMarkFailedRequests()) {
@@ -375,7 +495,7 @@ public class CacheService {
                 // change interrupted io to interrupted for consistency's sake
                 throw new InterruptedException();
             }
-        }));
+        }), stale);
     }
 
     @Nonnull
@@ -384,34 +504,93 @@ public class CacheService {
         return request.onLoadData(this);
     }
 
+    /**
+     * @param outStale set if the value returned is stale
+     */
     @Nonnull
-    protected <T, C> T loadBlocking(final CacheRequestCallback<T, C> request) throws InterruptedException, TimeoutException, SBCacheException, IOException {
+    protected <T, C> T loadBlocking(final CacheRequestCallback<T, C> request, AtomicBoolean outStale) throws InterruptedException, TimeoutException, SBCacheException, IOException {
         final CacheEntry entry = request.getEntry();
-        if (!entry.tryLock(Constants.READ_TIMEOUT, Constants.TIME_UNITS)) {
-            throw new TimeoutException("Waiting for lock on cache entry");
+        while (true) {
+            SingleFlight<CacheEntry>.Flight flight = mLoadFlights.join(entry);
+            if (flight.isLeader()) {
+                T retval = loadAsLeader(request, entry, flight, outStale);
+                if (outStale.get()) {
+                    // now that our flight has landed
+                    revalidate(request, entry);
+                }
+                return retval;
+            }
+
+            try {
+                flight.await(Constants.READ_TIMEOUT, Constants.TIME_UNITS);
+            } catch (CancellationException e) {
+                // the leader gave up, try again and possibly take over
+                continue;
+            } catch (ExecutionException e) {
+                // fail the same way the leader did
+                Throwable cause = e.getCause();
+                Throwables.propagateIfPossible(cause, SBCacheException.class, IOException.class);
+                throw SBCacheException.wrap(cause);
+            }
+
+            // values are not shared directly, they may be closeable, but the leader normally left one in the memory cache
+            T retval = getMemoryCache().get(entry, request, outStale);
+            if (retval != null) {
+                renew(request, entry);
+                if (OSLog.isLoggable(Tag.CACHE, OSLog.VERBOSE)) {
+                    OSLog.v(Tag.CACHE, "BLOCKING_HIT FLIGHT " + entry + "=" + retval);
+                }
+                return retval;
+            }
+            // not kept in memory, go around again and read it from the database
+        }
+    }
+
+    @Nonnull
+    private <T, C> T loadAsLeader(CacheRequestCallback<T, C> request, CacheEntry entry, SingleFlight<CacheEntry>.Flight flight, AtomicBoolean outStale)
+            throws InterruptedException, SBCacheException, IOException {
+        long start = System.nanoTime();
+        try {
+            T retval = loadUncoalesced(request, entry, outStale);
+            mMetrics.recordLatency(CacheMetrics.Operation.LOAD, start);
+            flight.succeed();
+            return retval;
+        } catch (InterruptedException | InterruptedIOException e) {
+            // followers aren't interrupted, one of them takes over
+            flight.cancel();
+            throw e;
+        } catch (Throwable t) {
+            flight.fail(t);
+            throw t;
         }
+    }
 
+    @Nonnull
+    private <T, C> T loadUncoalesced(CacheRequestCallback<T, C> request, CacheEntry entry, AtomicBoolean outStale) throws InterruptedException, SBCacheException, IOException {
         // list of values that we should potentially clean up
         Set<Object> cleanupValues = new LinkedHashSet<>();
 
-        // we've acquired the permit, now use this variable to determine whether we release it or not
         try {
             String hitSource = null;
             boolean performRowRenewal = false;
 
             T retval;
             // first try from memory again
-            C memCacheValue = getMemoryCache().get(entry);
+            T memCacheValue = getMemoryCache().get(entry, request, outStale);
             if (memCacheValue != null) {
-                retval = request.onAdaptFromMemoryCache(this, memCacheValue);
+                retval = memCacheValue;
                 hitSource = "MEMORY";
                 performRowRenewal = true;
             } else {
                 // ok, try from the database
-                retval = loadFromDatabase(request, entry);
+                AtomicLong expiresTimestamp = new AtomicLong(Long.MAX_VALUE);
+                retval = loadFromDatabase(request, entry, expiresTimestamp);
                 if (retval != null) {
                     // found
                     hitSource = "DATABASE";
+                    if (request.shouldServeStale() && mRevalidator.isExpired(expiresTimestamp.get())) {
+                        outStale.set(true);
+                    }
 
                     // add this to candidate list of items to clean up
                     cleanupValues.add(retval);
@@ -424,7 +603,7 @@ public class CacheService {
                     }
 
                     // we ignore this and continue on with remote retrieval
-                    retval = request.onLoadData(this);
+                    retval = loadFromNetwork(request, entry);
 
                     // add this to candidate list of items to clean up
                     cleanupValues.add(retval);
@@ -433,8 +612,10 @@ public class CacheService {
                     storeToDatabase(entry, request, retval);
                 }
 
-                // update the memory cache, which will likely alter the value
-                T newRetVal = storeToMemory(entry, request, retval);
+                // update the memory cache, which will likely alter the value. Stale values keep their expiration so they are still flagged
+                // as stale when they are read back from memory.
+                long memoryExpiration = outStale.get() ? expiresTimestamp.get() : getMemoryCache().getExpiration(entry);
+                T newRetVal = storeToMemory(entry, request, retval, memoryExpiration);
                 if (newRetVal != retval) {
                     // in case retval changed
                     retval = newRetVal;
@@ -443,10 +624,12 @@ public class CacheService {
             }
             // when loaded from a cache, trigger the row renewal
             if (performRowRenewal) {
-                renew(request, entry, false);
+                renew(request, entry);
             }
             if (OSLog.isLoggable(Tag.CACHE, OSLog.VERBOSE)) {
-                if (hitSource != null) {
+                if (hitSource != null && outStale.get()) {
+                    OSLog.v(Tag.CACHE, "BLOCKING_HIT STALE " + hitSource + " " + entry + "=" + retval);
+                } else if (hitSource != null) {
                     OSLog.v(Tag.CACHE, "BLOCKING_HIT " + hitSource + " " + entry + "=" + retval);
                 } else {
                     OSLog.v(Tag.CACHE, "BLOCKING_LOAD " + entry + "=" + retval);
@@ -458,8 +641,6 @@ public class CacheService {
 
             return retval;
         } finally {
-            entry.releaseLock();
-
             // clean up any values that aren't being returned
             for (Object o : cleanupValues) {
                 Closeables.close(o);
@@ -485,13 +666,54 @@ public class CacheService {
         return mBlockedMemoryCache;
     }
 
+    @Nonnull
+    private File getSnapshotFile() {
+        return new File(mConfiguration.getExpandedCacheDir(), MemoryCacheSnapshot.FILENAME);
+    }
+
+    /**
+     * called on startup. Reads the memory cache snapshot, it's used once we know the server it was taken for is current.
+     */
+    private void restoreSnapshot() {
+        long start = System.nanoTime();
+        try {
+            MemoryCacheSnapshot snapshot = MemoryCacheSnapshot.read(getSnapshotFile());
+            if (snapshot != null) {
+                getMemoryCache().setRestoredSnapshot(snapshot);
+                if (OSLog.isLoggable(Tag.CACHE, OSLog.DEBUG)) {
+                    OSLog.d(Tag.CACHE, "Read memory cache snapshot " + snapshot + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+                }
+            }
+        } catch (IOException e) {
+            OSLog.w(Tag.CACHE, "Error reading memory cache snapshot", e);
+        }
+    }
+
+    /**
+     * the server state event normally does this, but the first requests after a start can beat it
+     */
+    private void installRestoredSnapshot() {
+        MemoryCache memoryCache = getMemoryCache();
+        if (memoryCache.hasRestoredSnapshot()) {
+            SBContext context = SBContextProvider.get();
+            memoryCache.installRestoredSnapshot(context.getServerId(), context.getServerStatus().getLastScanTime());
+        }
+    }
+
+    @Nonnull
+    private TemporaryStorage getTemporaryStorage() {
+        Uninterruptibles.awaitUninterruptibly(mInitLatch);
+        return mBlockedTemporaryStorage;
+    }
+
     /**
      * returns null if cache entry not found but processing should continue normally
+     *
+     * @param outExpiresTimestamp set to the expiration of TIMEOUT entries, which may have passed if the request serves stale values
      */
     @Nullable
-    private <T, C> T loadFromDatabase(CacheRequestCallback<T, C> request, CacheEntry entry) throws SBCacheException {
-        String extraSelection;
-        String extraArg;
+    private <T, C> T loadFromDatabase(CacheRequestCallback<T, C> request, CacheEntry entry, AtomicLong outExpiresTimestamp) throws SBCacheException {
+        long validAt;
 
         switch (entry.getCacheType()) {
             case SERVERSCAN: {
@@ -500,20 +722,18 @@ public class CacheService {
                     // mid-scan, won't find it
                     return null;
                 }
-                extraSelection = COLUMN_CACHE_SERVERSCAN_TIMESTAMP + " = ?";
-                extraArg = lastScan.toString();
+                validAt = lastScan;
                 break;
             }
             case TIMEOUT:
-                extraSelection = COLUMN_CACHE_EXPIRES_TIMESTAMP + " > ?";
-                extraArg = Long.toString(System.currentTimeMillis());
+                validAt = request.shouldServeStale() ? mRevalidator.getStaleValidAt() : mRevalidator.currentTimeMillis();
                 break;
             default:
                 throw new IllegalStateException();
         }
 
         try {
-            return internalLoadFromDatabase(request, entry, extraSelection, extraArg);
+            return internalLoadFromDatabase(request, entry, validAt, outExpiresTimestamp);
         } catch (FileNotFoundException e) {
             throw new CachedItemNotFoundException("Expansion file purged by system");
         } catch (IOException e) {
@@ -521,18 +741,63 @@ public class CacheService {
         }
     }
 
+    @Nonnull
+    private <T, C> T loadFromNetwork(CacheRequestCallback<T, C> request, CacheEntry entry) throws InterruptedException, SBCacheException, IOException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T retval = request.onLoadData(this);
+            success = true;
+            return retval;
+        } finally {
+            mMetrics.recordLatency(CacheMetrics.Operation.NETWORK_FETCH, start);
+            // for the network tier, a miss is a failed fetch
+            if (success) {
+                mMetrics.recordHit(CacheMetrics.Tier.NETWORK, entry, 0);
+            } else {
+                mMetrics.recordMiss(CacheMetrics.Tier.NETWORK, entry);
+            }
+        }
+    }
+
+    private <T, C> void revalidate(CacheRequestCallback<T, C> request, CacheEntry entry) {
+        if (mRevalidator.revalidate(entry, () -> refresh(request, entry)) && OSLog.isLoggable(Tag.CACHE, OSLog.VERBOSE)) {
+            OSLog.v(Tag.CACHE, "REVALIDATE " + entry);
+        }
+    }
+
+    /**
+     * replace a stale entry with a fresh copy from the server
+     */
+    private <T, C> void refresh(CacheRequestCallback<T, C> request, CacheEntry entry) throws InterruptedException, SBCacheException, IOException {
+        // nobody is waiting for the value, clean up everything
+        Set<Object> cleanupValues = new LinkedHashSet<>();
+        try {
+            T retval = loadFromNetwork(request, entry);
+            cleanupValues.add(retval);
+
+            storeToDatabase(entry, request, retval);
+            cleanupValues.add(storeToMemory(entry, request, retval, getMemoryCache().getExpiration(entry)));
+        } finally {
+            for (Object o : cleanupValues) {
+                Closeables.close(o);
+            }
+        }
+    }
+
     /**
      * returns the object that object that should be handed back to the client
      */
     @Nonnull
-    private <T, C> T storeToMemory(CacheEntry entry, CacheRequestCallback<T, C> request, T data) {
+    private <T, C> T storeToMemory(CacheEntry entry, CacheRequestCallback<T, C> request, T data, long expiration) {
         // now adapt this for the memory cache
         T retval = data;
         try {
             C adapted = request.onAdaptForMemoryCache(this, data);
             if (adapted != null) {
-                getMemoryCache().put(entry, request, adapted);
+                getMemoryCache().put(entry, request, adapted, expiration);
                 retval = request.onAdaptFromMemoryCache(this, adapted);
+                getMemoryCache().putDecoded(entry, request, retval, expiration);
             }
         } catch (IOException e) {
             OSLog.w(Tag.CACHE, "Error adapting record for memory cache", e);
@@ -541,48 +806,95 @@ public class CacheService {
     }
 
     /**
-     * perform "renew" operation, which resets the last accessed timestamps
+     * commit the queued "renew" operations, which reset the last accessed timestamps, along with any other queued writes
      */
     private void cleanupRenewItems() {
-        int renewCount = 0;
-        if (!mRenewItems.isEmpty()) {
-            CacheDatabase.EntryRenewer renewer = getDatabase().newEntryRenewer();
-            try {
-                try {
-                    CacheEntry renewItem;
-                    while ((renewItem = mRenewItems.poll()) != null) {
-                        renewer.renewEntry(renewItem);
-                    }
-                    renewer.commit();
-                } finally {
-                    renewer.close();
-                }
-            } catch (IOException e) {
-                OSLog.w(Tag.CACHE, "Error cleaning up renewable items", e);
-            }
-
-            // in one fell swoop, get rid of the proper number of items
-            mRenewItemCount.addAndGet(-renewer.getUpdateCount());
-            renewCount = renewer.getRenewCount();
-        }
-        OSLog.d(OSLog.Tag.CACHE, renewCount + " item(s) were renewed in cache");
+        mRenewItemCount.set(0);
+        getDatabase().flushPendingWrites();
     }
 
     /**
      * returns the appropriate cached representation for storage in the memory cache
      */
     private <T, C> void storeToDatabase(CacheEntry entry, CacheRequestCallback<T, C> request, T data) {
+        long start = System.nanoTime();
         try {
             AtomicLong sizeEstimate = new AtomicLong();
             ByteSource byteSource = request.onSerializeForDatabaseCache(this, data, sizeEstimate);
             if (byteSource != null) {
-                getDatabase().storeEntry(getDatabaseExecutor(), entry, byteSource, sizeEstimate.longValue(), getFutureCacheTimeout());
+                if (request.shouldCompressForDatabaseCache()) {
+                    byte[] compressed = CacheCompression.compress(byteSource.read());
+                    byteSource = ByteSource.wrap(compressed);
+                    sizeEstimate.set(compressed.length);
+                }
+                ListFingerprint fingerprint = null;
+                if (entry.getCacheType() == CacheEntry.Type.SERVERSCAN) {
+                    fingerprint = request.onFingerprintForRevalidation(this, data);
+                }
+                getDatabase().storeEntry(getDatabaseExecutor(), entry, byteSource, sizeEstimate.longValue(), getFutureCacheTimeout(), fingerprint);
+                mMetrics.recordBytesWritten(CacheMetrics.Tier.DATABASE, sizeEstimate.longValue());
+                mMetrics.recordLatency(CacheMetrics.Operation.PERSIST, start);
             }
         } catch (IOException e) {
             OSLog.w(Tag.CACHE, "Error writing record to cache", e);
         }
     }
 
+    /**
+     * start a background pass over the fingerprinted lists if the server has rescanned since the last pass. Lists that can't be kept are purged
+     * by the cleanup that follows the pass.
+     *
+     * @return true if a pass is running and the server scan purge has to wait for it
+     */
+    private boolean startServerScanRevalidation() {
+        if (mScanRevalidationRunning.get()) {
+            return true;
+        }
+        final Long lastScan = SBContextProvider.get().getServerStatus().getLastScanTime();
+        if (lastScan == null) {
+            // we're scanning
+            return false;
+        }
+        final long serverId = SBContextProvider.get().getServerId();
+        synchronized (this) {
+            if (serverId == mRevalidatedServerId && lastScan.equals(mRevalidatedServerScan)) {
+                return false;
+            }
+            mRevalidatedServerId = serverId;
+            mRevalidatedServerScan = lastScan;
+        }
+        if (!mScanRevalidationRunning.compareAndSet(false, true)) {
+            return true;
+        }
+
+        // probing talks to the server, keep it off the database executor
+        OSExecutors.getUnboundedPool().execute(new InterruptedAwareRunnable() {
+            @Override
+            protected void doRun() throws InterruptedException {
+                try {
+                    ServerScanRevalidator revalidator = new ServerScanRevalidator(getDatabase(), CacheService.this::probeList);
+                    ServerScanRevalidator.Result result = revalidator.revalidate(serverId, lastScan);
+                    OSLog.d(Tag.CACHE, "Server scan revalidation " + result);
+                } finally {
+                    mScanRevalidationRunning.set(false);
+
+                    mCleanupNeeded.set(true);
+                    getDatabaseExecutor().execute(mCleanupRunnable);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Nonnull
+    private JsonNode probeList(List<String> commands) throws SBRequestException, InterruptedException {
+        SBRequest request = SBContextProvider.get().newRequest(SBRequest.Type.COMET, commands);
+
+        // go to the server, not to the entries we're checking
+        request.setCacheable(false);
+        return request.submit(MoreExecutors.newDirectExecutorService()).checkedGet().getJsonResult();
+    }
+
     protected void checkCacheVersion() {
         File cacheFingerprintFile = new File(mConfiguration.getExpandedCacheDir(), "cache.fingerprint." + CACHE_VERSION);
         if (!cacheFingerprintFile.isFile()) {
@@ -631,19 +943,30 @@ public class CacheService {
     }
 
     @Nullable
-    private <T, C> T internalLoadFromDatabase(CacheRequestCallback<T, C> request, CacheEntry entry, String extraSelection, String extraArg) throws IOException, SBCacheException {
-        ByteSource byteSource = getDatabase().loadEntry(entry, extraSelection, extraArg).orNull();
+    private <T, C> T internalLoadFromDatabase(CacheRequestCallback<T, C> request, CacheEntry entry, long validAt, AtomicLong outExpiresTimestamp)
+            throws IOException, SBCacheException {
+        long start = System.nanoTime();
+        ByteSource byteSource = getDatabase().loadEntry(entry, validAt, outExpiresTimestamp).orNull();
 
         T retval = null;
         if (byteSource != null) {
+            long storedSize = byteSource.sizeIfKnown().or(0L);
+
+            // values may have been compressed on the way in
+            byteSource = CacheCompression.decoding(byteSource);
             retval = request.onDeserializeCacheData(this, byteSource, byteSource.size());
+            mMetrics.recordHit(CacheMetrics.Tier.DATABASE, entry, storedSize);
+        } else {
+            mMetrics.recordMiss(CacheMetrics.Tier.DATABASE, entry);
         }
+        mMetrics.recordLatency(CacheMetrics.Operation.DATABASE_READ, start);
         return retval;
     }
 
-    private void renew(CacheRequestCallback<?, ?> request, CacheEntry entry, boolean nonBlocking) {
+    private void renew(CacheRequestCallback<?, ?> request, CacheEntry entry) {
 
-        mRenewItems.add(entry);
+        // the renewal is committed with the next group of database writes
+        getDatabase().renewEntry(getDatabaseExecutor(), entry);
 
         // when we cross the threshold, trigger a cleanup
         boolean cleanupNeeded = mRenewItemCount.getAndIncrement() >= MAX_ITEM_RENEW_THRESHOLD;
@@ -728,7 +1051,9 @@ public class CacheService {
             timing.addSplit("update last used items");
 
             if (isStopping()) return;
-            getDatabase().cleanupPurgeServerscan();
+            if (!startServerScanRevalidation()) {
+                getDatabase().cleanupPurgeServerscan();
+            }
             timing.addSplit("purge serverscan items");
 
             if (isStopping()) return;
@@ -739,10 +1064,18 @@ public class CacheService {
             getDatabase().cleanupShrinkExternalCache();
             timing.addSplit("shrink external cache storage");
 
+            if (isStopping()) return;
+            getDatabase().cleanupCompactBlobStore();
+            timing.addSplit("compact blob store");
+
             if (isStopping()) return;
             getDatabase().cleanupShrinkSqliteCache();
             timing.addSplit("shrink sqlite cache storage");
 
+            if (isStopping()) return;
+            getDatabase().cleanupRebuildKeyFilter();
+            timing.addSplit("rebuild key filter");
+
             timing.close();
         }
     };
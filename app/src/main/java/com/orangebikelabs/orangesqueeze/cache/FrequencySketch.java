@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Count-min sketch that estimates how often a key has been seen recently. Each counter takes a byte but saturates at 15, which is all the
+ * admission policy needs to tell keys apart. After a sample period every counter is halved, so old popularity fades and the sketch tracks
+ * the current working set.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@NotThreadSafe
+class FrequencySketch {
+    final static private int DEPTH = 4;
+    final static private int MAX_COUNT = 15;
+    final static private int[] SEEDS = {0x97cb3127, 0xa5a0b6a5, 0x3c6ef372, 0x8ebc6af1};
+
+    final private byte[][] mTable;
+    final private int mMask;
+    final private int mSampleSize;
+
+    private int mAdditions;
+
+    FrequencySketch(int expectedEntries) {
+        int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1)) << 1;
+        mTable = new byte[DEPTH][width];
+        mMask = width - 1;
+        mSampleSize = 10 * width;
+    }
+
+    /**
+     * @return the estimated number of recent occurrences of the key, between 0 and 15
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int retval = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            retval = Math.min(retval, mTable[i][index(hash, i)]);
+        }
+        return retval;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = index(hash, i);
+            if (mTable[i][index] < MAX_COUNT) {
+                mTable[i][index]++;
+                added = true;
+            }
+        }
+        if (added && ++mAdditions >= mSampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (byte[] row : mTable) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (row[i] >>> 1);
+            }
+        }
+        mAdditions /= 2;
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mMask;
+    }
+
+    static private int spread(int hash) {
+        int h = hash * 0x85ebca6b;
+        return h ^ (h >>> 13);
+    }
+}
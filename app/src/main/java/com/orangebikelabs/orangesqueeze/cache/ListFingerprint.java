@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Joiner;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.base.Splitter;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A cheap fingerprint of a paged Comet list: the item count plus a hash of the items in its first page and in its last page. Each page of a
+ * list is cached separately; the pages share the list key, which is the command with its start and count parameters replaced by
+ * placeholders.
+ * <p/>
+ * After a server rescan the first and last pages are fetched again. If the count and both hashes still match, the list is assumed
+ * unchanged and all of its cached pages are kept.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@Immutable
+public class ListFingerprint {
+    final static String START_PLACEHOLDER = "{start}";
+    final static String COUNT_PLACEHOLDER = "{count}";
+
+    // commands come from the UI and never contain control characters
+    final static private char SEPARATOR = '\u001f';
+
+    final static private HashFunction sHashFunction = Hashing.murmur3_128();
+
+    @Nonnull
+    final private String mListKey;
+
+    final private long mListKeyHash;
+
+    final private int mItemCount;
+
+    final private int mFirstPageSize;
+
+    @Nullable
+    final private Long mFirstPageHash;
+
+    final private int mLastPageSize;
+
+    @Nullable
+    final private Long mLastPageHash;
+
+    @Nullable
+    final private Long mServerScanTimestamp;
+
+    public ListFingerprint(String listKey, int itemCount, int firstPageSize, @Nullable Long firstPageHash, int lastPageSize, @Nullable Long lastPageHash,
+                           @Nullable Long serverScanTimestamp) {
+        mListKey = listKey;
+        mListKeyHash = hashListKey(listKey);
+        mItemCount = itemCount;
+        mFirstPageSize = firstPageSize;
+        mFirstPageHash = firstPageHash;
+        mLastPageSize = lastPageSize;
+        mLastPageHash = lastPageHash;
+        mServerScanTimestamp = serverScanTimestamp;
+    }
+
+    @Nonnull
+    public String getListKey() {
+        return mListKey;
+    }
+
+    public long getListKeyHash() {
+        return mListKeyHash;
+    }
+
+    public int getItemCount() {
+        return mItemCount;
+    }
+
+    public int getFirstPageSize() {
+        return mFirstPageSize;
+    }
+
+    @Nullable
+    public Long getFirstPageHash() {
+        return mFirstPageHash;
+    }
+
+    public int getLastPageSize() {
+        return mLastPageSize;
+    }
+
+    @Nullable
+    public Long getLastPageHash() {
+        return mLastPageHash;
+    }
+
+    /**
+     * @return the server scan the fingerprint was recorded under, null for fingerprints that haven't been stored
+     */
+    @Nullable
+    public Long getServerScanTimestamp() {
+        return mServerScanTimestamp;
+    }
+
+    /**
+     * @return true if enough of the list was seen to revalidate it
+     */
+    public boolean isComplete() {
+        return mItemCount == 0 || (mFirstPageHash != null && mLastPageHash != null);
+    }
+
+    /**
+     * @return true if the freshly probed fingerprint shows the same list
+     */
+    public boolean matches(ListFingerprint probed) {
+        return isComplete() && mItemCount == probed.mItemCount && Objects.equal(mFirstPageHash, probed.mFirstPageHash)
+                && Objects.equal(mLastPageHash, probed.mLastPageHash);
+    }
+
+    /**
+     * @return the commands that fetch the given window of the list
+     */
+    @Nonnull
+    public List<String> getCommands(int start, int count) {
+        List<String> retval = new ArrayList<>();
+        for (String s : Splitter.on(SEPARATOR).split(mListKey)) {
+            if (s.equals(START_PLACEHOLDER)) {
+                retval.add(Integer.toString(start));
+            } else if (s.equals(COUNT_PLACEHOLDER)) {
+                retval.add(Integer.toString(count));
+            } else {
+                retval.add(s);
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * @return the list key for a paged command, or null if the command isn't paged
+     */
+    @Nullable
+    public static String getListKey(List<?> commands) {
+        int paging = findPaging(commands);
+        if (paging < 0) {
+            return null;
+        }
+        List<Object> key = new ArrayList<>(commands);
+        key.set(paging, START_PLACEHOLDER);
+        key.set(paging + 1, COUNT_PLACEHOLDER);
+        return Joiner.on(SEPARATOR).join(key);
+    }
+
+    /**
+     * fingerprint what a single page of a list tells us about the list. The first page contributes the first page hash, the page that reaches
+     * the end of the list contributes the last page hash, pages in the middle only the count.
+     *
+     * @param data the data element of a Comet response
+     * @return the fingerprint, or null if the response doesn't look like a paged list
+     */
+    @Nullable
+    public static ListFingerprint fromCometPage(List<?> commands, JsonNode data) {
+        String listKey = getListKey(commands);
+        if (listKey == null) {
+            return null;
+        }
+        JsonNode countNode = data.get("count");
+        if (countNode == null || !countNode.canConvertToInt()) {
+            return null;
+        }
+        int count = countNode.asInt();
+        JsonNode items = findLoop(data);
+        if (items == null || items.size() == 0) {
+            return count == 0 ? new ListFingerprint(listKey, 0, 0, null, 0, null, null) : null;
+        }
+
+        int start = Integer.parseInt(commands.get(findPaging(commands)).toString());
+        int size = items.size();
+        long hash = hashItems(items);
+        boolean first = start == 0;
+        boolean last = start + size == count;
+        return new ListFingerprint(listKey, count, first ? size : 0, first ? hash : null, last ? size : 0, last ? hash : null, null);
+    }
+
+    /**
+     * @return the hash of the items in a Comet response, in order
+     */
+    public static long hashItems(JsonNode items) {
+        Hasher hasher = sHashFunction.newHasher();
+        for (JsonNode item : items) {
+            hasher.putString(item.toString(), StandardCharsets.UTF_8);
+            hasher.putByte((byte) 0);
+        }
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * @return the item array in a Comet response, which is the first array named something like item_loop or artists_loop
+     */
+    @Nullable
+    public static JsonNode findLoop(JsonNode data) {
+        Iterator<Map.Entry<String, JsonNode>> it = data.fields();
+        while (it.hasNext()) {
+            Map.Entry<String, JsonNode> field = it.next();
+            if (field.getKey().endsWith("_loop") && field.getValue().isArray()) {
+                return field.getValue();
+            }
+        }
+        return null;
+    }
+
+    static long hashListKey(String listKey) {
+        return sHashFunction.hashString(listKey, StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * @return the index of the start parameter, which is followed by the count parameter, or -1
+     */
+    static private int findPaging(List<?> commands) {
+        for (int i = 0; i < commands.size() - 1; i++) {
+            if (isNumber(commands.get(i)) && isNumber(commands.get(i + 1))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static private boolean isNumber(Object o) {
+        String s = o.toString();
+        if (s.isEmpty() || s.length() > 9) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    @Nonnull
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("listKey", mListKey.replace(SEPARATOR, ' '))
+                .add("itemCount", mItemCount)
+                .add("firstPageSize", mFirstPageSize)
+                .add("firstPageHash", mFirstPageHash)
+                .add("lastPageSize", mLastPageSize)
+                .add("lastPageHash", mLastPageHash)
+                .add("serverScanTimestamp", mServerScanTimestamp)
+                .toString();
+    }
+}
@@ -8,18 +8,13 @@ package com.orangebikelabs.orangesqueeze.cache;
 import androidx.annotation.Keep;
 
 import com.google.common.base.MoreObjects;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalListener;
+import com.google.common.base.Optional;
 import com.google.common.io.ByteSink;
 import com.google.common.io.ByteSource;
-import com.google.common.io.Files;
 import com.orangebikelabs.orangesqueeze.common.Closeables;
 import com.orangebikelabs.orangesqueeze.common.FileUtils;
 import com.orangebikelabs.orangesqueeze.common.OSLog;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
@@ -27,74 +22,40 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
 
 /**
+ * Managed temporary kept in chunks from the pool of a {@link TemporaryStorage}, moving to a file in the cache directory only when the pool
+ * runs out. Writing through a new sink stream replaces the contents. Closing the temporary gives its storage back right away; streams
+ * still open on it fail from then on.
+ *
  * @author tsandee
  */
 @Keep
+@ThreadSafe
 class ManagedTemporaryImpl implements ManagedTemporary {
-    static final private int MEMORY_THRESHOLD = 64 * 1024;
 
-    /**
-     * removal listener that deletes the backing file for an expired or invalidated managed temporary
-     */
-    final static private RemovalListener<File, ManagedTemporary> sRemovalListener = removalNotification -> {
-        File key = removalNotification.getKey();
-        if (key != null && key.exists()) {
-            if (OSLog.isLoggable(OSLog.VERBOSE)) {
-                logVerboseMessage(key);
-            }
-            FileUtils.deleteChecked(key);
-        }
-    };
-
-    /**
-     * the definition for the backing managed temporary cache objects
-     */
-    final static protected Cache<File, ManagedTemporary> sManagedTemporaryCache = CacheBuilder.newBuilder().
-            concurrencyLevel(2).
-            removalListener(sRemovalListener).
-            expireAfterWrite(60, TimeUnit.SECONDS).
-            build();
-
-    /**
-     * to work around forward references, do this in separate method
-     */
-    static private void logVerboseMessage(File key) {
-        OSLog.v("Deleting temporary managed file=" + key + ", size for managed temporary cache=" + sManagedTemporaryCache.size());
-    }
-
-    /**
-     * creates a new managed temporary and starts managing it
-     */
     @Nonnull
-    static public ManagedTemporaryImpl newInstance(CacheConfiguration config) throws IOException {
-
-        ManagedTemporaryImpl retval = new ManagedTemporaryImpl(config);
-
-        sManagedTemporaryCache.put(retval.mFile, retval);
-
-        return retval;
-
-    }
-
-    @Nonnull
-    final protected File mFile;
+    final protected Storage mStorage;
 
     @Nonnull
     final protected Closeable mCloseTracker = Closeables.newCloseTracker();
 
     @Nullable
-    volatile protected FileBackedOutputStream mFileBackedStream;
+    private volatile TemporaryStorage.StorageReference mReference;
 
-    private ManagedTemporaryImpl(CacheConfiguration configuration) throws IOException {
-        mFile = File.createTempFile("managed_", ".tmp", configuration.getExpandedCacheDir());
-        // don't use deleteOnExit because eventually we will run out of memory
+    ManagedTemporaryImpl(Storage storage) {
+        mStorage = storage;
+    }
+
+    void setReference(TemporaryStorage.StorageReference reference) {
+        mReference = reference;
     }
 
     @Override
@@ -103,10 +64,9 @@ class ManagedTemporaryImpl implements ManagedTemporary {
         return new ByteSink() {
             @Override
             @Nonnull
-            public OutputStream openStream() {
-                FileBackedOutputStream retval = new FileBackedOutputStream(mFile, MEMORY_THRESHOLD);
-                mFileBackedStream = retval;
-                return retval;
+            public OutputStream openStream() throws IOException {
+                mStorage.reset();
+                return new StorageOutputStream(ManagedTemporaryImpl.this);
             }
         };
     }
@@ -114,250 +74,354 @@ class ManagedTemporaryImpl implements ManagedTemporary {
     @Override
     @Nonnull
     public ByteSource asByteSource() {
-        FileBackedOutputStream fbos = mFileBackedStream;
-        if (fbos != null) {
-            return fbos.asByteSource();
-        } else {
-            return ByteSource.wrap(new byte[0]);
-        }
+        return new ByteSource() {
+            @Override
+            @Nonnull
+            public InputStream openStream() throws IOException {
+                return mStorage.openStream(ManagedTemporaryImpl.this);
+            }
+
+            @Override
+            @Nonnull
+            public Optional<Long> sizeIfKnown() {
+                return Optional.of(mStorage.length());
+            }
+        };
     }
 
     @Override
     public boolean isInMemory() {
-        FileBackedOutputStream fbos = mFileBackedStream;
-        if (fbos != null) {
-            return fbos.inMemory();
-        } else {
-            return true;
-        }
+        return mStorage.isInMemory();
     }
 
     @Override
     public long size() {
-        FileBackedOutputStream fileBackedOutputStream = mFileBackedStream;
-        if (fileBackedOutputStream != null) {
-            return fileBackedOutputStream.length();
-        } else {
-            return 0;
-        }
+        return mStorage.length();
     }
 
     @Override
     public void close() throws IOException {
-        sManagedTemporaryCache.invalidate(mFile);
+        mStorage.release();
+
+        TemporaryStorage.StorageReference reference = mReference;
+        if (reference != null) {
+            mStorage.mManager.unregister(reference);
+            mReference = null;
+        }
         mCloseTracker.close();
     }
 
     @Override
     @Nonnull
     public String toString() {
-        FileBackedOutputStream fbos = mFileBackedStream;
-        boolean inMemory = (fbos == null || fbos.inMemory());
-
-        return MoreObjects.toStringHelper(this).add("file", mFile).add("size", size()).add("inMemory", inMemory).toString();
+        return MoreObjects.toStringHelper(this).add("storage", mStorage).toString();
     }
 
-	/*
-    * Copyright (C) 2008 The Guava Authors
-	*
-	* Licensed under the Apache License, Version 2.0 (the "License");
-	* you may not use this file except in compliance with the License.
-	* You may obtain a copy of the License at
-	*
-	* http://www.apache.org/licenses/LICENSE-2.0
-	*
-	* Unless required by applicable law or agreed to in writing, software
-	* distributed under the License is distributed on an "AS IS" BASIS,
-	* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-	* See the License for the specific language governing permissions and
-	* limitations under the License.
-	*/
-
     /**
-     * An {@link OutputStream} that starts buffering to a byte array, but switches to file buffering once the data reaches a configurable
-     * size.
-     * <p/>
-     * <p/>
-     * This class is thread-safe.
-     *
-     * @author Chris Nokleberg
-     * @since 1.0
+     * the contents of a temporary, kept apart from it so they can be released once the temporary is unreachable
      */
-    static private class FileBackedOutputStream extends OutputStream {
+    @ThreadSafe
+    static class Storage {
+        @Nonnull
+        final TemporaryStorage mManager;
+
+        @GuardedBy("this")
+        final private List<byte[]> mChunks = new ArrayList<>();
 
-        private final int fileThreshold;
+        @GuardedBy("this")
+        private long mLength;
 
-        final private File mTargetFile;
+        @GuardedBy("this")
+        @Nullable
+        private File mFile;
 
         @GuardedBy("this")
-        private OutputStream out;
+        @Nullable
+        private FileOutputStream mFileStream;
 
+        /**
+         * bumped whenever the contents are replaced or released, so streams reading the old contents notice
+         */
         @GuardedBy("this")
-        private CustomByteArrayOutputStream memory;
+        private int mGeneration;
 
         @GuardedBy("this")
-        private File file;
+        private boolean mReleased;
+
+        Storage(TemporaryStorage manager) {
+            mManager = manager;
+        }
+
+        synchronized long length() {
+            return mLength;
+        }
+
+        synchronized boolean isInMemory() {
+            return mFile == null;
+        }
 
         /**
-         * Creates a new instance that uses the given file threshold, and does not reset the data when the {@link ByteSource} returned by
-         * {@link #asByteSource()} asByteSource} is finalized.
-         *
-         * @param fileThreshold the number of bytes before the stream should switch to buffering to a file
+         * discard the contents to start writing new ones
          */
-        public FileBackedOutputStream(File targetFile, int fileThreshold) {
-            this.fileThreshold = fileThreshold;
-            mTargetFile = targetFile;
-            memory = new CustomByteArrayOutputStream(16 * 1024);
-            out = memory;
+        synchronized void reset() throws IOException {
+            checkNotReleased();
+            releaseLocked();
         }
 
-        @Nonnull
-        public synchronized ByteSource asByteSource() {
-            if (file != null) {
-                return Files.asByteSource(file);
-            } else {
-                return new ByteSource() {
-                    @Override
-                    @Nonnull
-                    public InputStream openStream() throws IOException {
-                        return FileBackedOutputStream.this.openStream();
+        synchronized void write(int generation, byte[] b, int off, int len) throws IOException {
+            checkGeneration(generation);
+            while (len > 0) {
+                if (mFileStream != null) {
+                    mFileStream.write(b, off, len);
+                    mLength += len;
+                    return;
+                }
+
+                int chunkSize = mManager.getChunkSize();
+                int position = (int) (mLength % chunkSize);
+                if (position == 0 && mLength == (long) mChunks.size() * chunkSize) {
+                    byte[] chunk = mManager.acquireChunk();
+                    if (chunk == null) {
+                        spill();
+                        continue;
                     }
-                };
+                    mChunks.add(chunk);
+                }
+                byte[] chunk = mChunks.get(mChunks.size() - 1);
+                int count = Math.min(len, chunkSize - position);
+                System.arraycopy(b, off, chunk, position, count);
+                off += count;
+                len -= count;
+                mLength += count;
             }
         }
 
-        @Nonnull
-        protected synchronized InputStream openStream() throws IOException {
-            if (file != null) {
-                return new FileInputStream(file);
-            } else {
-                return memory.openInputStream();
+        synchronized void finishWrite(int generation) throws IOException {
+            if (generation != mGeneration || mFileStream == null) {
+                return;
+            }
+            try {
+                mFileStream.close();
+            } finally {
+                mFileStream = null;
             }
         }
 
-        @Override
-        public synchronized void write(int b) throws IOException {
-            update(1);
-            out.write(b);
+        synchronized int getGeneration() {
+            return mGeneration;
         }
 
-        @Override
-        public synchronized void write(byte[] b) throws IOException {
-            write(b, 0, b.length);
+        @Nonnull
+        synchronized InputStream openStream(ManagedTemporaryImpl owner) throws IOException {
+            checkNotReleased();
+            if (mFile != null) {
+                if (mFileStream != null) {
+                    mFileStream.flush();
+                }
+                return new FileInputStream(mFile);
+            }
+            return new ChunkInputStream(owner, this, mGeneration, mLength);
         }
 
-        @Override
-        public synchronized void write(byte[] b, int off, int len) throws IOException {
-            update(len);
-            out.write(b, off, len);
+        /**
+         * give back the chunks and delete the file. The storage can be released more than once.
+         */
+        synchronized void release() {
+            releaseLocked();
+            mReleased = true;
         }
 
-        @Override
-        public synchronized void close() throws IOException {
-            out.close();
+        @GuardedBy("this")
+        private void releaseLocked() {
+            mGeneration++;
+            mManager.releaseChunks(mChunks);
+            mChunks.clear();
+            mLength = 0;
+            if (mFileStream != null) {
+                try {
+                    mFileStream.close();
+                } catch (IOException e) {
+                    // ignore, it's being deleted
+                }
+                mFileStream = null;
+            }
+            if (mFile != null) {
+                if (OSLog.isLoggable(OSLog.VERBOSE)) {
+                    OSLog.v("Deleting temporary managed file=" + mFile);
+                }
+                FileUtils.deleteChecked(mFile);
+                mFile = null;
+            }
         }
 
-        @Override
-        public synchronized void flush() throws IOException {
-            out.flush();
+        /**
+         * the memory budget is used up, move what we have to a file and continue there
+         */
+        @GuardedBy("this")
+        private void spill() throws IOException {
+            File file = File.createTempFile("managed_", ".tmp", mManager.getSpillDirectory());
+            FileOutputStream stream = new FileOutputStream(file);
+            try {
+                int chunkSize = mManager.getChunkSize();
+                long remaining = mLength;
+                for (byte[] chunk : mChunks) {
+                    int count = (int) Math.min(remaining, chunkSize);
+                    stream.write(chunk, 0, count);
+                    remaining -= count;
+                }
+            } catch (IOException e) {
+                stream.close();
+                FileUtils.deleteChecked(file);
+                throw e;
+            }
+            mManager.releaseChunks(mChunks);
+            mChunks.clear();
+            mFile = file;
+            mFileStream = stream;
+            mManager.recordSpill();
         }
 
-        synchronized public int length() {
-            if (file == null) {
-                return memory.getCount();
-            } else {
-                return (int) file.length();
-            }
+        /**
+         * copy from the chunks, if they still hold the contents the stream was opened on
+         *
+         * @return the number of bytes copied
+         */
+        synchronized int read(int generation, long position, byte[] b, int off, int len) throws IOException {
+            checkGeneration(generation);
+            int chunkSize = mManager.getChunkSize();
+            byte[] chunk = mChunks.get((int) (position / chunkSize));
+            int chunkPosition = (int) (position % chunkSize);
+            int count = Math.min(len, chunkSize - chunkPosition);
+            System.arraycopy(chunk, chunkPosition, b, off, count);
+            return count;
         }
 
-        synchronized public boolean inMemory() {
-            return file == null;
+        @GuardedBy("this")
+        private void checkNotReleased() throws IOException {
+            if (mReleased) {
+                throw new IOException("managed temporary is closed");
+            }
         }
 
-        /**
-         * Checks if writing {@code len} bytes would go over threshold, and switches to file buffering if so.
-         */
-        private void update(int len) throws IOException {
-            if (file == null && (memory.getCount() + len > fileThreshold)) {
-                FileOutputStream transfer = new FileOutputStream(mTargetFile);
-                transfer.write(memory.getBuffer(), 0, memory.getCount());
-                transfer.flush();
-
-                // We've successfully transferred the data; switch to writing to file
-                out = transfer;
-                file = mTargetFile;
-                memory = null;
+        @GuardedBy("this")
+        private void checkGeneration(int generation) throws IOException {
+            checkNotReleased();
+            if (generation != mGeneration) {
+                throw new IOException("managed temporary contents were replaced");
             }
         }
+
+        @Override
+        @Nonnull
+        public synchronized String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("size", mLength)
+                    .add("chunks", mChunks.size())
+                    .add("file", mFile)
+                    .add("released", mReleased)
+                    .toString();
+        }
     }
 
-	/*
-     * Copyright (C) 2012 The Android Open Source Project
-	 *
-	 * Licensed under the Apache License, Version 2.0 (the "License");
-	 * you may not use this file except in compliance with the License.
-	 * You may obtain a copy of the License at
-	 *
-	 *      http://www.apache.org/licenses/LICENSE-2.0
-	 *
-	 * Unless required by applicable law or agreed to in writing, software
-	 * distributed under the License is distributed on an "AS IS" BASIS,
-	 * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-	 * See the License for the specific language governing permissions and
-	 * limitations under the License.
-	 */
+    static private class StorageOutputStream extends OutputStream {
+        // keeps the temporary reachable while it is written
+        @Nonnull
+        final private ManagedTemporaryImpl mOwner;
 
-    /**
-     * A variation of {@link java.io.ByteArrayOutputStream} that uses a pool of byte[] buffers instead of always allocating them fresh,
-     * saving on heap churn.
-     */
-    static private class CustomByteArrayOutputStream extends ByteArrayOutputStream {
-        byte[] getBuffer() {
-            return buf;
+        final private int mGeneration;
+
+        final private byte[] mSingleByte = new byte[1];
+
+        StorageOutputStream(ManagedTemporaryImpl owner) {
+            mOwner = owner;
+            mGeneration = owner.mStorage.getGeneration();
         }
 
-        int getCount() {
-            return count;
+        @Override
+        public void write(int b) throws IOException {
+            mSingleByte[0] = (byte) b;
+            write(mSingleByte, 0, 1);
         }
 
+        @Override
+        public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+            mOwner.mStorage.write(mGeneration, b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOwner.mStorage.finishWrite(mGeneration);
+        }
+    }
+
+    static private class ChunkInputStream extends InputStream {
+        // keeps the temporary reachable while it is read
+        @Nonnull
+        final private ManagedTemporaryImpl mOwner;
+
         @Nonnull
-        InputStream openInputStream() {
-            return new ByteArrayInputStream(buf, 0, count);
+        final private Storage mStorage;
+
+        final private int mGeneration;
+
+        final private long mLength;
+
+        private long mPosition;
+
+        private long mMark;
+
+        final private byte[] mSingleByte = new byte[1];
+
+        ChunkInputStream(ManagedTemporaryImpl owner, Storage storage, int generation, long length) {
+            mOwner = owner;
+            mStorage = storage;
+            mGeneration = generation;
+            mLength = length;
         }
 
-        /**
-         * Constructs a new {@code ByteArrayOutputStream} with a default size of {@code size} bytes. If more than {@code size} bytes are
-         * written to this instance, the underlying byte array will expand.
-         *
-         * @param size initial size for the underlying byte array.
-         */
-        public CustomByteArrayOutputStream(int size) {
-            buf = new byte[size];
+        @Override
+        public int read() throws IOException {
+            return read(mSingleByte, 0, 1) == -1 ? -1 : (mSingleByte[0] & 0xff);
         }
 
-        /**
-         * Ensures there is enough space in the buffer for the given number of additional bytes.
-         */
-        private void expand(int i) {
-            /* Can the buffer handle @i more bytes, if not expand it */
-            if (count + i <= buf.length) {
-                return;
+        @Override
+        public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (mPosition >= mLength) {
+                return -1;
             }
-            byte[] newbuf = new byte[(count + i) * 2];
-            System.arraycopy(buf, 0, newbuf, 0, count);
-            buf = newbuf;
+            int count = mStorage.read(mGeneration, mPosition, b, off, (int) Math.min(len, mLength - mPosition));
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long count = Math.max(0, Math.min(n, mLength - mPosition));
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, mLength - mPosition);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
         }
 
         @Override
-        public synchronized void write(byte[] buffer, int offset, int len) {
-            expand(len);
-            super.write(buffer, offset, len);
+        public synchronized void mark(int readlimit) {
+            mMark = mPosition;
         }
 
         @Override
-        public synchronized void write(int oneByte) {
-            expand(1);
-            super.write(oneByte);
+        public synchronized void reset() {
+            mPosition = mMark;
         }
     }
 }
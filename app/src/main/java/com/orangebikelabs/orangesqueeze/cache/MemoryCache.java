@@ -5,18 +5,23 @@
 
 package com.orangebikelabs.orangesqueeze.cache;
 
-import androidx.collection.LruCache;
-
 import com.google.common.base.Objects;
 import com.google.common.util.concurrent.Service;
 import com.google.common.util.concurrent.ServiceManager;
 import com.orangebikelabs.orangesqueeze.common.BusProvider;
 import com.orangebikelabs.orangesqueeze.common.OSExecutors;
 import com.orangebikelabs.orangesqueeze.common.OSLog;
+import com.orangebikelabs.orangesqueeze.common.SBContextProvider;
 import com.orangebikelabs.orangesqueeze.common.event.CurrentServerState;
 import com.squareup.otto.Subscribe;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -25,6 +30,10 @@ import javax.annotation.concurrent.ThreadSafe;
 /**
  * A small memory cache designed to work with the cache service.
  * <p/>
+ * There are two tiers. The compact tier holds the memory cache representation of each item (for example, Smile bytes). Requests that
+ * provide a decoded size estimate also get their decoded objects kept in a smaller tier above it, so repeated hits skip the adapt step. The
+ * compact tier is the spill level for items that fall out of the decoded tier.
+ * <p/>
  * Memory cache can be bound to a servicemanager.listener object. It will register for global events using the lifecycle of the
  * servicemanager.
  *
@@ -32,30 +41,108 @@ import javax.annotation.concurrent.ThreadSafe;
  */
 @ThreadSafe
 public class MemoryCache {
-    final private LocalLruCache mCache;
+    /**
+     * fraction of the memory cache budget given to decoded objects, on top of the compact tier
+     */
+    final static private float DECODED_TIER_FRACTION = 0.25f;
+
+    final private LocalCache mCache;
+    final private LocalCache mDecodedCache;
     final private CacheService mService;
     final protected AtomicLong mServerScanTime = new AtomicLong(0);
 
+    /**
+     * snapshot loaded at startup, waiting for the current server and its scan to be known
+     */
+    final private AtomicReference<MemoryCacheSnapshot> mRestoredSnapshot = new AtomicReference<>();
+
     // main thread only
     private boolean mRegistered;
 
-    public MemoryCache(CacheService service, CacheConfiguration configuration) {
-        mCache = new LocalLruCache(configuration);
+    final private CacheMetrics mMetrics;
+
+    public MemoryCache(CacheService service, CacheConfiguration configuration, CacheMetrics metrics) {
+        int maxSize = configuration.getMaxMemorySize();
+        // values leaving the decoded tier are still in the compact tier, only count evictions from the compact tier
+        mCache = new LocalCache(maxSize, metrics);
+        mDecodedCache = new LocalCache(Math.max(1, (int) (maxSize * DECODED_TIER_FRACTION)), null);
         mService = service;
+        mMetrics = metrics;
     }
 
     public int memorySize() {
-        return mCache.size();
+        return mCache.size() + mDecodedCache.size();
+    }
+
+    public int decodedMemorySize() {
+        return mDecodedCache.size();
+    }
+
+    /**
+     * @return hit ratios and eviction counts for both tiers
+     */
+    @Nonnull
+    public String stats() {
+        return "compact=" + mCache + ", decoded=" + mDecodedCache;
     }
 
     public boolean remove(CacheEntry entry) {
-        return mCache.remove(entry) != null;
+        boolean found = mDecodedCache.remove(entry) != null;
+        if (mCache.remove(entry) != null) {
+            found = true;
+        }
+        return found;
+    }
+
+    /**
+     * retrieve the decoded value for the entry, checking the decoded tier first and then adapting from the compact tier. Values adapted from
+     * the compact tier are promoted to the decoded tier if the request supports it.
+     */
+    @Nullable
+    public <T, C> T get(CacheEntry entry, CacheRequestCallback<T, C> request) throws CachedItemNotFoundException, CachedItemInvalidException, IOException {
+        return get(entry, request, null);
     }
 
+    /**
+     * @param outStale if not null and the request serves stale values, expired TIMEOUT values that are still within the stale window are
+     *                 returned too, and this is set
+     */
     @SuppressWarnings("unchecked")
     @Nullable
-    public <T> T get(CacheEntry entry) throws CachedItemNotFoundException, CachedItemInvalidException {
-        Value value = mCache.get(entry);
+    public <T, C> T get(CacheEntry entry, CacheRequestCallback<T, C> request, @Nullable AtomicBoolean outStale)
+            throws CachedItemNotFoundException, CachedItemInvalidException, IOException {
+        AtomicBoolean stale = request.shouldServeStale() ? outStale : null;
+        Value decoded = getValue(mDecodedCache, entry, stale);
+        if (decoded != null) {
+            return (T) decoded.mValue;
+        }
+
+        Value value = getValue(mCache, entry, stale);
+        if (value != null && value.mValue != null) {
+            T retval = request.onAdaptFromMemoryCache(mService, (C) value.mValue);
+            putDecoded(entry, request, retval, value.mExpiration);
+            return retval;
+        }
+        return checkMarkers(value);
+    }
+
+    @Nullable
+    private <T> T checkMarkers(@Nullable Value value) throws CachedItemNotFoundException, CachedItemInvalidException {
+        if (value instanceof MissingValue) {
+            throw new CachedItemNotFoundException("Missing, marked as such in memory cache");
+        } else if (value instanceof InvalidValue) {
+            throw new CachedItemInvalidException("Invalid, marked as such in memory cache");
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * retrieve the raw value from the specified tier, removing it if it has expired
+     */
+    @Nullable
+    private Value getValue(LocalCache cache, CacheEntry entry, @Nullable AtomicBoolean outStale) {
+        Value value = cache.get(entry);
         if (value != null) {
             // check for expired values in memory
             boolean expired = false;
@@ -66,61 +153,179 @@ public class MemoryCache {
                         expired = true;
                     }
                     break;
-                case TIMEOUT:
-                    if (value.mExpiration < System.currentTimeMillis()) {
-                        expired = true;
+                case TIMEOUT: {
+                    long now = System.currentTimeMillis();
+                    if (value.mExpiration < now) {
+                        if (outStale != null && value.mExpiration + StaleRevalidator.STALE_WINDOW_MILLIS > now) {
+                            // keep it around until the refresh replaces it
+                            outStale.set(true);
+                        } else {
+                            expired = true;
+                        }
                     }
                     break;
+                }
                 default:
                     throw new IllegalStateException("unknown cache entry type: " + entry.getCacheType());
             }
             if (expired) {
-                mCache.removeIfValue(entry, value);
+                cache.removeIfValue(entry, value);
                 value = null;
             }
         }
-        if (value != null && value.mValue != null) {
-            return (T) value.mValue;
-        } else if (value instanceof MissingValue) {
-            throw new CachedItemNotFoundException("Missing, marked as such in memory cache");
-        } else if (value instanceof InvalidValue) {
-            throw new CachedItemInvalidException("Invalid, marked as such in memory cache");
-        } else {
-            return null;
-        }
+        return value;
     }
 
     public <T, C> void put(CacheEntry entry, CacheRequestCallback<T, C> request, C value) {
-        long expiration = getExpiration(entry);
+        put(entry, request, value, getExpiration(entry));
+    }
 
+    /**
+     * @param expiration normally getExpiration(), or the original expiration of a stale value
+     */
+    public <T, C> void put(CacheEntry entry, CacheRequestCallback<T, C> request, C value, long expiration) {
         if (OSLog.isLoggable(OSLog.Tag.CACHE, OSLog.VERBOSE)) {
             OSLog.v(OSLog.Tag.CACHE, "adding " + value.getClass().getName() + " to memory cache for " + entry);
         }
         int size = request.onEstimateMemorySize(mService, value);
+        mDecodedCache.remove(entry);
         mCache.put(entry, new Value(value, size, expiration));
+        mMetrics.recordBytesWritten(CacheMetrics.Tier.MEMORY, size);
+    }
+
+    /**
+     * store the decoded value alongside the compact value, if the request supports it
+     */
+    public <T, C> void putDecoded(CacheEntry entry, CacheRequestCallback<T, C> request, T value) {
+        putDecoded(entry, request, value, getExpiration(entry));
+    }
+
+    public <T, C> void putDecoded(CacheEntry entry, CacheRequestCallback<T, C> request, T value, long expiration) {
+        int size = request.onEstimateDecodedMemorySize(mService, value);
+        if (size < 0) {
+            // request doesn't keep decoded values
+            return;
+        }
+        mDecodedCache.put(entry, new Value(value, size, expiration));
     }
 
     public void markMissing(CacheEntry entry) {
         long expiration = getExpiration(entry);
 
+        mDecodedCache.remove(entry);
         mCache.put(entry, new MissingValue(expiration));
     }
 
     public void markInvalid(CacheEntry entry) {
         long expiration = getExpiration(entry);
 
+        mDecodedCache.remove(entry);
         mCache.put(entry, new InvalidValue(expiration));
     }
 
     public void clear() {
-        mCache.evictAll();
+        mDecodedCache.clear();
+        mCache.clear();
+    }
+
+    /**
+     * @return the most used compact values of the server that are held as bytes and still valid, up to the size limit
+     */
+    @Nonnull
+    MemoryCacheSnapshot createSnapshot(long serverId, int maxSize) {
+        long serverScanTime = mServerScanTime.get();
+        long now = System.currentTimeMillis();
+        List<MemoryCacheSnapshot.Item> items = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<CacheEntry, Value> e : mCache.hotEntries()) {
+            CacheEntry entry = e.getKey();
+            Value value = e.getValue();
+            if (entry.getServerId() != serverId || !(value.mValue instanceof byte[]) || size + value.mSize > maxSize) {
+                continue;
+            }
+            boolean valid;
+            switch (entry.getCacheType()) {
+                case SERVERSCAN:
+                    valid = serverScanTime != 0 && value.mExpiration == serverScanTime;
+                    break;
+                case TIMEOUT:
+                    valid = value.mExpiration > now;
+                    break;
+                default:
+                    throw new IllegalStateException("unknown cache entry type: " + entry.getCacheType());
+            }
+            if (valid) {
+                items.add(new MemoryCacheSnapshot.Item(entry, value.mExpiration, value.mSize, (byte[]) value.mValue));
+                size += value.mSize;
+            }
+        }
+        return new MemoryCacheSnapshot(serverId, serverScanTime, items);
+    }
+
+    /**
+     * hold on to a snapshot taken before the last shutdown until installRestoredSnapshot() can check it against the current server
+     */
+    void setRestoredSnapshot(@Nullable MemoryCacheSnapshot snapshot) {
+        mRestoredSnapshot.set(snapshot);
+    }
+
+    boolean hasRestoredSnapshot() {
+        return mRestoredSnapshot.get() != null;
+    }
+
+    /**
+     * Put the values of the restored snapshot in the compact tier, if it was taken for this server. SERVERSCAN values are only used if the
+     * server still reports the scan they were taken at. Does nothing while the server is scanning.
+     *
+     * @return the number of values installed
+     */
+    int installRestoredSnapshot(long serverId, @Nullable Long lastScan) {
+        MemoryCacheSnapshot snapshot = mRestoredSnapshot.get();
+        if (snapshot == null || lastScan == null || !mRestoredSnapshot.compareAndSet(snapshot, null)) {
+            return 0;
+        }
+        if (snapshot.getServerId() != serverId) {
+            return 0;
+        }
+
+        // we may get here before the server state event, adopt the scan so it doesn't clear what we install
+        mServerScanTime.compareAndSet(0, lastScan);
+        boolean scanMatches = snapshot.getServerScanTimestamp() == lastScan && mServerScanTime.get() == lastScan;
+
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (MemoryCacheSnapshot.Item item : snapshot.getItems()) {
+            boolean valid;
+            switch (item.mEntry.getCacheType()) {
+                case SERVERSCAN:
+                    valid = scanMatches;
+                    break;
+                case TIMEOUT:
+                    // expired values within the stale window can still be served while they're refreshed
+                    valid = item.mExpiration + StaleRevalidator.STALE_WINDOW_MILLIS > now;
+                    break;
+                default:
+                    throw new IllegalStateException("unknown cache entry type: " + item.mEntry.getCacheType());
+            }
+            if (valid) {
+                mCache.put(item.mEntry, new Value(item.mValue, item.mSize, item.mExpiration));
+                count++;
+            }
+        }
+        if (OSLog.isLoggable(OSLog.Tag.CACHE, OSLog.DEBUG)) {
+            OSLog.d(OSLog.Tag.CACHE, "Installed " + count + " values from memory cache snapshot " + snapshot);
+        }
+        return count;
     }
 
     public void listenTo(ServiceManager manager) {
         manager.addListener(mServiceListener, OSExecutors.getMainThreadExecutor());
     }
 
-    private long getExpiration(CacheEntry entry) {
+    /**
+     * @return the expiration for values stored now
+     */
+    long getExpiration(CacheEntry entry) {
         long newExpiration;
         switch (entry.getCacheType()) {
             case SERVERSCAN:
@@ -149,6 +354,9 @@ public class MemoryCache {
                 // clear cache if the scan time has changed
                 clear();
             }
+            if (hasRestoredSnapshot()) {
+                installRestoredSnapshot(SBContextProvider.get().getServerId(), lastScan);
+            }
         }
     };
 
@@ -177,9 +385,18 @@ public class MemoryCache {
         }
     }
 
-    static private class LocalLruCache extends LruCache<CacheEntry, Value> {
-        public LocalLruCache(CacheConfiguration config) {
-            super(config.getMaxMemorySize());
+    static private class LocalCache extends TinyLfuCache<CacheEntry, Value> {
+        /**
+         * rough average size of a memory cache value, used to size the frequency sketch
+         */
+        final static private int TYPICAL_VALUE_SIZE = 4 * 1024;
+
+        @Nullable
+        final private CacheMetrics mMetrics;
+
+        public LocalCache(int maxSize, @Nullable CacheMetrics metrics) {
+            super(maxSize, Math.max(1, maxSize / TYPICAL_VALUE_SIZE));
+            mMetrics = metrics;
         }
 
         @Override
@@ -188,21 +405,16 @@ public class MemoryCache {
         }
 
         @Override
-        protected void entryRemoved(boolean evicted, CacheEntry key, @Nonnull Value oldValue, @Nullable Value newValue) {
-            super.entryRemoved(evicted, key, oldValue, newValue);
+        protected void entryRemoved(boolean evicted, CacheEntry key, Value oldValue, @Nullable Value newValue) {
             Object o = oldValue.mValue;
-            
+
+            if (evicted && mMetrics != null) {
+                mMetrics.recordEvictions(CacheMetrics.Tier.MEMORY, 1);
+            }
             if (o instanceof OptionalCacheValueOperations) {
                 ((OptionalCacheValueOperations) o).onPurgeFromMemoryCache();
             }
         }
-
-        synchronized public void removeIfValue(CacheEntry key, Value value) {
-            Value current = get(key);
-            if (Objects.equal(current, value)) {
-                remove(key);
-            }
-        }
     }
 
     final private ServiceManager.Listener mServiceListener = new ServiceManager.Listener() {
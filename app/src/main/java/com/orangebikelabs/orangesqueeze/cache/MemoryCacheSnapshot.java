@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.orangebikelabs.orangesqueeze.common.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The hot part of the memory cache for one server, kept in a single file so the next start can load it in one go instead of entry by entry
+ * from the database. SERVERSCAN values in it belong to the server scan it was taken at.
+ * <p/>
+ * The file is a header, the entries, and a CRC32 of everything before it:
+ * <pre>
+ * int magic, int version, long serverId, long serverScanTimestamp, int count
+ * count x (byte type, long expiration, int size, int keyLength, key (UTF-8), int valueLength, value)
+ * long crc
+ * </pre>
+ * Reading maps the file and copies the values out; a file that is truncated, corrupt or of another version reads as no snapshot. Bump the
+ * version if the memory cache representation of values changes.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@Immutable
+class MemoryCacheSnapshot {
+    final static private int MAGIC = 0x4f534853;
+    final static private int VERSION = 1;
+
+    final static private int HEADER_SIZE = 28;
+    final static private int CRC_SIZE = 8;
+
+    final static String FILENAME = "hotset.snapshot";
+
+    @Immutable
+    static class Item {
+        @Nonnull
+        final CacheEntry mEntry;
+
+        final long mExpiration;
+
+        /**
+         * memory size estimate the value was cached with
+         */
+        final int mSize;
+
+        @Nonnull
+        final byte[] mValue;
+
+        Item(CacheEntry entry, long expiration, int size, byte[] value) {
+            mEntry = entry;
+            mExpiration = expiration;
+            mSize = size;
+            mValue = value;
+        }
+    }
+
+    final private long mServerId;
+
+    final private long mServerScanTimestamp;
+
+    @Nonnull
+    final private ImmutableList<Item> mItems;
+
+    MemoryCacheSnapshot(long serverId, long serverScanTimestamp, List<Item> items) {
+        mServerId = serverId;
+        mServerScanTimestamp = serverScanTimestamp;
+        mItems = ImmutableList.copyOf(items);
+    }
+
+    long getServerId() {
+        return mServerId;
+    }
+
+    long getServerScanTimestamp() {
+        return mServerScanTimestamp;
+    }
+
+    @Nonnull
+    List<Item> getItems() {
+        return mItems;
+    }
+
+    /**
+     * write the snapshot next to the file and move it into place, so a reader never sees a partly written snapshot
+     */
+    void write(File file) throws IOException {
+        File temp = File.createTempFile("snapshot_", ".tmp", file.getParentFile());
+        try {
+            CRC32 crc = new CRC32();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(new FileOutputStream(temp), crc)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(mServerId);
+                out.writeLong(mServerScanTimestamp);
+                out.writeInt(mItems.size());
+                for (Item item : mItems) {
+                    byte[] key = item.mEntry.getKey().getBytes(Charsets.UTF_8);
+                    out.writeByte(item.mEntry.getCacheType().ordinal());
+                    out.writeLong(item.mExpiration);
+                    out.writeInt(item.mSize);
+                    out.writeInt(key.length);
+                    out.write(key);
+                    out.writeInt(item.mValue.length);
+                    out.write(item.mValue);
+                }
+                out.flush();
+                out.writeLong(crc.getValue());
+            }
+            FileUtils.move(temp, file);
+        } finally {
+            if (temp.exists()) {
+                FileUtils.deleteChecked(temp);
+            }
+        }
+    }
+
+    /**
+     * @return the snapshot in the file, or null if there is none or it can't be used
+     */
+    @Nullable
+    static MemoryCacheSnapshot read(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        ByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE + CRC_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        int contentSize = buffer.limit() - CRC_SIZE;
+        if (buffer.getLong(contentSize) != checksum(buffer, contentSize)) {
+            return null;
+        }
+        buffer.limit(contentSize);
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            long serverId = buffer.getLong();
+            long serverScanTimestamp = buffer.getLong();
+            int count = buffer.getInt();
+            if (count < 0) {
+                return null;
+            }
+
+            CacheEntry.Type[] types = CacheEntry.Type.values();
+            List<Item> items = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                int type = buffer.get();
+                long expiration = buffer.getLong();
+                int size = buffer.getInt();
+                byte[] key = new byte[checkLength(buffer, buffer.getInt())];
+                buffer.get(key);
+                byte[] value = new byte[checkLength(buffer, buffer.getInt())];
+                buffer.get(value);
+                if (type < 0 || type >= types.length) {
+                    return null;
+                }
+                items.add(new Item(new CacheEntry(types[type], serverId, new String(key, Charsets.UTF_8)), expiration, size, value));
+            }
+            return new MemoryCacheSnapshot(serverId, serverScanTimestamp, items);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    static private int checkLength(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return length;
+    }
+
+    static private long checksum(ByteBuffer buffer, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer source = buffer.duplicate();
+        source.position(0);
+        byte[] chunk = new byte[8192];
+        int remaining = length;
+        while (remaining > 0) {
+            int count = Math.min(remaining, chunk.length);
+            source.get(chunk, 0, count);
+            crc.update(chunk, 0, count);
+            remaining -= count;
+        }
+        return crc.getValue();
+    }
+
+    @Override
+    @Nonnull
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("serverId", mServerId)
+                .add("serverScanTimestamp", mServerScanTimestamp)
+                .add("items", mItems.size())
+                .toString();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.MoreObjects;
+import com.orangebikelabs.orangesqueeze.common.OSLog;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Rescues SERVERSCAN list entries after a server rescan. A rescan changes the server scan timestamp, which invalidates every SERVERSCAN entry
+ * even though an incremental rescan usually leaves most artist and album lists untouched. For each list with a stored fingerprint, the first
+ * and last pages are fetched again; if the list still looks the same, its cached pages are stamped with the new scan timestamp instead of
+ * being purged.
+ * <p/>
+ * A pass runs in the background before the server scan purge. Lists that can't be verified are left for the purge.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+class ServerScanRevalidator {
+    /**
+     * lists probed per pass, each probe costs one or two requests to the server
+     */
+    final static int MAX_LISTS_PER_PASS = 200;
+
+    /**
+     * where fingerprints and the cached pages of their lists are kept
+     */
+    interface Store {
+        /**
+         * @return complete fingerprints recorded under a scan other than the current one
+         */
+        @Nonnull
+        List<ListFingerprint> loadPendingFingerprints(long serverId, long serverScanTimestamp, int limit);
+
+        /**
+         * stamp the fingerprint and the cached pages of its list with the new scan timestamp
+         *
+         * @return the number of cached pages kept
+         */
+        int restampList(long serverId, ListFingerprint fingerprint, long serverScanTimestamp);
+
+        /**
+         * forget the fingerprint, its pages are left for the purge
+         */
+        void discardFingerprint(long serverId, ListFingerprint fingerprint);
+    }
+
+    /**
+     * fetches a page of a list from the server
+     */
+    interface Prober {
+        /**
+         * @return the data element of the response
+         */
+        @Nonnull
+        JsonNode fetch(List<String> commands) throws Exception;
+    }
+
+    @Nonnull
+    final private Store mStore;
+
+    @Nonnull
+    final private Prober mProber;
+
+    ServerScanRevalidator(Store store, Prober prober) {
+        mStore = store;
+        mProber = prober;
+    }
+
+    /**
+     * probe the lists cached under older scans and keep the ones that haven't changed
+     */
+    @Nonnull
+    Result revalidate(long serverId, long serverScanTimestamp) throws InterruptedException {
+        int kept = 0;
+        int discarded = 0;
+        int pages = 0;
+        for (ListFingerprint stored : mStore.loadPendingFingerprints(serverId, serverScanTimestamp, MAX_LISTS_PER_PASS)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            ListFingerprint probed;
+            try {
+                probed = probe(stored);
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                OSLog.w(OSLog.Tag.CACHE, "Error probing " + stored, e);
+                probed = null;
+            }
+
+            if (probed != null && stored.matches(probed)) {
+                pages += mStore.restampList(serverId, stored, serverScanTimestamp);
+                kept++;
+            } else {
+                mStore.discardFingerprint(serverId, stored);
+                discarded++;
+            }
+        }
+        return new Result(kept, discarded, pages);
+    }
+
+    /**
+     * fetch the current state of the pages the stored fingerprint covers
+     *
+     * @return the current fingerprint, or null if the list is no longer there
+     */
+    @Nullable
+    ListFingerprint probe(ListFingerprint stored) throws Exception {
+        int count = stored.getItemCount();
+        if (count == 0) {
+            Page page = fetchPage(stored, 0, 1);
+            return page == null ? null : new ListFingerprint(stored.getListKey(), page.mCount, 0, null, 0, null, null);
+        }
+
+        Page first = fetchPage(stored, 0, stored.getFirstPageSize());
+        if (first == null || first.mHash == null) {
+            return null;
+        }
+        if (first.mCount != count) {
+            // no point in looking further
+            return new ListFingerprint(stored.getListKey(), first.mCount, first.mSize, first.mHash, 0, null, null);
+        }
+
+        int lastStart = count - stored.getLastPageSize();
+        Page last;
+        if (lastStart == 0 && stored.getLastPageSize() == stored.getFirstPageSize()) {
+            // a single page list
+            last = first;
+        } else {
+            last = fetchPage(stored, lastStart, stored.getLastPageSize());
+            if (last == null) {
+                return null;
+            }
+        }
+        return new ListFingerprint(stored.getListKey(), first.mCount, first.mSize, first.mHash, last.mSize, last.mHash, null);
+    }
+
+    @Nullable
+    private Page fetchPage(ListFingerprint stored, int start, int size) throws Exception {
+        JsonNode data = mProber.fetch(stored.getCommands(start, size));
+        JsonNode count = data.get("count");
+        if (count == null || !count.canConvertToInt()) {
+            return null;
+        }
+        JsonNode items = ListFingerprint.findLoop(data);
+        if (items == null || items.size() == 0) {
+            return new Page(count.asInt(), 0, null);
+        }
+        return new Page(count.asInt(), items.size(), ListFingerprint.hashItems(items));
+    }
+
+    static private class Page {
+        final int mCount;
+        final int mSize;
+
+        @Nullable
+        final Long mHash;
+
+        Page(int count, int size, @Nullable Long hash) {
+            mCount = count;
+            mSize = size;
+            mHash = hash;
+        }
+    }
+
+    @Immutable
+    static class Result {
+        final int mKeptLists;
+        final int mDiscardedLists;
+        final int mKeptPages;
+
+        Result(int keptLists, int discardedLists, int keptPages) {
+            mKeptLists = keptLists;
+            mDiscardedLists = discardedLists;
+            mKeptPages = keptPages;
+        }
+
+        @Override
+        @Nonnull
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("keptLists", mKeptLists)
+                    .add("discardedLists", mDiscardedLists)
+                    .add("keptPages", mKeptPages)
+                    .toString();
+        }
+    }
+}
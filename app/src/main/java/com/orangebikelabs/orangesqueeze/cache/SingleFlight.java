@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Coalesces concurrent loads of the same key. The first caller to join a key becomes the leader of a flight and performs the load; callers
+ * that join while the flight is in progress follow it and wait for it to land, without taking any locks.
+ * <p/>
+ * Outcomes for followers:
+ * <ul>
+ * <li>success: the flight completes normally, and followers read the result from wherever the leader put it</li>
+ * <li>failure: followers see the leader's exception</li>
+ * <li>cancellation: the leader was interrupted or gave up, followers should join again and one of them becomes the new leader</li>
+ * </ul>
+ * A follower that is interrupted or times out only stops waiting, the flight itself carries on.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+class SingleFlight<K> {
+    final private ConcurrentMap<K, Flight> mFlights = new ConcurrentHashMap<>();
+
+    /**
+     * join the flight for the key, starting one if there is none in progress
+     */
+    @Nonnull
+    Flight join(K key) {
+        Flight flight = new Flight(key);
+        Flight existing = mFlights.putIfAbsent(key, flight);
+        if (existing != null) {
+            return existing.asFollower();
+        }
+        return flight;
+    }
+
+    /**
+     * @return the number of flights in progress
+     */
+    int size() {
+        return mFlights.size();
+    }
+
+    class Flight {
+        @Nonnull
+        final private K mKey;
+
+        @Nonnull
+        final private SettableFuture<Void> mLanded;
+
+        final private boolean mLeader;
+
+        Flight(K key) {
+            this(key, SettableFuture.create(), true);
+        }
+
+        private Flight(K key, SettableFuture<Void> landed, boolean leader) {
+            mKey = key;
+            mLanded = landed;
+            mLeader = leader;
+        }
+
+        @Nonnull
+        Flight asFollower() {
+            return new Flight(mKey, mLanded, false);
+        }
+
+        boolean isLeader() {
+            return mLeader;
+        }
+
+        /**
+         * leader only, the load succeeded
+         */
+        void succeed() {
+            land();
+            mLanded.set(null);
+        }
+
+        /**
+         * leader only, the load failed and followers should fail the same way
+         */
+        void fail(Throwable t) {
+            land();
+            mLanded.setException(t);
+        }
+
+        /**
+         * leader only, the load was abandoned and followers should try again
+         */
+        void cancel() {
+            land();
+            mLanded.cancel(false);
+        }
+
+        /**
+         * follower only, wait for the flight to land
+         *
+         * @throws ExecutionException    the leader failed, the cause is the leader's exception
+         * @throws CancellationException the leader abandoned the flight
+         */
+        void await(long timeout, TimeUnit units) throws InterruptedException, ExecutionException, TimeoutException {
+            mLanded.get(timeout, units);
+        }
+
+        private void land() {
+            if (!mLeader) {
+                throw new IllegalStateException("only the leader completes a flight");
+            }
+            // new callers start a fresh flight from here on
+            mFlights.remove(mKey, this);
+        }
+    }
+}
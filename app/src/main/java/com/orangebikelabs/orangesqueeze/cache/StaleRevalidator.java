@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.orangebikelabs.orangesqueeze.common.OSLog;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Stale-while-revalidate support for TIMEOUT scoped entries. Once an entry expires it is still served for a while, flagged as stale, and a
+ * single background refresh replaces it. Listeners are told when the fresh value lands so they can redisplay it.
+ * <p/>
+ * Refreshes share the load flights of the cache service, so a refresh and a foreground load of the same entry never run at the same time.
+ * A failed refresh cancels its flight instead of failing it, so loads that joined it retry on their own and get the stale value rather than
+ * the error.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+class StaleRevalidator {
+    /**
+     * how long after expiration an entry can still be served while it is refreshed, one day. Don't use TimeUnit.HOURS because it's missing on
+     * some android versions.
+     */
+    final static long STALE_WINDOW_MILLIS = TimeUnit.SECONDS.toMillis(24 * 60 * 60);
+
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    interface Refresh {
+        void run() throws Exception;
+    }
+
+    interface Listener {
+        void onRevalidated(CacheEntry entry);
+    }
+
+    final static Clock SYSTEM_CLOCK = System::currentTimeMillis;
+
+    @Nonnull
+    final private SingleFlight<CacheEntry> mFlights;
+
+    @Nonnull
+    final private Executor mExecutor;
+
+    @Nonnull
+    final private Clock mClock;
+
+    @Nonnull
+    final private Listener mListener;
+
+    StaleRevalidator(SingleFlight<CacheEntry> flights, Executor executor, Clock clock, Listener listener) {
+        mFlights = flights;
+        mExecutor = executor;
+        mClock = clock;
+        mListener = listener;
+    }
+
+    long currentTimeMillis() {
+        return mClock.currentTimeMillis();
+    }
+
+    /**
+     * @return whether an entry with the given expiration should be refreshed before it is served as fresh
+     */
+    boolean isExpired(long expiresTimestamp) {
+        return expiresTimestamp <= mClock.currentTimeMillis();
+    }
+
+    /**
+     * @return whether an entry with the given expiration can still be served, fresh or stale
+     */
+    boolean isServable(long expiresTimestamp) {
+        return expiresTimestamp + STALE_WINDOW_MILLIS > mClock.currentTimeMillis();
+    }
+
+    /**
+     * @return the validity timestamp to use when looking up entries that may be stale
+     */
+    long getStaleValidAt() {
+        return mClock.currentTimeMillis() - STALE_WINDOW_MILLIS;
+    }
+
+    /**
+     * start a background refresh of the entry, unless a refresh or load of it is already in flight
+     *
+     * @return true if a refresh was started
+     */
+    boolean revalidate(final CacheEntry entry, final Refresh refresh) {
+        final SingleFlight<CacheEntry>.Flight flight = mFlights.join(entry);
+        if (!flight.isLeader()) {
+            return false;
+        }
+
+        try {
+            mExecutor.execute(() -> {
+                try {
+                    refresh.run();
+                } catch (InterruptedException e) {
+                    flight.cancel();
+                    return;
+                } catch (Throwable t) {
+                    // the stale value stays in place, the next request will try again
+                    OSLog.w(OSLog.Tag.CACHE, "Background refresh of " + entry + " failed", t);
+                    flight.cancel();
+                    return;
+                }
+                flight.succeed();
+                mListener.onRevalidated(entry);
+            });
+        } catch (RejectedExecutionException e) {
+            flight.cancel();
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.base.MoreObjects;
+
+import java.io.File;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Backing storage for managed temporaries. Contents are kept in fixed-size chunks drawn from a shared pool; chunks are reused from one
+ * temporary to the next, and the pool as a whole never holds more than the memory budget. A temporary that can't get another chunk moves
+ * its contents to a file and continues there, so only the overflow beyond the budget goes to disk.
+ * <p/>
+ * Storage is given back when a temporary is closed. Temporaries that are dropped without being closed are found through a reference queue
+ * and reclaimed the next time storage is needed.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+class TemporaryStorage {
+    /**
+     * large enough that artwork takes a handful of chunks, small enough that the last partly filled chunk doesn't waste much
+     */
+    final static int DEFAULT_CHUNK_SIZE = 32 * 1024;
+
+    interface Config {
+        /**
+         * @return the most memory the pool may hold, in use or free
+         */
+        long getMemoryBudget();
+
+        /**
+         * @return where temporaries that don't fit in memory are written
+         */
+        @Nonnull
+        File getSpillDirectory();
+    }
+
+    final private int mChunkSize;
+
+    @Nonnull
+    final private Config mConfig;
+
+    @GuardedBy("this")
+    final private ArrayDeque<byte[]> mFreeChunks = new ArrayDeque<>();
+
+    /**
+     * bytes in chunks handed out or waiting in the free list
+     */
+    @GuardedBy("this")
+    private long mAllocatedBytes;
+
+    @GuardedBy("this")
+    private long mPeakInUseBytes;
+
+    final private ReferenceQueue<ManagedTemporaryImpl> mUnreachable = new ReferenceQueue<>();
+
+    /**
+     * keeps the references themselves reachable until their temporary is closed or reclaimed
+     */
+    final private Set<StorageReference> mLiveReferences = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    final private AtomicLong mSpillCount = new AtomicLong();
+
+    final private AtomicLong mReclaimedCount = new AtomicLong();
+
+    TemporaryStorage(Config config) {
+        this(config, DEFAULT_CHUNK_SIZE);
+    }
+
+    TemporaryStorage(Config config, int chunkSize) {
+        mConfig = config;
+        mChunkSize = chunkSize;
+    }
+
+    @Nonnull
+    ManagedTemporaryImpl newTemporary() {
+        reclaimUnreachable();
+
+        ManagedTemporaryImpl.Storage storage = new ManagedTemporaryImpl.Storage(this);
+        ManagedTemporaryImpl retval = new ManagedTemporaryImpl(storage);
+        StorageReference reference = new StorageReference(retval, storage, mUnreachable);
+        mLiveReferences.add(reference);
+        retval.setReference(reference);
+        return retval;
+    }
+
+    int getChunkSize() {
+        return mChunkSize;
+    }
+
+    @Nonnull
+    File getSpillDirectory() {
+        return mConfig.getSpillDirectory();
+    }
+
+    /**
+     * @return a chunk, or null if the memory budget is used up
+     */
+    @Nullable
+    byte[] acquireChunk() {
+        byte[] retval = tryAcquireChunk();
+        if (retval == null && reclaimUnreachable() > 0) {
+            retval = tryAcquireChunk();
+        }
+        return retval;
+    }
+
+    @Nullable
+    private byte[] tryAcquireChunk() {
+        synchronized (this) {
+            byte[] retval = mFreeChunks.pollFirst();
+            if (retval == null) {
+                if (mAllocatedBytes + mChunkSize > mConfig.getMemoryBudget()) {
+                    return null;
+                }
+                mAllocatedBytes += mChunkSize;
+                retval = new byte[mChunkSize];
+            }
+            mPeakInUseBytes = Math.max(mPeakInUseBytes, getInUseBytesLocked());
+            return retval;
+        }
+    }
+
+    /**
+     * return chunks to the pool. Chunks must not be touched afterwards.
+     */
+    void releaseChunks(List<byte[]> chunks) {
+        if (chunks.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            long budget = mConfig.getMemoryBudget();
+            for (byte[] chunk : chunks) {
+                if (mAllocatedBytes > budget) {
+                    // the budget shrank, let it go
+                    mAllocatedBytes -= mChunkSize;
+                } else {
+                    mFreeChunks.addFirst(chunk);
+                }
+            }
+        }
+    }
+
+    void recordSpill() {
+        mSpillCount.incrementAndGet();
+    }
+
+    void unregister(StorageReference reference) {
+        mLiveReferences.remove(reference);
+        reference.clear();
+    }
+
+    /**
+     * drop the free chunks
+     */
+    synchronized void trim() {
+        mAllocatedBytes -= (long) mFreeChunks.size() * mChunkSize;
+        mFreeChunks.clear();
+    }
+
+    /**
+     * release the storage of temporaries that were dropped without being closed
+     *
+     * @return the number of temporaries reclaimed
+     */
+    int reclaimUnreachable() {
+        int count = 0;
+        Reference<? extends ManagedTemporaryImpl> reference;
+        while ((reference = mUnreachable.poll()) != null) {
+            StorageReference storageReference = (StorageReference) reference;
+            if (mLiveReferences.remove(storageReference)) {
+                storageReference.mStorage.release();
+                count++;
+            }
+        }
+        if (count > 0) {
+            mReclaimedCount.addAndGet(count);
+        }
+        return count;
+    }
+
+    synchronized long getInUseBytes() {
+        return getInUseBytesLocked();
+    }
+
+    synchronized long getPooledBytes() {
+        return (long) mFreeChunks.size() * mChunkSize;
+    }
+
+    int getLiveCount() {
+        return mLiveReferences.size();
+    }
+
+    long getSpillCount() {
+        return mSpillCount.get();
+    }
+
+    long getReclaimedCount() {
+        return mReclaimedCount.get();
+    }
+
+    @GuardedBy("this")
+    private long getInUseBytesLocked() {
+        return mAllocatedBytes - (long) mFreeChunks.size() * mChunkSize;
+    }
+
+    @Override
+    @Nonnull
+    public String toString() {
+        long inUse;
+        long pooled;
+        long peak;
+        synchronized (this) {
+            inUse = getInUseBytesLocked();
+            pooled = (long) mFreeChunks.size() * mChunkSize;
+            peak = mPeakInUseBytes;
+        }
+        return MoreObjects.toStringHelper(this)
+                .add("budget", mConfig.getMemoryBudget())
+                .add("inUse", inUse)
+                .add("pooled", pooled)
+                .add("peakInUse", peak)
+                .add("live", getLiveCount())
+                .add("spills", getSpillCount())
+                .add("reclaimed", getReclaimedCount())
+                .toString();
+    }
+
+    static class StorageReference extends PhantomReference<ManagedTemporaryImpl> {
+        @Nonnull
+        final ManagedTemporaryImpl.Storage mStorage;
+
+        StorageReference(ManagedTemporaryImpl referent, ManagedTemporaryImpl.Storage storage, ReferenceQueue<ManagedTemporaryImpl> queue) {
+            super(referent, queue);
+            mStorage = storage;
+        }
+    }
+}
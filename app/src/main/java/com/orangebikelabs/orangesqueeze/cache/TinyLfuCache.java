@@ -0,0 +1,532 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Size-weighted cache with a W-TinyLFU replacement policy, with an API that mirrors LruCache.
+ * <p/>
+ * New entries go into a small LRU window. Entries that fall out of the window have to compete for a place in the main area against the
+ * main area's eviction victim, and the one seen more often recently (according to a frequency sketch) wins. The main area is a segmented
+ * LRU: entries hit while on probation are moved to the protected segment. A one-time scan of many keys churns the window without
+ * displacing the frequently used entries in the main area.
+ * <p/>
+ * Frequency is counted on lookups only: a put normally follows the lookup that missed, and counting both would make every new entry look
+ * used twice. The window holds at least a few typical values, and the most recently put entry stays in it even if it is larger, so a value
+ * is readable right after it is put.
+ * <p/>
+ * Keys are striped across independently locked segments so concurrent readers rarely contend. Callbacks to entryRemoved() are made
+ * outside of any lock.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+public class TinyLfuCache<K, V> {
+    final static private int DEFAULT_SEGMENT_COUNT = 4;
+
+    /**
+     * share of the capacity held by the admission window
+     */
+    final static private float WINDOW_FRACTION = 0.01f;
+
+    /**
+     * the admission window holds at least this many values of the typical size, up to half the capacity
+     */
+    final static private int MIN_WINDOW_VALUES = 8;
+
+    /**
+     * share of the main area held by the protected segment
+     */
+    final static private float PROTECTED_FRACTION = 0.8f;
+
+    final private Segment<K, V>[] mSegments;
+    final private int mMaxSize;
+
+    final private AtomicLong mHitCount = new AtomicLong();
+    final private AtomicLong mMissCount = new AtomicLong();
+    final private AtomicLong mEvictionCount = new AtomicLong();
+    final private AtomicLong mRejectionCount = new AtomicLong();
+
+    /**
+     * @param maxSize         the maximum total size of the entries, as measured by sizeOf()
+     * @param expectedEntries rough number of entries the cache will hold when full, used to size the frequency sketch
+     */
+    public TinyLfuCache(int maxSize, int expectedEntries) {
+        this(maxSize, expectedEntries, DEFAULT_SEGMENT_COUNT);
+    }
+
+    @SuppressWarnings("unchecked")
+    TinyLfuCache(int maxSize, int expectedEntries, int segmentCount) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mSegments = new Segment[segmentCount];
+        int segmentSize = Math.max(1, maxSize / segmentCount);
+        int segmentEntries = Math.max(1, expectedEntries / segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            mSegments[i] = new Segment<>(this, segmentSize, segmentEntries);
+        }
+    }
+
+    @Nullable
+    public V get(K key) {
+        V retval = segmentFor(key).get(key);
+        if (retval != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+        }
+        return retval;
+    }
+
+    /**
+     * @return the previous value mapped by the key
+     */
+    @Nullable
+    public V put(K key, V value) {
+        int size = safeSizeOf(key, value);
+
+        List<Node<K, V>> evicted = new ArrayList<>();
+        Node<K, V> previous = segmentFor(key).put(key, value, size, evicted);
+
+        V retval = null;
+        if (previous != null) {
+            retval = previous.mValue;
+            entryRemoved(false, key, previous.mValue, value);
+        }
+        notifyEvicted(evicted);
+        return retval;
+    }
+
+    /**
+     * @return the previous value mapped by the key
+     */
+    @Nullable
+    public V remove(K key) {
+        Node<K, V> removed = segmentFor(key).remove(key, null);
+        if (removed == null) {
+            return null;
+        }
+        entryRemoved(false, key, removed.mValue, null);
+        return removed.mValue;
+    }
+
+    /**
+     * remove the entry only if it is still mapped to the specified value instance
+     */
+    public boolean removeIfValue(K key, V value) {
+        Node<K, V> removed = segmentFor(key).remove(key, value);
+        if (removed == null) {
+            return false;
+        }
+        entryRemoved(false, key, removed.mValue, null);
+        return true;
+    }
+
+    /**
+     * remove every entry, they are reported as removed rather than evicted
+     */
+    public void clear() {
+        List<Node<K, V>> removed = new ArrayList<>();
+        for (Segment<K, V> segment : mSegments) {
+            segment.clear(removed);
+        }
+        for (Node<K, V> node : removed) {
+            entryRemoved(false, node.mKey, node.mValue, null);
+        }
+    }
+
+    /**
+     * @return the entries, those most likely to be used again first: protected entries, then probation, then the admission window, most
+     * recently used first within each. Segments take turns so no part of the key space is favored.
+     */
+    @Nonnull
+    public List<Map.Entry<K, V>> hotEntries() {
+        List<List<Map.Entry<K, V>>> segments = new ArrayList<>(mSegments.length);
+        int total = 0;
+        for (Segment<K, V> segment : mSegments) {
+            List<Map.Entry<K, V>> entries = segment.hotEntries();
+            segments.add(entries);
+            total += entries.size();
+        }
+        List<Map.Entry<K, V>> retval = new ArrayList<>(total);
+        for (int i = 0; retval.size() < total; i++) {
+            for (List<Map.Entry<K, V>> entries : segments) {
+                if (i < entries.size()) {
+                    retval.add(entries.get(i));
+                }
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * @return the total size of the entries in the cache
+     */
+    public int size() {
+        int retval = 0;
+        for (Segment<K, V> segment : mSegments) {
+            retval += segment.size();
+        }
+        return retval;
+    }
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    public long hitCount() {
+        return mHitCount.get();
+    }
+
+    public long missCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * number of entries that lost their place to a more frequently used entry
+     */
+    public long evictionCount() {
+        return mEvictionCount.get();
+    }
+
+    /**
+     * number of new entries that were turned away because the entries already cached were used more often
+     */
+    public long rejectionCount() {
+        return mRejectionCount.get();
+    }
+
+    public double hitRatio() {
+        long hits = mHitCount.get();
+        long total = hits + mMissCount.get();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    @Override
+    @Nonnull
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("size", size())
+                .add("maxSize", mMaxSize)
+                .add("hitRatio", String.format("%.3f", hitRatio()))
+                .add("hits", mHitCount.get())
+                .add("misses", mMissCount.get())
+                .add("evictions", mEvictionCount.get())
+                .add("rejections", mRejectionCount.get())
+                .toString();
+    }
+
+    /**
+     * @return the size of the entry in user-defined units, defaults to 1
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Called outside of any lock for entries that have been evicted, removed or replaced.
+     *
+     * @param evicted true if the entry was removed to make space, false if it was removed or replaced by the caller
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, @Nullable V newValue) {
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int retval = sizeOf(key, value);
+        if (retval < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return retval;
+    }
+
+    private void notifyEvicted(List<Node<K, V>> evicted) {
+        for (Node<K, V> node : evicted) {
+            entryRemoved(true, node.mKey, node.mValue, null);
+        }
+    }
+
+    @Nonnull
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return mSegments[(h & Integer.MAX_VALUE) % mSegments.length];
+    }
+
+    static private class Segment<K, V> {
+        final private TinyLfuCache<K, V> mOwner;
+
+        @GuardedBy("this")
+        final private Map<K, Node<K, V>> mData = new HashMap<>();
+
+        @GuardedBy("this")
+        final private FrequencySketch mSketch;
+
+        @GuardedBy("this")
+        final private NodeList<K, V> mWindow = new NodeList<>();
+
+        @GuardedBy("this")
+        final private NodeList<K, V> mProbation = new NodeList<>();
+
+        @GuardedBy("this")
+        final private NodeList<K, V> mProtected = new NodeList<>();
+
+        final private int mMaxSize;
+        final private int mWindowMax;
+        final private int mMainMax;
+        final private int mProtectedMax;
+
+        Segment(TinyLfuCache<K, V> owner, int maxSize, int expectedEntries) {
+            mOwner = owner;
+            mSketch = new FrequencySketch(expectedEntries);
+            mMaxSize = maxSize;
+            int typicalSize = Math.max(1, maxSize / expectedEntries);
+            int windowMax = Math.max((int) (maxSize * WINDOW_FRACTION), (int) Math.min(maxSize / 2, (long) MIN_WINDOW_VALUES * typicalSize));
+            mWindowMax = Math.max(1, windowMax);
+            mMainMax = Math.max(0, maxSize - mWindowMax);
+            mProtectedMax = (int) (mMainMax * PROTECTED_FRACTION);
+        }
+
+        @Nullable
+        synchronized V get(K key) {
+            mSketch.increment(key);
+            Node<K, V> node = mData.get(key);
+            if (node == null) {
+                return null;
+            }
+            onHit(node);
+            return node.mValue;
+        }
+
+        @Nullable
+        synchronized Node<K, V> put(K key, V value, int size, List<Node<K, V>> outEvicted) {
+            // the lookup that preceded the put was already counted
+            Node<K, V> previous = mData.get(key);
+            if (previous != null) {
+                // replace in place, keeping its position
+                Node<K, V> retval = new Node<>(key, previous.mValue, previous.mSize);
+                previous.mList.adjustSize(size - previous.mSize);
+                previous.mValue = value;
+                previous.mSize = size;
+                onHit(previous);
+                evict(outEvicted);
+                return retval;
+            }
+
+            Node<K, V> node = new Node<>(key, value, size);
+            mData.put(key, node);
+            mWindow.addLast(node);
+            evict(outEvicted);
+            return null;
+        }
+
+        @Nullable
+        synchronized Node<K, V> remove(K key, @Nullable V value) {
+            Node<K, V> node = mData.get(key);
+            if (node == null || (value != null && node.mValue != value)) {
+                return null;
+            }
+            mData.remove(key);
+            node.mList.remove(node);
+            return node;
+        }
+
+        synchronized void clear(List<Node<K, V>> outRemoved) {
+            outRemoved.addAll(mData.values());
+            mData.clear();
+            mWindow.clear();
+            mProbation.clear();
+            mProtected.clear();
+        }
+
+        @Nonnull
+        synchronized List<Map.Entry<K, V>> hotEntries() {
+            List<Map.Entry<K, V>> retval = new ArrayList<>(mData.size());
+            mProtected.addMostRecentFirst(retval);
+            mProbation.addMostRecentFirst(retval);
+            mWindow.addMostRecentFirst(retval);
+            return retval;
+        }
+
+        synchronized int size() {
+            return mWindow.mSize + mProbation.mSize + mProtected.mSize;
+        }
+
+        @GuardedBy("this")
+        private void onHit(Node<K, V> node) {
+            if (node.mList == mProbation) {
+                // promote to protected, demoting protected entries back to probation as necessary
+                mProbation.remove(node);
+                mProtected.addLast(node);
+                while (mProtected.mSize > mProtectedMax && mProtected.mHead != node) {
+                    Node<K, V> demoted = mProtected.mHead;
+                    mProtected.remove(demoted);
+                    mProbation.addLast(demoted);
+                }
+            } else {
+                node.mList.moveToLast(node);
+            }
+        }
+
+        /**
+         * move entries that overflow the window into the main area, evicting whichever of candidate and victim is used less. The most
+         * recent entry stays in the window as long as it fits the segment.
+         */
+        @GuardedBy("this")
+        private void evict(List<Node<K, V>> outEvicted) {
+            while (mWindow.mSize > mWindowMax && mWindow.mHead != null && (mWindow.mHead != mWindow.mTail || mWindow.mSize > mMaxSize)) {
+                Node<K, V> candidate = mWindow.mHead;
+                mWindow.remove(candidate);
+                admit(candidate, outEvicted);
+            }
+            // a replaced value may have grown, or the window may hold a large entry
+            while (mProbation.mSize + mProtected.mSize > mainLimit()) {
+                Node<K, V> victim = mProbation.mHead != null ? mProbation.mHead : mProtected.mHead;
+                if (victim == null) {
+                    break;
+                }
+                evictNode(victim, outEvicted);
+                mOwner.mEvictionCount.incrementAndGet();
+            }
+        }
+
+        @GuardedBy("this")
+        private void admit(Node<K, V> candidate, List<Node<K, V>> outEvicted) {
+            int candidateFrequency = mSketch.frequency(candidate.mKey);
+            while (mProbation.mSize + mProtected.mSize + candidate.mSize > mainLimit()) {
+                Node<K, V> victim = mProbation.mHead != null ? mProbation.mHead : mProtected.mHead;
+                if (victim == null || candidate.mSize > mMainMax || candidateFrequency <= mSketch.frequency(victim.mKey)) {
+                    // candidate loses
+                    mData.remove(candidate.mKey);
+                    outEvicted.add(candidate);
+                    mOwner.mRejectionCount.incrementAndGet();
+                    return;
+                }
+                evictNode(victim, outEvicted);
+                mOwner.mEvictionCount.incrementAndGet();
+            }
+            mProbation.addLast(candidate);
+        }
+
+        /**
+         * the main area gives up space when the window holds more than its share
+         */
+        @GuardedBy("this")
+        private int mainLimit() {
+            return Math.min(mMainMax, mMaxSize - mWindow.mSize);
+        }
+
+        @GuardedBy("this")
+        private void evictNode(Node<K, V> node, List<Node<K, V>> outEvicted) {
+            node.mList.remove(node);
+            mData.remove(node.mKey);
+            outEvicted.add(node);
+        }
+    }
+
+    static private class Node<K, V> {
+        @Nonnull
+        final K mKey;
+
+        V mValue;
+        int mSize;
+
+        @Nullable
+        NodeList<K, V> mList;
+
+        @Nullable
+        Node<K, V> mPrev;
+
+        @Nullable
+        Node<K, V> mNext;
+
+        Node(K key, V value, int size) {
+            mKey = key;
+            mValue = value;
+            mSize = size;
+        }
+    }
+
+    /**
+     * intrusive doubly-linked list in access order, least recently used at the head
+     */
+    static private class NodeList<K, V> {
+        @Nullable
+        Node<K, V> mHead;
+
+        @Nullable
+        Node<K, V> mTail;
+
+        int mSize;
+
+        void addLast(Node<K, V> node) {
+            node.mList = this;
+            node.mPrev = mTail;
+            node.mNext = null;
+            if (mTail != null) {
+                mTail.mNext = node;
+            } else {
+                mHead = node;
+            }
+            mTail = node;
+            mSize += node.mSize;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.mPrev != null) {
+                node.mPrev.mNext = node.mNext;
+            } else {
+                mHead = node.mNext;
+            }
+            if (node.mNext != null) {
+                node.mNext.mPrev = node.mPrev;
+            } else {
+                mTail = node.mPrev;
+            }
+            node.mPrev = null;
+            node.mNext = null;
+            node.mList = null;
+            mSize -= node.mSize;
+        }
+
+        void moveToLast(Node<K, V> node) {
+            if (mTail != node) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void addMostRecentFirst(List<Map.Entry<K, V>> outEntries) {
+            for (Node<K, V> node = mTail; node != null; node = node.mPrev) {
+                outEntries.add(Maps.immutableEntry(node.mKey, node.mValue));
+            }
+        }
+
+        void adjustSize(int delta) {
+            mSize += delta;
+        }
+
+        void clear() {
+            mHead = null;
+            mTail = null;
+            mSize = 0;
+        }
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import android.database.sqlite.SQLiteDoneException;
+
+import com.google.common.io.ByteSource;
+import com.orangebikelabs.orangesqueeze.common.CacheContent;
+import com.orangebikelabs.orangesqueeze.common.OSExecutors;
+import com.orangebikelabs.orangesqueeze.common.OSLog;
+import com.orangebikelabs.orangesqueeze.common.SBContextProvider;
+import com.orangebikelabs.orangesqueeze.common.ServerContent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
+import arrow.core.Option;
+import arrow.core.OptionKt;
+
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_BLOB_OFFSET;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_BLOB_SEGMENT;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_EXPIRES_TIMESTAMP;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_ID;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_ITEMSTATUS;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_KEY;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_KEYHASH;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_LASTUSED_TIMESTAMP;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_LIST_KEYHASH;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_SERVERSCAN_TIMESTAMP;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_VALUE;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_CACHE_VALUE_SIZE;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_FINGERPRINT_FIRST_HASH;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_FINGERPRINT_FIRST_PAGE_SIZE;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_FINGERPRINT_ITEM_COUNT;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_FINGERPRINT_LAST_HASH;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_FINGERPRINT_LAST_PAGE_SIZE;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_FINGERPRINT_LIST_KEY;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_FINGERPRINT_LIST_KEYHASH;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.COLUMN_FINGERPRINT_SERVERSCAN_TIMESTAMP;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.TABLE_CACHE;
+import static com.orangebikelabs.orangesqueeze.common.CacheContent.TABLE_CACHE_FINGERPRINT;
+
+/**
+ * Write-behind queue for the cache database. Persists and last-used renewals are collected for a few milliseconds and then written in a
+ * single transaction on the database writer, so loading a list doesn't produce a stream of tiny transactions fighting over the database
+ * lock. Repeated writes of the same entry before a flush only write the latest value.
+ * <p/>
+ * Writes stay visible through peek() until they are committed. Large values are already in the blob store when they are queued; the blob
+ * store is synced before the transaction that references them commits.
+ * <p/>
+ * Pages of SERVERSCAN lists are written along with their list fingerprint, which is merged with what the other pages of the list have
+ * contributed so far.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+class WriteBehindQueue {
+    /**
+     * how long the first queued write waits for company
+     */
+    final static private long GROUP_COMMIT_DELAY_MILLIS = 10;
+
+    /**
+     * renewals normally ride along with persists or the periodic cleanup, but are flushed on their own once this many are waiting
+     */
+    final static private int MAX_PENDING_RENEWALS = 200;
+
+    final static private String SELECT_ID_SQL = "SELECT " + COLUMN_CACHE_ID + " FROM " + TABLE_CACHE + " WHERE " + ServerContent.COLUMN_FK_SERVER_ID + " = ? AND "
+            + COLUMN_CACHE_KEYHASH + " = ? AND " + COLUMN_CACHE_KEY + " = ?";
+
+    // binding a null id inserts a new row, binding the existing id replaces the row in place and keeps its id
+    final static private String UPSERT_SQL = "INSERT OR REPLACE INTO " + TABLE_CACHE + " (" + COLUMN_CACHE_ID + ", " + COLUMN_CACHE_KEY + ", " + COLUMN_CACHE_KEYHASH + ", "
+            + ServerContent.COLUMN_FK_SERVER_ID + ", " + COLUMN_CACHE_ITEMSTATUS + ", " + COLUMN_CACHE_VALUE + ", " + COLUMN_CACHE_VALUE_SIZE + ", "
+            + COLUMN_CACHE_SERVERSCAN_TIMESTAMP + ", " + COLUMN_CACHE_EXPIRES_TIMESTAMP + ", " + COLUMN_CACHE_LASTUSED_TIMESTAMP + ", "
+            + COLUMN_CACHE_BLOB_SEGMENT + ", " + COLUMN_CACHE_BLOB_OFFSET + ", " + COLUMN_CACHE_LIST_KEYHASH + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // page hashes the new page doesn't have are kept from the existing fingerprint, as long as it describes the same list in the same scan
+    final static private String MERGE_FINGERPRINT_SQL = "INSERT OR REPLACE INTO " + TABLE_CACHE_FINGERPRINT + " (" + ServerContent.COLUMN_FK_SERVER_ID + ", "
+            + COLUMN_FINGERPRINT_LIST_KEYHASH + ", " + COLUMN_FINGERPRINT_LIST_KEY + ", " + COLUMN_FINGERPRINT_ITEM_COUNT + ", " + COLUMN_FINGERPRINT_FIRST_PAGE_SIZE + ", "
+            + COLUMN_FINGERPRINT_FIRST_HASH + ", " + COLUMN_FINGERPRINT_LAST_PAGE_SIZE + ", " + COLUMN_FINGERPRINT_LAST_HASH + ", " + COLUMN_FINGERPRINT_SERVERSCAN_TIMESTAMP
+            + ") SELECT ?1, ?2, ?3, ?4, COALESCE(?5, f." + COLUMN_FINGERPRINT_FIRST_PAGE_SIZE + "), COALESCE(?6, f." + COLUMN_FINGERPRINT_FIRST_HASH + "), COALESCE(?7, f."
+            + COLUMN_FINGERPRINT_LAST_PAGE_SIZE + "), COALESCE(?8, f." + COLUMN_FINGERPRINT_LAST_HASH + "), ?9 FROM (SELECT 1) LEFT JOIN " + TABLE_CACHE_FINGERPRINT
+            + " f ON f." + ServerContent.COLUMN_FK_SERVER_ID + " = ?1 AND f." + COLUMN_FINGERPRINT_LIST_KEYHASH + " = ?2 AND f." + COLUMN_FINGERPRINT_ITEM_COUNT
+            + " = ?4 AND f." + COLUMN_FINGERPRINT_SERVERSCAN_TIMESTAMP + " = ?9";
+
+    // renewals are staged in a temporary table and applied with a single UPDATE
+    final static private String RENEWAL_TABLE = "temp.cache_renewal";
+
+    final static private String CREATE_RENEWAL_TABLE_SQL = "CREATE TEMP TABLE IF NOT EXISTS cache_renewal (" + ServerContent.COLUMN_FK_SERVER_ID + " INTEGER NOT NULL, "
+            + COLUMN_CACHE_KEYHASH + " INTEGER NOT NULL, " + COLUMN_CACHE_KEY + " TEXT NOT NULL)";
+
+    final static private String CLEAR_RENEWAL_TABLE_SQL = "DELETE FROM " + RENEWAL_TABLE;
+
+    final static private String STAGE_RENEWAL_SQL = "INSERT INTO " + RENEWAL_TABLE + " VALUES (?, ?, ?)";
+
+    final static private String RENEW_SQL = "UPDATE " + TABLE_CACHE + " SET " + COLUMN_CACHE_LASTUSED_TIMESTAMP + " = ? WHERE " + COLUMN_CACHE_ID + " IN (SELECT "
+            + TABLE_CACHE + "." + COLUMN_CACHE_ID + " FROM " + RENEWAL_TABLE + " r JOIN " + TABLE_CACHE + " ON " + TABLE_CACHE + "." + ServerContent.COLUMN_FK_SERVER_ID
+            + " = r." + ServerContent.COLUMN_FK_SERVER_ID + " AND " + TABLE_CACHE + "." + COLUMN_CACHE_KEYHASH + " = r." + COLUMN_CACHE_KEYHASH + " AND "
+            + TABLE_CACHE + "." + COLUMN_CACHE_KEY + " = r." + COLUMN_CACHE_KEY + ")";
+
+    @Nonnull
+    final private SupportSQLiteDatabase mDatabase;
+
+    @Nonnull
+    final private BlobStore mBlobStore;
+
+    @Nonnull
+    final private CacheMetrics mMetrics;
+
+    /**
+     * held while writing to the database, so flushes don't interleave with each other or with removals
+     */
+    final private Object mFlushLock = new Object();
+
+    @GuardedBy("this")
+    final private Map<CacheEntry, PendingWrite> mPendingWrites = new LinkedHashMap<>();
+
+    @GuardedBy("this")
+    final private Set<CacheEntry> mPendingRenewals = new LinkedHashSet<>();
+
+    @GuardedBy("this")
+    private boolean mFlushScheduled;
+
+    WriteBehindQueue(SupportSQLiteDatabase database, BlobStore blobStore, CacheMetrics metrics) {
+        mDatabase = database;
+        mBlobStore = blobStore;
+        mMetrics = metrics;
+    }
+
+    /**
+     * queue the persist of an entry
+     *
+     * @param bytes            the value, for entries stored in the database row
+     * @param blobRef          the value, for entries stored in the blob store
+     * @param expiresTimestamp expiration of TIMEOUT entries
+     * @param fingerprint      what the value tells us about the list it is a page of, for SERVERSCAN entries
+     */
+    void enqueueWrite(Executor executor, CacheEntry entry, @Nullable byte[] bytes, @Nullable BlobStore.Ref blobRef, long length, long expiresTimestamp,
+                      @Nullable ListFingerprint fingerprint) {
+        Long serverScanTimestamp = null;
+        Long expires = null;
+        switch (entry.getCacheType()) {
+            case SERVERSCAN:
+                serverScanTimestamp = SBContextProvider.get().getServerStatus().getLastScanTime();
+                if (serverScanTimestamp == null) {
+                    // we're scanning, skip the write
+                    return;
+                }
+                break;
+            case TIMEOUT:
+                expires = expiresTimestamp;
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+
+        if (serverScanTimestamp == null) {
+            fingerprint = null;
+        }
+        PendingWrite write = new PendingWrite(entry, bytes, blobRef, length, serverScanTimestamp, expires, System.currentTimeMillis(), fingerprint);
+        synchronized (this) {
+            mPendingWrites.put(entry, write);
+        }
+        scheduleFlush(executor);
+    }
+
+    /**
+     * queue a last-used timestamp renewal of an entry
+     */
+    void enqueueRenewal(Executor executor, CacheEntry entry) {
+        boolean flushNeeded;
+        synchronized (this) {
+            mPendingRenewals.add(entry);
+            flushNeeded = mPendingRenewals.size() >= MAX_PENDING_RENEWALS;
+        }
+        if (flushNeeded) {
+            scheduleFlush(executor);
+        }
+    }
+
+    /**
+     * @return the queued value for the entry if it is still valid, so reads can see writes that haven't been committed
+     */
+    @Nonnull
+    Option<ByteSource> peek(CacheEntry entry) {
+        PendingWrite write;
+        synchronized (this) {
+            write = mPendingWrites.get(entry);
+        }
+        if (write == null) {
+            return OptionKt.none();
+        }
+
+        // match the selections used for rows in the database
+        switch (entry.getCacheType()) {
+            case SERVERSCAN:
+                if (write.mServerScanTimestamp == null || !write.mServerScanTimestamp.equals(SBContextProvider.get().getServerStatus().getLastScanTime())) {
+                    return OptionKt.none();
+                }
+                break;
+            case TIMEOUT:
+                if (write.mExpiresTimestamp == null || write.mExpiresTimestamp <= System.currentTimeMillis()) {
+                    return OptionKt.none();
+                }
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        return Option.fromNullable(write.asByteSource());
+    }
+
+    /**
+     * drop any queued write for the entry. Blocks while a flush is in progress, so after this returns the database can be updated safely.
+     */
+    void cancel(CacheEntry entry) {
+        synchronized (mFlushLock) {
+            synchronized (this) {
+                mPendingWrites.remove(entry);
+                mPendingRenewals.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * drop everything that is queued
+     */
+    void clear() {
+        synchronized (mFlushLock) {
+            synchronized (this) {
+                mPendingWrites.clear();
+                mPendingRenewals.clear();
+            }
+        }
+    }
+
+    synchronized int getPendingWriteCount() {
+        return mPendingWrites.size();
+    }
+
+    synchronized int getPendingRenewalCount() {
+        return mPendingRenewals.size();
+    }
+
+    /**
+     * write everything that is queued in a single transaction
+     */
+    void flush() {
+        synchronized (mFlushLock) {
+            flushLocked();
+        }
+    }
+
+    /**
+     * @return the blob segments referenced by writes that are still queued
+     */
+    @Nonnull
+    synchronized Set<Integer> getPendingBlobSegments() {
+        Set<Integer> retval = new HashSet<>();
+        for (PendingWrite write : mPendingWrites.values()) {
+            if (write.mBlobRef != null) {
+                retval.add(write.mBlobRef.getSegment());
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * flush, then run the task while holding off further flushes and removals
+     */
+    void flushAndRun(Runnable task) {
+        synchronized (mFlushLock) {
+            flushLocked();
+            task.run();
+        }
+    }
+
+    @GuardedBy("mFlushLock")
+    private void flushLocked() {
+        List<PendingWrite> writes;
+        List<CacheEntry> renewals;
+        synchronized (this) {
+            mFlushScheduled = false;
+            writes = new ArrayList<>(mPendingWrites.values());
+            renewals = new ArrayList<>(mPendingRenewals);
+            mPendingRenewals.clear();
+        }
+        if (writes.isEmpty() && renewals.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        int renewCount = 0;
+        List<PendingWrite> committed = new ArrayList<>(writes.size());
+
+        // blob data has to be durable before rows point at it
+        boolean blobsSynced = true;
+        for (PendingWrite write : writes) {
+            if (write.mBlobRef != null) {
+                try {
+                    mBlobStore.sync();
+                } catch (IOException e) {
+                    OSLog.w(OSLog.Tag.CACHE, "Error syncing blob store", e);
+                    blobsSynced = false;
+                }
+                break;
+            }
+        }
+
+        SupportSQLiteStatement selectId = null;
+        SupportSQLiteStatement upsert = null;
+        SupportSQLiteStatement mergeFingerprint = null;
+        SupportSQLiteStatement stageRenewal = null;
+        SupportSQLiteStatement renew = null;
+        mDatabase.beginTransaction();
+        try {
+            if (!writes.isEmpty()) {
+                selectId = mDatabase.compileStatement(SELECT_ID_SQL);
+                upsert = mDatabase.compileStatement(UPSERT_SQL);
+                mergeFingerprint = mDatabase.compileStatement(MERGE_FINGERPRINT_SQL);
+                for (PendingWrite write : writes) {
+                    if (write.mBlobRef != null && !blobsSynced) {
+                        continue;
+                    }
+                    try {
+                        write.persist(selectId, upsert, mergeFingerprint);
+                        committed.add(write);
+                    } catch (IOException e) {
+                        OSLog.w(OSLog.Tag.CACHE, "Error writing " + write.mEntry + " to database or filesystem", e);
+                    }
+                }
+            }
+            if (!renewals.isEmpty()) {
+                // the temporary table lives on the writer connection, it's only touched inside this transaction
+                mDatabase.execSQL(CREATE_RENEWAL_TABLE_SQL);
+                mDatabase.execSQL(CLEAR_RENEWAL_TABLE_SQL);
+                stageRenewal = mDatabase.compileStatement(STAGE_RENEWAL_SQL);
+                for (CacheEntry entry : renewals) {
+                    stageRenewal.clearBindings();
+                    stageRenewal.bindLong(1, entry.getServerId());
+                    stageRenewal.bindLong(2, entry.getKeyHash());
+                    stageRenewal.bindString(3, entry.getKey());
+                    stageRenewal.executeInsert();
+                }
+                renew = mDatabase.compileStatement(RENEW_SQL);
+                renew.bindLong(1, System.currentTimeMillis());
+                renewCount = renew.executeUpdateDelete();
+                mDatabase.execSQL(CLEAR_RENEWAL_TABLE_SQL);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            closeStatement(selectId);
+            closeStatement(upsert);
+            closeStatement(mergeFingerprint);
+            closeStatement(stageRenewal);
+            closeStatement(renew);
+            mDatabase.endTransaction();
+
+            synchronized (this) {
+                for (PendingWrite write : writes) {
+                    // unless it was replaced by a newer write in the meantime
+                    if (mPendingWrites.get(write.mEntry) == write) {
+                        mPendingWrites.remove(write.mEntry);
+                    }
+                }
+            }
+        }
+        mMetrics.recordLatency(CacheMetrics.Operation.COMMIT, start);
+
+        if (OSLog.isLoggable(OSLog.Tag.CACHE, OSLog.DEBUG)) {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            OSLog.d(OSLog.Tag.CACHE, "Group commit of " + committed.size() + " write(s) and " + renewCount + " renewal(s) took " + elapsed + "ms");
+        }
+    }
+
+    private void scheduleFlush(Executor executor) {
+        synchronized (this) {
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        OSExecutors.getSingleThreadScheduledExecutor().schedule(() -> executor.execute(this::flush), GROUP_COMMIT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    static private void closeStatement(@Nullable SupportSQLiteStatement statement) {
+        if (statement == null) {
+            return;
+        }
+        try {
+            statement.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    static private void bindPage(SupportSQLiteStatement statement, int index, int pageSize, @Nullable Long pageHash) {
+        if (pageHash != null) {
+            statement.bindLong(index, pageSize);
+            statement.bindLong(index + 1, pageHash);
+        } else {
+            statement.bindNull(index);
+            statement.bindNull(index + 1);
+        }
+    }
+
+    private class PendingWrite {
+        @Nonnull
+        final CacheEntry mEntry;
+
+        @Nullable
+        final byte[] mBytes;
+
+        @Nullable
+        final BlobStore.Ref mBlobRef;
+
+        final long mLength;
+
+        @Nullable
+        final Long mServerScanTimestamp;
+
+        @Nullable
+        final Long mExpiresTimestamp;
+
+        final long mLastUsedTimestamp;
+
+        @Nullable
+        final ListFingerprint mFingerprint;
+
+        PendingWrite(CacheEntry entry, @Nullable byte[] bytes, @Nullable BlobStore.Ref blobRef, long length, @Nullable Long serverScanTimestamp,
+                     @Nullable Long expiresTimestamp, long lastUsedTimestamp, @Nullable ListFingerprint fingerprint) {
+            mEntry = entry;
+            mBytes = bytes;
+            mBlobRef = blobRef;
+            mLength = length;
+            mServerScanTimestamp = serverScanTimestamp;
+            mExpiresTimestamp = expiresTimestamp;
+            mLastUsedTimestamp = lastUsedTimestamp;
+            mFingerprint = fingerprint;
+        }
+
+        @Nullable
+        ByteSource asByteSource() {
+            if (mBytes != null) {
+                return ByteSource.wrap(mBytes);
+            }
+            if (mBlobRef != null) {
+                return mBlobStore.open(mBlobRef);
+            }
+            return null;
+        }
+
+        void persist(SupportSQLiteStatement selectId, SupportSQLiteStatement upsert, SupportSQLiteStatement mergeFingerprint) throws IOException {
+            selectId.clearBindings();
+            selectId.bindLong(1, mEntry.getServerId());
+            selectId.bindLong(2, mEntry.getKeyHash());
+            selectId.bindString(3, mEntry.getKey());
+            long existingId;
+            try {
+                existingId = selectId.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                existingId = -1;
+            }
+
+            upsert.clearBindings();
+            if (existingId != -1) {
+                upsert.bindLong(1, existingId);
+            } else {
+                upsert.bindNull(1);
+            }
+            upsert.bindString(2, mEntry.getKey());
+            upsert.bindLong(3, mEntry.getKeyHash());
+            upsert.bindLong(4, mEntry.getServerId());
+            if (mBytes != null) {
+                upsert.bindString(5, CacheContent.ItemStatus.INTERNAL.name());
+                upsert.bindBlob(6, mBytes);
+            } else {
+                upsert.bindString(5, CacheContent.ItemStatus.EXTERNAL.name());
+                upsert.bindNull(6);
+            }
+            upsert.bindLong(7, mLength);
+            if (mServerScanTimestamp != null) {
+                upsert.bindLong(8, mServerScanTimestamp);
+            } else {
+                upsert.bindNull(8);
+            }
+            if (mExpiresTimestamp != null) {
+                upsert.bindLong(9, mExpiresTimestamp);
+            } else {
+                upsert.bindNull(9);
+            }
+            upsert.bindLong(10, mLastUsedTimestamp);
+            if (mBlobRef != null) {
+                upsert.bindLong(11, mBlobRef.getSegment());
+                upsert.bindLong(12, mBlobRef.getOffset());
+            } else {
+                upsert.bindNull(11);
+                upsert.bindNull(12);
+            }
+            if (mFingerprint != null) {
+                upsert.bindLong(13, mFingerprint.getListKeyHash());
+            } else {
+                upsert.bindNull(13);
+            }
+            long rowId = upsert.executeInsert();
+            if (rowId == -1) {
+                throw new IOException("insert failed");
+            }
+
+            if (mFingerprint != null && mServerScanTimestamp != null) {
+                mergeFingerprint.clearBindings();
+                mergeFingerprint.bindLong(1, mEntry.getServerId());
+                mergeFingerprint.bindLong(2, mFingerprint.getListKeyHash());
+                mergeFingerprint.bindString(3, mFingerprint.getListKey());
+                mergeFingerprint.bindLong(4, mFingerprint.getItemCount());
+                bindPage(mergeFingerprint, 5, mFingerprint.getFirstPageSize(), mFingerprint.getFirstPageHash());
+                bindPage(mergeFingerprint, 7, mFingerprint.getLastPageSize(), mFingerprint.getLastPageHash());
+                mergeFingerprint.bindLong(9, mServerScanTimestamp);
+                mergeFingerprint.executeInsert();
+            }
+
+            if (OSLog.isLoggable(OSLog.Tag.CACHE, OSLog.VERBOSE)) {
+                OSLog.v(OSLog.Tag.CACHE, "Successfully wrote " + mEntry + " to the database cache");
+            }
+        }
+    }
+}
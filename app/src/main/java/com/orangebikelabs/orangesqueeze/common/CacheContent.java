@@ -26,6 +26,19 @@ public class CacheContent {
     public static final String COLUMN_CACHE_SERVERSCAN_TIMESTAMP = "cacheserverscantimestamp";
     public static final String COLUMN_CACHE_EXPIRES_TIMESTAMP = "cacheexpirestimestamp";
     public static final String COLUMN_CACHE_LASTUSED_TIMESTAMP = "cachelastusedtimestamp";
+    public static final String COLUMN_CACHE_BLOB_SEGMENT = "cacheblobsegment";
+    public static final String COLUMN_CACHE_BLOB_OFFSET = "cachebloboffset";
+    public static final String COLUMN_CACHE_LIST_KEYHASH = "cachelistkeyhash";
+
+    public static final String TABLE_CACHE_FINGERPRINT = "cache_fingerprint";
+    public static final String COLUMN_FINGERPRINT_LIST_KEYHASH = "listkeyhash";
+    public static final String COLUMN_FINGERPRINT_LIST_KEY = "listkey";
+    public static final String COLUMN_FINGERPRINT_ITEM_COUNT = "itemcount";
+    public static final String COLUMN_FINGERPRINT_FIRST_PAGE_SIZE = "firstpagesize";
+    public static final String COLUMN_FINGERPRINT_FIRST_HASH = "firsthash";
+    public static final String COLUMN_FINGERPRINT_LAST_PAGE_SIZE = "lastpagesize";
+    public static final String COLUMN_FINGERPRINT_LAST_HASH = "lasthash";
+    public static final String COLUMN_FINGERPRINT_SERVERSCAN_TIMESTAMP = "serverscantimestamp";
 
     @Keep
     public enum ItemStatus {
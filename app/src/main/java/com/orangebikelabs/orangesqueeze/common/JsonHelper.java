@@ -14,6 +14,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.BinaryNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.google.common.collect.Iterables;
@@ -25,6 +26,7 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
@@ -39,6 +41,15 @@ import javax.annotation.Nullable;
  * @author tbsandee@orangebikelabs.com
  */
 public class JsonHelper {
+    // rough per-object heap costs used by estimateMemorySize()
+    final static private int REFERENCE_SIZE = 4;
+    final static private int VALUE_NODE_OVERHEAD = 16;
+    final static private int ARRAY_OVERHEAD = 16;
+    final static private int STRING_OVERHEAD = 24 + ARRAY_OVERHEAD;
+    final static private int OBJECT_NODE_OVERHEAD = 16 + 56;
+    final static private int ARRAY_NODE_OVERHEAD = 16 + 24 + ARRAY_OVERHEAD;
+    final static private int FIELD_OVERHEAD = 32;
+
     final static private SmileFactory sSmileFactory;
     final static private JsonFactory sJsonFactory;
     final static private ObjectMapper sObjectMapper;
@@ -179,4 +190,52 @@ public class JsonHelper {
     public static boolean isResponseCacheable(JsonNode node) {
         return node.path("rescan").asInt() == 0;
     }
+
+    /**
+     * estimate the heap used by a parsed tree. Counts object headers, field table entries and two bytes per string character, which is
+     * close enough for sizing memory caches.
+     */
+    public static int estimateMemorySize(JsonNode root) {
+        long size = 0;
+        ArrayDeque<JsonNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            JsonNode node = pending.pop();
+            switch (node.getNodeType()) {
+                case OBJECT:
+                    size += OBJECT_NODE_OVERHEAD;
+                    Iterator<Map.Entry<String, JsonNode>> it = node.fields();
+                    while (it.hasNext()) {
+                        Map.Entry<String, JsonNode> field = it.next();
+                        size += FIELD_OVERHEAD + stringSize(field.getKey());
+                        pending.push(field.getValue());
+                    }
+                    break;
+                case ARRAY:
+                    size += ARRAY_NODE_OVERHEAD + REFERENCE_SIZE * node.size();
+                    for (JsonNode child : node) {
+                        pending.push(child);
+                    }
+                    break;
+                case STRING:
+                    size += VALUE_NODE_OVERHEAD + stringSize(node.textValue());
+                    break;
+                case BINARY:
+                    size += VALUE_NODE_OVERHEAD + ARRAY_OVERHEAD + ((BinaryNode) node).binaryValue().length;
+                    break;
+                case NUMBER:
+                case POJO:
+                    size += VALUE_NODE_OVERHEAD;
+                    break;
+                default:
+                    // booleans, nulls and missing nodes are shared singletons
+                    break;
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    private static long stringSize(@Nullable String value) {
+        return value == null ? 0 : STRING_OVERHEAD + 2L * value.length();
+    }
 }
@@ -17,13 +17,16 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.orangebikelabs.orangesqueeze.cache.CacheEntry;
 import com.orangebikelabs.orangesqueeze.common.OSLog.Tag;
 import com.orangebikelabs.orangesqueeze.common.SBRequest.Type;
 
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -73,6 +76,11 @@ public class LoopingRequest {
      */
     final protected AtomicBoolean mAborted = new AtomicBoolean();
 
+    /**
+     * cache entries that loops were served from while they were stale
+     */
+    final private Set<CacheEntry> mStaleCacheEntries = new CopyOnWriteArraySet<>();
+
     @GuardedBy("this")
     private int mTotalRecordCount;
 
@@ -144,6 +152,7 @@ public class LoopingRequest {
         mPosition.set(0);
         mIsFirstLoop = true;
         mAborted.set(false);
+        mStaleCacheEntries.clear();
     }
 
     synchronized public LoopingRequestData newLoopingRequestData() {
@@ -154,6 +163,13 @@ public class LoopingRequest {
         return mIsStarted.get();
     }
 
+    /**
+     * @return whether part of the results came from the supplied cache entry while it was stale
+     */
+    public boolean wasServedStale(CacheEntry entry) {
+        return mStaleCacheEntries.contains(entry);
+    }
+
     synchronized public boolean isCacheable() {
         return mCacheable;
     }
@@ -274,6 +290,10 @@ public class LoopingRequest {
             FutureResult futureResult = lastRequest.submit(MoreExecutors.newDirectExecutorService());
             setLastResult(futureResult);
             SBResult result = futureResult.checkedGet();
+            CacheEntry staleCacheEntry = result.getStaleCacheEntry();
+            if (staleCacheEntry != null) {
+                mStaleCacheEntries.add(staleCacheEntry);
+            }
 
             // if request threw an exception OR started flag was changed while we were issuing the request, bail right now
             if (!mIsStarted.get()) {
@@ -7,6 +7,9 @@ package com.orangebikelabs.orangesqueeze.common;
 
 import androidx.loader.content.Loader;
 
+import com.orangebikelabs.orangesqueeze.common.event.CacheEntryRefreshedEvent;
+import com.squareup.otto.Subscribe;
+
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
@@ -16,6 +19,9 @@ import javax.annotation.Nullable;
  * <p/>
  * Uses the LoopingRequest.Holder class as a marker to force loader updates.
  * <p/>
+ * If the request was served a stale cache entry, it is reissued when the background refresh of that entry lands. The loader listens for
+ * refreshes from the first start until it is reset, so a refresh that lands while it is stopped is picked up on the next start.
+ * <p/>
  *
  * @author tbsandee@orangebikelabs.com
  */
@@ -26,6 +32,8 @@ public class LoopingRequestLoader<T extends LoopingRequestData> extends Loader<T
     final protected int mLoaderInstance = sInstanceCounter.getAndIncrement();
     final protected LoopingRequest mRequest;
 
+    private boolean mRegistered;
+
     public LoopingRequestLoader(LoopingRequest request) {
         super(SBContextProvider.get().getApplicationContext());
 
@@ -41,6 +49,7 @@ public class LoopingRequestLoader<T extends LoopingRequestData> extends Loader<T
     protected void onReset() {
         logVerbose("onReset");
 
+        unregisterBusListener();
         mRequest.reset();
 
         super.onReset();
@@ -50,6 +59,7 @@ public class LoopingRequestLoader<T extends LoopingRequestData> extends Loader<T
     protected void onStartLoading() {
         logVerbose("onStartLoading");
 
+        registerBusListener();
         mRequest.submit(OSExecutors.getUnboundedPool());
 
         // in a few situations, deliver results immediately
@@ -110,6 +120,38 @@ public class LoopingRequestLoader<T extends LoopingRequestData> extends Loader<T
         }
     }
 
+    private void registerBusListener() {
+        OSAssert.assertMainThread();
+
+        if (!mRegistered) {
+            mRegistered = true;
+            BusProvider.getInstance().register(mEventReceiver);
+        }
+    }
+
+    private void unregisterBusListener() {
+        OSAssert.assertMainThread();
+
+        if (mRegistered) {
+            mRegistered = false;
+            BusProvider.getInstance().unregister(mEventReceiver);
+        }
+    }
+
+    final private Object mEventReceiver = new Object() {
+        @Subscribe
+        public void whenCacheEntryRefreshed(CacheEntryRefreshedEvent event) {
+            if (!mRequest.wasServedStale(event.getEntry())) {
+                return;
+            }
+            logVerbose("reloading refreshed " + event.getEntry());
+
+            // the refreshed value is in the cache now, reissue the request from the start
+            mRequest.reset();
+            onContentChanged();
+        }
+    };
+
     final protected void logVerbose(String message) {
         if (OSLog.isLoggable(OSLog.Tag.LOADERS, OSLog.VERBOSE)) {
             OSLog.v(OSLog.Tag.LOADERS, "LoopingRequestLoader:" + mRequest.getClass().getSimpleName() + ":" + mLoaderInstance + " " + message);
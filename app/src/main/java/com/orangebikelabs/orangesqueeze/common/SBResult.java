@@ -8,8 +8,10 @@ package com.orangebikelabs.orangesqueeze.common;
 import androidx.annotation.Keep;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.orangebikelabs.orangesqueeze.cache.CacheEntry;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * @author tbsandee@orangebikelabs.com
@@ -23,4 +25,10 @@ public interface SBResult {
 
     @Nonnull
      JsonNode getJsonResult();
+
+    /**
+     * @return the cache entry this result was served from if it had expired and is being refreshed in the background, otherwise null
+     */
+    @Nullable
+    CacheEntry getStaleCacheEntry();
 }
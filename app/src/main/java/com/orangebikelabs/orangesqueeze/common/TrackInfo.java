@@ -133,6 +133,11 @@ public class TrackInfo {
             return ByteSource.wrap(bytes);
         }
 
+        @Override
+        public boolean shouldCompressForDatabaseCache() {
+            return true;
+        }
+
         @Override
         public int onEstimateMemorySize(CacheService service, byte[] toEstimate) {
             return toEstimate.length;
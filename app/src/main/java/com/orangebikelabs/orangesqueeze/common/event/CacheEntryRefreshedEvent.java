@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.common.event;
+
+import androidx.annotation.Keep;
+
+import com.google.common.base.MoreObjects;
+import com.orangebikelabs.orangesqueeze.cache.CacheEntry;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Fired when a stale cache entry has been replaced with a fresh copy from the server. Anything showing the stale value can reload it.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@Keep
+public class CacheEntryRefreshedEvent {
+
+    @Nonnull
+    final private CacheEntry mEntry;
+
+    public CacheEntryRefreshedEvent(CacheEntry entry) {
+        mEntry = entry;
+    }
+
+    @Nonnull
+    public CacheEntry getEntry() {
+        return mEntry;
+    }
+
+    @Override
+    @Nonnull
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("entry", mEntry).toString();
+    }
+}
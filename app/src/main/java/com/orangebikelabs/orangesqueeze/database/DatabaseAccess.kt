@@ -149,6 +149,7 @@ fun OSDatabase.deleteServer(id: Long) {
     transaction {
         downloadQueries.deleteWithServerId(id)
         cacheQueries.deleteWithServerId(id)
+        cacheQueries.deleteFingerprintsWithServerId(id)
         serverQueries.deleteById(id)
     }
 }
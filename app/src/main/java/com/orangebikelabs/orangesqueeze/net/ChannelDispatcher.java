@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Runs Comet subscription callbacks on a bounded pool. Callbacks for the same Bayeux channel (and therefore the same player, since
+ * player and menu status channels are per-player) run one at a time in the order they were received, while independent channels run
+ * concurrently. The time each callback spends waiting to run is recorded per channel.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+class ChannelDispatcher {
+    @Nonnull
+    final private ExecutorService mPool;
+
+    final private ConcurrentMap<String, Channel> mChannels = new ConcurrentHashMap<>();
+
+    ChannelDispatcher(ExecutorService pool) {
+        mPool = pool;
+    }
+
+    /**
+     * queue the task behind any other outstanding tasks for the channel
+     *
+     * @return false if the dispatcher has been shut down and the task was dropped
+     */
+    public boolean dispatch(String channel, Runnable task) {
+        final Channel c = getChannel(channel);
+        final long enqueueTime = System.nanoTime();
+        try {
+            c.mExecutor.execute(() -> {
+                c.mStats.record(System.nanoTime() - enqueueTime);
+                task.run();
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    /**
+     * snapshot of the queue wait statistics, keyed by channel
+     */
+    @Nonnull
+    public Map<String, WaitStats> getWaitStats() {
+        ImmutableMap.Builder<String, WaitStats> builder = ImmutableMap.builder();
+        for (Map.Entry<String, Channel> entry : mChannels.entrySet()) {
+            builder.put(entry.getKey(), entry.getValue().mStats.snapshot());
+        }
+        return builder.build();
+    }
+
+    @Nonnull
+    private Channel getChannel(String channel) {
+        Channel retval = mChannels.get(channel);
+        if (retval == null) {
+            Channel newChannel = new Channel(MoreExecutors.newSequentialExecutor(mPool));
+            retval = mChannels.putIfAbsent(channel, newChannel);
+            if (retval == null) {
+                retval = newChannel;
+            }
+        }
+        return retval;
+    }
+
+    static private class Channel {
+        @Nonnull
+        final Executor mExecutor;
+
+        final MutableWaitStats mStats = new MutableWaitStats();
+
+        Channel(Executor executor) {
+            mExecutor = executor;
+        }
+    }
+
+    static private class MutableWaitStats {
+        final private AtomicLong mCount = new AtomicLong();
+        final private AtomicLong mTotalNanos = new AtomicLong();
+        final private AtomicLong mMaxNanos = new AtomicLong();
+
+        void record(long waitNanos) {
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(waitNanos);
+
+            long max;
+            do {
+                max = mMaxNanos.get();
+            } while (waitNanos > max && !mMaxNanos.compareAndSet(max, waitNanos));
+        }
+
+        @Nonnull
+        WaitStats snapshot() {
+            return new WaitStats(mCount.get(), mTotalNanos.get(), mMaxNanos.get());
+        }
+    }
+
+    /**
+     * immutable queue wait statistics for a single channel
+     */
+    static public class WaitStats {
+        final private long mCount;
+        final private long mTotalNanos;
+        final private long mMaxNanos;
+
+        WaitStats(long count, long totalNanos, long maxNanos) {
+            mCount = count;
+            mTotalNanos = totalNanos;
+            mMaxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getTotalWait(TimeUnit units) {
+            return units.convert(mTotalNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public long getAverageWait(TimeUnit units) {
+            return mCount == 0 ? 0 : units.convert(mTotalNanos / mCount, TimeUnit.NANOSECONDS);
+        }
+
+        public long getMaxWait(TimeUnit units) {
+            return units.convert(mMaxNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        @Nonnull
+        public String toString() {
+            return "count=" + mCount + ", avgWaitMs=" + getAverageWait(TimeUnit.MILLISECONDS) + ", maxWaitMs=" + getMaxWait(TimeUnit.MILLISECONDS);
+        }
+    }
+}
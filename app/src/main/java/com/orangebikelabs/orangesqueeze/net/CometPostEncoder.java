@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Encodes complete Comet POSTs (headers and body) into a single reusable buffer. The headers are pre-encoded once per connection, the
+ * Bayeux messages are serialized straight into the buffer after them and the Content-Length value is patched in afterwards, so each POST
+ * can go out with a single write.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@NotThreadSafe
+class CometPostEncoder {
+    /**
+     * room for the Content-Length value, right-aligned and padded with leading whitespace
+     */
+    final static private int CONTENT_LENGTH_WIDTH = 10;
+
+    final static private int INITIAL_BUFFER_SIZE = 4096;
+
+    @Nonnull
+    final private ObjectMapper mObjectMapper;
+
+    @Nonnull
+    final private byte[] mHeaderTemplate;
+
+    final private int mContentLengthOffset;
+
+    @Nonnull
+    final private ExposedByteArrayOutputStream mOutput = new ExposedByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+
+    CometPostEncoder(ObjectMapper objectMapper, URL url, String userAgent, @Nullable HttpUtils.Header authHeader) {
+        mObjectMapper = objectMapper;
+
+        StringBuilder headers = new StringBuilder(256);
+        headers.append("POST ").append(url.getPath()).append(" HTTP/1.1\r\n");
+        headers.append("Host: ").append(url.getHost()).append(':').append(url.getPort()).append("\r\n");
+        headers.append("Cache-Control: no-cache\r\n");
+        headers.append("Content-Type: ").append(JsonRpc.JSON_CONTENT_TYPE).append("\r\n");
+        headers.append("Accept-Charset: ").append(Charsets.UTF_8.name()).append("\r\n");
+        headers.append("User-Agent: ").append(userAgent).append("\r\n");
+        if (authHeader != null) {
+            headers.append(authHeader.getName()).append(": ").append(authHeader.getValue()).append("\r\n");
+        }
+        headers.append("Content-Length:");
+        mContentLengthOffset = headers.length();
+        for (int i = 0; i < CONTENT_LENGTH_WIDTH; i++) {
+            headers.append(' ');
+        }
+        headers.append("\r\n\r\n");
+
+        mHeaderTemplate = headers.toString().getBytes(Charsets.US_ASCII);
+    }
+
+    /**
+     * serialize the messages as a single Bayeux message array. Messages that are already arrays are flattened into it.
+     *
+     * @return the length of the encoded POST in {@link #getBuffer()}
+     */
+    public int encode(List<JsonNode> messages) throws IOException {
+        mOutput.reset();
+        mOutput.write(mHeaderTemplate, 0, mHeaderTemplate.length);
+
+        try (JsonGenerator generator = mObjectMapper.getFactory().createGenerator(mOutput)) {
+            generator.writeStartArray();
+            for (JsonNode message : messages) {
+                if (message.isArray()) {
+                    for (JsonNode element : message) {
+                        mObjectMapper.writeTree(generator, element);
+                    }
+                } else {
+                    mObjectMapper.writeTree(generator, message);
+                }
+            }
+            generator.writeEndArray();
+        }
+
+        int length = mOutput.size();
+        patchContentLength(length - mHeaderTemplate.length);
+        return length;
+    }
+
+    /**
+     * the buffer is only valid until the next call to {@link #encode(List)}
+     */
+    @Nonnull
+    public byte[] getBuffer() {
+        return mOutput.getBuffer();
+    }
+
+    /**
+     * for logging only
+     */
+    @Nonnull
+    public String getBody(int length) {
+        return new String(mOutput.getBuffer(), mHeaderTemplate.length, length - mHeaderTemplate.length, Charsets.UTF_8);
+    }
+
+    private void patchContentLength(int contentLength) throws IOException {
+        byte[] buffer = mOutput.getBuffer();
+        int end = mContentLengthOffset + CONTENT_LENGTH_WIDTH;
+        int pos = end;
+        int value = contentLength;
+        do {
+            if (pos == mContentLengthOffset) {
+                throw new IOException("Content too large: " + contentLength);
+            }
+            buffer[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        Arrays.fill(buffer, mContentLengthOffset, pos, (byte) ' ');
+    }
+
+    /**
+     * unsynchronized growable buffer that exposes its backing array
+     */
+    static private class ExposedByteArrayOutputStream extends OutputStream {
+        @Nonnull
+        private byte[] mBuffer;
+
+        private int mCount;
+
+        ExposedByteArrayOutputStream(int initialSize) {
+            mBuffer = new byte[initialSize];
+        }
+
+        @Nonnull
+        byte[] getBuffer() {
+            return mBuffer;
+        }
+
+        int size() {
+            return mCount;
+        }
+
+        void reset() {
+            mCount = 0;
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(mCount + 1);
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(mCount + len);
+            System.arraycopy(b, off, mBuffer, mCount, len);
+            mCount += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(capacity, mBuffer.length * 2));
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.orangebikelabs.orangesqueeze.common.JsonHelper;
+import com.orangebikelabs.orangesqueeze.common.OSExecutors;
+import com.orangebikelabs.orangesqueeze.common.OSLog;
+import com.orangebikelabs.orangesqueeze.common.OSLog.Tag;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Sends Comet requests to the server once the streaming connection is established. Everything queued while a POST is being built goes
+ * into a single Bayeux message array, and up to a fixed number of POSTs are outstanding at once. POSTs are sent asynchronously, so no
+ * thread waits on the server while they are outstanding. Responses are routed back through
+ * {@link StreamingConnection#onResponseReceived(JsonNode)}, which matches them to their futures by request id, and only then is the POST's
+ * place in the window freed.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+class CometRequestPipeline {
+    final private StreamingConnection mConnection;
+    final private LinkedBlockingQueue<PendingRequest> mQueue = new LinkedBlockingQueue<>();
+    final private RequestWindow mWindow;
+    final private Executor mExecutor;
+
+    volatile private boolean mClosed;
+
+    CometRequestPipeline(StreamingConnection connection, int maxOutstandingPosts) {
+        this(connection, maxOutstandingPosts, OSExecutors.getUnboundedPool());
+    }
+
+    CometRequestPipeline(StreamingConnection connection, int maxOutstandingPosts, Executor executor) {
+        mConnection = connection;
+        mWindow = new RequestWindow(maxOutstandingPosts);
+        mWindow.open();
+        mExecutor = executor;
+    }
+
+    public void submit(JsonNode request, SettableFuture<JsonNode> handler) {
+        if (mClosed) {
+            handler.setException(new IOException("connection closed"));
+            return;
+        }
+        mQueue.add(new PendingRequest(request, handler));
+        maybeStartPost();
+    }
+
+    /**
+     * fail any queued requests, outstanding POSTs are left to complete or fail on their own
+     */
+    public void close() {
+        mClosed = true;
+
+        List<PendingRequest> remaining = new ArrayList<>();
+        mQueue.drainTo(remaining);
+        for (PendingRequest request : remaining) {
+            request.mHandler.setException(new IOException("connection closed"));
+        }
+    }
+
+    public int getOutstandingPosts() {
+        return mWindow.getOutstanding();
+    }
+
+    /**
+     * start a POST for everything queued, for as long as there is work and room in the window
+     */
+    private void maybeStartPost() {
+        RequestWindow.Slot slot;
+        while (!mQueue.isEmpty() && (slot = mWindow.tryAcquire(Collections.emptySet())) != null) {
+            List<PendingRequest> batch = new ArrayList<>();
+            mQueue.drainTo(batch);
+            if (batch.isEmpty()) {
+                // another thread took the work, give the slot back and check again
+                mWindow.release(slot);
+            } else if (mClosed) {
+                for (PendingRequest request : batch) {
+                    request.mHandler.setException(new IOException("connection closed"));
+                }
+                mWindow.release(slot);
+            } else {
+                post(batch, slot);
+            }
+        }
+    }
+
+    /**
+     * send the batch without waiting for the server, the slot is held until the response has been routed
+     */
+    private void post(final List<PendingRequest> batch, final RequestWindow.Slot slot) {
+        ArrayNode payload = JsonHelper.getJsonObjectMapper().createArrayNode();
+        for (PendingRequest request : batch) {
+            if (request.mRequest.isArray()) {
+                payload.addAll((ArrayNode) request.mRequest);
+            } else {
+                payload.add(request.mRequest);
+            }
+        }
+        OSLog.d(Tag.DEFAULT, "CometRequestPipeline::post " + batch.size() + " request(s)", payload);
+
+        JsonRpc rpc = new JsonRpc();
+        // pull in credentials from this connection
+        rpc.setCredentials(mConnection.mConnectionCredentials);
+        rpc.setTimeout(60, TimeUnit.SECONDS);
+
+        Futures.addCallback(rpc.executeAsync(mConnection.getCometUrl(), payload), new FutureCallback<JsonNode>() {
+            @Override
+            public void onSuccess(@Nullable JsonNode result) {
+                try {
+                    if (result != null) {
+                        routeResponses(result);
+                    }
+                } finally {
+                    onPostComplete(slot);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                try {
+                    OSLog.w(t.getMessage(), t);
+
+                    for (PendingRequest request : batch) {
+                        request.mHandler.setException(t);
+                    }
+                } finally {
+                    onPostComplete(slot);
+                }
+            }
+        }, mExecutor);
+    }
+
+    private void routeResponses(JsonNode result) {
+        if (result.isObject()) {
+            mConnection.onResponseReceived(result);
+            return;
+        }
+        OSLog.TimingLoggerCompat requestTimer = Tag.TIMING.newTimingLogger("CometRequestPipeline::post");
+        for (JsonNode node : result) {
+            if (node.isObject()) {
+                requestTimer.addSplit("iteration");
+
+                mConnection.onResponseReceived(node);
+            }
+        }
+        requestTimer.close();
+    }
+
+    private void onPostComplete(RequestWindow.Slot slot) {
+        mWindow.release(slot);
+
+        // pick up anything queued while the window was full
+        maybeStartPost();
+    }
+
+    static private class PendingRequest {
+        PendingRequest(JsonNode request, SettableFuture<JsonNode> handler) {
+            mRequest = request;
+            mHandler = handler;
+        }
+
+        @Nonnull
+        final JsonNode mRequest;
+
+        @Nonnull
+        final SettableFuture<JsonNode> mHandler;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Reusable buffer for a single line of HTTP framing (status line, header or chunk size) that can be inspected without creating Strings.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@NotThreadSafe
+class HttpLineBuffer {
+    final static private int INITIAL_LINE_SIZE = 256;
+
+    final static private byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+    final static private byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    final static private byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+
+    @Nonnull
+    private byte[] mLine = new byte[INITIAL_LINE_SIZE];
+
+    private int mLength;
+
+    public int length() {
+        return mLength;
+    }
+
+    public void clear() {
+        mLength = 0;
+    }
+
+    public void append(byte[] buffer, int start, int end) {
+        int length = end - start;
+        if (mLength + length > mLine.length) {
+            byte[] newLine = new byte[Math.max(mLine.length * 2, mLength + length)];
+            System.arraycopy(mLine, 0, newLine, 0, mLength);
+            mLine = newLine;
+        }
+        System.arraycopy(buffer, start, mLine, mLength, length);
+        mLength += length;
+    }
+
+    /**
+     * called once the line terminator has been found
+     */
+    public void trimTrailingCr() {
+        if (mLength > 0 && mLine[mLength - 1] == HttpUtils.CR) {
+            mLength--;
+        }
+    }
+
+    /**
+     * @return true if this is a Transfer-Encoding header that includes chunked encoding
+     */
+    public boolean isChunkedTransferEncoding() {
+        int colon = indexOf(':');
+        return colon != -1 && headerNameEquals(colon, TRANSFER_ENCODING) && valueContains(colon + 1, CHUNKED);
+    }
+
+    /**
+     * @return the content length, or -1 if this isn't a Content-Length header
+     */
+    public long parseContentLength() throws IOException {
+        int colon = indexOf(':');
+        if (colon == -1 || !headerNameEquals(colon, CONTENT_LENGTH)) {
+            return -1;
+        }
+        int i = skipWhitespace(colon + 1);
+        long retval = 0;
+        int digits = 0;
+        for (; i < mLength; i++) {
+            byte c = mLine[i];
+            if (c < '0' || c > '9') {
+                break;
+            }
+            if (++digits > 18) {
+                throw new IOException("Bad content length: " + this);
+            }
+            retval = retval * 10 + (c - '0');
+        }
+        if (digits == 0 || skipWhitespace(i) != mLength) {
+            throw new IOException("Bad content length: " + this);
+        }
+        return retval;
+    }
+
+    /**
+     * parse a chunk size line, ignoring any chunk extensions. A blank size is treated as zero.
+     */
+    public long parseChunkSize() throws IOException {
+        long retval = 0;
+        int digits = 0;
+        int i = skipWhitespace(0);
+        for (; i < mLength; i++) {
+            int digit = Character.digit(mLine[i], 16);
+            if (digit == -1) {
+                break;
+            }
+            if (++digits > 15) {
+                throw new IOException("Bad chunk header: " + this);
+            }
+            retval = (retval << 4) | digit;
+        }
+        i = skipWhitespace(i);
+        if (i < mLength && mLine[i] != ';') {
+            throw new IOException("Bad chunk header: " + this);
+        }
+        return retval;
+    }
+
+    private int indexOf(char c) {
+        for (int i = 0; i < mLength; i++) {
+            if (mLine[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int skipWhitespace(int ndx) {
+        while (ndx < mLength && (mLine[ndx] == ' ' || mLine[ndx] == '\t')) {
+            ndx++;
+        }
+        return ndx;
+    }
+
+    /**
+     * case-insensitive comparison of the (trimmed) header name against the lowercase expected value
+     */
+    private boolean headerNameEquals(int colon, byte[] expected) {
+        int end = colon;
+        while (end > 0 && (mLine[end - 1] == ' ' || mLine[end - 1] == '\t')) {
+            end--;
+        }
+        int start = skipWhitespace(0);
+        if (end - start != expected.length) {
+            return false;
+        }
+        return regionMatchesIgnoreCase(start, expected);
+    }
+
+    private boolean valueContains(int start, byte[] expected) {
+        for (int i = start; i + expected.length <= mLength; i++) {
+            if (regionMatchesIgnoreCase(i, expected)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean regionMatchesIgnoreCase(int start, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            int c = mLine[start + i];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * only used when constructing exception messages
+     */
+    @Override
+    @Nonnull
+    public String toString() {
+        return new String(mLine, 0, mLength, StandardCharsets.US_ASCII);
+    }
+}
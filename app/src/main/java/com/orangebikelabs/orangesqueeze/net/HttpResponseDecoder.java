@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.orangebikelabs.orangesqueeze.common.OSLog;
+import com.orangebikelabs.orangesqueeze.common.OSLog.Tag;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Push-style counterpart of {@link HttpResponseInputStream} for non-blocking transports. Bytes are fed in as they arrive from the
+ * network, HTTP headers and chunk framing are stripped and the content bytes are passed on to the {@link ContentHandler}.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@NotThreadSafe
+class HttpResponseDecoder {
+    interface ContentHandler {
+        void onContent(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    enum State {
+        START, STATUS_LINE, HEADERS, IN_FIXED_CONTENT, CHUNK_SIZE, IN_CHUNKED_CONTENT, CHUNK_CRLF
+    }
+
+    @Nonnull
+    final private ContentHandler mHandler;
+
+    @Nonnull
+    final private HttpLineBuffer mLine = new HttpLineBuffer();
+
+    @Nonnull
+    private State mState = State.START;
+
+    private long mContentRemaining;
+    private boolean mChunked;
+    private long mContentLength;
+
+    HttpResponseDecoder(ContentHandler handler) {
+        mHandler = handler;
+    }
+
+    @Nonnull
+    State getState() {
+        return mState;
+    }
+
+    public void decode(byte[] buffer, int offset, int length) throws IOException {
+        int pos = offset;
+        int limit = offset + length;
+        while (pos < limit) {
+            switch (mState) {
+                case START:
+                    if (buffer[pos] == 'H') {
+                        mState = State.STATUS_LINE;
+                        mLine.clear();
+                    } else {
+                        // sometimes we get a chunk when we're expecting a new HTTP
+                        // request, handle it gracefully
+                        mState = State.CHUNK_SIZE;
+                        mLine.clear();
+                    }
+                    break;
+                case STATUS_LINE:
+                    pos = readLine(buffer, pos, limit);
+                    if (mState == State.STATUS_LINE && pos != -1) {
+                        mState = State.HEADERS;
+                        mChunked = false;
+                        mContentLength = -1;
+                        mLine.clear();
+                    }
+                    break;
+                case HEADERS:
+                    pos = readLine(buffer, pos, limit);
+                    if (pos != -1) {
+                        onHeaderLine();
+                        mLine.clear();
+                    }
+                    break;
+                case CHUNK_SIZE:
+                    if (mLine.length() == 0 && buffer[pos] == 'H') {
+                        // this indicates HTTP request header pipelined in
+                        mState = State.STATUS_LINE;
+                        break;
+                    }
+                    pos = readLine(buffer, pos, limit);
+                    if (pos != -1) {
+                        if (mLine.length() > 0) {
+                            mContentRemaining = mLine.parseChunkSize();
+                            mState = mContentRemaining == 0 ? State.START : State.IN_CHUNKED_CONTENT;
+                        }
+                        // otherwise skip blank lines
+                        mLine.clear();
+                    }
+                    break;
+                case CHUNK_CRLF:
+                    pos = readLine(buffer, pos, limit);
+                    if (pos != -1) {
+                        if (mLine.length() != 0) {
+                            throw new IOException("CRLF expected at end of chunk");
+                        }
+                        mState = State.CHUNK_SIZE;
+                    }
+                    break;
+                case IN_FIXED_CONTENT:
+                case IN_CHUNKED_CONTENT:
+                    int count = (int) Math.min(mContentRemaining, limit - pos);
+                    mHandler.onContent(buffer, pos, count);
+                    pos += count;
+                    mContentRemaining -= count;
+                    if (mContentRemaining == 0) {
+                        mState = (mState == State.IN_CHUNKED_CONTENT) ? State.CHUNK_CRLF : State.START;
+                        mLine.clear();
+                    }
+                    break;
+            }
+            if (pos == -1) {
+                // line is incomplete, wait for more data
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the position after the line terminator, or -1 if the whole buffer was consumed without finding one
+     */
+    private int readLine(byte[] buffer, int pos, int limit) {
+        int end = pos;
+        while (end < limit && buffer[end] != HttpUtils.LF) {
+            end++;
+        }
+        mLine.append(buffer, pos, end);
+        if (end == limit) {
+            return -1;
+        }
+        mLine.trimTrailingCr();
+        return end + 1;
+    }
+
+    private void onHeaderLine() throws IOException {
+        if (mLine.length() > 0) {
+            if (mLine.isChunkedTransferEncoding()) {
+                mChunked = true;
+            } else {
+                long length = mLine.parseContentLength();
+                if (length >= 0) {
+                    mContentLength = length;
+                }
+            }
+            return;
+        }
+
+        // end of headers
+        if (mChunked) {
+            mState = State.CHUNK_SIZE;
+        } else if (mContentLength > 0) {
+            mContentRemaining = mContentLength;
+            mState = State.IN_FIXED_CONTENT;
+        } else {
+            if (mContentLength < 0) {
+                OSLog.w(Tag.NETWORK, "Unexpected header set, no content length or chunked encoding");
+            }
+            mState = State.START;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.orangebikelabs.orangesqueeze.common.OSLog;
+import com.orangebikelabs.orangesqueeze.common.OSLog.Tag;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A custom stream implementation that handles the idiosyncracies of the squeezebox streaming protocol. The stream strips HTTP response
+ * headers and chunk framing and only returns the content bytes.
+ * <p>
+ * All parsing is done against a reusable read buffer and a reusable line buffer, so there are no per-header or per-chunk allocations and
+ * the underlying socket is read in large blocks.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@NotThreadSafe
+class HttpResponseInputStream extends InputStream {
+    final static int DEFAULT_BUFFER_SIZE = 8192;
+
+    enum State {
+        READING_HEADERS, IN_FIXED_CONTENT, READING_CHUNKED_CRLF, READING_CHUNKED_HEADERS, IN_CHUNKED_CONTENT, DISCONNECTED
+    }
+
+    @Nonnull
+    final private InputStream mInputStream;
+
+    @Nonnull
+    final private byte[] mBuffer;
+
+    @Nonnull
+    final private byte[] mSingleByte = new byte[1];
+
+    @Nonnull
+    final private HttpLineBuffer mLine = new HttpLineBuffer();
+
+    private int mBufferPos, mBufferLimit;
+
+    @Nonnull
+    private State mState = State.READING_HEADERS;
+
+    private long mContentRemaining;
+
+    HttpResponseInputStream(InputStream is) {
+        this(is, DEFAULT_BUFFER_SIZE);
+    }
+
+    HttpResponseInputStream(InputStream is, int bufferSize) {
+        mInputStream = is;
+        mBuffer = new byte[bufferSize];
+    }
+
+    @Nonnull
+    State getState() {
+        return mState;
+    }
+
+    @Override
+    public int available() {
+        if (mState == State.IN_FIXED_CONTENT || mState == State.IN_CHUNKED_CONTENT) {
+            return (int) Math.min(mContentRemaining, mBufferLimit - mBufferPos);
+        }
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mState = State.DISCONNECTED;
+        mInputStream.close();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int retval = read(mSingleByte, 0, 1);
+        if (retval == -1) {
+            return -1;
+        }
+        return mSingleByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException();
+            }
+
+            switch (mState) {
+                case READING_HEADERS:
+                    readHeaders();
+                    break;
+                case READING_CHUNKED_CRLF:
+                case READING_CHUNKED_HEADERS:
+                    nextChunk();
+                    break;
+                case IN_CHUNKED_CONTENT:
+                case IN_FIXED_CONTENT:
+                    if (mContentRemaining > 0) {
+                        return readContent(buffer, offset, count);
+                    }
+                    mState = (mState == State.IN_CHUNKED_CONTENT) ? State.READING_CHUNKED_CRLF : State.READING_HEADERS;
+                    break;
+                case DISCONNECTED:
+                    return -1;
+            }
+        }
+    }
+
+    /**
+     * copy content bytes out of the read buffer, or straight from the socket when the buffer is empty and the caller has supplied a
+     * large enough destination
+     */
+    private int readContent(byte[] buffer, int offset, int count) throws IOException {
+        int maxRead = (int) Math.min(mContentRemaining, count);
+        int buffered = mBufferLimit - mBufferPos;
+        int retval;
+        if (buffered > 0) {
+            retval = Math.min(buffered, maxRead);
+            System.arraycopy(mBuffer, mBufferPos, buffer, offset, retval);
+            mBufferPos += retval;
+        } else if (maxRead >= mBuffer.length) {
+            retval = mInputStream.read(buffer, offset, maxRead);
+        } else if (fill()) {
+            retval = Math.min(mBufferLimit - mBufferPos, maxRead);
+            System.arraycopy(mBuffer, mBufferPos, buffer, offset, retval);
+            mBufferPos += retval;
+        } else {
+            retval = -1;
+        }
+
+        if (retval == -1) {
+            mState = State.DISCONNECTED;
+        } else {
+            mContentRemaining -= retval;
+        }
+        return retval;
+    }
+
+    /**
+     * @return false if the underlying stream has reached EOF
+     */
+    private boolean fill() throws IOException {
+        if (mBufferPos < mBufferLimit) {
+            return true;
+        }
+        int read = mInputStream.read(mBuffer, 0, mBuffer.length);
+        if (read <= 0) {
+            mBufferPos = mBufferLimit = 0;
+            return false;
+        }
+        mBufferPos = 0;
+        mBufferLimit = read;
+        return true;
+    }
+
+    /**
+     * @return the next byte without consuming it, or -1 on EOF
+     */
+    private int peek() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return mBuffer[mBufferPos] & 0xFF;
+    }
+
+    /**
+     * reads a single line into the line buffer, excluding CR and LF characters
+     *
+     * @return false if the underlying stream reached EOF before a line terminator was found
+     */
+    private boolean readLine() throws IOException {
+        mLine.clear();
+        while (fill()) {
+            int start = mBufferPos;
+            int end = start;
+            while (end < mBufferLimit && mBuffer[end] != HttpUtils.LF) {
+                end++;
+            }
+            mLine.append(mBuffer, start, end);
+            if (end < mBufferLimit) {
+                // consume the LF too
+                mBufferPos = end + 1;
+
+                mLine.trimTrailingCr();
+                return true;
+            }
+            mBufferPos = end;
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException();
+            }
+        }
+        return false;
+    }
+
+    protected void readHeaders() throws IOException {
+        int c = peek();
+        if (c == -1) {
+            mState = State.DISCONNECTED;
+            return;
+        }
+        if (c != 'H') {
+            // sometimes we get a chunk when we're expecting a new HTTP
+            // request, handle it gracefully
+            mState = State.READING_CHUNKED_HEADERS;
+            return;
+        }
+
+        boolean chunked = false;
+        long contentLength = -1;
+
+        // skip the status line
+        boolean connected = readLine();
+        while (connected) {
+            connected = readLine();
+            if (!connected || mLine.length() == 0) {
+                break;
+            }
+            if (mLine.isChunkedTransferEncoding()) {
+                chunked = true;
+            } else {
+                long length = mLine.parseContentLength();
+                if (length >= 0) {
+                    contentLength = length;
+                }
+            }
+        }
+
+        if (!connected) {
+            mState = State.DISCONNECTED;
+        } else if (chunked) {
+            mState = State.READING_CHUNKED_HEADERS;
+        } else if (contentLength >= 0) {
+            mContentRemaining = contentLength;
+            mState = State.IN_FIXED_CONTENT;
+        } else {
+            OSLog.w(Tag.NETWORK, "Unexpected header set, no content length or chunked encoding");
+        }
+    }
+
+    /**
+     * Read the next chunk.
+     *
+     * @throws IOException If an IO error occurs.
+     */
+    protected void nextChunk() throws IOException {
+        long chunkSize = getChunkSize();
+        if (mState != State.READING_CHUNKED_HEADERS) {
+            // pipelined headers or disconnect
+            return;
+        }
+        mContentRemaining = chunkSize;
+        if (chunkSize == 0) {
+            mState = State.READING_HEADERS;
+        } else {
+            mState = State.IN_CHUNKED_CONTENT;
+        }
+    }
+
+    protected long getChunkSize() throws IOException {
+        // skip CRLF
+        if (mState == State.READING_CHUNKED_CRLF) {
+            if (!readLine()) {
+                mState = State.DISCONNECTED;
+                return -1;
+            }
+            if (mLine.length() != 0) {
+                throw new IOException("CRLF expected at end of chunk");
+            }
+            mState = State.READING_CHUNKED_HEADERS;
+        }
+
+        while (true) {
+            int c = peek();
+            if (c == -1) {
+                mState = State.DISCONNECTED;
+                return -1;
+            }
+            if (c == 'H') {
+                // this indicates HTTP request header pipelined in
+                mState = State.READING_HEADERS;
+                return 0;
+            }
+            if (!readLine()) {
+                mState = State.DISCONNECTED;
+                return -1;
+            }
+            if (mLine.length() > 0) {
+                break;
+            }
+            // otherwise skip blank lines
+        }
+
+        // a blank size, possibly with extensions, means a zero size chunk
+        return mLine.parseChunkSize();
+    }
+}
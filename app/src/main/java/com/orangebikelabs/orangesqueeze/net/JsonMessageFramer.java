@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Splits a stream of Bayeux message arrays into individual messages as the bytes arrive. This matches the token handling of
+ * {@link StreamingReader}: each object is delivered as a tree once it is complete, and the end of each top-level array is reported
+ * separately.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@NotThreadSafe
+class JsonMessageFramer implements HttpResponseDecoder.ContentHandler {
+    interface MessageHandler {
+        void onMessage(JsonNode message) throws IOException;
+
+        void onEndArray() throws IOException;
+    }
+
+    final static private int INITIAL_BUFFER_SIZE = 8192;
+
+    @Nonnull
+    final private ObjectMapper mObjectMapper;
+
+    @Nonnull
+    final private MessageHandler mHandler;
+
+    @Nonnull
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+
+    private int mLength;
+
+    /**
+     * start of the object currently being accumulated, or -1
+     */
+    private int mObjectStart = -1;
+
+    private int mObjectDepth;
+    private int mDepth;
+    private boolean mInString;
+    private boolean mEscape;
+
+    JsonMessageFramer(ObjectMapper objectMapper, MessageHandler handler) {
+        mObjectMapper = objectMapper;
+        mHandler = handler;
+    }
+
+    @Override
+    public void onContent(byte[] buffer, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            byte c = buffer[i];
+            if (mObjectStart != -1) {
+                append(c);
+            }
+
+            if (mInString) {
+                if (mEscape) {
+                    mEscape = false;
+                } else if (c == '\\') {
+                    mEscape = true;
+                } else if (c == '"') {
+                    mInString = false;
+                }
+                continue;
+            }
+
+            switch (c) {
+                case '"':
+                    mInString = true;
+                    break;
+                case '{':
+                    if (mObjectStart == -1 && mDepth <= 1) {
+                        mObjectStart = 0;
+                        mObjectDepth = mDepth;
+                        append(c);
+                    }
+                    mDepth++;
+                    break;
+                case '[':
+                    mDepth++;
+                    break;
+                case '}':
+                case ']':
+                    if (mDepth > 0) {
+                        mDepth--;
+                    }
+                    if (mObjectStart != -1 && mDepth == mObjectDepth) {
+                        JsonNode message = mObjectMapper.readTree(mBuffer, mObjectStart, mLength);
+                        mObjectStart = -1;
+                        mLength = 0;
+                        mHandler.onMessage(message);
+                    } else if (c == ']' && mDepth == 0) {
+                        mHandler.onEndArray();
+                    }
+                    break;
+                default:
+                    // whitespace, separators and scalars are ignored
+                    break;
+            }
+        }
+    }
+
+    private void append(byte c) {
+        if (mLength == mBuffer.length) {
+            byte[] newBuffer = new byte[mBuffer.length * 2];
+            System.arraycopy(mBuffer, 0, newBuffer, 0, mLength);
+            mBuffer = newBuffer;
+        }
+        mBuffer[mLength++] = c;
+    }
+}
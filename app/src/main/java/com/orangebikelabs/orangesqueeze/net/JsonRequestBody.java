@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+
+/**
+ * Request body that serializes a JSON tree compactly, as UTF-8 bytes, instead of materializing the body as a String first. The tree is
+ * serialized once, the first time the length or the body is needed, and the same bytes are reported and written from then on. Knowing
+ * the length up front means the request isn't sent chunked.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+class JsonRequestBody extends RequestBody {
+    final static private MediaType MEDIA_TYPE = MediaType.parse(JsonRpc.JSON_CONTENT_TYPE);
+
+    @Nonnull
+    final private ObjectMapper mObjectMapper;
+
+    @Nonnull
+    final private JsonNode mNode;
+
+    @GuardedBy("this")
+    @Nullable
+    private ByteString mBytes;
+
+    JsonRequestBody(ObjectMapper objectMapper, JsonNode node) {
+        mObjectMapper = objectMapper;
+        mNode = node;
+    }
+
+    @Override
+    @Nullable
+    public MediaType contentType() {
+        return MEDIA_TYPE;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return getBytes().size();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        // not consumed, the body can be written again if the call is retried
+        sink.write(getBytes());
+    }
+
+    @Nonnull
+    synchronized private ByteString getBytes() throws IOException {
+        if (mBytes == null) {
+            Buffer buffer = new Buffer();
+            try (JsonGenerator generator = mObjectMapper.getFactory().createGenerator(buffer.outputStream())) {
+                mObjectMapper.writeTree(generator, mNode);
+            }
+            mBytes = buffer.readByteString();
+        }
+        return mBytes;
+    }
+}
@@ -11,6 +11,9 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Charsets;
 import com.google.common.base.Throwables;
 import com.google.common.io.Closer;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.SimpleTimeLimiter;
 import com.google.common.util.concurrent.UncheckedTimeoutException;
 import com.orangebikelabs.orangesqueeze.common.OSAssert;
@@ -39,10 +42,9 @@ import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.NotThreadSafe;
 
 import okhttp3.Call;
-import okhttp3.MediaType;
+import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
-import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 
@@ -160,8 +162,68 @@ public class JsonRpc {
         }
     }
 
+    /**
+     * execute a JSON RPC request asynchronously using OkHttp's dispatcher, no thread is held while waiting for the server. If a timeout is
+     * set it applies to the whole call, otherwise the default client timeouts apply. Cancelling the returned future cancels the call.
+     */
     @Nonnull
-    private Result internalExecute(Request.Builder builder, URL url, Closer closer, @Nullable JsonNode request) throws JsonRpcException, IOException {
+    public ListenableFuture<JsonNode> executeAsync(URL url, @Nullable JsonNode request) {
+        if (OSLog.isLoggable(Tag.NETWORK, OSLog.DEBUG)) {
+            OSLog.d(Tag.NETWORK, "JsonRpc async -> " + url, request);
+        }
+
+        Request.Builder builder = HttpUtils.newRequestBuilder(url, mUseGlobalCookies);
+        prepareRequest(builder, url, request);
+
+        // shared client, the timeout is applied to this call only
+        final Call httpCall = HttpUtils.newHttpClient().newCall(builder.build());
+        if (mTimeout != 0) {
+            httpCall.timeout().timeout(mTimeout, mTimeUnit);
+        }
+
+        final SettableFuture<JsonNode> retval = SettableFuture.create();
+        retval.addListener(() -> {
+            if (retval.isCancelled()) {
+                httpCall.cancel();
+            }
+        }, MoreExecutors.directExecutor());
+
+        httpCall.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                retval.setException(new JsonRpcException(e));
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (ResponseBody body = response.body()) {
+                    if (body == null) {
+                        retval.setException(new JsonRpcException(new Exception("null body")));
+                        return;
+                    }
+                    if (response.code() != HttpURLConnection.HTTP_OK) {
+                        retval.setException(new JsonRpcException(response.code()));
+                        return;
+                    }
+
+                    InputStream is = body.byteStream();
+                    if (OSLog.isLoggable(Tag.NETWORKTRACE, OSLog.VERBOSE)) {
+                        is = new LoggingInputStream(is);
+                    }
+                    JsonNode node = JsonHelper.getJsonObjectMapper().readTree(is);
+                    if (node == null) {
+                        throw new IOException("error reading JSON node");
+                    }
+                    retval.set(node);
+                } catch (IOException e) {
+                    retval.setException(new JsonRpcException(e));
+                }
+            }
+        });
+        return retval;
+    }
+
+    private void prepareRequest(Request.Builder builder, URL url, @Nullable JsonNode request) {
         builder.header("Accept-Charset", Charsets.UTF_8.name());
         builder.header("Content-Type", JSON_CONTENT_TYPE);
         builder.header("Accept-Encoding", "");
@@ -171,10 +233,14 @@ public class JsonRpc {
         }
 
         if (request != null) {
-            String data = JsonHelper.toString(request);
-            MediaType mt = MediaType.parse(JSON_CONTENT_TYPE);
-            builder.post(RequestBody.create(mt, data));
+            // compact, and written directly to the connection
+            builder.post(new JsonRequestBody(JsonHelper.getJsonObjectMapper(), request));
         }
+    }
+
+    @Nonnull
+    private Result internalExecute(Request.Builder builder, URL url, Closer closer, @Nullable JsonNode request) throws JsonRpcException, IOException {
+        prepareRequest(builder, url, request);
 
         OkHttpClient client = HttpUtils.newHttpClient();
         if (mTimeout != 0) {
@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.orangebikelabs.orangesqueeze.common.JsonHelper;
+import com.orangebikelabs.orangesqueeze.common.OSExecutors;
+import com.orangebikelabs.orangesqueeze.common.SBRequestException;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Collects JSON-RPC calls made within a short window and sends them to the server as a single JSON array body, then splits the array
+ * response back onto the individual calls by id. Calls that are marked as coalescable (read-only queries) share the result of an identical
+ * call that is already queued or in flight.
+ * <p/>
+ * A call to a server that has nothing queued or in flight is sent straight away, so single interactive commands don't wait for the window;
+ * calls made while it is busy are batched.
+ * <p/>
+ * Before the first batch goes to a server, a pair of harmless queries is sent as an array to find out whether it takes batches at all. LMS
+ * doesn't answer an array body it can't handle, it drops the connection, and that can't be told apart from a network failure after the
+ * server ran the commands. If the probe fails, batching is turned off for that server and the calls are sent individually. If a server
+ * that passed the probe later answers a batch with something other than an array, or rejects it with an HTTP error, batching is also
+ * turned off and the calls are resent individually.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+public class JsonRpcBatcher {
+    /**
+     * how long the first call in a batch waits for company
+     */
+    final static private long BATCH_WINDOW_MILLIS = 15;
+
+    final static private int MAX_BATCH_SIZE = 16;
+
+    @GuardedBy("JsonRpcBatcher.class")
+    @Nullable
+    static private JsonRpcBatcher sInstance;
+
+    @Nonnull
+    synchronized static public JsonRpcBatcher getInstance() {
+        if (sInstance == null) {
+            sInstance = new JsonRpcBatcher(OSExecutors.getSingleThreadScheduledExecutor());
+        }
+        return sInstance;
+    }
+
+    @Nonnull
+    final private ScheduledExecutorService mScheduler;
+
+    @Nonnull
+    final private ObjectMapper mObjectMapper = JsonHelper.getJsonObjectMapper();
+
+    @GuardedBy("this")
+    final private Map<BatchKey, Batch> mPendingBatches = new HashMap<>();
+
+    @GuardedBy("this")
+    final private Map<String, SettableFuture<JsonNode>> mInFlight = new HashMap<>();
+
+    /**
+     * whether each server takes array bodies, pending while the probe is in flight
+     */
+    @GuardedBy("this")
+    final private Map<String, ListenableFuture<Boolean>> mBatchSupport = new HashMap<>();
+
+    /**
+     * number of batches being sent to each server whose calls haven't all completed
+     */
+    @GuardedBy("this")
+    final private Map<BatchKey, Integer> mSendingCounts = new HashMap<>();
+
+    @GuardedBy("this")
+    private int mNextId = 1;
+
+    final private AtomicLong mCallCount = new AtomicLong();
+    final private AtomicLong mCoalescedCount = new AtomicLong();
+    final private AtomicLong mRoundTripCount = new AtomicLong();
+
+    JsonRpcBatcher(ScheduledExecutorService scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * queue a call
+     *
+     * @param request  JSON-RPC request object without an id, it is assigned by the batcher
+     * @param coalesce true if the call has no side effects and can share the result of an identical outstanding call
+     * @return future for the complete JSON-RPC response object for this call
+     */
+    @Nonnull
+    public ListenableFuture<JsonNode> submit(URL url, @Nullable SBCredentials credentials, ObjectNode request, long timeout, TimeUnit units, boolean coalesce) {
+        mCallCount.incrementAndGet();
+
+        BatchKey batchKey = new BatchKey(url, credentials);
+        String coalesceKey = coalesce ? batchKey + request.toString() : null;
+
+        Batch flushNow = null;
+        final SettableFuture<JsonNode> future;
+        synchronized (this) {
+            if (coalesceKey != null) {
+                SettableFuture<JsonNode> existing = mInFlight.get(coalesceKey);
+                if (existing != null) {
+                    mCoalescedCount.incrementAndGet();
+                    return existing;
+                }
+            }
+
+            future = SettableFuture.create();
+            ObjectNode call = request.deepCopy();
+            int id = mNextId++;
+            call.put("id", id);
+
+            Batch batch = mPendingBatches.get(batchKey);
+            boolean idle = batch == null && !mSendingCounts.containsKey(batchKey);
+            if (batch == null) {
+                batch = new Batch(batchKey);
+                if (!idle) {
+                    mPendingBatches.put(batchKey, batch);
+                    final Batch fBatch = batch;
+                    mScheduler.schedule(() -> flush(fBatch), BATCH_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+            batch.add(new PendingCall(id, call, future), units.toMillis(timeout));
+            if (idle) {
+                // nothing to wait for
+                flushNow = batch;
+            } else if (batch.mCalls.size() >= MAX_BATCH_SIZE) {
+                mPendingBatches.remove(batchKey);
+                flushNow = batch;
+            }
+            if (flushNow != null) {
+                startSending(flushNow);
+            }
+
+            if (coalesceKey != null) {
+                mInFlight.put(coalesceKey, future);
+            }
+        }
+
+        if (coalesceKey != null) {
+            future.addListener(() -> {
+                synchronized (JsonRpcBatcher.this) {
+                    if (mInFlight.get(coalesceKey) == future) {
+                        mInFlight.remove(coalesceKey);
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        if (flushNow != null) {
+            send(flushNow);
+        }
+        return future;
+    }
+
+    /**
+     * total number of calls submitted
+     */
+    public long getCallCount() {
+        return mCallCount.get();
+    }
+
+    /**
+     * number of calls that shared the result of an identical call
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * number of HTTP requests actually made
+     */
+    public long getRoundTripCount() {
+        return mRoundTripCount.get();
+    }
+
+    /**
+     * perform a single asynchronous HTTP round trip, overridden for testing
+     */
+    @Nonnull
+    protected ListenableFuture<JsonNode> execute(URL url, @Nullable SBCredentials credentials, JsonNode body, long timeoutMillis) {
+        JsonRpc rpc = new JsonRpc();
+        rpc.setUseGlobalCookies(true);
+        rpc.setCredentials(credentials);
+        rpc.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        return rpc.executeAsync(url, body);
+    }
+
+    private void flush(Batch batch) {
+        synchronized (this) {
+            if (mPendingBatches.get(batch.mKey) != batch) {
+                // already flushed because it filled up
+                return;
+            }
+            mPendingBatches.remove(batch.mKey);
+            startSending(batch);
+        }
+        send(batch);
+    }
+
+    @GuardedBy("this")
+    private void startSending(Batch batch) {
+        Integer count = mSendingCounts.get(batch.mKey);
+        mSendingCounts.put(batch.mKey, count == null ? 1 : count + 1);
+
+        List<ListenableFuture<JsonNode>> futures = new ArrayList<>(batch.mCalls.size());
+        for (PendingCall call : batch.mCalls) {
+            futures.add(call.mFuture);
+        }
+        Futures.whenAllComplete(futures).run(() -> {
+            synchronized (JsonRpcBatcher.this) {
+                Integer remaining = mSendingCounts.get(batch.mKey);
+                if (remaining == null || remaining <= 1) {
+                    mSendingCounts.remove(batch.mKey);
+                } else {
+                    mSendingCounts.put(batch.mKey, remaining - 1);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * sending is asynchronous, no thread waits for the response
+     */
+    private void send(Batch batch) {
+        if (batch.mCalls.size() <= 1) {
+            sendIndividually(batch);
+            return;
+        }
+
+        ListenableFuture<Boolean> support;
+        SettableFuture<Boolean> probe = null;
+        synchronized (this) {
+            String url = batch.mKey.mUrl.toString();
+            support = mBatchSupport.get(url);
+            if (support == null) {
+                probe = SettableFuture.create();
+                mBatchSupport.put(url, probe);
+                support = probe;
+            }
+        }
+        if (probe != null) {
+            probe(batch, probe);
+        }
+
+        Futures.addCallback(support, new FutureCallback<Boolean>() {
+            @Override
+            public void onSuccess(@Nullable Boolean supported) {
+                if (Boolean.TRUE.equals(supported)) {
+                    sendBatch(batch);
+                } else {
+                    sendIndividually(batch);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // support futures are never failed
+                sendIndividually(batch);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * find out whether the server takes array bodies by sending it two queries that have no side effects, so nothing needs to be undone
+     * whatever happens to them
+     */
+    private void probe(Batch batch, SettableFuture<Boolean> support) {
+        ArrayNode body = mObjectMapper.createArrayNode();
+        synchronized (this) {
+            for (int i = 0; i < 2; i++) {
+                ObjectNode call = body.addObject();
+                call.put("id", mNextId++);
+                call.put("method", "slim.request");
+                ArrayNode params = call.putArray("params");
+                params.add("");
+                params.addArray().add("version").add("?");
+            }
+        }
+        mRoundTripCount.incrementAndGet();
+        Futures.addCallback(execute(batch.mKey.mUrl, batch.mKey.mCredentials, body, batch.mTimeoutMillis), new FutureCallback<JsonNode>() {
+            @Override
+            public void onSuccess(@Nullable JsonNode response) {
+                support.set(response != null && response.isArray());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (isCredentialFailure(t)) {
+                    // says nothing about batching, ask again next time
+                    synchronized (JsonRpcBatcher.this) {
+                        mBatchSupport.remove(batch.mKey.mUrl.toString());
+                    }
+                }
+                // a dropped connection is how LMS turns away an array body
+                support.set(false);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void sendBatch(Batch batch) {
+        ArrayNode body = mObjectMapper.createArrayNode();
+        for (PendingCall call : batch.mCalls) {
+            body.add(call.mRequest);
+        }
+        mRoundTripCount.incrementAndGet();
+        Futures.addCallback(execute(batch.mKey.mUrl, batch.mKey.mCredentials, body, batch.mTimeoutMillis), new FutureCallback<JsonNode>() {
+            @Override
+            public void onSuccess(@Nullable JsonNode response) {
+                if (response != null && response.isArray()) {
+                    distribute(batch.mCalls, response);
+                } else {
+                    // server doesn't understand batches, send them one at a time
+                    fallBack(batch);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (isBatchRejected(t)) {
+                    // the server, or a proxy in front of it, won't take an array body
+                    fallBack(batch);
+                } else {
+                    for (PendingCall call : batch.mCalls) {
+                        call.mFuture.setException(t);
+                    }
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * An HTTP error means the batch wasn't processed, so its calls can be resent. Other failures, such as timeouts, aren't retried because
+     * the server may have run the commands. Rejected credentials have nothing to do with batching.
+     */
+    static private boolean isBatchRejected(Throwable t) {
+        if (!(t instanceof JsonRpcException)) {
+            return false;
+        }
+        int responseCode = ((JsonRpcException) t).getResponseCode();
+        return responseCode >= HttpURLConnection.HTTP_BAD_REQUEST && !isCredentialFailure(t);
+    }
+
+    static private boolean isCredentialFailure(Throwable t) {
+        return t instanceof JsonRpcException && ((JsonRpcException) t).getResponseCode() == HttpURLConnection.HTTP_UNAUTHORIZED;
+    }
+
+    private void fallBack(Batch batch) {
+        synchronized (this) {
+            mBatchSupport.put(batch.mKey.mUrl.toString(), Futures.immediateFuture(false));
+        }
+        sendIndividually(batch);
+    }
+
+    private void sendIndividually(Batch batch) {
+        for (PendingCall call : batch.mCalls) {
+            mRoundTripCount.incrementAndGet();
+            call.mFuture.setFuture(execute(batch.mKey.mUrl, batch.mKey.mCredentials, call.mRequest, batch.mTimeoutMillis));
+        }
+    }
+
+    private void distribute(List<PendingCall> calls, JsonNode response) {
+        Map<Integer, JsonNode> responsesById = new HashMap<>();
+        for (JsonNode element : response) {
+            JsonNode id = element.get("id");
+            if (id != null) {
+                responsesById.put(id.asInt(), element);
+            }
+        }
+        for (PendingCall call : calls) {
+            JsonNode element = responsesById.get(call.mId);
+            if (element != null) {
+                call.mFuture.set(element);
+            } else {
+                call.mFuture.setException(new SBRequestException("No response for JSON-RPC call " + call.mId));
+            }
+        }
+    }
+
+    static private class PendingCall {
+        final int mId;
+
+        @Nonnull
+        final ObjectNode mRequest;
+
+        @Nonnull
+        final SettableFuture<JsonNode> mFuture;
+
+        PendingCall(int id, ObjectNode request, SettableFuture<JsonNode> future) {
+            mId = id;
+            mRequest = request;
+            mFuture = future;
+        }
+    }
+
+    static private class Batch {
+        @Nonnull
+        final BatchKey mKey;
+
+        final List<PendingCall> mCalls = new ArrayList<>();
+
+        long mTimeoutMillis;
+
+        Batch(BatchKey key) {
+            mKey = key;
+        }
+
+        void add(PendingCall call, long timeoutMillis) {
+            mCalls.add(call);
+            mTimeoutMillis = Math.max(mTimeoutMillis, timeoutMillis);
+        }
+    }
+
+    /**
+     * calls can only share a request if they go to the same server with the same credentials
+     */
+    static private class BatchKey {
+        @Nonnull
+        final URL mUrl;
+
+        @Nullable
+        final SBCredentials mCredentials;
+
+        BatchKey(URL url, @Nullable SBCredentials credentials) {
+            mUrl = url;
+            mCredentials = credentials;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            BatchKey batchKey = (BatchKey) o;
+            // credentials are compared by identity
+            return mUrl.toString().equals(batchKey.mUrl.toString()) && mCredentials == batchKey.mCredentials;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(mUrl.toString(), System.identityHashCode(mCredentials));
+        }
+
+        @Override
+        @Nonnull
+        public String toString() {
+            return mUrl + "#" + System.identityHashCode(mCredentials);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.orangebikelabs.orangesqueeze.common.OSLog;
+import com.orangebikelabs.orangesqueeze.common.OSLog.Tag;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A single selector thread shared by all non-blocking streaming transports. Channel operations are only performed on the loop thread,
+ * other threads hand work over using {@link #execute(Runnable)}.
+ * <p/>
+ * If the selector itself fails, the loop is retired: every channel registered with it is failed through its handler, so the transport
+ * reconnects, and the next {@link #getInstance()} starts a new loop. Tasks handed to a retired loop still run, and registering with it
+ * throws, so nothing waits on a thread that is gone.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+class NioSelectorLoop implements Runnable {
+    final static private String THREAD_NAME = "OS Comet Selector Thread";
+
+    @GuardedBy("NioSelectorLoop.class")
+    @Nullable
+    static private NioSelectorLoop sInstance;
+
+    /**
+     * lazily start the shared loop
+     */
+    @Nonnull
+    synchronized static NioSelectorLoop getInstance() throws IOException {
+        if (sInstance == null) {
+            NioSelectorLoop loop = new NioSelectorLoop(Selector.open());
+            Thread thread = new Thread(loop, THREAD_NAME);
+            thread.setDaemon(true);
+            thread.start();
+            sInstance = loop;
+        }
+        return sInstance;
+    }
+
+    interface ChannelHandler {
+        void onConnectable() throws IOException;
+
+        void onReadable() throws IOException;
+
+        void onWritable() throws IOException;
+
+        /**
+         * called on the loop thread when any of the other handler methods throw
+         */
+        void onError(Exception e);
+    }
+
+    @Nonnull
+    final private Selector mSelector;
+
+    final private ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+
+    final private AtomicLong mWakeups = new AtomicLong();
+
+    /**
+     * keys registered through this loop, kept here because a closed selector no longer reports its keys
+     */
+    @GuardedBy("this")
+    final private Set<SelectionKey> mKeys = new HashSet<>();
+
+    volatile private Thread mThread;
+
+    volatile private boolean mRetired;
+
+    private NioSelectorLoop(Selector selector) {
+        mSelector = selector;
+    }
+
+    @Nonnull
+    Selector getSelector() {
+        return mSelector;
+    }
+
+    /**
+     * total number of times the loop has woken up, used to compare with the blocking transport
+     */
+    public long getWakeupCount() {
+        return mWakeups.get();
+    }
+
+    public boolean inLoopThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * run the task on the loop thread, or right away if the loop was retired
+     */
+    public void execute(Runnable task) {
+        if (inLoopThread()) {
+            task.run();
+        } else {
+            mTasks.add(task);
+            if (mRetired) {
+                // checked after adding, so either the retiring loop thread or this one runs it
+                runTasks();
+            } else {
+                mSelector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * loop thread only, register the channel with the selector
+     *
+     * @throws IOException if the loop was retired or the channel is closed
+     */
+    @Nonnull
+    public SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler) throws IOException {
+        if (mRetired) {
+            throw new IOException("selector loop failed");
+        }
+        SelectionKey retval = channel.register(mSelector, ops, handler);
+        synchronized (this) {
+            // drop keys of channels that have been closed since
+            Iterator<SelectionKey> it = mKeys.iterator();
+            while (it.hasNext()) {
+                if (!it.next().channel().isOpen()) {
+                    it.remove();
+                }
+            }
+            mKeys.add(retval);
+        }
+        return retval;
+    }
+
+    @Override
+    public void run() {
+        mThread = Thread.currentThread();
+        try {
+            while (true) {
+                mSelector.select();
+                mWakeups.incrementAndGet();
+
+                runTasks();
+
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    dispatch(key);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // includes ClosedSelectorException, the selector can't be used any more
+            OSLog.e(Tag.NETWORK, "Selector loop failed, a new one starts with the next connection", e);
+            retire(e);
+        } catch (Error e) {
+            retire(new IOException("selector loop failed", e));
+            throw e;
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                OSLog.e(Tag.NETWORK, "Selector task failed", e);
+            }
+        }
+    }
+
+    /**
+     * stop handing out this loop, fail every channel registered with it and run any tasks still waiting
+     */
+    private void retire(Exception cause) {
+        mRetired = true;
+        synchronized (NioSelectorLoop.class) {
+            if (sInstance == this) {
+                sInstance = null;
+            }
+        }
+
+        List<SelectionKey> keys;
+        synchronized (this) {
+            keys = new ArrayList<>(mKeys);
+            mKeys.clear();
+        }
+        IOException failure = cause instanceof IOException ? (IOException) cause : new IOException("selector loop failed", cause);
+        for (SelectionKey key : keys) {
+            if (!key.channel().isOpen()) {
+                continue;
+            }
+            try {
+                ((ChannelHandler) key.attachment()).onError(failure);
+            } catch (RuntimeException e) {
+                OSLog.e(Tag.NETWORK, "Unexpected selector handler failure", e);
+            }
+        }
+        runTasks();
+
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        ChannelHandler handler = (ChannelHandler) key.attachment();
+        try {
+            if (key.isValid() && key.isConnectable()) {
+                handler.onConnectable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                handler.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                handler.onWritable();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            handler.onError(e);
+        } catch (RuntimeException e) {
+            OSLog.e(Tag.NETWORK, "Unexpected selector handler failure", e);
+            handler.onError(e);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.util.concurrent.SettableFuture;
+import com.orangebikelabs.orangesqueeze.common.Constants;
+import com.orangebikelabs.orangesqueeze.common.JsonHelper;
+import com.orangebikelabs.orangesqueeze.common.OSLog;
+import com.orangebikelabs.orangesqueeze.common.OSLog.Tag;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Non-blocking alternative to {@link StreamingSocket}. All connections share the single {@link NioSelectorLoop} thread, which handles
+ * HTTP framing, chunk decoding and the write queue. Like the blocking transport, only a limited number of POSTs are outstanding at once
+ * and requests queued in the meantime are combined into one Bayeux message array.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+public class NioStreamingTransport implements StreamingTransport, NioSelectorLoop.ChannelHandler, JsonMessageFramer.MessageHandler {
+    final static private int READ_BUFFER_SIZE = 8192;
+
+    @Nonnull
+    final private StreamingConnection mConnection;
+
+    @Nonnull
+    final private RequestWindow mWindow;
+
+    final private ConcurrentLinkedQueue<JsonNode> mPendingRequests = new ConcurrentLinkedQueue<>();
+
+    final private SettableFuture<Void> mConnected = SettableFuture.create();
+
+    volatile private boolean mRunning;
+
+    // the following fields are only accessed from the loop thread
+
+    final private ArrayDeque<ByteBuffer> mWriteQueue = new ArrayDeque<>();
+
+    final private ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    @Nonnull
+    final private HttpResponseDecoder mDecoder;
+
+    /**
+     * requests taken off the pending queue that are waiting for room in the window
+     */
+    final private List<JsonNode> mBatch = new ArrayList<>();
+
+    final private List<String> mBatchReplyKeys = new ArrayList<>();
+
+    private CometPostEncoder mEncoder;
+
+    private SelectionKey mKey;
+
+    /**
+     * lateinit
+     */
+    volatile private NioSelectorLoop mLoop;
+
+    /**
+     * lateinit
+     */
+    volatile private SocketChannel mChannel;
+
+    public NioStreamingTransport(StreamingConnection connection) {
+        mConnection = connection;
+        mWindow = new RequestWindow(connection.getMaxOutstandingPosts());
+        mDecoder = new HttpResponseDecoder(new JsonMessageFramer(JsonHelper.getJsonObjectMapper(), this));
+    }
+
+    @Override
+    public void connect() throws IOException {
+        URL url = mConnection.getCometUrl();
+        InetSocketAddress address = new InetSocketAddress(url.getHost(), url.getPort());
+
+        SBCredentials creds = mConnection.getSbContext().getConnectionCredentials();
+        HttpUtils.Header authHeader = creds != null ? creds.getHeader(url) : null;
+        mEncoder = new CometPostEncoder(JsonHelper.getJsonObjectMapper(), url, HttpUtils.getUserAgent(), authHeader);
+
+        mLoop = NioSelectorLoop.getInstance();
+        mChannel = SocketChannel.open();
+        mChannel.configureBlocking(false);
+        mRunning = true;
+
+        mLoop.execute(() -> {
+            try {
+                mKey = mLoop.register(mChannel, SelectionKey.OP_CONNECT, this);
+                if (mChannel.connect(address)) {
+                    onConnectable();
+                }
+            } catch (IOException e) {
+                onError(e);
+            }
+        });
+
+        try {
+            mConnected.get(Constants.CONNECTION_TIMEOUT, Constants.TIME_UNITS);
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted during connect", e);
+        } catch (TimeoutException e) {
+            close();
+            throw new SocketTimeoutException("connect timed out");
+        } catch (ExecutionException e) {
+            close();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        SocketChannel channel = mChannel;
+        return mRunning && channel != null && channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+        mRunning = false;
+        SocketChannel channel = mChannel;
+        if (channel != null) {
+            try {
+                // also cancels the selection key
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        mConnected.setException(new IOException("closed"));
+    }
+
+    @Override
+    public void addRequest(JsonNode request) {
+        mPendingRequests.add(request);
+        NioSelectorLoop loop = mLoop;
+        if (loop != null) {
+            loop.execute(this::flushRequests);
+        }
+    }
+
+    @Override
+    public void addDoneSendingRequest() {
+        // no implementation
+    }
+
+    @Override
+    public void onConnectable() throws IOException {
+        if (!mChannel.finishConnect()) {
+            return;
+        }
+        mKey.interestOps(SelectionKey.OP_READ);
+        mWindow.open();
+        mConnected.set(null);
+        flushRequests();
+    }
+
+    @Override
+    public void onReadable() throws IOException {
+        mReadBuffer.clear();
+        int read = mChannel.read(mReadBuffer);
+        if (read == -1) {
+            throw new EOFException("disconnected");
+        }
+        mDecoder.decode(mReadBuffer.array(), 0, read);
+    }
+
+    @Override
+    public void onWritable() throws IOException {
+        writeQueued();
+    }
+
+    @Override
+    public void onError(Exception e) {
+        boolean wasRunning = mRunning;
+        mConnected.setException(e);
+        close();
+        if (wasRunning) {
+            OSLog.w(Tag.NETWORK, "Connection Error", e);
+            mConnection.quitMain(true);
+        }
+    }
+
+    @Override
+    public void onMessage(JsonNode message) {
+        if (!mRunning) {
+            return;
+        }
+        OSLog.d(Tag.NETWORK, "NioStreamingTransport::responseReceived", message);
+        if (mConnection.isMetaConnectMessage(message)) {
+            if (!mConnection.isSuccessful(message)) {
+                // restart immediately and terminate this transport
+                onError(new StreamingReader.RestartException("Unsuccessful connect message, restarting service"));
+            }
+        } else {
+            mConnection.onResponseReceived(message);
+        }
+        mWindow.releaseFor(message);
+    }
+
+    @Override
+    public void onEndArray() throws IOException {
+        // replies in the array may have freed room for requests queued in the meantime
+        flushRequests();
+    }
+
+    /**
+     * loop thread only, turn pending requests into POSTs while the window allows
+     */
+    private void flushRequests() {
+        if (!mConnected.isDone() || !isRunning()) {
+            return;
+        }
+        try {
+            while (true) {
+                JsonNode node;
+                while ((node = mPendingRequests.poll()) != null) {
+                    mBatch.add(node);
+                }
+                if (mBatch.isEmpty()) {
+                    break;
+                }
+                mBatchReplyKeys.clear();
+                for (JsonNode request : mBatch) {
+                    RequestWindow.addReplyKeys(request, mBatchReplyKeys);
+                }
+                if (mWindow.tryAcquire(mBatchReplyKeys) == null) {
+                    // window is full, keep the batch until a reply frees a slot
+                    break;
+                }
+                int length = mEncoder.encode(mBatch);
+                if (OSLog.isLoggable(Tag.NETWORK, OSLog.VERBOSE)) {
+                    OSLog.v(Tag.NETWORK, "NioStreamingTransport::post body = " + mEncoder.getBody(length));
+                }
+                // the encoder buffer is reused, so queue a copy
+                mWriteQueue.add(ByteBuffer.wrap(Arrays.copyOf(mEncoder.getBuffer(), length)));
+                mBatch.clear();
+            }
+            writeQueued();
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    private void writeQueued() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = mWriteQueue.peek()) != null) {
+            mChannel.write(buffer);
+            if (buffer.hasRemaining()) {
+                // socket buffer is full, wait until it's writable again
+                mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            mWriteQueue.poll();
+        }
+        mKey.interestOps(SelectionKey.OP_READ);
+    }
+}
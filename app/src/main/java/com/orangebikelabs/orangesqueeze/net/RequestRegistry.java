@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Tracks outstanding Comet requests by request key and by request id. Each request is given a deadline on a hashed timing wheel, and
+ * requests that are still outstanding when {@link #expire()} passes their deadline are failed with a {@link TimeoutException}. Responses
+ * that show up for requests that have already timed out are counted as late answers.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+class RequestRegistry {
+    /**
+     * how many expired request keys to remember for late answer detection
+     */
+    final static private int MAX_EXPIRED_KEYS = 256;
+
+    @Nonnull
+    final private Ticker mTicker;
+
+    final private long mTickNanos;
+
+    final private int mWheelMask;
+
+    @GuardedBy("this")
+    final private Entry[] mWheel;
+
+    @GuardedBy("this")
+    final private Map<String, Entry> mRequestsByKey = new HashMap<>();
+
+    @GuardedBy("this")
+    final private Map<Integer, Entry> mRequestsById = new HashMap<>();
+
+    @GuardedBy("this")
+    final private Map<String, Boolean> mExpiredKeys = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_EXPIRED_KEYS;
+        }
+    };
+
+    @GuardedBy("this")
+    private long mCurrentTick;
+
+    @GuardedBy("this")
+    private long mTimedOutCount;
+
+    @GuardedBy("this")
+    private long mLateAnswerCount;
+
+    /**
+     * @param wheelSize number of wheel buckets, rounded up to a power of two
+     */
+    RequestRegistry(Ticker ticker, long tickDuration, TimeUnit units, int wheelSize) {
+        mTicker = ticker;
+        mTickNanos = units.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(wheelSize - 1, 1)) << 1;
+        mWheel = new Entry[size];
+        mWheelMask = size - 1;
+        mCurrentTick = currentTick();
+    }
+
+    /**
+     * track a request. The registry holds a strong reference to the future until it is answered, expires or is completed elsewhere.
+     */
+    public void register(int id, String key, SettableFuture<JsonNode> future, long timeout, TimeUnit units) {
+        final Entry entry = new Entry(id, key, future);
+        synchronized (this) {
+            long deadlineTick = (mTicker.read() + units.toNanos(timeout) + mTickNanos - 1) / mTickNanos;
+            entry.mDeadlineTick = Math.max(deadlineTick, mCurrentTick + 1);
+
+            // replaced requests are no longer tracked
+            remove(mRequestsByKey.get(key));
+            remove(mRequestsById.get(id));
+            mRequestsByKey.put(key, entry);
+            mRequestsById.put(id, entry);
+            link(entry);
+        }
+
+        // drop the entry if the caller cancels or completes the future some other way
+        future.addListener(() -> {
+            synchronized (RequestRegistry.this) {
+                remove(entry);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * stop tracking the request with the given key
+     *
+     * @return the future for the request, or null if there is no such outstanding request
+     */
+    @Nullable
+    synchronized public SettableFuture<JsonNode> remove(String key) {
+        Entry entry = mRequestsByKey.get(key);
+        if (entry == null) {
+            if (mExpiredKeys.remove(key) != null) {
+                mLateAnswerCount++;
+            }
+            return null;
+        }
+        remove(entry);
+        return entry.mFuture;
+    }
+
+    /**
+     * stop tracking the request with the given id
+     *
+     * @return the future for the request, or null if there is no such outstanding request
+     */
+    @Nullable
+    synchronized public SettableFuture<JsonNode> removeById(int id) {
+        Entry entry = mRequestsById.get(id);
+        if (entry == null) {
+            return null;
+        }
+        remove(entry);
+        return entry.mFuture;
+    }
+
+    /**
+     * advance the wheel to the current time and fail any requests whose deadline has passed
+     *
+     * @return the number of requests that were expired
+     */
+    public int expire() {
+        List<Entry> expired = new ArrayList<>();
+        synchronized (this) {
+            long targetTick = currentTick();
+            long steps = Math.min(targetTick - mCurrentTick, mWheel.length);
+            for (long i = 1; i <= steps; i++) {
+                Entry entry = mWheel[(int) ((mCurrentTick + i) & mWheelMask)];
+                while (entry != null) {
+                    Entry next = entry.mNext;
+                    if (entry.mDeadlineTick <= targetTick) {
+                        remove(entry);
+                        mExpiredKeys.put(entry.mKey, Boolean.TRUE);
+                        mTimedOutCount++;
+                        expired.add(entry);
+                    }
+                    entry = next;
+                }
+            }
+            mCurrentTick = Math.max(mCurrentTick, targetTick);
+        }
+
+        // complete futures outside of the lock, listeners may run inline
+        for (Entry entry : expired) {
+            entry.mFuture.setException(new TimeoutException("No response to request " + entry.mKey));
+        }
+        return expired.size();
+    }
+
+    /**
+     * fail and stop tracking all outstanding requests
+     */
+    public void failAll(Throwable t) {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(mRequestsByKey.values());
+            for (Entry entry : entries) {
+                remove(entry);
+            }
+        }
+        for (Entry entry : entries) {
+            entry.mFuture.setException(t);
+        }
+    }
+
+    synchronized public int getOutstandingCount() {
+        return mRequestsByKey.size();
+    }
+
+    synchronized public long getTimedOutCount() {
+        return mTimedOutCount;
+    }
+
+    synchronized public long getLateAnswerCount() {
+        return mLateAnswerCount;
+    }
+
+    private long currentTick() {
+        return mTicker.read() / mTickNanos;
+    }
+
+    @GuardedBy("this")
+    private void link(Entry entry) {
+        int bucket = (int) (entry.mDeadlineTick & mWheelMask);
+        Entry head = mWheel[bucket];
+        entry.mNext = head;
+        if (head != null) {
+            head.mPrev = entry;
+        }
+        mWheel[bucket] = entry;
+        entry.mLinked = true;
+    }
+
+    @GuardedBy("this")
+    private void remove(@Nullable Entry entry) {
+        if (entry == null || !entry.mLinked) {
+            return;
+        }
+        entry.mLinked = false;
+        if (entry.mPrev != null) {
+            entry.mPrev.mNext = entry.mNext;
+        } else {
+            mWheel[(int) (entry.mDeadlineTick & mWheelMask)] = entry.mNext;
+        }
+        if (entry.mNext != null) {
+            entry.mNext.mPrev = entry.mPrev;
+        }
+        entry.mPrev = null;
+        entry.mNext = null;
+
+        if (mRequestsByKey.get(entry.mKey) == entry) {
+            mRequestsByKey.remove(entry.mKey);
+        }
+        if (mRequestsById.get(entry.mId) == entry) {
+            mRequestsById.remove(entry.mId);
+        }
+    }
+
+    static private class Entry {
+        final int mId;
+
+        @Nonnull
+        final String mKey;
+
+        @Nonnull
+        final SettableFuture<JsonNode> mFuture;
+
+        long mDeadlineTick;
+        boolean mLinked;
+
+        @Nullable
+        Entry mPrev;
+
+        @Nullable
+        Entry mNext;
+
+        Entry(int id, String key, SettableFuture<JsonNode> future) {
+            mId = id;
+            mKey = key;
+            mFuture = future;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Monitor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Limits the number of outstanding POSTs on a Comet connection. The window starts closed and must be opened once the underlying
+ * connection is ready.
+ * <p/>
+ * Each POST holds a {@link Slot} along with the reply keys of the messages it carries. The slot is freed by the first reply that matches
+ * one of those keys, or explicitly by its owner, and only once either way. The server also pushes responses nobody asked for; those match
+ * no slot and leave the window alone, so it never admits more POSTs than it was sized for. See {@link #addReplyKeys} for how replies are
+ * matched to messages.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+@ThreadSafe
+class RequestWindow {
+    final private static String CHANNEL = "channel";
+    final private static String ID = "id";
+    final private static String META_CHANNEL_PREFIX = "/meta/";
+
+    final private Monitor mMonitor = new Monitor();
+
+    final private int mMaxOutstanding;
+
+    @GuardedBy("mMonitor")
+    final private List<Slot> mSlots = new ArrayList<>();
+
+    @GuardedBy("mMonitor")
+    private boolean mOpen;
+
+    final private Monitor.Guard mCanSend = new Monitor.Guard(mMonitor) {
+        @Override
+        public boolean isSatisfied() {
+            return mOpen && mSlots.size() < mMaxOutstanding;
+        }
+    };
+
+    RequestWindow(int maxOutstanding) {
+        Preconditions.checkArgument(maxOutstanding > 0, "maxOutstanding must be positive");
+        mMaxOutstanding = maxOutstanding;
+    }
+
+    public int getMaxOutstanding() {
+        return mMaxOutstanding;
+    }
+
+    public int getOutstanding() {
+        mMonitor.enter();
+        try {
+            return mSlots.size();
+        } finally {
+            mMonitor.leave();
+        }
+    }
+
+    public void open() {
+        mMonitor.enter();
+        try {
+            mOpen = true;
+        } finally {
+            mMonitor.leave();
+        }
+    }
+
+    /**
+     * block until a slot is available and take it
+     *
+     * @param replyKeys keys of the replies that free the slot
+     */
+    @Nonnull
+    public Slot acquire(Collection<String> replyKeys) throws InterruptedException {
+        Slot retval = new Slot(replyKeys);
+        mMonitor.enterWhen(mCanSend);
+        try {
+            mSlots.add(retval);
+        } finally {
+            mMonitor.leave();
+        }
+        return retval;
+    }
+
+    /**
+     * take a slot if one is available without blocking
+     *
+     * @param replyKeys keys of the replies that free the slot
+     * @return the slot, or null if the window is full
+     */
+    @Nullable
+    public Slot tryAcquire(Collection<String> replyKeys) {
+        if (!mMonitor.enterIf(mCanSend)) {
+            return null;
+        }
+        try {
+            Slot retval = new Slot(replyKeys);
+            mSlots.add(retval);
+            return retval;
+        } finally {
+            mMonitor.leave();
+        }
+    }
+
+    /**
+     * free the slot
+     *
+     * @return false if it was already freed
+     */
+    public boolean release(Slot slot) {
+        mMonitor.enter();
+        try {
+            return mSlots.remove(slot);
+        } finally {
+            mMonitor.leave();
+        }
+    }
+
+    /**
+     * free the oldest slot waiting for the reply
+     *
+     * @return false if no outstanding POST was waiting for it
+     */
+    public boolean releaseFor(JsonNode reply) {
+        List<String> replyKeys = new ArrayList<>(2);
+        addReplyKeys(reply, replyKeys);
+
+        mMonitor.enter();
+        try {
+            int size = mSlots.size();
+            for (int i = 0; i < size; i++) {
+                for (String key : replyKeys) {
+                    if (mSlots.get(i).mReplyKeys.contains(key)) {
+                        mSlots.remove(i);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            mMonitor.leave();
+        }
+    }
+
+    /**
+     * Add the keys that match a message to its reply. Messages with an id are matched by id. Meta messages are also matched by channel,
+     * because their replies come back on the same channel whether or not the server echoes the id. Arrays of messages add the keys of
+     * each message.
+     */
+    static void addReplyKeys(JsonNode message, Collection<String> keys) {
+        if (message.isArray()) {
+            for (JsonNode element : message) {
+                addReplyKeys(element, keys);
+            }
+            return;
+        }
+        JsonNode id = message.get(ID);
+        if (id != null && !id.isNull()) {
+            keys.add(ID + ":" + id.asText());
+        }
+        String channel = message.path(CHANNEL).asText();
+        if (channel.startsWith(META_CHANNEL_PREFIX)) {
+            keys.add(CHANNEL + ":" + channel);
+        }
+    }
+
+    /**
+     * a POST holding a place in the window
+     */
+    static class Slot {
+        @Nonnull
+        final private ImmutableSet<String> mReplyKeys;
+
+        Slot(Collection<String> replyKeys) {
+            mReplyKeys = ImmutableSet.copyOf(replyKeys);
+        }
+    }
+}
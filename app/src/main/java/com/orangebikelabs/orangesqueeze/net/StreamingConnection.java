@@ -12,6 +12,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.MissingNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Ticker;
 import com.google.common.collect.MapMaker;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import com.google.common.util.concurrent.FutureCallback;
@@ -35,7 +36,6 @@ import com.orangebikelabs.orangesqueeze.common.SBContext;
 import com.orangebikelabs.orangesqueeze.common.SBPreferences;
 import com.orangebikelabs.orangesqueeze.common.ServerStatus;
 import com.orangebikelabs.orangesqueeze.common.ServerStatus.Transaction;
-import com.orangebikelabs.orangesqueeze.net.JsonRpc.Result;
 
 import java.io.IOException;
 import java.net.URL;
@@ -48,6 +48,7 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -82,9 +83,30 @@ public class StreamingConnection extends AbstractExecutionThreadService {
     final private static int PLAYER_STATUS_INTERVAL = 600;
     final private static int SERVER_STATUS_INTERVAL = 60;
 
+    /**
+     * default number of Comet POSTs that can be in flight at once
+     */
+    final public static int DEFAULT_MAX_OUTSTANDING_POSTS = 4;
+
+    /**
+     * number of threads running subscription callbacks, callbacks for a single channel always run one at a time
+     */
+    final private static int DISPATCH_THREAD_COUNT = 3;
+
+    /**
+     * requests that get no response within this time are failed with a TimeoutException
+     */
+    final private static int REQUEST_TIMEOUT = 120;
+
+    /**
+     * resolution of request timeouts, in seconds
+     */
+    final private static int REQUEST_TIMEOUT_TICK = 1;
+
+    final private static int REQUEST_TIMEOUT_WHEEL_SIZE = 256;
+
     final protected ConcurrentMap<String, Subscription> mSubscriptions = new MapMaker().concurrencyLevel(1).makeMap();
-    final protected ConcurrentMap<String, SettableFuture<JsonNode>> mRequests = new MapMaker().concurrencyLevel(1).weakValues().makeMap();
-    final protected ConcurrentMap<Integer, SettableFuture<JsonNode>> mRequestsById = new MapMaker().concurrencyLevel(1).weakValues().makeMap();
+    final protected RequestRegistry mRequestRegistry = new RequestRegistry(Ticker.systemTicker(), REQUEST_TIMEOUT_TICK, TimeUnit.SECONDS, REQUEST_TIMEOUT_WHEEL_SIZE);
 
     /**
      * this is the number of subscriptions requests that are outstanding
@@ -141,7 +163,7 @@ public class StreamingConnection extends AbstractExecutionThreadService {
     /**
      * lateinit
      */
-    volatile private StreamingSocket mStreamingSocket;
+    volatile private StreamingTransport mStreamingTransport;
 
     /**
      * lateinit
@@ -160,6 +182,27 @@ public class StreamingConnection extends AbstractExecutionThreadService {
     @GuardedBy("mLock")
     private boolean mSendWakeOnLan;
 
+    @GuardedBy("this")
+    private int mMaxOutstandingPosts = DEFAULT_MAX_OUTSTANDING_POSTS;
+
+    @GuardedBy("this")
+    private boolean mUseNonBlockingTransport;
+
+    /**
+     * lateinit
+     */
+    volatile private CometRequestPipeline mRequestPipeline;
+
+    /**
+     * lateinit
+     */
+    volatile private ChannelDispatcher mChannelDispatcher;
+
+    /**
+     * lateinit
+     */
+    volatile private ScheduledFuture<?> mRequestExpiryTask;
+
     @GuardedBy("mLock")
     private boolean mConnectionFailed;
 
@@ -182,7 +225,16 @@ public class StreamingConnection extends AbstractExecutionThreadService {
     @Override
     protected void startUp() throws IOException {
         mCometUrl = HttpUtils.getCometUrl(mConnectionInfo);
-        mStreamingSocket = new StreamingSocket(this);
+        if (getUseNonBlockingTransport()) {
+            mStreamingTransport = new NioStreamingTransport(this);
+        } else {
+            mStreamingTransport = new StreamingSocket(this);
+        }
+        mRequestPipeline = new CometRequestPipeline(this, getMaxOutstandingPosts());
+        mChannelDispatcher = new ChannelDispatcher(new OSExecutors.SafeThreadPoolExecutor(DISPATCH_THREAD_COUNT, DISPATCH_THREAD_COUNT,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), Thread.NORM_PRIORITY - 1, "OS Comet Dispatch # %1$d"));
+        mRequestExpiryTask = OSExecutors.getSingleThreadScheduledExecutor().scheduleWithFixedDelay(mRequestRegistry::expire,
+                REQUEST_TIMEOUT_TICK, REQUEST_TIMEOUT_TICK, TimeUnit.SECONDS);
 
         if (getSendWakeOnLan()) {
             NetworkTools.sendWakeOnLan(getApplicationContext(), mConnectionInfo);
@@ -199,7 +251,7 @@ public class StreamingConnection extends AbstractExecutionThreadService {
 
         sendHandshakeMessage();
 
-        mStreamingSocket.connect();
+        mStreamingTransport.connect();
     }
 
     @Override
@@ -207,7 +259,19 @@ public class StreamingConnection extends AbstractExecutionThreadService {
         // when the connection shuts down, ensure nobody continues blocking on awaitConnection
         notifyConnectionFailed("shutting down", null);
 
-        mStreamingSocket.close();
+        mRequestPipeline.close();
+        mStreamingTransport.close();
+        mChannelDispatcher.shutdown();
+
+        mRequestExpiryTask.cancel(false);
+        mRequestRegistry.failAll(new IOException("connection closed"));
+
+        if (OSLog.isLoggable(Tag.TIMING, OSLog.DEBUG)) {
+            OSLog.d(Tag.TIMING, "Comet requests timed out: " + mRequestRegistry.getTimedOutCount() + ", answered late: " + mRequestRegistry.getLateAnswerCount());
+            for (Map.Entry<String, ChannelDispatcher.WaitStats> entry : mChannelDispatcher.getWaitStats().entrySet()) {
+                OSLog.d(Tag.TIMING, "Dispatch wait " + entry.getKey() + ": " + entry.getValue());
+            }
+        }
     }
 
     @Override
@@ -242,6 +306,28 @@ public class StreamingConnection extends AbstractExecutionThreadService {
         return mSendWakeOnLan;
     }
 
+    /**
+     * set the number of Comet POSTs that can be in flight at once, takes effect when the connection is started
+     */
+    synchronized public void setMaxOutstandingPosts(int maxOutstandingPosts) {
+        mMaxOutstandingPosts = maxOutstandingPosts;
+    }
+
+    synchronized public int getMaxOutstandingPosts() {
+        return mMaxOutstandingPosts;
+    }
+
+    /**
+     * choose between the thread-per-socket transport and the shared selector transport, takes effect when the connection is started
+     */
+    synchronized public void setUseNonBlockingTransport(boolean useNonBlockingTransport) {
+        mUseNonBlockingTransport = useNonBlockingTransport;
+    }
+
+    synchronized public boolean getUseNonBlockingTransport() {
+        return mUseNonBlockingTransport;
+    }
+
     @Nonnull
     Context getApplicationContext() {
         return mSbContext.getApplicationContext();
@@ -259,12 +345,12 @@ public class StreamingConnection extends AbstractExecutionThreadService {
 
     protected void sendHandshakeMessage() {
         JsonNode request = createHandshakeMessage();
-        mStreamingSocket.addRequest(request);
+        mStreamingTransport.addRequest(request);
     }
 
     protected void sendConnectMessage(ArrayNode requests) {
-        mStreamingSocket.addRequest(requests);
-        mStreamingSocket.addDoneSendingRequest();
+        mStreamingTransport.addRequest(requests);
+        mStreamingTransport.addDoneSendingRequest();
     }
 
     @Nonnull
@@ -309,11 +395,8 @@ public class StreamingConnection extends AbstractExecutionThreadService {
 
         SettableFuture<JsonNode> retval = SettableFuture.create();
 
-        // look up requests by request key
-        mRequests.put(buildRequestKey(requestId, response), retval);
-
-        // also do requests by id so we can get error information
-        mRequestsById.put(requestId, retval);
+        // look up requests by request key, and also by id so we can get error information
+        mRequestRegistry.register(requestId, buildRequestKey(requestId, response), retval, REQUEST_TIMEOUT, TimeUnit.SECONDS);
 
         requestTimer.addSplit("add request");
         addRequest(request, retval);
@@ -326,7 +409,7 @@ public class StreamingConnection extends AbstractExecutionThreadService {
     protected boolean checkRunning() {
         boolean retval = isRunning();
         if (retval) {
-            retval = mStreamingSocket.isRunning();
+            retval = mStreamingTransport.isRunning();
         }
         return retval;
     }
@@ -383,7 +466,7 @@ public class StreamingConnection extends AbstractExecutionThreadService {
     }
 
     /**
-     * requests are sent directly to server if the connection is established
+     * requests are sent to server via the request pipeline if the connection is established
      */
     protected void addRequest(JsonNode request, SettableFuture<JsonNode> handler) {
         boolean executeRequestNow = false;
@@ -398,36 +481,10 @@ public class StreamingConnection extends AbstractExecutionThreadService {
             }
         }
         if (executeRequestNow) {
-            try {
-                OSLog.d(Tag.DEFAULT, "addRequest", request);
-                ArrayNode payload = mObjectMapper.createArrayNode();
-                payload.add(request);
-
-                JsonRpc rpc = new JsonRpc();
-                // pull in credentials from this connection
-                rpc.setCredentials(mConnectionCredentials);
-                rpc.setTimeout(60, TimeUnit.SECONDS);
-
-                Result result = rpc.executeWithSimpleTimeout(getCometUrl(), payload);
-                try {
-                    OSLog.TimingLoggerCompat requestTimer = Tag.TIMING.newTimingLogger("StreamingConnection::addRequest");
-                    for (ObjectNode node : result.getObjects()) {
-                        requestTimer.addSplit("iteration");
-
-                        onResponseReceived(node);
-                    }
-                    requestTimer.close();
-                } finally {
-                    result.close();
-                }
-            } catch (InterruptedException e) {
-                // don't log this
-                handler.setException(e);
-            } catch (IOException | JsonRpcException e) {
-                OSLog.w(e.getMessage(), e);
+            OSLog.d(Tag.DEFAULT, "addRequest", request);
 
-                handler.setException(e);
-            }
+            // requests queued together are batched into a single POST
+            mRequestPipeline.submit(request, handler);
         }
     }
 
@@ -670,7 +727,7 @@ public class StreamingConnection extends AbstractExecutionThreadService {
             OSLog.w(Tag.DEFAULT, "Unsuccessful operation", response);
             String errorMsg = response.path("error").asText();
             failureException = new UnsuccessfulOperationException(errorMsg, response);
-            SettableFuture<JsonNode> requestById = mRequestsById.remove(id);
+            SettableFuture<JsonNode> requestById = mRequestRegistry.removeById(id);
             if (requestById != null) {
                 requestById.setException(failureException);
             }
@@ -682,19 +739,25 @@ public class StreamingConnection extends AbstractExecutionThreadService {
             handled = true;
             final boolean fSuccess = success;
             final Throwable fFailureException = failureException;
-            subscription.getExecutorService().execute(() -> {
+            Runnable callback = () -> {
                 if (fSuccess) {
                     subscription.onSuccess(response);
                 } else {
                     subscription.onFailure(fFailureException);
                 }
-            });
+            };
+            ExecutorService executor = subscription.getExecutorService();
+            if (executor != null) {
+                executor.execute(callback);
+            } else {
+                mChannelDispatcher.dispatch(channel, callback);
+            }
         }
 
         String requestKey = buildRequestKey(id, channel);
         // even with a subscription, there may be a request
-        SettableFuture<JsonNode> requestResponseFuture = mRequests.remove(requestKey);
-        mRequestsById.remove(id);
+        SettableFuture<JsonNode> requestResponseFuture = mRequestRegistry.remove(requestKey);
+        mRequestRegistry.removeById(id);
         if (requestResponseFuture != null) {
             handled = true;
             if (success) {
@@ -820,7 +883,7 @@ public class StreamingConnection extends AbstractExecutionThreadService {
             }
         }, OSExecutors.getUnboundedPool());
 
-        mRequests.put(buildRequestKey(requestId, response), future);
+        mRequestRegistry.register(requestId, buildRequestKey(requestId, response), future, REQUEST_TIMEOUT, TimeUnit.SECONDS);
         addRequest(retval, future);
     }
 
@@ -1021,9 +1084,14 @@ public class StreamingConnection extends AbstractExecutionThreadService {
             mConnection = connection;
         }
 
-        @Nonnull
+        /**
+         * by default, callbacks are run by the connection's channel dispatcher so that they are ordered within the subscription channel
+         *
+         * @return the executor to run callbacks on, or null to use the channel dispatcher
+         */
+        @Nullable
         public ExecutorService getExecutorService() {
-            return OSExecutors.getUnboundedPool();
+            return null;
         }
 
         @Override
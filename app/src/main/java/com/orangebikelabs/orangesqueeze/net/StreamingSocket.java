@@ -7,7 +7,6 @@ package com.orangebikelabs.orangesqueeze.net;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.util.concurrent.Service.State;
-import com.orangebikelabs.orangesqueeze.common.EqualityLatch;
 import com.orangebikelabs.orangesqueeze.net.StreamingReader.RestartException;
 
 import java.io.IOException;
@@ -18,11 +17,13 @@ import java.net.SocketAddress;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
+ * Blocking transport that uses a dedicated reader and writer thread per connection.
+ *
  * @author tbsandee@orangebikelabs.com
  */
 @ThreadSafe
-public class StreamingSocket {
-    final private EqualityLatch<Boolean> mReadyToWrite = EqualityLatch.create(Boolean.FALSE);
+public class StreamingSocket implements StreamingTransport {
+    final private RequestWindow mRequestWindow;
 
     final private StreamingReader mReaderThread;
     final private StreamingWriter mWriterThread;
@@ -32,12 +33,14 @@ public class StreamingSocket {
     public StreamingSocket(StreamingConnection connection) {
         mConnection = connection;
         mSocket = new Socket();
+        mRequestWindow = new RequestWindow(connection.getMaxOutstandingPosts());
 
         String userAgentString = HttpUtils.getUserAgent();
         mReaderThread = new StreamingReader(this);
         mWriterThread = new StreamingWriter(this, userAgentString);
     }
 
+    @Override
     public void connect() throws IOException {
         SocketAddress address = new InetSocketAddress(mConnection.getCometUrl().getHost(), mConnection.getCometUrl().getPort());
         mSocket.connect(address);
@@ -45,11 +48,14 @@ public class StreamingSocket {
         mReaderThread.startAsync();
         mWriterThread.startAsync();
 
-        mReadyToWrite.set(Boolean.TRUE);
+        mRequestWindow.open();
     }
 
-    public EqualityLatch<Boolean> getReadyToWriteLatch() {
-        return mReadyToWrite;
+    /**
+     * writer acquires a slot in the window for every POST, reader frees it when the first reply to one of its messages arrives
+     */
+    RequestWindow getRequestWindow() {
+        return mRequestWindow;
     }
 
     public Socket getRawSocket() {
@@ -60,15 +66,18 @@ public class StreamingSocket {
         return mConnection;
     }
 
+    @Override
     public boolean isRunning() {
         State readerState = mReaderThread.state();
         return mSocket.isConnected() && (readerState == State.RUNNING || readerState == State.STARTING);
     }
 
+    @Override
     public void addDoneSendingRequest() {
         // no implementation
     }
 
+    @Override
     public void close() {
         mReaderThread.stopAsync();
         mWriterThread.stopAsync();
@@ -80,6 +89,7 @@ public class StreamingSocket {
         }
     }
 
+    @Override
     public void addRequest(JsonNode request) {
         mWriterThread.addRequest(request);
     }
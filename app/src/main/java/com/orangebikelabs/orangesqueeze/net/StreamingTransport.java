@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+
+/**
+ * The network side of a {@link StreamingConnection}: carries Bayeux messages to the server and hands responses back to the connection.
+ *
+ * @author tbsandee@orangebikelabs.com
+ */
+public interface StreamingTransport {
+    void connect() throws IOException;
+
+    boolean isRunning();
+
+    void close();
+
+    void addRequest(JsonNode request);
+
+    void addDoneSendingRequest();
+}
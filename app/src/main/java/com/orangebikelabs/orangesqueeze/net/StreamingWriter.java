@@ -6,11 +6,8 @@
 package com.orangebikelabs.orangesqueeze.net;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.MissingNode;
-import com.google.common.base.Charsets;
 import com.orangebikelabs.orangesqueeze.common.AbsInterruptibleThreadService;
-import com.orangebikelabs.orangesqueeze.common.EqualityLatch;
 import com.orangebikelabs.orangesqueeze.common.JsonHelper;
 import com.orangebikelabs.orangesqueeze.common.OSLog;
 import com.orangebikelabs.orangesqueeze.common.OSLog.Tag;
@@ -18,15 +15,20 @@ import com.orangebikelabs.orangesqueeze.common.OSLog.Tag;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.ThreadSafe;
 
-import okhttp3.CacheControl;
-
 /**
- * Thread that handles writing requests to the Squeezebox streaming connection.
+ * Thread that handles writing requests to the Squeezebox streaming connection. Requests that are queued while the writer is busy are
+ * combined into a single Bayeux message array, and up to {@link StreamingConnection#getMaxOutstandingPosts()} POSTs may be outstanding
+ * at once, each one until a reply to one of its messages arrives. Each POST is encoded into a reusable buffer by {@link CometPostEncoder}
+ * and sent with a single write.
  *
  * @author tbsandee@orangebikelabs.com
  */
@@ -34,14 +36,14 @@ import okhttp3.CacheControl;
 public class StreamingWriter extends AbsInterruptibleThreadService {
     final static private JsonNode END = MissingNode.getInstance();
     final private LinkedBlockingQueue<JsonNode> mRequestQueue = new LinkedBlockingQueue<>();
+    final private List<JsonNode> mBatch = new ArrayList<>();
+    final private Set<String> mReplyKeys = new HashSet<>();
     final private StreamingSocket mSocket;
-    final private String mUserAgentHeader;
-    final private String mCacheControlHeader;
+    final private String mUserAgentString;
 
     public StreamingWriter(StreamingSocket socket, String userAgentString) {
         mSocket = socket;
-        mUserAgentHeader = "User-Agent: " + userAgentString;
-        mCacheControlHeader = "Cache-Control: " + new CacheControl.Builder().noCache().noStore().noTransform().build();
+        mUserAgentString = userAgentString;
     }
 
     @Override
@@ -62,38 +64,33 @@ public class StreamingWriter extends AbsInterruptibleThreadService {
     protected void run() {
         try {
             OutputStream os = mSocket.getRawSocket().getOutputStream();
-            EqualityLatch<Boolean> readyToWrite = mSocket.getReadyToWriteLatch();
+            RequestWindow requestWindow = mSocket.getRequestWindow();
             URL url = mSocket.getConnection().getCometUrl();
             SBCredentials creds = mSocket.getConnection().getSbContext().getConnectionCredentials();
-            JsonNode node;
-            while ((node = getNextRequest()) != END && isRunning()) {
-                readyToWrite.await(Boolean.TRUE);
+            HttpUtils.Header authHeader = creds != null ? creds.getHeader(url) : null;
+            CometPostEncoder encoder = new CometPostEncoder(JsonHelper.getJsonObjectMapper(), url, mUserAgentString, authHeader);
 
-                byte[] nodeBytes = node.toString().getBytes(Charsets.UTF_8.name());
-
-                safePrintln(os, "POST " + url.getPath() + " HTTP/1.1");
-                safePrintln(os, "Host: " + url.getHost() + ":" + url.getPort());
-                safePrintln(os, "Cache-Control: no-cache");
-                safePrintln(os, "Content-Type: " + JsonRpc.JSON_CONTENT_TYPE);
-                safePrintln(os, "Content-Length: " + nodeBytes.length);
-                safePrintln(os, "Accept-Charset: " + Charsets.UTF_8.name());
-                safePrintln(os, mUserAgentHeader);
+            JsonNode node;
+            while ((node = mRequestQueue.take()) != END && isRunning()) {
+                // anything else queued up goes into the same POST
+                mBatch.clear();
+                mBatch.add(node);
+                if (!drainPendingRequests(mBatch)) {
+                    break;
+                }
 
-                if (creds != null) {
-                    HttpUtils.Header header = creds.getHeader(url);
-                    if (header != null) {
-                        safePrintln(os, header.getName() + ": " + header.getValue());
-                    }
+                mReplyKeys.clear();
+                for (JsonNode request : mBatch) {
+                    RequestWindow.addReplyKeys(request, mReplyKeys);
                 }
+                requestWindow.acquire(mReplyKeys);
 
-                safePrintln(os, "");
+                int length = encoder.encode(mBatch);
                 if (OSLog.isLoggable(Tag.NETWORK, OSLog.VERBOSE)) {
-                    OSLog.v(Tag.NETWORK, "StreamingWriter::post body = " + new String(nodeBytes, Charsets.UTF_8));
+                    OSLog.v(Tag.NETWORK, "StreamingWriter::post body = " + encoder.getBody(length));
                 }
-                os.write(nodeBytes);
-
+                os.write(encoder.getBuffer(), 0, length);
                 os.flush();
-                readyToWrite.set(Boolean.FALSE);
             }
             os.close();
         } catch (IOException e) {
@@ -103,6 +100,8 @@ public class StreamingWriter extends AbsInterruptibleThreadService {
         } catch (InterruptedException e) {
             OSLog.v(Tag.NETWORK, "WriterThread interrupted");
         } finally {
+            mBatch.clear();
+            mReplyKeys.clear();
             mSocket.onWriterQuit(isRunning());
         }
     }
@@ -111,28 +110,19 @@ public class StreamingWriter extends AbsInterruptibleThreadService {
         mRequestQueue.add(request);
     }
 
-    private void safePrintln(OutputStream os, String line) throws IOException {
-        if (OSLog.isLoggable(Tag.NETWORK, OSLog.VERBOSE)) {
-            OSLog.v(Tag.NETWORK, "StreamingWriter::safePrintln = " + line);
-        }
-        os.write(line.getBytes("US-ASCII"));
-        os.write("\r\n".getBytes("US-ASCII"));
-    }
-
-    protected JsonNode getNextRequest() throws InterruptedException {
-
-        JsonNode node = mRequestQueue.take();
-        if (node == END) {
-            return node;
-        }
-
-        ArrayNode retval;
-        if (node.isArray()) {
-            retval = (ArrayNode) node;
-        } else {
-            retval = JsonHelper.getJsonObjectMapper().createArrayNode();
-            retval.add(node);
+    /**
+     * append any immediately available requests to the batch
+     *
+     * @return false if the writer is shutting down
+     */
+    protected boolean drainPendingRequests(List<JsonNode> batch) {
+        int start = batch.size();
+        mRequestQueue.drainTo(batch);
+        for (int i = start; i < batch.size(); i++) {
+            if (batch.get(i) == END) {
+                return false;
+            }
         }
-        return retval;
+        return true;
     }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class BlobStoreTest {
+    final static private int SEGMENT_SIZE = 64 * 1024;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() {
+        mDirectory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void testAppendAndRead() throws IOException {
+        BlobStore store = new BlobStore(mDirectory, SEGMENT_SIZE);
+        Random random = new Random(1);
+        List<byte[]> values = new ArrayList<>();
+        List<BlobStore.Ref> refs = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            byte[] value = new byte[5000 + random.nextInt(5000)];
+            random.nextBytes(value);
+            values.add(value);
+            refs.add(store.append(value));
+        }
+        store.sync();
+
+        // values span several segments, sealed ones are read through a mapping
+        assertThat(store.getActiveSegment()).isGreaterThan(1);
+        for (int i = 0; i < values.size(); i++) {
+            assertThat(Arrays.equals(store.open(refs.get(i)).read(), values.get(i))).isTrue();
+        }
+        store.close();
+
+        // and still readable after reopening
+        BlobStore reopened = new BlobStore(mDirectory, SEGMENT_SIZE);
+        assertThat(Arrays.equals(reopened.open(refs.get(0)).read(), values.get(0))).isTrue();
+        assertThat(Arrays.equals(reopened.open(refs.get(49)).read(), values.get(49))).isTrue();
+        reopened.close();
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws IOException {
+        BlobStore store = new BlobStore(mDirectory, SEGMENT_SIZE);
+        BlobStore.Ref first = store.append(new byte[1000]);
+        BlobStore.Ref second = store.append(new byte[1000]);
+        store.close();
+
+        // simulate a crash part way through writing the second record
+        File segment = new File(mDirectory, "segment-1.blob");
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(second.getOffset() + BlobStore.HEADER_SIZE + 500);
+        }
+
+        BlobStore reopened = new BlobStore(mDirectory, SEGMENT_SIZE);
+        assertThat(reopened.open(first).read().length).isEqualTo(1000);
+
+        // the torn record is gone and the next append reuses its space
+        BlobStore.Ref third = reopened.append(new byte[10]);
+        assertThat(third.getOffset()).isEqualTo(second.getOffset());
+        reopened.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptionIsDetected() throws IOException {
+        BlobStore store = new BlobStore(mDirectory, SEGMENT_SIZE);
+        BlobStore.Ref ref = store.append(new byte[1000]);
+        store.close();
+
+        File segment = new File(mDirectory, "segment-1.blob");
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(ref.getOffset() + BlobStore.HEADER_SIZE + 100);
+            raf.write(0x55);
+        }
+
+        BlobStore reopened = new BlobStore(mDirectory, SEGMENT_SIZE);
+        reopened.open(ref).read();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        BlobStore store = new BlobStore(mDirectory, SEGMENT_SIZE);
+        List<BlobStore.Ref> refs = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            byte[] value = new byte[8000];
+            Arrays.fill(value, (byte) i);
+            BlobStore.Ref ref = store.append(value);
+            // the row referencing it is queued
+            store.unpin(ref);
+            refs.add(ref);
+        }
+        int active = store.getActiveSegment();
+
+        // keep only one value from the first segment
+        BlobStore.Ref survivor = refs.get(0);
+        Map<Integer, Long> liveSizes = new HashMap<>();
+        for (BlobStore.Ref ref : refs) {
+            if (ref.getSegment() != 1 || ref == survivor) {
+                Long current = liveSizes.get(ref.getSegment());
+                liveSizes.put(ref.getSegment(), (current == null ? 0 : current) + ref.getLength());
+            }
+        }
+        List<Integer> candidates = store.findCompactionCandidates(liveSizes, active, 0.5f);
+        assertThat(candidates).isEqualTo(Collections.singletonList(1));
+
+        BlobStore.Ref moved = store.copy(survivor);
+        store.sync();
+        store.deleteSegment(1);
+
+        assertThat(moved.getSegment()).isAtLeast(active);
+        byte[] value = store.open(moved).read();
+        assertThat(value.length).isEqualTo(8000);
+        assertThat(value[0]).isEqualTo((byte) 0);
+        assertThat(store.getSegmentSizes().containsKey(1)).isFalse();
+        store.close();
+    }
+
+    /**
+     * a value appended to a segment that is sealed before the row referencing it is queued keeps the segment from being compacted
+     */
+    @Test
+    public void testPinnedSegmentIsNotCompacted() throws IOException {
+        BlobStore store = new BlobStore(mDirectory, SEGMENT_SIZE);
+        BlobStore.Ref pending = store.append(new byte[8000]);
+        while (store.getActiveSegment() == pending.getSegment()) {
+            store.unpin(store.append(new byte[8000]));
+        }
+        int active = store.getActiveSegment();
+
+        // nothing referenced in the first segment yet
+        Map<Integer, Long> liveSizes = new HashMap<>();
+        assertThat(store.findCompactionCandidates(liveSizes, active, 0.5f)).isEmpty();
+
+        // once its row is queued the caller counts it, or skips the segment
+        store.unpin(pending);
+        assertThat(store.findCompactionCandidates(liveSizes, active, 0.5f)).isEqualTo(Collections.singletonList(pending.getSegment()));
+
+        // copies made by compaction aren't pinned
+        BlobStore.Ref moved = store.copy(pending);
+        while (store.getActiveSegment() == moved.getSegment()) {
+            store.copy(pending);
+        }
+        assertThat(store.findCompactionCandidates(liveSizes, store.getActiveSegment(), 0.5f)).contains(moved.getSegment());
+        store.close();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.io.ByteSource;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class CacheCompressionTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] value = browseResponse(50);
+        byte[] compressed = CacheCompression.compress(value);
+        assertThat(compressed.length).isLessThan(value.length);
+
+        ByteSource decoded = CacheCompression.decoding(ByteSource.wrap(compressed));
+        assertThat(decoded.size()).isEqualTo((long) value.length);
+        assertThat(Arrays.equals(decoded.read(), value)).isTrue();
+    }
+
+    @Test
+    public void testUncompressedPassThrough() throws IOException {
+        // small values and incompressible values are stored as is
+        byte[] small = "{\"count\":0}".getBytes(StandardCharsets.UTF_8);
+        assertThat(CacheCompression.compress(small)).isSameInstanceAs(small);
+
+        byte[] random = new byte[10000];
+        new Random(3).nextBytes(random);
+        assertThat(CacheCompression.compress(random)).isSameInstanceAs(random);
+
+        ByteSource decoded = CacheCompression.decoding(ByteSource.wrap(random));
+        assertThat(decoded.size()).isEqualTo(10000L);
+        assertThat(Arrays.equals(decoded.read(), random)).isTrue();
+    }
+
+    @Test
+    public void testDictionaryHelpsSmallResponses() {
+        byte[] value = browseResponse(3);
+        int withDictionary = CacheCompression.compress(value).length;
+        int withoutDictionary = deflatePlain(value);
+        assertThat(withDictionary).isLessThan(withoutDictionary);
+    }
+
+    static private int deflatePlain(byte[] value) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(value);
+        deflater.finish();
+        byte[] buffer = new byte[value.length + 64];
+        int size = 0;
+        while (!deflater.finished()) {
+            size += deflater.deflate(buffer);
+        }
+        deflater.end();
+        return size;
+    }
+
+    /**
+     * approximates the shape of an album browse result
+     */
+    static private byte[] browseResponse(int items) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"count\":").append(items).append(",\"offset\":0,\"base\":{\"actions\":{\"go\":{\"cmd\":[\"browselibrary\",\"items\"],")
+                .append("\"params\":{\"menu\":1,\"mode\":\"tracks\"},\"itemsParams\":\"params\"},\"play\":{\"cmd\":[\"playlistcontrol\"],")
+                .append("\"params\":{\"cmd\":\"load\"},\"itemsParams\":\"commonParams\",\"nextWindow\":\"nowPlaying\"}}},\"item_loop\":[");
+        for (int i = 0; i < items; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"text\":\"Album ").append(i).append("\\nArtist ").append(i % 7).append("\",\"textkey\":\"A\",\"icon-id\":\"")
+                    .append(1000 + i).append("\",\"params\":{\"album_id\":").append(i).append(",\"artist_id\":").append(i % 7)
+                    .append("},\"type\":\"playlist\",\"window\":{\"titleStyle\":\"album\"},\"actions\":{\"add\":{\"params\":{\"cmd\":\"add\"}}}}");
+        }
+        sb.append("]}");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class CacheKeyFilterTest {
+    final static private long SERVER = 1;
+    final static private long OTHER_SERVER = 2;
+
+    final private CacheKeyFilter mFilter = new CacheKeyFilter();
+
+    @Test
+    public void testEverythingMightBePresentUntilBuilt() {
+        assertThat(mFilter.mightContain(SERVER, 42)).isTrue();
+        assertThat(mFilter.isRebuildNeeded()).isTrue();
+
+        mFilter.rebuild(new TableKeySource());
+        assertThat(mFilter.mightContain(SERVER, 42)).isFalse();
+        assertThat(mFilter.isRebuildNeeded()).isFalse();
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        Random random = new Random(1);
+        TableKeySource table = new TableKeySource();
+        while (table.mKeys.size() < 20000) {
+            table.mKeys.add(random.nextInt());
+        }
+        mFilter.rebuild(table);
+
+        for (int key : table.mKeys) {
+            assertThat(mFilter.mightContain(SERVER, key)).isTrue();
+        }
+
+        int checks = 0;
+        int falsePositives = 0;
+        while (checks < 200000) {
+            int key = random.nextInt();
+            if (table.mKeys.contains(key)) {
+                continue;
+            }
+            checks++;
+            if (mFilter.mightContain(SERVER, key)) {
+                falsePositives++;
+            }
+        }
+        // sized for twice the keys present, so well under the target until it fills up
+        assertThat((double) falsePositives / checks).isLessThan(CacheKeyFilter.FALSE_POSITIVE_RATE);
+
+        // filters are per server
+        assertThat(mFilter.mightContain(OTHER_SERVER, table.mKeys.iterator().next())).isFalse();
+    }
+
+    @Test
+    public void testKeysAddedDuringRebuildAreKept() {
+        mFilter.rebuild(new TableKeySource() {
+            @Override
+            public void flush() {
+                // queued before the read, committed after it
+                mFilter.add(SERVER, 1);
+            }
+
+            @Override
+            public void forEachKey(CacheKeyFilter.KeyConsumer consumer) {
+                mFilter.add(OTHER_SERVER, 2);
+                super.forEachKey(consumer);
+            }
+        });
+        assertThat(mFilter.mightContain(SERVER, 1)).isTrue();
+        assertThat(mFilter.mightContain(OTHER_SERVER, 2)).isTrue();
+
+        mFilter.add(SERVER, 3);
+        assertThat(mFilter.mightContain(SERVER, 3)).isTrue();
+    }
+
+    /**
+     * a rebuild that starts between a store adding its key and queueing its write must still end up with the key
+     */
+    @Test
+    public void testStoreInterleavedWithRebuild() throws Exception {
+        TableKeySource table = new TableKeySource();
+        table.mKeys.add(7);
+        mFilter.rebuild(table);
+
+        Set<Integer> queued = new HashSet<>();
+        CountDownLatch adding = new CountDownLatch(1);
+        CountDownLatch rebuildStarted = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> store = executor.submit(() -> {
+                mFilter.addAndStore(SERVER, 1, () -> {
+                    adding.countDown();
+                    Uninterruptibles.awaitUninterruptibly(rebuildStarted);
+                    // give the rebuild time to flush and read the table if it doesn't wait for this write
+                    Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+                    synchronized (queued) {
+                        queued.add(1);
+                    }
+                });
+                return null;
+            });
+            adding.await();
+
+            Future<?> rebuild = executor.submit(() -> mFilter.rebuild(new TableKeySource() {
+                @Override
+                public void flush() {
+                    synchronized (queued) {
+                        table.mKeys.addAll(queued);
+                        queued.clear();
+                    }
+                }
+
+                @Override
+                @Nonnull
+                public Map<Long, Long> countKeys() {
+                    return table.countKeys();
+                }
+
+                @Override
+                public void forEachKey(CacheKeyFilter.KeyConsumer consumer) {
+                    table.forEachKey(consumer);
+                }
+            }));
+            rebuildStarted.countDown();
+
+            store.get(10, TimeUnit.SECONDS);
+            rebuild.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(mFilter.mightContain(SERVER, 1)).isTrue();
+        assertThat(mFilter.mightContain(SERVER, 7)).isTrue();
+    }
+
+    @Test
+    public void testRebuildNeeded() {
+        TableKeySource table = new TableKeySource();
+        for (int i = 0; i < 8000; i++) {
+            table.mKeys.add(i);
+        }
+        mFilter.rebuild(table);
+        assertThat(mFilter.isRebuildNeeded()).isFalse();
+
+        mFilter.recordEvictions(1000);
+        assertThat(mFilter.isRebuildNeeded()).isFalse();
+        mFilter.recordEvictions(1500);
+        assertThat(mFilter.isRebuildNeeded()).isTrue();
+
+        mFilter.rebuild(table);
+        assertThat(mFilter.isRebuildNeeded()).isFalse();
+
+        // past what the filter was sized for
+        for (int i = 8000; i < 30000; i++) {
+            mFilter.add(SERVER, i);
+        }
+        assertThat(mFilter.isRebuildNeeded()).isTrue();
+
+        mFilter.clear();
+        assertThat(mFilter.isRebuildNeeded()).isFalse();
+        assertThat(mFilter.mightContain(SERVER, 1)).isFalse();
+    }
+
+    static private class TableKeySource implements CacheKeyFilter.KeySource {
+        final Set<Integer> mKeys = new HashSet<>();
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        @Nonnull
+        public Map<Long, Long> countKeys() {
+            Map<Long, Long> retval = new HashMap<>();
+            if (!mKeys.isEmpty()) {
+                retval.put(SERVER, (long) mKeys.size());
+            }
+            return retval;
+        }
+
+        @Override
+        public void forEachKey(CacheKeyFilter.KeyConsumer consumer) {
+            for (int key : mKeys) {
+                consumer.accept(SERVER, key);
+            }
+        }
+    }
+}
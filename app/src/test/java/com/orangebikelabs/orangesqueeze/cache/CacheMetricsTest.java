@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.orangebikelabs.orangesqueeze.cache.CacheMetrics.Operation;
+import com.orangebikelabs.orangesqueeze.cache.CacheMetrics.Tier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class CacheMetricsTest {
+    final static private int THREADS = 16;
+    final static private int ITERATIONS = 20000;
+
+    private ExecutorService mExecutorService;
+
+    @Before
+    public void setUp() {
+        mExecutorService = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutorService.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentCounters() throws Exception {
+        CacheMetrics metrics = new CacheMetrics();
+        CacheEntry browse = new CacheEntry(CacheEntry.Type.SERVERSCAN, 1, "Request{[browselibrary,items,0,100,menu:1]}");
+        CacheEntry radios = new CacheEntry(CacheEntry.Type.TIMEOUT, 1, "Request{00:04:20:aa:bb:cc,[radios,0,100]}");
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(mExecutorService.submit(() -> {
+                start.await();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    long begin = System.nanoTime();
+                    metrics.recordMiss(Tier.MEMORY, browse);
+                    metrics.recordHit(Tier.DATABASE, browse, 10);
+                    metrics.recordHit(Tier.MEMORY, radios, 0);
+                    metrics.recordBytesWritten(Tier.DATABASE, 3);
+                    metrics.recordEvictions(Tier.MEMORY, 1);
+                    metrics.recordLatency(Operation.LOAD, begin);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> f : futures) {
+            f.get(30, TimeUnit.SECONDS);
+        }
+
+        long total = (long) THREADS * ITERATIONS;
+        CacheMetrics.Snapshot snapshot = metrics.snapshot();
+        assertThat(snapshot.getMisses(Tier.MEMORY)).isEqualTo(total);
+        assertThat(snapshot.getHits(Tier.MEMORY)).isEqualTo(total);
+        assertThat(snapshot.getHits(Tier.DATABASE)).isEqualTo(total);
+        assertThat(snapshot.getBytesRead(Tier.DATABASE)).isEqualTo(10 * total);
+        assertThat(snapshot.getBytesWritten(Tier.DATABASE)).isEqualTo(3 * total);
+        assertThat(snapshot.getEvictions(Tier.MEMORY)).isEqualTo(total);
+        assertThat(snapshot.getHits(Tier.NETWORK)).isEqualTo(0L);
+        assertThat(snapshot.getLatency(Operation.LOAD).getCount()).isEqualTo(total);
+        assertThat(snapshot.getLatency(Operation.PERSIST).getCount()).isEqualTo(0L);
+
+        assertThat(snapshot.getPrefixes()).hasSize(2);
+        CacheMetrics.PrefixSnapshot browsePrefix = snapshot.getPrefixes().get("browselibrary items");
+        assertThat(browsePrefix.getMisses(Tier.MEMORY)).isEqualTo(total);
+        assertThat(browsePrefix.getHits(Tier.DATABASE)).isEqualTo(total);
+        assertThat(snapshot.getPrefixes().get("radios").getHits(Tier.MEMORY)).isEqualTo(total);
+    }
+
+    @Test
+    public void testCommandPrefix() {
+        assertThat(CacheMetrics.getCommandPrefix("Request{[browselibrary,items,0,100,menu:1]}")).isEqualTo("browselibrary items");
+        assertThat(CacheMetrics.getCommandPrefix("Request{[artists,0,100]}")).isEqualTo("artists");
+        assertThat(CacheMetrics.getCommandPrefix("Request{[songinfo,0,100,track_id:12]}")).isEqualTo("songinfo");
+        assertThat(CacheMetrics.getCommandPrefix("Request{[titles]}")).isEqualTo("titles");
+        assertThat(CacheMetrics.getCommandPrefix("Artwork{id=1234,w=300,t=JPEG,q=85}")).isEqualTo("Artwork");
+        assertThat(CacheMetrics.getCommandPrefix("TI3:1234")).isEqualTo("TI");
+        assertThat(CacheMetrics.getCommandPrefix("1234")).isEqualTo(CacheMetrics.OTHER_PREFIX);
+    }
+
+    @Test
+    public void testPrefixesAreCapped() {
+        CacheMetrics metrics = new CacheMetrics();
+        for (int i = 0; i < CacheMetrics.MAX_PREFIXES * 2; i++) {
+            // commands are made of letters only
+            String command = "cmd" + (char) ('a' + i / 26) + (char) ('a' + i % 26);
+            metrics.recordMiss(Tier.DATABASE, new CacheEntry(CacheEntry.Type.SERVERSCAN, 1, "Request{[" + command + ",0,100]}"));
+        }
+        CacheMetrics.Snapshot snapshot = metrics.snapshot();
+        assertThat(snapshot.getPrefixes().size()).isAtMost(CacheMetrics.MAX_PREFIXES + 1);
+        assertThat(snapshot.getMisses(Tier.DATABASE)).isEqualTo((long) CacheMetrics.MAX_PREFIXES * 2);
+    }
+
+    @Test
+    public void testLatencyPercentiles() {
+        CacheMetrics.Histogram histogram = new CacheMetrics.Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+        CacheMetrics.LatencySnapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount()).isEqualTo(100L);
+        assertThat(snapshot.getPercentileMicros(50)).isEqualTo(128L);
+        assertThat(snapshot.getPercentileMicros(99)).isEqualTo(128L);
+        assertThat(snapshot.getPercentileMicros(100)).isEqualTo(65536L);
+    }
+}
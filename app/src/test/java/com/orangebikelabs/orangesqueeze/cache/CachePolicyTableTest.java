@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.orangebikelabs.orangesqueeze.cache.CachePolicyTable.Rule;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class CachePolicyTableTest {
+    final static private CachePolicyTable sTable = CachePolicyTable.newBuilder()
+            .add(Rule.serverScan("browselibrary", "items"), Rule.serverScan("artists"))
+            .add(Rule.serverScan("custombrowse", "browsejive").unlessParameterContains("ml_rated"))
+            .add(Rule.timeout("radios").keyedByPlayer(), Rule.timeout("myapps", "items").keyedByPlayer())
+            .add(Rule.uncached("custombrowse", "browsejive"), Rule.uncached("myapps"))
+            .build();
+
+    @Test
+    public void testLookup() {
+        assertThat(cacheTypeOf("browselibrary", "items", 0, 100, "mode:artists")).isEqualTo(CacheEntry.Type.SERVERSCAN);
+        assertThat(cacheTypeOf("artists", 0, 100)).isEqualTo(CacheEntry.Type.SERVERSCAN);
+        assertThat(cacheTypeOf("radios", 0, 100)).isEqualTo(CacheEntry.Type.TIMEOUT);
+        assertThat(sTable.lookup(Arrays.asList("browselibrary", "tags", 0, 100))).isNull();
+        assertThat(sTable.lookup(Arrays.asList("status", "-", 1))).isNull();
+
+        // a path needs at least one parameter after it
+        assertThat(sTable.lookup(Arrays.asList("artists"))).isNull();
+        assertThat(sTable.lookup(Arrays.asList("browselibrary", "items"))).isNull();
+        assertThat(sTable.lookup(Arrays.<Object>asList())).isNull();
+    }
+
+    @Test
+    public void testDeepestRuleWins() {
+        assertThat(cacheTypeOf("myapps", "items", 0, 100)).isEqualTo(CacheEntry.Type.TIMEOUT);
+
+        Rule rule = sTable.lookup(Arrays.asList("myapps", "other", 0, 100));
+        assertThat(rule).isNotNull();
+        assertThat(rule.getCacheType()).isNull();
+    }
+
+    @Test
+    public void testExcludedParameterFallsThrough() {
+        assertThat(cacheTypeOf("custombrowse", "browsejive", 0, 100, "hierarchy:album")).isEqualTo(CacheEntry.Type.SERVERSCAN);
+
+        Rule rule = sTable.lookup(Arrays.asList("custombrowse", "browsejive", 0, 100, "hierarchy:ml_rated_album"));
+        assertThat(rule).isNotNull();
+        assertThat(rule.getCacheType()).isNull();
+    }
+
+    @Test
+    public void testCacheKeys() {
+        List<Object> commands = Arrays.asList("browselibrary", "items", 0, 100, "mode:artists");
+        CacheEntry entry = sTable.lookup(commands).newCacheEntry(1, "00:04:20:aa:bb:cc", commands);
+        assertThat(entry.getKey()).isEqualTo("Request{[browselibrary,items,0,100,mode:artists]}");
+        assertThat(entry.getCacheType()).isEqualTo(CacheEntry.Type.SERVERSCAN);
+        assertThat(entry.getServerId()).isEqualTo(1L);
+
+        commands = Arrays.asList("radios", 0, 100);
+        entry = sTable.lookup(commands).newCacheEntry(2, "00:04:20:aa:bb:cc", commands);
+        assertThat(entry.getKey()).isEqualTo("Request{00:04:20:aa:bb:cc,[radios,0,100]}");
+        assertThat(entry).isEqualTo(new CacheEntry(CacheEntry.Type.TIMEOUT, 2, "Request{00:04:20:aa:bb:cc,[radios,0,100]}"));
+
+        entry = sTable.lookup(commands).newCacheEntry(2, null, commands);
+        assertThat(entry.getKey()).isEqualTo("Request{[radios,0,100]}");
+    }
+
+    private CacheEntry.Type cacheTypeOf(Object... commands) {
+        Rule rule = sTable.lookup(Arrays.asList(commands));
+        assertThat(rule).isNotNull();
+        return rule.getCacheType();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class MemoryCacheSnapshotTest {
+    final static private long SERVER_ID = 7;
+    final static private long SCAN_TIMESTAMP = 1650000000L;
+
+    private File mDirectory;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mDirectory = Files.createTempDir();
+        mFile = new File(mDirectory, MemoryCacheSnapshot.FILENAME);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        MemoryCacheSnapshot snapshot = newSnapshot(50);
+        snapshot.write(mFile);
+
+        MemoryCacheSnapshot read = MemoryCacheSnapshot.read(mFile);
+        assertThat(read).isNotNull();
+        assertThat(read.getServerId()).isEqualTo(SERVER_ID);
+        assertThat(read.getServerScanTimestamp()).isEqualTo(SCAN_TIMESTAMP);
+        assertThat(read.getItems()).hasSize(50);
+        for (int i = 0; i < 50; i++) {
+            MemoryCacheSnapshot.Item expected = snapshot.getItems().get(i);
+            MemoryCacheSnapshot.Item actual = read.getItems().get(i);
+            assertThat(actual.mEntry).isEqualTo(expected.mEntry);
+            assertThat(actual.mEntry.getKeyHash()).isEqualTo(expected.mEntry.getKeyHash());
+            assertThat(actual.mExpiration).isEqualTo(expected.mExpiration);
+            assertThat(actual.mSize).isEqualTo(expected.mSize);
+            assertThat(Arrays.equals(actual.mValue, expected.mValue)).isTrue();
+        }
+
+        // replaced in place, leaving nothing else behind
+        newSnapshot(3).write(mFile);
+        assertThat(MemoryCacheSnapshot.read(mFile).getItems()).hasSize(3);
+        assertThat(mDirectory.listFiles().length).isEqualTo(1);
+    }
+
+    @Test
+    public void testUnusableFilesReadAsNoSnapshot() throws IOException {
+        assertThat(MemoryCacheSnapshot.read(mFile)).isNull();
+
+        newSnapshot(20).write(mFile);
+        long length = mFile.length();
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(length / 2);
+            int b = raf.read();
+            raf.seek(length / 2);
+            raf.write(b ^ 0xff);
+        }
+        assertThat(MemoryCacheSnapshot.read(mFile)).isNull();
+
+        newSnapshot(20).write(mFile);
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(length - 100);
+        }
+        assertThat(MemoryCacheSnapshot.read(mFile)).isNull();
+
+        Files.write(new byte[10], mFile);
+        assertThat(MemoryCacheSnapshot.read(mFile)).isNull();
+    }
+
+    static private MemoryCacheSnapshot newSnapshot(int count) {
+        Random random = new Random(count);
+        List<MemoryCacheSnapshot.Item> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] value = new byte[random.nextInt(4096)];
+            random.nextBytes(value);
+            CacheEntry.Type type = i % 3 == 0 ? CacheEntry.Type.TIMEOUT : CacheEntry.Type.SERVERSCAN;
+            long expiration = type == CacheEntry.Type.TIMEOUT ? System.currentTimeMillis() + i : SCAN_TIMESTAMP;
+            CacheEntry entry = new CacheEntry(type, SERVER_ID, "Request{[browselibrary,items," + (i * 100) + ",100,mode:albums,caf\u00e9]}");
+            items.add(new MemoryCacheSnapshot.Item(entry, expiration, value.length, value));
+        }
+        return new MemoryCacheSnapshot(SERVER_ID, SCAN_TIMESTAMP, items);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class ServerScanRevalidatorTest {
+    final static private long SERVER_ID = 1;
+    final static private int BATCH_SIZE = 100;
+
+    private FakeServer mServer;
+    private FakeStore mStore;
+    private ServerScanRevalidator mRevalidator;
+
+    @Before
+    public void setUp() {
+        mServer = new FakeServer();
+        mServer.putList("artists", 250);
+        mServer.putList("albums", 40);
+        mServer.putList("genres", 0);
+        mServer.putList("titles", 1000);
+        mServer.rescan();
+
+        mStore = new FakeStore();
+        mRevalidator = new ServerScanRevalidator(mStore, mServer);
+    }
+
+    @Test
+    public void testListKey() {
+        List<String> commands = Arrays.asList("browselibrary", "items", "100", "100", "menu:1", "mode:artists");
+        String listKey = ListFingerprint.getListKey(commands);
+        assertThat(listKey).isEqualTo(ListFingerprint.getListKey(Arrays.asList("browselibrary", "items", "0", "100", "menu:1", "mode:artists")));
+        assertThat(new ListFingerprint(listKey, 1, 1, 1L, 1, 1L, null).getCommands(5, 10))
+                .isEqualTo(Arrays.asList("browselibrary", "items", "5", "10", "menu:1", "mode:artists"));
+        assertThat(ListFingerprint.getListKey(Arrays.asList("songinfo", "track_id:12"))).isEqualTo(null);
+    }
+
+    @Test
+    public void testUnchangedListsAreKept() throws Exception {
+        browseAll("artists", "albums", "genres", "titles");
+        mServer.rescan();
+
+        ServerScanRevalidator.Result result = mRevalidator.revalidate(SERVER_ID, mServer.mScanTimestamp);
+        assertThat(result.mKeptLists).isEqualTo(4);
+        assertThat(result.mDiscardedLists).isEqualTo(0);
+        // 3 + 1 + 1 + 10 pages
+        assertThat(result.mKeptPages).isEqualTo(15);
+        assertThat(mStore.pagesAtScan(mServer.mScanTimestamp)).isEqualTo(15);
+
+        // one page for the single page lists, two for the others
+        assertThat(mServer.mFetches).isEqualTo(2 + 1 + 1 + 2);
+
+        // nothing is left to do until the next rescan
+        assertThat(mRevalidator.revalidate(SERVER_ID, mServer.mScanTimestamp).mKeptLists).isEqualTo(0);
+    }
+
+    @Test
+    public void testIncrementalRescans() throws Exception {
+        browseAll("artists", "albums", "genres", "titles");
+
+        // a few tracks added, from a new artist
+        mServer.append("titles", 3);
+        mServer.append("artists", 1);
+        mServer.rescan();
+        ServerScanRevalidator.Result result = mRevalidator.revalidate(SERVER_ID, mServer.mScanTimestamp);
+        assertThat(result.mKeptLists).isEqualTo(2);
+        assertThat(result.mDiscardedLists).isEqualTo(2);
+        assertThat(mStore.pagesAtScan(mServer.mScanTimestamp)).isEqualTo(2);
+        assertThat(mStore.mFingerprints.keySet()).isEqualTo(mStore.keysOf("albums", "genres"));
+
+        // a tag fix renames an album, the count stays the same
+        browseAll("artists", "titles");
+        mServer.rename("albums", 0);
+        mServer.rescan();
+        result = mRevalidator.revalidate(SERVER_ID, mServer.mScanTimestamp);
+        assertThat(result.mKeptLists).isEqualTo(3);
+        assertThat(result.mDiscardedLists).isEqualTo(1);
+        assertThat(mStore.mFingerprints.keySet()).isEqualTo(mStore.keysOf("artists", "genres", "titles"));
+
+        // the last artist is renamed
+        mServer.rename("artists", 250);
+        mServer.rescan();
+        result = mRevalidator.revalidate(SERVER_ID, mServer.mScanTimestamp);
+        assertThat(result.mKeptLists).isEqualTo(2);
+        assertThat(mStore.mFingerprints.keySet()).isEqualTo(mStore.keysOf("genres", "titles"));
+    }
+
+    @Test
+    public void testPartiallyBrowsedListsAreLeftForPurge() throws Exception {
+        // only the first page of artists was looked at
+        mStore.store(mServer, Arrays.asList("artists", "0", Integer.toString(BATCH_SIZE)));
+        browseAll("albums");
+        mServer.rescan();
+
+        ServerScanRevalidator.Result result = mRevalidator.revalidate(SERVER_ID, mServer.mScanTimestamp);
+        assertThat(result.mKeptLists).isEqualTo(1);
+        assertThat(result.mDiscardedLists).isEqualTo(0);
+        assertThat(mStore.pagesAtScan(mServer.mScanTimestamp)).isEqualTo(1);
+    }
+
+    @Test
+    public void testServerFailureDiscards() throws Exception {
+        browseAll("artists", "albums");
+        mServer.rescan();
+        mServer.mFailing = true;
+
+        ServerScanRevalidator.Result result = mRevalidator.revalidate(SERVER_ID, mServer.mScanTimestamp);
+        assertThat(result.mKeptLists).isEqualTo(0);
+        assertThat(result.mDiscardedLists).isEqualTo(2);
+        assertThat(mStore.mFingerprints.keySet()).isEmpty();
+    }
+
+    private void browseAll(String... lists) {
+        for (String list : lists) {
+            int count = mServer.mLists.get(list).size();
+            int start = 0;
+            do {
+                mStore.store(mServer, Arrays.asList(list, Integer.toString(start), Integer.toString(BATCH_SIZE), "tags:s"));
+                start += BATCH_SIZE;
+            } while (start < count);
+        }
+        mServer.mFetches = 0;
+    }
+
+    /**
+     * answers paged list queries from in-memory lists. Changes made to the lists only become visible with a rescan.
+     */
+    static class FakeServer implements ServerScanRevalidator.Prober {
+        final Map<String, List<String>> mLists = new LinkedHashMap<>();
+        final Map<String, List<String>> mPublished = new HashMap<>();
+        long mScanTimestamp = 1000;
+        int mFetches;
+        boolean mFailing;
+        int mRenames;
+
+        void putList(String name, int count) {
+            List<String> items = new ArrayList<>();
+            mLists.put(name, items);
+            append(name, count);
+        }
+
+        void append(String name, int count) {
+            List<String> items = mLists.get(name);
+            for (int i = 0; i < count; i++) {
+                items.add(name + " item " + items.size());
+            }
+        }
+
+        void rename(String name, int index) {
+            List<String> items = mLists.get(name);
+            items.set(index, items.get(index) + " (renamed " + (++mRenames) + ")");
+        }
+
+        void rescan() {
+            mPublished.clear();
+            for (Map.Entry<String, List<String>> e : mLists.entrySet()) {
+                mPublished.put(e.getKey(), new ArrayList<>(e.getValue()));
+            }
+            mScanTimestamp++;
+        }
+
+        @Override
+        @Nonnull
+        public JsonNode fetch(List<String> commands) throws Exception {
+            mFetches++;
+            if (mFailing) {
+                throw new IOException("connection lost");
+            }
+            List<String> items = mPublished.get(commands.get(0));
+            int start = Integer.parseInt(commands.get(1));
+            int count = Integer.parseInt(commands.get(2));
+
+            ObjectNode data = JsonNodeFactory.instance.objectNode();
+            data.put("count", items.size());
+            if (start < items.size()) {
+                ArrayNode loop = data.putArray(commands.get(0) + "_loop");
+                for (int i = start; i < Math.min(items.size(), start + count); i++) {
+                    loop.addObject().put("id", i).put("name", items.get(i));
+                }
+            }
+            return data;
+        }
+    }
+
+    /**
+     * keeps fingerprints and pages the way the cache tables do
+     */
+    static class FakeStore implements ServerScanRevalidator.Store {
+        final Map<Long, ListFingerprint> mFingerprints = new HashMap<>();
+
+        // list key hash of each cached page, and the scan it was stored under
+        final Map<String, long[]> mPages = new HashMap<>();
+
+        void store(FakeServer server, List<String> commands) {
+            JsonNode data;
+            try {
+                data = server.fetch(commands);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+            ListFingerprint page = ListFingerprint.fromCometPage(commands, data);
+            assertThat(page != null).isTrue();
+            mPages.put(commands.toString(), new long[]{page.getListKeyHash(), server.mScanTimestamp});
+
+            // the same merge the write-behind queue does
+            ListFingerprint existing = mFingerprints.get(page.getListKeyHash());
+            if (existing != null && (existing.getItemCount() != page.getItemCount() || existing.getServerScanTimestamp() != server.mScanTimestamp)) {
+                existing = null;
+            }
+            boolean first = page.getFirstPageHash() != null || existing == null;
+            boolean last = page.getLastPageHash() != null || existing == null;
+            ListFingerprint merged = new ListFingerprint(page.getListKey(), page.getItemCount(),
+                    first ? page.getFirstPageSize() : existing.getFirstPageSize(), first ? page.getFirstPageHash() : existing.getFirstPageHash(),
+                    last ? page.getLastPageSize() : existing.getLastPageSize(), last ? page.getLastPageHash() : existing.getLastPageHash(),
+                    server.mScanTimestamp);
+            mFingerprints.put(page.getListKeyHash(), merged);
+        }
+
+        int pagesAtScan(long serverScanTimestamp) {
+            int count = 0;
+            for (long[] page : mPages.values()) {
+                if (page[1] == serverScanTimestamp) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        Set<Long> keysOf(String... lists) {
+            Set<Long> keys = new HashSet<>();
+            for (String list : lists) {
+                keys.add(ListFingerprint.hashListKey(ListFingerprint.getListKey(Arrays.asList(list, "0", "0", "tags:s"))));
+            }
+            return keys;
+        }
+
+        @Override
+        @Nonnull
+        public List<ListFingerprint> loadPendingFingerprints(long serverId, long serverScanTimestamp, int limit) {
+            List<ListFingerprint> retval = new ArrayList<>();
+            for (ListFingerprint fp : mFingerprints.values()) {
+                if (fp.getServerScanTimestamp() != serverScanTimestamp && fp.isComplete() && retval.size() < limit) {
+                    retval.add(fp);
+                }
+            }
+            return retval;
+        }
+
+        @Override
+        public int restampList(long serverId, ListFingerprint fingerprint, long serverScanTimestamp) {
+            int count = 0;
+            for (long[] page : mPages.values()) {
+                if (page[0] == fingerprint.getListKeyHash() && page[1] == fingerprint.getServerScanTimestamp()) {
+                    page[1] = serverScanTimestamp;
+                    count++;
+                }
+            }
+            mFingerprints.put(fingerprint.getListKeyHash(), new ListFingerprint(fingerprint.getListKey(), fingerprint.getItemCount(),
+                    fingerprint.getFirstPageSize(), fingerprint.getFirstPageHash(), fingerprint.getLastPageSize(), fingerprint.getLastPageHash(),
+                    serverScanTimestamp));
+            return count;
+        }
+
+        @Override
+        public void discardFingerprint(long serverId, ListFingerprint fingerprint) {
+            mFingerprints.remove(fingerprint.getListKeyHash());
+        }
+    }
+}
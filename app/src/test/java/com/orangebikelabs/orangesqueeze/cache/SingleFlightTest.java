@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class SingleFlightTest {
+    final static private int THREADS = 64;
+    final static private int ROUNDS = 20;
+    final static private int KEYS_PER_ROUND = 8;
+
+    private ExecutorService mExecutorService;
+
+    @Before
+    public void setUp() {
+        mExecutorService = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutorService.shutdownNow();
+    }
+
+    /**
+     * 64 threads walk through rounds of overlapping keys, every key should be loaded exactly once
+     */
+    @Test
+    public void testContention() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>();
+        Map<String, String> memory = new ConcurrentHashMap<>();
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            futures.add(mExecutorService.submit(() -> {
+                Random random = new Random(seed);
+                start.await();
+                int served = 0;
+                for (int round = 0; round < ROUNDS; round++) {
+                    String key = round + ":" + random.nextInt(KEYS_PER_ROUND);
+                    String value = load(flights, memory, key, () -> {
+                        loads.incrementAndGet();
+                        Thread.sleep(2);
+                        return "value " + key;
+                    });
+                    assertThat(value).isEqualTo("value " + key);
+                    served++;
+                }
+                return served;
+            }));
+        }
+
+        start.countDown();
+        int served = 0;
+        for (Future<Integer> f : futures) {
+            served += f.get(30, TimeUnit.SECONDS);
+        }
+
+        assertThat(served).isEqualTo(THREADS * ROUNDS);
+        assertThat(loads.get()).isEqualTo(memory.size());
+        assertThat(flights.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testFailurePropagatesToFollowers() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>();
+        SingleFlight<String>.Flight leader = flights.join("key");
+        SingleFlight<String>.Flight follower = flights.join("key");
+        assertThat(leader.isLeader()).isTrue();
+        assertThat(follower.isLeader()).isFalse();
+
+        IOException failure = new IOException("server went away");
+        leader.fail(failure);
+
+        try {
+            follower.await(1, TimeUnit.SECONDS);
+            throw new AssertionError("expected failure");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isSameInstanceAs(failure);
+        }
+
+        // the next caller starts over
+        assertThat(flights.join("key").isLeader()).isTrue();
+    }
+
+    @Test
+    public void testCancelledLeaderIsReplaced() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>();
+        SingleFlight<String>.Flight leader = flights.join("key");
+        SingleFlight<String>.Flight follower = flights.join("key");
+
+        leader.cancel();
+
+        try {
+            follower.await(1, TimeUnit.SECONDS);
+            throw new AssertionError("expected cancellation");
+        } catch (CancellationException e) {
+            // expected, the follower joins again and takes over
+        }
+        assertThat(flights.join("key").isLeader()).isTrue();
+    }
+
+    interface Loader {
+        String load() throws Exception;
+    }
+
+    /**
+     * mirrors the loop in CacheService.loadBlocking()
+     */
+    static private String load(SingleFlight<String> flights, Map<String, String> memory, String key, Loader loader) throws Exception {
+        while (true) {
+            String value = memory.get(key);
+            if (value != null) {
+                return value;
+            }
+            SingleFlight<String>.Flight flight = flights.join(key);
+            if (flight.isLeader()) {
+                try {
+                    value = memory.get(key);
+                    if (value == null) {
+                        value = loader.load();
+                        memory.put(key, value);
+                    }
+                    flight.succeed();
+                    return value;
+                } catch (Throwable t) {
+                    flight.fail(t);
+                    throw t;
+                }
+            }
+            try {
+                flight.await(10, TimeUnit.SECONDS);
+            } catch (CancellationException e) {
+                continue;
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class StaleRevalidatorTest {
+    final static private long HOUR = TimeUnit.SECONDS.toMillis(60 * 60);
+
+    final private CacheEntry mEntry = new CacheEntry(CacheEntry.Type.TIMEOUT, 1, "Request{[radios,0,100]}");
+    final private AtomicLong mNow = new AtomicLong(1_000_000_000L);
+    final private List<CacheEntry> mRevalidated = new CopyOnWriteArrayList<>();
+    final private SingleFlight<CacheEntry> mFlights = new SingleFlight<>();
+
+    private ExecutorService mExecutorService;
+    private StaleRevalidator mRevalidator;
+
+    @Before
+    public void setUp() {
+        mExecutorService = Executors.newCachedThreadPool();
+        mRevalidator = new StaleRevalidator(mFlights, mExecutorService, mNow::get, mRevalidated::add);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutorService.shutdownNow();
+    }
+
+    @Test
+    public void testStaleWindow() {
+        long expires = mNow.get() + HOUR;
+        assertThat(mRevalidator.isExpired(expires)).isFalse();
+        assertThat(mRevalidator.isServable(expires)).isTrue();
+
+        // just expired, still servable
+        mNow.addAndGet(HOUR);
+        assertThat(mRevalidator.isExpired(expires)).isTrue();
+        assertThat(mRevalidator.isServable(expires)).isTrue();
+        assertThat(mRevalidator.getStaleValidAt()).isLessThan(expires);
+
+        // past the stale window
+        mNow.addAndGet(StaleRevalidator.STALE_WINDOW_MILLIS);
+        assertThat(mRevalidator.isServable(expires)).isFalse();
+        assertThat(mRevalidator.getStaleValidAt()).isEqualTo(expires);
+    }
+
+    /**
+     * stale hits arriving while the server is slow start one refresh between them, loads of the same entry wait for it
+     */
+    @Test
+    public void testSingleRefreshWithSlowLoader() throws Exception {
+        CountDownLatch serverResponds = new CountDownLatch(1);
+        AtomicInteger fetches = new AtomicInteger();
+        StaleRevalidator.Refresh slowLoader = () -> {
+            fetches.incrementAndGet();
+            serverResponds.await();
+        };
+
+        assertThat(mRevalidator.revalidate(mEntry, slowLoader)).isTrue();
+        for (int i = 0; i < 10; i++) {
+            assertThat(mRevalidator.revalidate(mEntry, slowLoader)).isFalse();
+        }
+
+        SingleFlight<CacheEntry>.Flight load = mFlights.join(mEntry);
+        assertThat(load.isLeader()).isFalse();
+        assertThat(mRevalidated).isEmpty();
+
+        serverResponds.countDown();
+        load.await(5, TimeUnit.SECONDS);
+        awaitRevalidated(1);
+
+        assertThat(fetches.get()).isEqualTo(1);
+        assertThat(mRevalidated).hasSize(1);
+        assertThat(mRevalidated.get(0)).isEqualTo(mEntry);
+        assertThat(mFlights.size()).isEqualTo(0);
+
+        // the next time it expires, it's refreshed again
+        assertThat(mRevalidator.revalidate(mEntry, slowLoader)).isTrue();
+        awaitRevalidated(2);
+        assertThat(fetches.get()).isEqualTo(2);
+    }
+
+    /**
+     * loads waiting on a failed refresh don't see its error, they retry and are served the stale value
+     */
+    @Test
+    public void testFailedRefresh() throws Exception {
+        CountDownLatch serverResponds = new CountDownLatch(1);
+        assertThat(mRevalidator.revalidate(mEntry, () -> {
+            serverResponds.await();
+            throw new IOException("server went away");
+        })).isTrue();
+
+        SingleFlight<CacheEntry>.Flight load = mFlights.join(mEntry);
+        assertThat(load.isLeader()).isFalse();
+        serverResponds.countDown();
+        try {
+            load.await(5, TimeUnit.SECONDS);
+            throw new AssertionError("expected cancellation");
+        } catch (CancellationException e) {
+            // expected, the load joins again
+        }
+        SingleFlight<CacheEntry>.Flight retry = mFlights.join(mEntry);
+        assertThat(retry.isLeader()).isTrue();
+        retry.succeed();
+
+        // nobody is told about it, and the next stale hit tries again
+        assertThat(mRevalidated).isEmpty();
+        assertThat(mFlights.size()).isEqualTo(0);
+        assertThat(mRevalidator.revalidate(mEntry, () -> {
+        })).isTrue();
+        awaitRevalidated(1);
+    }
+
+    @Test
+    public void testRefreshSkippedDuringLoad() {
+        SingleFlight<CacheEntry>.Flight load = mFlights.join(mEntry);
+        assertThat(mRevalidator.revalidate(mEntry, () -> {
+            throw new AssertionError("shouldn't run");
+        })).isFalse();
+        load.succeed();
+    }
+
+    private void awaitRevalidated(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (mRevalidated.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertThat(mRevalidated).hasSize(count);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class TemporaryStorageTest {
+    final static private int CHUNK_SIZE = 4096;
+
+    private File mDirectory;
+    private long mBudget = 16 * CHUNK_SIZE;
+    private TemporaryStorage mStorage;
+
+    @Before
+    public void setUp() {
+        mDirectory = Files.createTempDir();
+        mStorage = new TemporaryStorage(new TemporaryStorage.Config() {
+            @Override
+            public long getMemoryBudget() {
+                return mBudget;
+            }
+
+            @Override
+            @Nonnull
+            public File getSpillDirectory() {
+                return mDirectory;
+            }
+        }, CHUNK_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.delete();
+    }
+
+    @Test
+    public void testRoundTripInMemory() throws IOException {
+        for (int size : new int[]{0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 5 * CHUNK_SIZE + 17}) {
+            byte[] data = randomBytes(size, size);
+            ManagedTemporary temporary = mStorage.newTemporary();
+            temporary.asByteSink().write(data);
+
+            assertThat(temporary.isInMemory()).isTrue();
+            assertThat(temporary.size()).isEqualTo((long) size);
+            assertThat(Arrays.equals(temporary.asByteSource().read(), data)).isTrue();
+            assertThat(mStorage.getInUseBytes()).isEqualTo((long) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE) * CHUNK_SIZE);
+
+            temporary.close();
+            assertThat(mStorage.getInUseBytes()).isEqualTo(0L);
+        }
+        // chunks are reused rather than allocated again
+        assertThat(mStorage.getPooledBytes()).isEqualTo(6L * CHUNK_SIZE);
+        assertThat(listSpillFiles()).isEmpty();
+    }
+
+    @Test
+    public void testSpillWhenBudgetExhausted() throws IOException {
+        ManagedTemporary first = mStorage.newTemporary();
+        first.asByteSink().write(randomBytes(1, 12 * CHUNK_SIZE));
+
+        byte[] data = randomBytes(2, 10 * CHUNK_SIZE + 5);
+        ManagedTemporary second = mStorage.newTemporary();
+        second.asByteSink().write(data);
+
+        assertThat(first.isInMemory()).isTrue();
+        assertThat(second.isInMemory()).isFalse();
+        assertThat(mStorage.getSpillCount()).isEqualTo(1L);
+        assertThat(listSpillFiles()).hasSize(1);
+        assertThat(Arrays.equals(second.asByteSource().read(), data)).isTrue();
+
+        // what second took from the pool before spilling went back
+        assertThat(mStorage.getInUseBytes()).isEqualTo(12L * CHUNK_SIZE);
+
+        second.close();
+        assertThat(listSpillFiles()).isEmpty();
+        first.close();
+        assertThat(mStorage.getInUseBytes()).isEqualTo(0L);
+        assertThat(mStorage.getLiveCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testCloseReleasesImmediately() throws IOException {
+        ManagedTemporary temporary = mStorage.newTemporary();
+        temporary.asByteSink().write(randomBytes(3, 3 * CHUNK_SIZE));
+        InputStream in = temporary.asByteSource().openStream();
+        assertThat(in.read()).isAtLeast(0);
+
+        temporary.close();
+        assertThat(mStorage.getInUseBytes()).isEqualTo(0L);
+
+        // the chunks may already belong to someone else
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            in.read();
+            throw new AssertionError("expected failure");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            temporary.asByteSource().read();
+            throw new AssertionError("expected failure");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRewriteReplacesContents() throws IOException {
+        ManagedTemporary temporary = mStorage.newTemporary();
+        temporary.asByteSink().write(randomBytes(4, 20 * CHUNK_SIZE));
+        assertThat(temporary.isInMemory()).isFalse();
+
+        byte[] data = randomBytes(5, 100);
+        temporary.asByteSink().write(data);
+        assertThat(temporary.isInMemory()).isTrue();
+        assertThat(Arrays.equals(temporary.asByteSource().read(), data)).isTrue();
+        assertThat(listSpillFiles()).isEmpty();
+        temporary.close();
+    }
+
+    /**
+     * temporaries dropped without close() give their storage back eventually
+     */
+    @Test
+    public void testUnreachableTemporariesAreReclaimed() throws Exception {
+        for (int i = 0; i < 8; i++) {
+            ManagedTemporary leaked = mStorage.newTemporary();
+            leaked.asByteSink().write(randomBytes(i, 2 * CHUNK_SIZE));
+        }
+        ManagedTemporary spilled = mStorage.newTemporary();
+        spilled.asByteSink().write(randomBytes(9, CHUNK_SIZE));
+        assertThat(spilled.isInMemory()).isFalse();
+        spilled.close();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (mStorage.getReclaimedCount() < 8 && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+            mStorage.reclaimUnreachable();
+        }
+        assertThat(mStorage.getReclaimedCount()).isEqualTo(8L);
+        assertThat(mStorage.getInUseBytes()).isEqualTo(0L);
+        assertThat(mStorage.getLiveCount()).isEqualTo(0);
+
+        ManagedTemporary temporary = mStorage.newTemporary();
+        temporary.asByteSink().write(randomBytes(10, 10 * CHUNK_SIZE));
+        assertThat(temporary.isInMemory()).isTrue();
+        temporary.close();
+    }
+
+    @Test
+    public void testConcurrentStressDoesNotLeak() throws Exception {
+        final int threads = 8;
+        final int iterations = 1000;
+        // enough for a few artwork-sized payloads at once, so both paths are exercised
+        mBudget = 64 * CHUNK_SIZE;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int seed = t;
+                futures.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    start.await();
+                    for (int i = 0; i < iterations; i++) {
+                        byte[] data = randomBytes(random.nextLong(), random.nextInt(24 * CHUNK_SIZE));
+                        ManagedTemporary temporary = mStorage.newTemporary();
+                        try {
+                            try (OutputStream out = temporary.asByteSink().openStream()) {
+                                // uneven writes, like a network stream
+                                int offset = 0;
+                                while (offset < data.length) {
+                                    int count = Math.min(data.length - offset, 1 + random.nextInt(3 * CHUNK_SIZE / 2));
+                                    out.write(data, offset, count);
+                                    offset += count;
+                                }
+                            }
+                            try (InputStream in = temporary.asByteSource().openStream()) {
+                                if (!Arrays.equals(ByteStreams.toByteArray(in), data)) {
+                                    throw new AssertionError("contents differ");
+                                }
+                            }
+                        } finally {
+                            temporary.close();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : futures) {
+                f.get(120, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(mStorage.getSpillCount()).isGreaterThan(0L);
+        assertThat(mStorage.getInUseBytes()).isEqualTo(0L);
+        assertThat(mStorage.getPooledBytes()).isAtMost(mBudget);
+        assertThat(mStorage.getLiveCount()).isEqualTo(0);
+        assertThat(listSpillFiles()).isEmpty();
+
+        mStorage.trim();
+        assertThat(mStorage.getPooledBytes()).isEqualTo(0L);
+    }
+
+    @Nonnull
+    private List<File> listSpillFiles() {
+        File[] files = mDirectory.listFiles();
+        return files == null ? new ArrayList<>() : Arrays.asList(files);
+    }
+
+    @Nonnull
+    static private byte[] randomBytes(long seed, int size) {
+        byte[] retval = new byte[size];
+        new Random(seed).nextBytes(retval);
+        return retval;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.cache;
+
+import com.google.common.io.Files;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Replays cache key traces against the W-TinyLFU cache and a plain LRU cache of the same capacity.
+ * <p/>
+ * A recorded trace, one cache key per line, can be replayed by setting the system property "cache.trace" to its path. TinyLFU has to do at
+ * least as well as LRU on it.
+ */
+public class TinyLfuCacheTest {
+    final static private int CAPACITY = 200;
+
+    @Test
+    public void testLibraryScanKeepsHotSet() {
+        Random random = new Random(42);
+
+        // warm up with the home menu, player menus and artwork that get used over and over
+        List<String> warmup = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            warmup.add(hotKey(random));
+        }
+
+        // walk through a large library once while still visiting the hot items now and then
+        List<String> scan = new ArrayList<>();
+        int hotAccesses = 0;
+        for (int i = 0; i < 20000; i++) {
+            scan.add("track:" + i);
+            if (i % 10 == 0) {
+                scan.add(hotKey(random));
+                hotAccesses++;
+            }
+        }
+
+        TinyLfuCache<String, String> tinyLfu = new TinyLfuCache<>(CAPACITY, CAPACITY);
+        LruCache lru = new LruCache(CAPACITY);
+        replay(warmup, tinyLfu, lru);
+
+        long tinyLfuHitsBefore = tinyLfu.hitCount();
+        long lruHitsBefore = lru.mHits;
+        replay(scan, tinyLfu, lru);
+
+        // the library tracks are all misses, so the hits during the scan are hot items that survived it
+        double tinyLfuHotRatio = (tinyLfu.hitCount() - tinyLfuHitsBefore) / (double) hotAccesses;
+        double lruHotRatio = (lru.mHits - lruHitsBefore) / (double) hotAccesses;
+
+        assertThat(tinyLfuHotRatio).isGreaterThan(0.9);
+        assertThat(lruHotRatio).isLessThan(0.5);
+        assertThat(tinyLfu.size()).isAtMost(CAPACITY);
+    }
+
+    @Test
+    public void testRecordedTrace() throws IOException {
+        String path = System.getProperty("cache.trace");
+        if (path == null) {
+            return;
+        }
+        List<String> trace = Files.readLines(new File(path), StandardCharsets.UTF_8);
+        for (int capacity : new int[]{100, 500, 2000}) {
+            TinyLfuCache<String, String> tinyLfu = new TinyLfuCache<>(capacity, capacity);
+            LruCache lru = new LruCache(capacity);
+            replay(trace, tinyLfu, lru);
+            // once the working set fits both do about equally well, allow for that
+            assertThat(tinyLfu.hitRatio()).isAtLeast(lru.mHits / (double) trace.size() - 0.01);
+        }
+    }
+
+    @Test
+    public void testWeightedEviction() {
+        List<String> removed = new ArrayList<>();
+        TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(1000, 10, 1) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, String oldValue, @Nullable String newValue) {
+                removed.add(key);
+            }
+        };
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, repeat('x', 100));
+        }
+        assertThat(cache.size()).isAtMost(1000);
+        assertThat(removed).hasSize(20 - cache.size() / 100);
+
+        // too big to ever fit
+        cache.put("huge", repeat('x', 5000));
+        assertThat(cache.get("huge")).isNull();
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(100, 100);
+        String first = "first";
+        assertThat(cache.put("a", first)).isNull();
+        assertThat(cache.put("a", "second")).isEqualTo(first);
+        assertThat(cache.removeIfValue("a", first)).isFalse();
+        assertThat(cache.get("a")).isEqualTo("second");
+        assertThat(cache.remove("a")).isEqualTo("second");
+        assertThat(cache.get("a")).isNull();
+        assertThat(cache.size()).isEqualTo(0);
+        assertThat(cache.hitCount()).isEqualTo(1);
+        assertThat(cache.missCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testClearIsNotEviction() {
+        List<Boolean> removed = new ArrayList<>();
+        TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(100, 100) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key, String oldValue, @Nullable String newValue) {
+                removed.add(evicted);
+            }
+        };
+        cache.put("a", "a");
+        cache.put("b", "b");
+        cache.clear();
+        assertThat(cache.size()).isEqualTo(0);
+        assertThat(removed).containsExactly(false, false);
+        assertThat(cache.evictionCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testHotEntriesOrder() {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(100, 100, 1);
+        // the window holds eight, a and b overflow onto probation
+        for (String key : new String[]{"a", "b", "c", "d", "e", "f", "g", "h", "i", "j"}) {
+            cache.put(key, key);
+        }
+        // hit while on probation, so it's protected now
+        cache.get("a");
+
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, String> e : cache.hotEntries()) {
+            keys.add(e.getKey());
+        }
+        assertThat(keys).isEqualTo(Arrays.asList("a", "b", "j", "i", "h", "g", "f", "e", "d", "c"));
+    }
+
+    /**
+     * a page loaded once, while the cache is full of values used more often, is still there for the next reader
+     */
+    @Test
+    public void testValueJustPutIsReadable() {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(1000, 100, 1) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+        };
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 30; i++) {
+                String key = "established" + i;
+                if (cache.get(key) == null) {
+                    cache.put(key, repeat('x', 30));
+                }
+            }
+        }
+
+        // larger than the window, and seen once
+        for (int i = 0; i < 10; i++) {
+            String key = "page" + i;
+            assertThat(cache.get(key)).isNull();
+            cache.put(key, repeat('x', 200));
+            assertThat(cache.get(key)).isNotNull();
+            assertThat(cache.size()).isAtMost(1000);
+        }
+
+        // only as many established values as the window's oversized entry needs room for gave way
+        int established = 0;
+        for (int i = 0; i < 30; i++) {
+            if (cache.get("established" + i) != null) {
+                established++;
+            }
+        }
+        assertThat(established).isAtLeast(24);
+    }
+
+    static private String hotKey(Random random) {
+        return "hot:" + random.nextInt(50);
+    }
+
+    static private String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    static private void replay(List<String> trace, TinyLfuCache<String, String> tinyLfu, LruCache lru) {
+        for (String key : trace) {
+            if (tinyLfu.get(key) == null) {
+                tinyLfu.put(key, key);
+            }
+            lru.access(key);
+        }
+    }
+
+    /**
+     * baseline policy that mirrors the old LruCache behavior
+     */
+    static private class LruCache {
+        final private Map<String, String> mMap;
+
+        long mHits;
+
+        LruCache(int capacity) {
+            mMap = new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        void access(String key) {
+            if (mMap.get(key) != null) {
+                mHits++;
+            } else {
+                mMap.put(key, key);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Verifies per-channel ordering and cross-channel concurrency of the Comet callback dispatcher.
+ */
+public class ChannelDispatcherTest {
+
+    private ExecutorService mPool;
+    private ChannelDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        mPool = Executors.newFixedThreadPool(4);
+        mDispatcher = new ChannelDispatcher(mPool);
+    }
+
+    @After
+    public void tearDown() {
+        mDispatcher.shutdown();
+    }
+
+    @Test
+    public void testOrderedWithinChannel() throws InterruptedException {
+        final List<Integer> a = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> b = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(2000);
+        for (int i = 0; i < 1000; i++) {
+            final int value = i;
+            mDispatcher.dispatch("/a/slim/playerstatus/1", () -> {
+                a.add(value);
+                done.countDown();
+            });
+            mDispatcher.dispatch("/a/slim/playerstatus/2", () -> {
+                b.add(value);
+                done.countDown();
+            });
+        }
+        assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(a).isInOrder();
+        assertThat(b).isInOrder();
+        assertThat(a).hasSize(1000);
+
+        assertThat(mDispatcher.getWaitStats().get("/a/slim/playerstatus/1").getCount()).isEqualTo(1000);
+        assertThat(mDispatcher.getWaitStats()).hasSize(2);
+    }
+
+    @Test
+    public void testSlowChannelDoesNotBlockOthers() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch fastDone = new CountDownLatch(1);
+        mDispatcher.dispatch("/a/slim/menustatus/1", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        mDispatcher.dispatch("/a/slim/playerstatus/1", fastDone::countDown);
+
+        assertThat(fastDone.await(10, TimeUnit.SECONDS)).isTrue();
+        release.countDown();
+    }
+
+    @Test
+    public void testDroppedAfterShutdown() {
+        mDispatcher.shutdown();
+        assertThat(mDispatcher.dispatch("/a/slim/playerstatus/1", () -> {
+        })).isFalse();
+    }
+}
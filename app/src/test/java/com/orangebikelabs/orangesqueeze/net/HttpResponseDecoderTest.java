@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Feeds captured /cometd response streams to the non-blocking decoder in every possible split.
+ */
+public class HttpResponseDecoderTest {
+
+    final static private String CAPTURE = "HTTP/1.1 200 OK\r\n" +
+            "Content-Length: 26\r\n" +
+            "\r\n" +
+            "[{\"channel\":\"/handshake\"}]" +
+            "HTTP/1.1 200 OK\r\n" +
+            "Transfer-Encoding: chunked\r\n" +
+            "\r\n" +
+            "12\r\n" +
+            "[{\"id\":1,\"s\":\"}]\"}\r\n" +
+            "1b\r\n" +
+            ",{\"id\":2,\"a\":[{\"b\":\"\\\"\"}]}]\r\n" +
+            "6\r\n" +
+            "[{}]  \r\n";
+
+    @Test
+    public void testAllSplits() throws IOException {
+        byte[] bytes = CAPTURE.getBytes(StandardCharsets.UTF_8);
+        for (int split = 0; split <= bytes.length; split++) {
+            Recorder recorder = new Recorder();
+            HttpResponseDecoder decoder = new HttpResponseDecoder(new JsonMessageFramer(new ObjectMapper(), recorder));
+            decoder.decode(bytes, 0, split);
+            decoder.decode(bytes, split, bytes.length - split);
+
+            assertThat(recorder.mEvents).containsExactly(
+                    "{\"channel\":\"/handshake\"}", "END",
+                    "{\"id\":1,\"s\":\"}]\"}", "{\"id\":2,\"a\":[{\"b\":\"\\\"\"}]}", "END",
+                    "{}", "END").inOrder();
+        }
+    }
+
+    @Test
+    public void testByteAtATime() throws IOException {
+        byte[] bytes = CAPTURE.getBytes(StandardCharsets.UTF_8);
+        Recorder recorder = new Recorder();
+        HttpResponseDecoder decoder = new HttpResponseDecoder(new JsonMessageFramer(new ObjectMapper(), recorder));
+        for (int i = 0; i < bytes.length; i++) {
+            decoder.decode(bytes, i, 1);
+        }
+        assertThat(recorder.mEvents).hasSize(7);
+        assertThat(decoder.getState()).isEqualTo(HttpResponseDecoder.State.CHUNK_SIZE);
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadChunkTerminator() throws IOException {
+        byte[] bytes = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n2\r\n[]xx\r\n".getBytes(StandardCharsets.UTF_8);
+        new HttpResponseDecoder(new JsonMessageFramer(new ObjectMapper(), new Recorder())).decode(bytes, 0, bytes.length);
+    }
+
+    static private class Recorder implements JsonMessageFramer.MessageHandler {
+        final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void onMessage(JsonNode message) {
+            mEvents.add(message.toString());
+        }
+
+        @Override
+        public void onEndArray() {
+            mEvents.add("END");
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Replays captured /cometd response streams through the decoder.
+ */
+public class HttpResponseInputStreamTest {
+
+    final static private String HANDSHAKE_RESPONSE = "HTTP/1.1 200 OK\r\n" +
+            "Server: Logitech Media Server (8.3.0 - 1667251155)\r\n" +
+            "Content-Type: application/json\r\n" +
+            "Content-Length: 26\r\n" +
+            "\r\n" +
+            "[{\"channel\":\"/handshake\"}]";
+
+    final static private String STREAMING_RESPONSE = "HTTP/1.1 200 OK\r\n" +
+            "Server: Logitech Media Server (8.3.0 - 1667251155)\r\n" +
+            "TRANSFER-ENCODING: Chunked\r\n" +
+            "\r\n" +
+            "f\r\n" +
+            "[{\"id\":1,\"a\":2}\r\n" +
+            "4;ext=1\r\n" +
+            ",{}]\r\n" +
+            "0\r\n" +
+            "\r\n";
+
+    final static private String EXPECTED_CONTENT = "[{\"channel\":\"/handshake\"}]" + "[{\"id\":1,\"a\":2},{}]";
+
+    @Test
+    public void testFixedThenChunked() throws IOException {
+        String capture = HANDSHAKE_RESPONSE + STREAMING_RESPONSE;
+        for (int readSize = 1; readSize < 64; readSize++) {
+            for (int bufferSize = 1; bufferSize < 32; bufferSize++) {
+                assertThat(decode(capture, readSize, bufferSize)).isEqualTo(EXPECTED_CONTENT);
+            }
+        }
+        assertThat(decode(capture, 8192, HttpResponseInputStream.DEFAULT_BUFFER_SIZE)).isEqualTo(EXPECTED_CONTENT);
+    }
+
+    @Test
+    public void testSingleByteReads() throws IOException {
+        HttpResponseInputStream is = new HttpResponseInputStream(asStream(HANDSHAKE_RESPONSE + STREAMING_RESPONSE));
+        StringBuilder builder = new StringBuilder();
+        int c;
+        while ((c = is.read()) != -1) {
+            builder.append((char) c);
+        }
+        assertThat(builder.toString()).isEqualTo(EXPECTED_CONTENT);
+        assertThat(is.getState()).isEqualTo(HttpResponseInputStream.State.DISCONNECTED);
+    }
+
+    @Test
+    public void testChunkWithoutHeaders() throws IOException {
+        // sometimes the server sends another chunk when we expect headers
+        String capture = STREAMING_RESPONSE + "3\r\n[1]\r\n";
+        assertThat(decode(capture, 7, 5)).isEqualTo("[{\"id\":1,\"a\":2},{}][1]");
+    }
+
+    @Test
+    public void testPipelinedHeadersInsteadOfChunkSize() throws IOException {
+        String capture = "HTTP/1.1 200 OK\r\n" +
+                "Transfer-Encoding: chunked\r\n" +
+                "\r\n" +
+                "2\r\n" +
+                "[]\r\n" +
+                HANDSHAKE_RESPONSE;
+        assertThat(decode(capture, 3, 4)).isEqualTo("[]" + "[{\"channel\":\"/handshake\"}]");
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadChunkSize() throws IOException {
+        decode("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n", 16, 16);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingChunkTerminator() throws IOException {
+        decode("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n2\r\n[]xx\r\n", 16, 16);
+    }
+
+    @Test
+    public void testLargeReadsBypassBuffer() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.append("{\"n\":").append(i).append('}');
+        }
+        String body = content.toString();
+        String capture = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+        assertThat(decode(capture, 4096, 16)).isEqualTo(body);
+    }
+
+    private static String decode(String capture, int readSize, int bufferSize) throws IOException {
+        HttpResponseInputStream is = new HttpResponseInputStream(asStream(capture), bufferSize);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[readSize];
+        int read;
+        while ((read = is.read(buffer, 0, buffer.length)) != -1) {
+            os.write(buffer, 0, read);
+        }
+        return new String(os.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * simulate a socket that returns data in small, irregular pieces
+     */
+    private static InputStream asStream(String capture) {
+        return new FilterInputStream(new ByteArrayInputStream(capture.getBytes(StandardCharsets.UTF_8))) {
+            private int mCount;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                mCount++;
+                return super.read(b, off, Math.min(len, 1 + (mCount % 7)));
+            }
+        };
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import okio.Buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Checks that JSON-RPC bodies go on the wire compactly and with an accurate length.
+ */
+public class JsonRequestBodyTest {
+
+    @Test
+    public void testCompactBody() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode request = mapper.createObjectNode();
+        request.put("id", 1);
+        request.put("method", "slim.request");
+        request.putArray("params").add("00:04:20:00:00:01").addArray().add("mixer").add("volume").add("+5").add("é");
+
+        String expected = "{\"id\":1,\"method\":\"slim.request\",\"params\":[\"00:04:20:00:00:01\",[\"mixer\",\"volume\",\"+5\",\"é\"]]}";
+
+        JsonRequestBody body = new JsonRequestBody(mapper, request);
+        Buffer sink = new Buffer();
+        body.writeTo(sink);
+
+        assertThat(body.contentLength()).isEqualTo(expected.getBytes(StandardCharsets.UTF_8).length);
+        assertThat(sink.size()).isEqualTo(body.contentLength());
+        assertThat(sink.readUtf8()).isEqualTo(expected);
+    }
+
+    /**
+     * the tree is serialized once, the length and every write come from the same bytes
+     */
+    @Test
+    public void testSerializedOnce() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode request = mapper.createObjectNode();
+        request.put("id", 1);
+
+        JsonRequestBody body = new JsonRequestBody(mapper, request);
+        long length = body.contentLength();
+
+        // changes after the first serialization aren't seen
+        request.put("method", "slim.request");
+        for (int i = 0; i < 2; i++) {
+            Buffer sink = new Buffer();
+            body.writeTo(sink);
+            assertThat(sink.size()).isEqualTo(length);
+            assertThat(sink.readUtf8()).isEqualTo("{\"id\":1}");
+        }
+        assertThat(body.contentLength()).isEqualTo(length);
+    }
+}
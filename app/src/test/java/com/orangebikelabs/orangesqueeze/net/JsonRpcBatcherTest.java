@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Counts the round trips made for bursts of JSON-RPC calls, like those seen at startup and when player commands are fired in quick
+ * succession. The first call of a burst goes out on its own, the rest are batched while it is in flight. The first batch to a server is
+ * preceded by a probe to check it takes them.
+ */
+public class JsonRpcBatcherTest {
+
+    final static private long SERVER_DELAY_MILLIS = 50;
+
+    final private ObjectMapper mObjectMapper = new ObjectMapper();
+
+    private ScheduledExecutorService mScheduler;
+    private URL mUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mUrl = new URL("http://localhost:9000/jsonrpc.js");
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void testCommandBurstIsBatched() throws Exception {
+        FakeServer batcher = new FakeServer(true);
+        List<ListenableFuture<JsonNode>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(batcher.submit(mUrl, null, newRequest("volume", "+" + i), 10, TimeUnit.SECONDS, false));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertThat(futures.get(i).get(5, TimeUnit.SECONDS).path("result").path("echo").asText()).isEqualTo("volume +" + i);
+        }
+        assertThat(batcher.getCallCount()).isEqualTo(10);
+        // one on its own, the probe, then the batch
+        assertThat(batcher.getRoundTripCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void testSingleCallIsSentImmediately() throws Exception {
+        FakeServer batcher = new FakeServer(true);
+        ListenableFuture<JsonNode> future = batcher.submit(mUrl, null, newRequest("pause", "1"), 10, TimeUnit.SECONDS, false);
+        // sent before the batch window could have elapsed
+        assertThat(batcher.getRoundTripCount()).isEqualTo(1);
+        assertThat(batcher.mBodies.get(0).isArray()).isFalse();
+        future.get(5, TimeUnit.SECONDS);
+
+        // and again once the server is idle
+        batcher.submit(mUrl, null, newRequest("pause", "0"), 10, TimeUnit.SECONDS, false).get(5, TimeUnit.SECONDS);
+        assertThat(batcher.getRoundTripCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testLargeBurstIsSplit() throws Exception {
+        FakeServer batcher = new FakeServer(true);
+        List<ListenableFuture<JsonNode>> futures = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            futures.add(batcher.submit(mUrl, null, newRequest("button", "fwd"), 10, TimeUnit.SECONDS, false));
+        }
+        for (ListenableFuture<JsonNode> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        // one on its own, the probe, then 16 + 16 + 7
+        assertThat(batcher.getRoundTripCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void testStartupQueriesAreCoalesced() throws Exception {
+        FakeServer batcher = new FakeServer(true);
+        List<ListenableFuture<JsonNode>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(batcher.submit(mUrl, null, newRequest("version", "?"), 10, TimeUnit.SECONDS, true));
+            futures.add(batcher.submit(mUrl, null, newRequest("serverstatus", "0"), 10, TimeUnit.SECONDS, true));
+        }
+        for (ListenableFuture<JsonNode> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertThat(batcher.getCoalescedCount()).isEqualTo(8);
+        assertThat(batcher.getRoundTripCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testFallbackWhenBatchesUnsupported() throws Exception {
+        checkFallback(new FakeServer(false));
+    }
+
+    @Test
+    public void testFallbackWhenBatchesRejected() throws Exception {
+        checkFallback(new FakeServer(true, HttpURLConnection.HTTP_BAD_REQUEST));
+    }
+
+    @Test
+    public void testFallbackWhenConnectionClosed() throws Exception {
+        checkFallback(new FakeServer(true, FakeServer.CLOSE_CONNECTION));
+    }
+
+    @Test
+    public void testBatchTimeoutIsNotRetried() throws Exception {
+        FakeServer batcher = new FakeServer(true);
+        batcher.submit(mUrl, null, newRequest("play"), 10, TimeUnit.SECONDS, false);
+        batcher.submit(mUrl, null, newRequest("pause", "1"), 10, TimeUnit.SECONDS, false);
+        batcher.submit(mUrl, null, newRequest("pause", "0"), 10, TimeUnit.SECONDS, false).get(5, TimeUnit.SECONDS);
+        assertThat(batcher.getRoundTripCount()).isEqualTo(3);
+
+        // the server has taken batches before, so a timeout may mean it ran them
+        batcher.mBatchResponseCode = FakeServer.TIMEOUT;
+        batcher.submit(mUrl, null, newRequest("play"), 10, TimeUnit.SECONDS, false);
+        ListenableFuture<JsonNode> first = batcher.submit(mUrl, null, newRequest("pause", "1"), 10, TimeUnit.SECONDS, false);
+        ListenableFuture<JsonNode> second = batcher.submit(mUrl, null, newRequest("pause", "0"), 10, TimeUnit.SECONDS, false);
+        for (ListenableFuture<JsonNode> future : Arrays.asList(first, second)) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                throw new AssertionError("expected failure");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause() instanceof JsonRpcException).isTrue();
+            }
+        }
+        assertThat(batcher.getRoundTripCount()).isEqualTo(5);
+    }
+
+    private void checkFallback(FakeServer batcher) throws Exception {
+        ListenableFuture<JsonNode> play = batcher.submit(mUrl, null, newRequest("play"), 10, TimeUnit.SECONDS, false);
+        ListenableFuture<JsonNode> first = batcher.submit(mUrl, null, newRequest("pause", "1"), 10, TimeUnit.SECONDS, false);
+        ListenableFuture<JsonNode> second = batcher.submit(mUrl, null, newRequest("pause", "0"), 10, TimeUnit.SECONDS, false);
+        assertThat(play.get(5, TimeUnit.SECONDS).path("result").path("echo").asText()).isEqualTo("play");
+        assertThat(first.get(5, TimeUnit.SECONDS).path("result").path("echo").asText()).isEqualTo("pause 1");
+        assertThat(second.get(5, TimeUnit.SECONDS).path("result").path("echo").asText()).isEqualTo("pause 0");
+
+        // one on its own, the probe that fails, then one request each
+        assertThat(batcher.getRoundTripCount()).isEqualTo(4);
+
+        play = batcher.submit(mUrl, null, newRequest("play"), 10, TimeUnit.SECONDS, false);
+        ListenableFuture<JsonNode> third = batcher.submit(mUrl, null, newRequest("stop"), 10, TimeUnit.SECONDS, false);
+        ListenableFuture<JsonNode> fourth = batcher.submit(mUrl, null, newRequest("stop"), 10, TimeUnit.SECONDS, false);
+        play.get(5, TimeUnit.SECONDS);
+        third.get(5, TimeUnit.SECONDS);
+        fourth.get(5, TimeUnit.SECONDS);
+        assertThat(batcher.getRoundTripCount()).isEqualTo(7);
+    }
+
+    @Nonnull
+    private ObjectNode newRequest(String... commands) {
+        ObjectNode request = mObjectMapper.createObjectNode();
+        request.put("method", "slim.request");
+        ArrayNode params = request.putArray("params");
+        params.add("00:04:20:00:00:01");
+        ArrayNode values = params.addArray();
+        for (String command : commands) {
+            values.add(command);
+        }
+        return request;
+    }
+
+    /**
+     * answers each call with the command it was sent, after a short delay
+     */
+    private class FakeServer extends JsonRpcBatcher {
+        final static int TIMEOUT = 0;
+        final static int CLOSE_CONNECTION = -2;
+
+        final private boolean mSupportsBatches;
+
+        /**
+         * if not -1, array bodies fail with this response code, or time out, or have their connection closed
+         */
+        volatile int mBatchResponseCode;
+
+        final List<JsonNode> mBodies = Collections.synchronizedList(new ArrayList<>());
+
+        FakeServer(boolean supportsBatches) {
+            this(supportsBatches, -1);
+        }
+
+        FakeServer(boolean supportsBatches, int batchResponseCode) {
+            super(mScheduler);
+            mSupportsBatches = supportsBatches;
+            mBatchResponseCode = batchResponseCode;
+        }
+
+        @Nonnull
+        @Override
+        protected ListenableFuture<JsonNode> execute(URL url, @Nullable SBCredentials credentials, JsonNode body, long timeoutMillis) {
+            mBodies.add(body);
+            SettableFuture<JsonNode> retval = SettableFuture.create();
+            mScheduler.schedule(() -> {
+                if (!body.isArray()) {
+                    retval.set(answer(body));
+                } else if (mBatchResponseCode == TIMEOUT) {
+                    retval.setException(new JsonRpcException(new SocketTimeoutException()));
+                } else if (mBatchResponseCode == CLOSE_CONNECTION) {
+                    retval.setException(new JsonRpcException(new IOException("unexpected end of stream")));
+                } else if (mBatchResponseCode != -1) {
+                    retval.setException(new JsonRpcException(mBatchResponseCode));
+                } else if (!mSupportsBatches) {
+                    retval.set(mObjectMapper.createObjectNode());
+                } else {
+                    ArrayNode array = mObjectMapper.createArrayNode();
+                    for (JsonNode call : body) {
+                        array.add(answer(call));
+                    }
+                    retval.set(array);
+                }
+            }, SERVER_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            return retval;
+        }
+
+        @Nonnull
+        private JsonNode answer(JsonNode call) {
+            StringBuilder echo = new StringBuilder();
+            for (JsonNode value : call.path("params").path(1)) {
+                if (echo.length() > 0) {
+                    echo.append(' ');
+                }
+                echo.append(value.asText());
+            }
+            ObjectNode retval = mObjectMapper.createObjectNode();
+            retval.set("id", call.get("id"));
+            retval.putObject("result").put("echo", echo.toString());
+            return retval;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * A selector that fails takes its channels down with it instead of leaving them waiting on a dead thread.
+ */
+public class NioSelectorLoopTest {
+
+    @Test
+    public void testFailedSelectorIsReplaced() throws Exception {
+        NioSelectorLoop loop = NioSelectorLoop.getInstance();
+        Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        RecordingHandler handler = new RecordingHandler();
+
+        CountDownLatch registered = new CountDownLatch(1);
+        loop.execute(() -> {
+            try {
+                loop.register(pipe.source(), SelectionKey.OP_READ, handler);
+            } catch (IOException e) {
+                handler.onError(e);
+            }
+            registered.countDown();
+        });
+        assertThat(registered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // wakes the loop up, and the next select throws ClosedSelectorException
+        loop.getSelector().close();
+        assertThat(handler.mFailed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(handler.mFailure.get()).isInstanceOf(IOException.class);
+
+        // work handed to the old loop still runs, registering with it fails
+        CountDownLatch ran = new CountDownLatch(1);
+        AtomicReference<Exception> registerFailure = new AtomicReference<>();
+        loop.execute(() -> {
+            try {
+                loop.register(pipe.source(), SelectionKey.OP_READ, new RecordingHandler());
+            } catch (IOException e) {
+                registerFailure.set(e);
+            }
+            ran.countDown();
+        });
+        assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(registerFailure.get()).isNotNull();
+
+        // the next connection gets a working loop
+        NioSelectorLoop replacement = NioSelectorLoop.getInstance();
+        assertThat(replacement).isNotSameInstanceAs(loop);
+        CountDownLatch replacementRan = new CountDownLatch(1);
+        replacement.execute(replacementRan::countDown);
+        assertThat(replacementRan.await(5, TimeUnit.SECONDS)).isTrue();
+
+        pipe.source().close();
+        pipe.sink().close();
+    }
+
+    static private class RecordingHandler implements NioSelectorLoop.ChannelHandler {
+        final CountDownLatch mFailed = new CountDownLatch(1);
+        final AtomicReference<Exception> mFailure = new AtomicReference<>();
+
+        @Override
+        public void onConnectable() {
+        }
+
+        @Override
+        public void onReadable() {
+        }
+
+        @Override
+        public void onWritable() {
+        }
+
+        @Override
+        public void onError(Exception e) {
+            mFailure.set(e);
+            mFailed.countDown();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net
+
+import android.util.Log
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.google.common.truth.Truth.assertThat
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.mockkStatic
+import io.mockk.unmockkStatic
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.io.BufferedInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketTimeoutException
+import java.net.URL
+import java.nio.charset.StandardCharsets
+
+/**
+ * Pushes from the server don't free room in the POST window, only replies to outstanding POSTs do.
+ */
+class NioStreamingTransportTest {
+    private val mapper = ObjectMapper()
+
+    private lateinit var server: ServerSocket
+
+    @Before
+    fun setUp() {
+        mockkStatic(Log::class)
+        every { Log.isLoggable(any(), any()) } returns false
+        server = ServerSocket(0, 1, InetAddress.getLoopbackAddress())
+    }
+
+    @After
+    fun tearDown() {
+        server.close()
+        unmockkStatic(Log::class)
+    }
+
+    @Test
+    fun `Pushes while the window is full don't send another POST`() {
+        val connection = mockk<StreamingConnection>(relaxUnitFun = true) {
+            every { maxOutstandingPosts } returns 1
+            every { cometUrl } returns URL("http", "127.0.0.1", server.localPort, "/cometd")
+            every { sbContext } returns mockk { every { connectionCredentials } returns null }
+            every { isMetaConnectMessage(any()) } returns false
+        }
+        val transport = NioStreamingTransport(connection)
+        transport.connect()
+        try {
+            server.accept().use { socket ->
+                socket.soTimeout = 500
+                val input = BufferedInputStream(socket.getInputStream())
+
+                transport.addRequest(request(1))
+                assertThat(readPost(input).map { it.path("id").asInt() }).containsExactly(1)
+
+                transport.addRequest(request(2))
+                writeChunk(socket, """[{"channel":"/abc/slim/serverstatus","data":{}}]""")
+                assertNoPost(input)
+
+                writeChunk(socket, """[{"channel":"/abc/slim/request","id":1}]""")
+                assertThat(readPost(input).map { it.path("id").asInt() }).containsExactly(2)
+            }
+        } finally {
+            transport.close()
+        }
+    }
+
+    private fun request(id: Int): JsonNode {
+        return mapper.createObjectNode().put("channel", "/slim/request").put("id", id)
+    }
+
+    private fun writeChunk(socket: Socket, content: String) {
+        val bytes = content.toByteArray(StandardCharsets.UTF_8)
+        val output = socket.getOutputStream()
+        output.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".toByteArray(StandardCharsets.US_ASCII))
+        output.write("${Integer.toHexString(bytes.size)}\r\n".toByteArray(StandardCharsets.US_ASCII))
+        output.write(bytes)
+        output.write("\r\n0\r\n\r\n".toByteArray(StandardCharsets.US_ASCII))
+        output.flush()
+    }
+
+    private fun readPost(input: InputStream): JsonNode {
+        var contentLength = -1
+        while (true) {
+            val line = readLine(input)
+            if (line.isEmpty()) {
+                break
+            }
+            if (line.startsWith("Content-Length:", ignoreCase = true)) {
+                contentLength = line.substringAfter(':').trim().toInt()
+            }
+        }
+        assertThat(contentLength).isAtLeast(0)
+        val body = ByteArray(contentLength)
+        var read = 0
+        while (read < contentLength) {
+            val count = input.read(body, read, contentLength - read)
+            assertThat(count).isAtLeast(0)
+            read += count
+        }
+        return mapper.readTree(body)
+    }
+
+    private fun readLine(input: InputStream): String {
+        val line = ByteArrayOutputStream()
+        while (true) {
+            val b = input.read()
+            assertThat(b).isAtLeast(0)
+            if (b == '\n'.code) {
+                return line.toString(StandardCharsets.US_ASCII.name()).trimEnd('\r')
+            }
+            line.write(b)
+        }
+    }
+
+    private fun assertNoPost(input: InputStream) {
+        try {
+            val b = input.read()
+            throw AssertionError("unexpected POST data: $b")
+        } catch (e: SocketTimeoutException) {
+            // expected, nothing was sent
+        }
+    }
+}
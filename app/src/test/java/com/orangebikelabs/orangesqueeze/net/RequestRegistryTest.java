@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Drives the request registry timing wheel with a fake clock.
+ */
+public class RequestRegistryTest {
+
+    private FakeTicker mTicker;
+    private RequestRegistry mRegistry;
+
+    @Before
+    public void setUp() {
+        mTicker = new FakeTicker();
+        mTicker.advance(5, TimeUnit.SECONDS);
+        mRegistry = new RequestRegistry(mTicker, 1, TimeUnit.SECONDS, 8);
+    }
+
+    @Test
+    public void testAnsweredBeforeDeadline() {
+        SettableFuture<JsonNode> future = register(1, 10);
+        mTicker.advance(9, TimeUnit.SECONDS);
+        assertThat(mRegistry.expire()).isEqualTo(0);
+
+        assertThat(mRegistry.remove("1")).isSameInstanceAs(future);
+        assertThat(mRegistry.getOutstandingCount()).isEqualTo(0);
+        assertThat(mRegistry.getTimedOutCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testExpiresAfterDeadline() throws InterruptedException {
+        SettableFuture<JsonNode> future = register(1, 10);
+        mTicker.advance(10, TimeUnit.SECONDS);
+        assertThat(mRegistry.expire()).isEqualTo(1);
+
+        assertThat(future.isDone()).isTrue();
+        try {
+            future.get();
+            throw new AssertionError("expected timeout");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+        }
+        assertThat(mRegistry.getOutstandingCount()).isEqualTo(0);
+        assertThat(mRegistry.getTimedOutCount()).isEqualTo(1);
+
+        // a response that shows up afterwards is counted as late
+        assertThat(mRegistry.remove("1")).isNull();
+        assertThat(mRegistry.getLateAnswerCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testDeadlinesBeyondWheelSize() {
+        // 8 buckets, so these share buckets across several rotations
+        SettableFuture<JsonNode> shortRequest = register(1, 3);
+        SettableFuture<JsonNode> longRequest = register(2, 19);
+
+        for (int i = 0; i < 18; i++) {
+            mTicker.advance(1, TimeUnit.SECONDS);
+            mRegistry.expire();
+        }
+        assertThat(shortRequest.isDone()).isTrue();
+        assertThat(longRequest.isDone()).isFalse();
+
+        mTicker.advance(1, TimeUnit.SECONDS);
+        assertThat(mRegistry.expire()).isEqualTo(1);
+        assertThat(longRequest.isDone()).isTrue();
+    }
+
+    @Test
+    public void testLargeClockJump() {
+        SettableFuture<JsonNode> first = register(1, 2);
+        SettableFuture<JsonNode> second = register(2, 50);
+        SettableFuture<JsonNode> third = register(3, 500);
+
+        mTicker.advance(100, TimeUnit.SECONDS);
+        assertThat(mRegistry.expire()).isEqualTo(2);
+        assertThat(first.isDone()).isTrue();
+        assertThat(second.isDone()).isTrue();
+        assertThat(third.isDone()).isFalse();
+        assertThat(mRegistry.getOutstandingCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testCancelledRequestIsDropped() {
+        SettableFuture<JsonNode> future = register(1, 10);
+        future.cancel(false);
+        assertThat(mRegistry.getOutstandingCount()).isEqualTo(0);
+        assertThat(mRegistry.removeById(1)).isNull();
+    }
+
+    @Test
+    public void testRemoveByIdAndKeyShareEntry() {
+        SettableFuture<JsonNode> future = register(7, 10);
+        assertThat(mRegistry.removeById(7)).isSameInstanceAs(future);
+        assertThat(mRegistry.remove("7")).isNull();
+        assertThat(mRegistry.getLateAnswerCount()).isEqualTo(0);
+
+        future.set(NullNode.getInstance());
+        mTicker.advance(20, TimeUnit.SECONDS);
+        assertThat(mRegistry.expire()).isEqualTo(0);
+    }
+
+    @Test
+    public void testFailAll() {
+        SettableFuture<JsonNode> first = register(1, 10);
+        SettableFuture<JsonNode> second = register(2, 10);
+        mRegistry.failAll(new IOException("closed"));
+        assertThat(first.isDone()).isTrue();
+        assertThat(second.isDone()).isTrue();
+        assertThat(mRegistry.getOutstandingCount()).isEqualTo(0);
+        assertThat(mRegistry.getTimedOutCount()).isEqualTo(0);
+    }
+
+    private SettableFuture<JsonNode> register(int id, int timeoutSeconds) {
+        SettableFuture<JsonNode> future = SettableFuture.create();
+        mRegistry.register(id, Integer.toString(id), future, timeoutSeconds, TimeUnit.SECONDS);
+        return future;
+    }
+
+    static private class FakeTicker extends Ticker {
+        private long mNanos;
+
+        void advance(long time, TimeUnit units) {
+            mNanos += units.toNanos(time);
+        }
+
+        @Override
+        public long read() {
+            return mNanos;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020-2022 The OpenSqueeze Authors. All Rights Reserved.
+ * Use of this source code is governed by the license that can be found in the LICENSE file.
+ */
+
+package com.orangebikelabs.orangesqueeze.net;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Replies free the slot of the POST they answer, once, and nothing else does.
+ */
+public class RequestWindowTest {
+    final private ObjectMapper mMapper = new ObjectMapper();
+
+    private RequestWindow mWindow;
+
+    @Before
+    public void setUp() {
+        mWindow = new RequestWindow(2);
+        mWindow.open();
+    }
+
+    @Test
+    public void testUnsolicitedPushesDontOpenWindow() {
+        assertThat(tryPost(request(1))).isNotNull();
+        assertThat(tryPost(request(2))).isNotNull();
+        assertThat(tryPost(request(3))).isNull();
+
+        // server status pushes and replies to requests that aren't outstanding
+        assertThat(mWindow.releaseFor(push("/abc/slim/serverstatus"))).isFalse();
+        assertThat(mWindow.releaseFor(reply(7))).isFalse();
+        assertThat(mWindow.getOutstanding()).isEqualTo(2);
+        assertThat(tryPost(request(3))).isNull();
+
+        assertThat(mWindow.releaseFor(reply(2))).isTrue();
+        assertThat(mWindow.getOutstanding()).isEqualTo(1);
+        assertThat(tryPost(request(3))).isNotNull();
+    }
+
+    @Test
+    public void testSlotFreedOnce() {
+        ArrayNode post = mMapper.createArrayNode();
+        post.add(request(1));
+        post.add(request(2));
+        RequestWindow.Slot slot = tryPost(post);
+        assertThat(slot).isNotNull();
+        RequestWindow.Slot other = tryPost(request(3));
+        assertThat(other).isNotNull();
+
+        // the first reply frees the POST, later replies to it free nothing else
+        assertThat(mWindow.releaseFor(reply(2))).isTrue();
+        assertThat(mWindow.releaseFor(reply(1))).isFalse();
+        assertThat(mWindow.release(slot)).isFalse();
+        assertThat(mWindow.getOutstanding()).isEqualTo(1);
+
+        assertThat(mWindow.release(other)).isTrue();
+        assertThat(mWindow.releaseFor(reply(3))).isFalse();
+        assertThat(mWindow.getOutstanding()).isEqualTo(0);
+    }
+
+    @Test
+    public void testMetaRepliesMatchByChannel() {
+        ObjectNode handshake = mMapper.createObjectNode();
+        handshake.put("channel", "/meta/handshake");
+        assertThat(tryPost(handshake)).isNotNull();
+
+        assertThat(mWindow.releaseFor(push("/meta/connect"))).isFalse();
+        assertThat(mWindow.releaseFor(push("/meta/handshake"))).isTrue();
+        assertThat(mWindow.getOutstanding()).isEqualTo(0);
+    }
+
+    private RequestWindow.Slot tryPost(JsonNode messages) {
+        List<String> keys = new ArrayList<>();
+        RequestWindow.addReplyKeys(messages, keys);
+        return mWindow.tryAcquire(keys);
+    }
+
+    private ObjectNode request(int id) {
+        ObjectNode retval = mMapper.createObjectNode();
+        retval.put("channel", "/slim/request");
+        retval.put("id", id);
+        return retval;
+    }
+
+    private ObjectNode reply(int id) {
+        ObjectNode retval = mMapper.createObjectNode();
+        retval.put("channel", "/abc/slim/request");
+        retval.put("id", id);
+        return retval;
+    }
+
+    private ObjectNode push(String channel) {
+        ObjectNode retval = mMapper.createObjectNode();
+        retval.put("channel", channel);
+        return retval;
+    }
+}